@@ -0,0 +1,62 @@
+package ch.cern.tdaq.k8s.operator;
+
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.client.ConfigBuilder;
+import io.fabric8.kubernetes.client.DefaultKubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-reconcile cost of getting a worker Deployment:
+ *  parsePerReconcile: the old way, reading and parsing deploy-worker.yaml from the classpath on every event
+ *  cachedTemplateCopy: the DeploymentTemplate way, a deep copy of the template parsed at startup
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeploymentTemplateBenchmark {
+    private KubernetesClient kubernetesClient;
+    private DeploymentTemplate deploymentTemplate;
+
+    @Setup
+    public void setup() throws IOException {
+        /* load() only parses the yaml, it does not talk to the API server */
+        kubernetesClient = new DefaultKubernetesClient(new ConfigBuilder().withMasterUrl("http://localhost:1").build());
+        deploymentTemplate = new DeploymentTemplate(DeploymentTemplate.DEFAULT_TEMPLATE_RESOURCE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        kubernetesClient.close();
+        deploymentTemplate.close();
+    }
+
+    @Benchmark
+    public Deployment parsePerReconcile() throws IOException {
+        try (InputStream yamlInputStream = DeploymentTemplate.class.getResourceAsStream(DeploymentTemplate.DEFAULT_TEMPLATE_RESOURCE)) {
+            return kubernetesClient.apps().deployments().load(yamlInputStream).get();
+        }
+    }
+
+    @Benchmark
+    public Deployment cachedTemplateCopy() {
+        return deploymentTemplate.newInstance();
+    }
+}
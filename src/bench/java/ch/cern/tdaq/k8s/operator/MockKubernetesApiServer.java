@@ -0,0 +1,528 @@
+package ch.cern.tdaq.k8s.operator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * An in-process Kubernetes API server for the benchmarks, it keeps the objects in memory and knows just enough of the API for the Operator:
+ * GET, LIST (label and field selectors), WATCH (web socket), POST, PUT, DELETE, JSON merge patches and the status/scale subresources.
+ *
+ * A server-side apply is handled like a merge patch that creates the object if it does not exist, the field ownership is not tracked.
+ * A Deployment is rolled out as soon as it is written: its status gets all replicas ready, so the readiness and status code paths run.
+ * Every response except the watch events is delayed by the injected latency, to see how the Operator behaves with a slow API server.
+ */
+public class MockKubernetesApiServer implements AutoCloseable {
+    private static final ObjectMapper MAPPER = Serialization.jsonMapper();
+    private static final String APPLY_PATCH = "application/apply-patch+yaml";
+
+    /* plural -> kind, for the list kinds and the objects created without kind */
+    private static final Map<String, String> KINDS = new HashMap<>();
+    static {
+        KINDS.put("deployments", "Deployment");
+        KINDS.put("services", "Service");
+        KINDS.put("namespaces", "Namespace");
+        KINDS.put("pods", "Pod");
+        KINDS.put("configmaps", "ConfigMap");
+        KINDS.put("resourcequotas", "ResourceQuota");
+        KINDS.put("rolebindings", "RoleBinding");
+        KINDS.put("runresources", "RunResource");
+    }
+
+    private final MockWebServer server = new MockWebServer();
+    private final long latencyMillis;
+    private final AtomicLong resourceVersion = new AtomicLong(1);
+    /* plural -> "<namespace>/<name>" -> object, cluster scoped objects have an empty namespace */
+    private final Map<String, ConcurrentSkipListMap<String, ObjectNode>> objects = new ConcurrentHashMap<>();
+    private final List<WatchStream> watches = new CopyOnWriteArrayList<>();
+    private final List<BiConsumer<String, ObjectNode>> writeListeners = new CopyOnWriteArrayList<>();
+    /* "<METHOD> <plural>[/<subresource>]" -> requests, watches not included */
+    private final Map<String, LongAdder> requests = new ConcurrentSkipListMap<>();
+    private final LongAdder requestsTotal = new LongAdder();
+
+    /**
+     * @param latencyMillis Added to every response, 0 for none
+     */
+    public MockKubernetesApiServer(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                try {
+                    return handle(request);
+                } catch (RuntimeException e) {
+                    return status(500, e.toString());
+                }
+            }
+        });
+    }
+
+    public void start() throws IOException {
+        server.start();
+    }
+
+    /**
+     * @return The URL to use as the masterUrl of the KubernetesClient
+     */
+    @NotNull
+    public String getUrl() {
+        return server.url("/").toString();
+    }
+
+    /**
+     * Stores an object without counting it as a request, e.g. the Service the Operator reads at startup or a RunResource
+     * @param plural e.g. services, runresources
+     */
+    public void put(@NotNull String plural, @NotNull Object object) {
+        ObjectNode node = MAPPER.valueToTree(object);
+        store(plural, node.path("metadata").path("namespace").asText(""), node.path("metadata").path("name").asText(), node, false);
+    }
+
+    /**
+     * Called with the plural and the object after every create, update or patch made through the API
+     */
+    public void addWriteListener(@NotNull BiConsumer<String, ObjectNode> listener) {
+        writeListeners.add(listener);
+    }
+
+    public int count(@NotNull String plural) {
+        return objects.getOrDefault(plural, new ConcurrentSkipListMap<>()).size();
+    }
+
+    public long getRequestsTotal() { return requestsTotal.sum(); }
+
+    /**
+     * @return "<METHOD> <plural>[/<subresource>]" -> how many requests, watches not included
+     */
+    @NotNull
+    public Map<String, Long> getRequests() {
+        Map<String, Long> counts = new TreeMap<>();
+        requests.forEach((key, count) -> counts.put(key, count.sum()));
+        return counts;
+    }
+
+    private MockResponse handle(RecordedRequest request) {
+        ApiPath path = ApiPath.parse(request.getPath());
+        if (path == null) {
+            return status(404, "Unknown path " + request.getPath());
+        }
+        boolean watch = "true".equals(path.query.get("watch"));
+        if (!watch) {
+            requests.computeIfAbsent(request.getMethod() + " " + path.plural + (path.subresource == null ? "" : "/" + path.subresource),
+                    k -> new LongAdder()).increment();
+            requestsTotal.increment();
+        }
+        MockResponse response;
+        switch (request.getMethod()) {
+            case "GET":
+                if (watch) {
+                    return watch(path);
+                }
+                response = path.name == null ? list(path) : get(path);
+                break;
+            case "POST":
+                response = create(path, readBody(request));
+                break;
+            case "PUT":
+                response = replace(path, readBody(request));
+                break;
+            case "PATCH":
+                response = patch(path, readBody(request), request.getHeader("Content-Type"));
+                break;
+            case "DELETE":
+                response = delete(path);
+                break;
+            default:
+                response = status(405, request.getMethod());
+        }
+        return latencyMillis > 0 ? response.setHeadersDelay(latencyMillis, TimeUnit.MILLISECONDS) : response;
+    }
+
+    private MockResponse get(ApiPath path) {
+        ObjectNode object = objects(path.plural).get(path.key());
+        return object == null ? status(404, path.key() + " not found") : json(200, object);
+    }
+
+    private MockResponse list(ApiPath path) {
+        ObjectNode list = MAPPER.createObjectNode();
+        list.put("apiVersion", path.apiVersion());
+        list.put("kind", KINDS.getOrDefault(path.plural, "Object") + "List");
+        list.putObject("metadata").put("resourceVersion", Long.toString(resourceVersion.get()));
+        ArrayNode items = list.putArray("items");
+        for (ObjectNode object : objects(path.plural).values()) {
+            if (path.matches(object)) {
+                items.add(object);
+            }
+        }
+        return json(200, list);
+    }
+
+    private MockResponse create(ApiPath path, ObjectNode body) {
+        String name = body.path("metadata").path("name").asText();
+        ApiPath objectPath = path.withName(name);
+        if (objects(path.plural).containsKey(objectPath.key())) {
+            return status(409, objectPath.key() + " already exists");
+        }
+        return json(201, store(path.plural, objectPath.namespace, name, body, true));
+    }
+
+    private MockResponse replace(ApiPath path, ObjectNode body) {
+        return json(200, store(path.plural, path.namespace, path.name, body, true));
+    }
+
+    private MockResponse patch(ApiPath path, ObjectNode body, @Nullable String contentType) {
+        synchronized (this) {
+            ObjectNode existing = objects(path.plural).get(path.key());
+            boolean apply = contentType != null && contentType.startsWith(APPLY_PATCH);
+            if (existing == null && !apply) {
+                return status(404, path.key() + " not found");
+            }
+            String expectedVersion = body.path("metadata").path("resourceVersion").asText(null);
+            if (existing != null && expectedVersion != null && !expectedVersion.equals(existing.path("metadata").path("resourceVersion").asText())) {
+                return status(409, "the object has been modified");
+            }
+            ObjectNode patched = existing == null ? MAPPER.createObjectNode() : existing.deepCopy();
+            if ("status".equals(path.subresource)) {
+                merge(patched, MAPPER.createObjectNode().set("status", body.path("status")));
+            } else if ("scale".equals(path.subresource)) {
+                patched.with("spec").put("replicas", body.path("spec").path("replicas").asInt());
+            } else {
+                merge(patched, body);
+            }
+            return json(200, store(path.plural, path.namespace, path.name, patched, true));
+        }
+    }
+
+    private MockResponse delete(ApiPath path) {
+        if (path.name == null) {
+            for (Iterator<ObjectNode> iterator = objects(path.plural).values().iterator(); iterator.hasNext(); ) {
+                ObjectNode object = iterator.next();
+                if (path.matches(object)) {
+                    iterator.remove();
+                    notifyWatches(path.plural, "DELETED", object);
+                }
+            }
+            return status(200, "deleted");
+        }
+        ObjectNode object = objects(path.plural).remove(path.key());
+        if (object == null) {
+            return status(404, path.key() + " not found");
+        }
+        notifyWatches(path.plural, "DELETED", object);
+        return json(200, object);
+    }
+
+    private MockResponse watch(ApiPath path) {
+        return new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+            private WatchStream stream;
+
+            @Override
+            public void onOpen(WebSocket webSocket, Response response) {
+                stream = new WatchStream(path, webSocket);
+                watches.add(stream);
+            }
+
+            @Override
+            public void onClosing(WebSocket webSocket, int code, String reason) {
+                watches.remove(stream);
+                webSocket.close(code, reason);
+            }
+
+            @Override
+            public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+                watches.remove(stream);
+            }
+        });
+    }
+
+    private ObjectNode store(String plural, String namespace, String name, ObjectNode object, boolean notifyListeners) {
+        ObjectNode stored;
+        boolean added;
+        synchronized (this) {
+            ObjectNode metadata = object.with("metadata");
+            metadata.put("name", name);
+            if (!namespace.isEmpty()) {
+                metadata.put("namespace", namespace);
+            }
+            ObjectNode previous = objects(plural).get(namespace + "/" + name);
+            added = previous == null;
+            if (!metadata.has("uid")) {
+                metadata.put("uid", added ? Long.toString(resourceVersion.get()) : previous.path("metadata").path("uid").asText());
+            }
+            if (!metadata.has("creationTimestamp")) {
+                metadata.put("creationTimestamp", added ? java.time.Instant.now().toString()
+                        : previous.path("metadata").path("creationTimestamp").asText());
+            }
+            if (!object.has("kind")) {
+                object.put("kind", KINDS.getOrDefault(plural, "Object"));
+            }
+            metadata.put("resourceVersion", Long.toString(resourceVersion.incrementAndGet()));
+            if ("deployments".equals(plural)) {
+                rollOut(object, previous);
+            }
+            objects(plural).put(namespace + "/" + name, object);
+            stored = object.deepCopy();
+        }
+        notifyWatches(plural, added ? "ADDED" : "MODIFIED", stored);
+        if (notifyListeners) {
+            for (BiConsumer<String, ObjectNode> listener : writeListeners) {
+                listener.accept(plural, stored);
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * All replicas are updated and ready right away
+     */
+    private static void rollOut(ObjectNode deployment, @Nullable ObjectNode previous) {
+        long generation = previous == null ? 1 : previous.path("metadata").path("generation").asLong(1)
+                + (previous.path("spec").equals(deployment.path("spec")) ? 0 : 1);
+        deployment.with("metadata").put("generation", generation);
+        int replicas = deployment.path("spec").path("replicas").asInt(1);
+        ObjectNode status = deployment.with("status");
+        status.put("observedGeneration", generation);
+        status.put("replicas", replicas);
+        status.put("updatedReplicas", replicas);
+        status.put("readyReplicas", replicas);
+        status.put("availableReplicas", replicas);
+    }
+
+    private void notifyWatches(String plural, String type, ObjectNode object) {
+        if (watches.isEmpty()) {
+            return;
+        }
+        ObjectNode event = MAPPER.createObjectNode();
+        event.put("type", type);
+        event.set("object", object);
+        String json = event.toString();
+        for (WatchStream stream : watches) {
+            if (stream.path.plural.equals(plural) && stream.path.matches(object)) {
+                stream.webSocket.send(json);
+            }
+        }
+    }
+
+    private ConcurrentSkipListMap<String, ObjectNode> objects(String plural) {
+        return objects.computeIfAbsent(plural, k -> new ConcurrentSkipListMap<>());
+    }
+
+    /**
+     * JSON merge patch (RFC 7386): objects are merged, null removes a field, everything else replaces
+     */
+    static void merge(@NotNull ObjectNode target, @NotNull JsonNode patch) {
+        Iterator<Map.Entry<String, JsonNode>> fields = patch.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode value = field.getValue();
+            if (value.isNull()) {
+                target.remove(field.getKey());
+            } else if (value.isObject() && target.path(field.getKey()).isObject()) {
+                merge((ObjectNode) target.get(field.getKey()), value);
+            } else {
+                target.set(field.getKey(), value.deepCopy());
+            }
+        }
+    }
+
+    private static ObjectNode readBody(RecordedRequest request) {
+        String body = request.getBody().readUtf8();
+        try {
+            JsonNode node = body.isEmpty() ? MAPPER.createObjectNode() : MAPPER.readTree(body);
+            return node.isObject() ? (ObjectNode) node : MAPPER.createObjectNode();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static MockResponse json(int code, JsonNode body) {
+        return new MockResponse().setResponseCode(code).addHeader("Content-Type", "application/json").setBody(body.toString());
+    }
+
+    private static MockResponse status(int code, String message) {
+        ObjectNode status = MAPPER.createObjectNode();
+        status.put("apiVersion", "v1");
+        status.put("kind", "Status");
+        status.put("status", code < 400 ? "Success" : "Failure");
+        status.put("message", message);
+        status.put("code", code);
+        return json(code, status);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (WatchStream stream : watches) {
+            stream.webSocket.close(1000, "server stopped");
+        }
+        server.shutdown();
+    }
+
+    private static final class WatchStream {
+        private final ApiPath path;
+        private final WebSocket webSocket;
+
+        private WatchStream(ApiPath path, WebSocket webSocket) {
+            this.path = path;
+            this.webSocket = webSocket;
+        }
+    }
+
+    /**
+     * /api/v1/namespaces/<namespace>/<plural>/<name>/<subresource>?<query>, or /apis/<group>/<version>/..., or without namespace
+     */
+    static final class ApiPath {
+        private final String group;
+        private final String plural;
+        private final String namespace;
+        private final String name;
+        private final String subresource;
+        private final Map<String, String> query;
+
+        private ApiPath(String group, String plural, String namespace, String name, String subresource, Map<String, String> query) {
+            this.group = group;
+            this.plural = plural;
+            this.namespace = namespace;
+            this.name = name;
+            this.subresource = subresource;
+            this.query = query;
+        }
+
+        @Nullable
+        static ApiPath parse(@NotNull String requestPath) {
+            int queryStart = requestPath.indexOf('?');
+            Map<String, String> query = new HashMap<>();
+            if (queryStart >= 0) {
+                for (String parameter : requestPath.substring(queryStart + 1).split("&")) {
+                    String[] keyAndValue = parameter.split("=", 2);
+                    query.put(decode(keyAndValue[0]), keyAndValue.length == 2 ? decode(keyAndValue[1]) : "");
+                }
+                requestPath = requestPath.substring(0, queryStart);
+            }
+            List<String> segments = new ArrayList<>(Arrays.asList(requestPath.replaceAll("^/+|/+$", "").split("/")));
+            String group;
+            if (segments.size() >= 2 && segments.get(0).equals("api")) {
+                group = "";
+                segments = segments.subList(2, segments.size());
+            } else if (segments.size() >= 3 && segments.get(0).equals("apis")) {
+                group = segments.get(1) + "/" + segments.get(2);
+                segments = segments.subList(3, segments.size());
+            } else {
+                return null;
+            }
+            if (segments.isEmpty()) {
+                return null;
+            }
+            if (segments.get(0).equals("namespaces") && segments.size() <= 2) {
+                /* The namespaces themselves */
+                return new ApiPath(group, "namespaces", "", segments.size() == 2 ? segments.get(1) : null, null, query);
+            }
+            if (segments.get(0).equals("namespaces")) {
+                return new ApiPath(group, segments.get(2), segments.get(1), segments.size() > 3 ? segments.get(3) : null,
+                        segments.size() > 4 ? segments.get(4) : null, query);
+            }
+            /* All namespaces, or a cluster scoped object */
+            return new ApiPath(group, segments.get(0), null, segments.size() > 1 ? segments.get(1) : null,
+                    segments.size() > 2 ? segments.get(2) : null, query);
+        }
+
+        ApiPath withName(String name) {
+            return new ApiPath(group, plural, namespace == null ? "" : namespace, name, null, query);
+        }
+
+        String key() {
+            return (namespace == null ? "" : namespace) + "/" + name;
+        }
+
+        String apiVersion() {
+            return group.isEmpty() ? "v1" : group;
+        }
+
+        /**
+         * The namespace, labelSelector (key=value, key in (a,b) and key) and fieldSelector (metadata.name, metadata.namespace) of the request
+         */
+        boolean matches(ObjectNode object) {
+            JsonNode metadata = object.path("metadata");
+            if (namespace != null && !namespace.isEmpty() && !namespace.equals(metadata.path("namespace").asText())) {
+                return false;
+            }
+            if (name != null && !name.equals(metadata.path("name").asText())) {
+                return false;
+            }
+            for (String requirement : split(query.get("labelSelector"))) {
+                int in = requirement.indexOf(" in (");
+                if (in > 0) {
+                    JsonNode label = metadata.path("labels").path(requirement.substring(0, in).trim());
+                    List<String> values = Arrays.asList(requirement.substring(in + 5, requirement.lastIndexOf(')')).split(","));
+                    if (label.isMissingNode() || !values.contains(label.asText())) {
+                        return false;
+                    }
+                    continue;
+                }
+                String[] keyAndValue = requirement.split("=", 2);
+                JsonNode label = metadata.path("labels").path(keyAndValue[0]);
+                if (label.isMissingNode() || (keyAndValue.length == 2 && !label.asText().equals(keyAndValue[1]))) {
+                    return false;
+                }
+            }
+            for (String requirement : split(query.get("fieldSelector"))) {
+                String[] keyAndValue = requirement.split("=", 2);
+                String field = keyAndValue[0].startsWith("metadata.") ? keyAndValue[0].substring("metadata.".length()) : keyAndValue[0];
+                if (keyAndValue.length == 2 && !metadata.path(field).asText().equals(keyAndValue[1])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static List<String> split(@Nullable String selector) {
+            List<String> requirements = new ArrayList<>();
+            if (selector != null) {
+                /* The commas inside the values of a set-based requirement, key in (a,b), do not split it */
+                for (String requirement : selector.split(",(?![^(]*\\))")) {
+                    if (!requirement.isEmpty()) {
+                        requirements.add(requirement.replace("==", "="));
+                    }
+                }
+            }
+            return requirements;
+        }
+
+        private static String decode(String value) {
+            try {
+                return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new IllegalStateException("UTF-8 is always supported", e);
+            }
+        }
+    }
+}
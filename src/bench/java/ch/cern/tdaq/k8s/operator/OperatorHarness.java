@@ -0,0 +1,263 @@
+package ch.cern.tdaq.k8s.operator;
+
+import ch.cern.tdaq.k8s.operator.CustomResource.RunPipeSpec;
+import ch.cern.tdaq.k8s.operator.CustomResource.RunResource;
+import ch.cern.tdaq.k8s.operator.CustomResource.RunResourceSpec;
+import com.github.containersolutions.operator.api.Context;
+import com.github.containersolutions.operator.api.RetryInfo;
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.fabric8.kubernetes.api.model.Service;
+import io.fabric8.kubernetes.api.model.ServiceBuilder;
+import io.fabric8.kubernetes.client.ConfigBuilder;
+import io.fabric8.kubernetes.client.DefaultKubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.utils.HttpClientUtils;
+import okhttp3.OkHttpClient;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Operator as Main wires it, against a MockKubernetesApiServer instead of a cluster.
+ * The RunResource events are given to the RunController directly (resync and deleteResource), like the framework would.
+ * Without the webserver check, the namespace pool and standby deployments; the run autoscaler is not started.
+ * With worker clusters every cluster is its own MockKubernetesApiServer, the RunResources stay in the first (local) one.
+ * As one of several replicas, see the replica constructor, it shares the MockKubernetesApiServer of the others and the
+ * RunResources are split with a ShardCoordinator like Main does with TDAQ_SHARDING_ENABLED.
+ */
+public class OperatorHarness implements AutoCloseable {
+    public static final String LEASE_NAMESPACE = "tdaq-operator";
+
+    private final MockKubernetesApiServer apiServer;
+    /* False for a replica, the API server is closed by the one who started it */
+    private final boolean ownsApiServer;
+    private final OperatorMetrics metrics = new OperatorMetrics();
+    private final KubernetesClient client;
+    private final DeploymentTemplate deploymentTemplate;
+    private final WorkerDeploymentCache deploymentCache;
+    private final RunStatusUpdater statusUpdater;
+    private final KeyedReconcileExecutor reconcileExecutor;
+    private final DataEndpointRegistry dataEndpointRegistry;
+    private final RunAutoscaler runAutoscaler;
+    private final WorkerClusters workerClusters;
+    /* Null unless this is one of several replicas */
+    private final ShardCoordinator shardCoordinator;
+    /* The mock API servers of the remote worker clusters */
+    private final List<MockKubernetesApiServer> clusterApiServers = new ArrayList<>();
+    private final RunController controller;
+
+    /**
+     * @param latencyMillis Latency the mock API server adds to every call
+     * @param reconcileThreads Like TDAQ_RECONCILE_THREADS
+     */
+    public OperatorHarness(long latencyMillis, int reconcileThreads) throws IOException, InterruptedException {
+        this(latencyMillis, reconcileThreads, 0, 0);
+    }
+
+    /**
+     * @param remoteClusters Worker clusters next to the local one, 0 to create all run deployments in the local cluster
+     * @param clusterCapacity The worker Pods every remote cluster can run, the local cluster gets none
+     */
+    public OperatorHarness(long latencyMillis, int reconcileThreads, int remoteClusters, int clusterCapacity) throws IOException, InterruptedException {
+        this(startApiServer(latencyMillis), true, latencyMillis, reconcileThreads, remoteClusters, clusterCapacity, null, 0, 0);
+    }
+
+    /**
+     * One of several Operator replicas on the same API server, it only reconciles the RunResources its ShardCoordinator owns
+     * @param apiServer Shared by all replicas, and not closed by them
+     * @param identity Unique per replica, like the Pod name
+     */
+    public OperatorHarness(@NotNull MockKubernetesApiServer apiServer, int reconcileThreads, @NotNull String identity,
+                           long leaseDurationMillis, long renewIntervalMillis) throws IOException, InterruptedException {
+        this(apiServer, false, 0, reconcileThreads, 0, 0, identity, leaseDurationMillis, renewIntervalMillis);
+    }
+
+    private OperatorHarness(MockKubernetesApiServer apiServer, boolean ownsApiServer, long latencyMillis, int reconcileThreads,
+                            int remoteClusters, int clusterCapacity, @Nullable String identity, long leaseDurationMillis,
+                            long renewIntervalMillis) throws IOException, InterruptedException {
+        this.apiServer = apiServer;
+        this.ownsApiServer = ownsApiServer;
+        apiServer.put("services", dataStorageService());
+        client = newClient(apiServer);
+
+        deploymentTemplate = new DeploymentTemplate(DeploymentTemplate.DEFAULT_TEMPLATE_RESOURCE);
+        deploymentCache = new WorkerDeploymentCache(client, TimeUnit.MINUTES.toMillis(10));
+        RunReadinessTracker readinessTracker = new RunReadinessTracker(metrics);
+        deploymentCache.addEventHandler(readinessTracker);
+        LatestRunNumberTracker latestRunNumberTracker = new LatestRunNumberTracker(deploymentCache);
+        deploymentCache.addEventHandler(latestRunNumberTracker);
+        KubernetesPatchClient patchClient = new KubernetesPatchClient(client);
+        statusUpdater = new RunStatusUpdater(patchClient, deploymentCache, latestRunNumberTracker, 2000);
+        deploymentCache.addEventHandler(statusUpdater);
+        RunStandby runStandby = new RunStandby(metrics, false, 0, Collections.emptyList());
+        deploymentCache.addEventHandler(runStandby);
+        workerClusters = remoteClusters > 0 ? new WorkerClusters(TimeUnit.SECONDS.toMillis(30)) : null;
+        if (workerClusters != null) {
+            workerClusters.addMember("local", client, patchClient, deploymentCache, null, 0, true, Collections.emptyMap());
+            for (int i = 0; i < remoteClusters; i++) {
+                MockKubernetesApiServer clusterApiServer = new MockKubernetesApiServer(latencyMillis);
+                clusterApiServer.start();
+                clusterApiServers.add(clusterApiServer);
+                KubernetesClient clusterClient = newClient(clusterApiServer);
+                WorkerDeploymentCache clusterCache = new WorkerDeploymentCache(clusterClient, TimeUnit.MINUTES.toMillis(10));
+                statusUpdater.addRemoteCache(clusterCache);
+                KubernetesPatchClient clusterPatchClient = new KubernetesPatchClient(clusterClient);
+                workerClusters.addMember("cluster" + i, clusterClient, clusterPatchClient, clusterCache,
+                        new NamespaceCleaner(clusterClient, clusterPatchClient, clusterCache, null, true), clusterCapacity, false,
+                        Collections.singletonMap("", new DataEndpointRegistry.DataEndpoint("webserver.cluster" + i + ".example.org", 8080)));
+            }
+        }
+        if (!deploymentCache.start(30, TimeUnit.SECONDS)) {
+            throw new IOException("The worker deployment cache did not sync with the mock API server");
+        }
+        if (workerClusters != null) {
+            workerClusters.start(30, TimeUnit.SECONDS);
+        }
+
+        NamespaceCleaner namespaceCleaner = new NamespaceCleaner(client, patchClient, deploymentCache, null, false);
+        reconcileExecutor = new KeyedReconcileExecutor(reconcileThreads, 100);
+        dataEndpointRegistry = new DataEndpointRegistry(client, "default/webserver-service", Collections.emptyMap());
+        dataEndpointRegistry.start();
+        RunDataClient runDataClient = new RunDataClient(dataEndpointRegistry::requireDefault, 2000, 5000, 500);
+        runAutoscaler = new RunAutoscaler(patchClient, deploymentCache, dataEndpointRegistry, runDataClient, latestRunNumberTracker, 15);
+        shardCoordinator = identity == null ? null
+                : new ShardCoordinator(client, LEASE_NAMESPACE, identity, leaseDurationMillis, renewIntervalMillis, 64);
+        controller = new RunController(client, patchClient, deploymentTemplate, deploymentCache, namespaceCleaner, reconcileExecutor,
+                dataEndpointRegistry, metrics, readinessTracker, latestRunNumberTracker, statusUpdater, null, shardCoordinator, runAutoscaler, null,
+                runStandby, Tracer.disabled(), workerClusters, null);
+        if (shardCoordinator != null) {
+            /* Like Main: the RunResources this replica gained are reconciled when the shards move */
+            shardCoordinator.addListener(() -> {
+                for (RunResource resource : KubernetesPatchClient.runResources(client).inAnyNamespace().list().getItems()) {
+                    controller.resync(resource);
+                }
+            });
+            shardCoordinator.start();
+        }
+    }
+
+    private static MockKubernetesApiServer startApiServer(long latencyMillis) throws IOException {
+        MockKubernetesApiServer apiServer = new MockKubernetesApiServer(latencyMillis);
+        apiServer.start();
+        return apiServer;
+    }
+
+    private KubernetesClient newClient(MockKubernetesApiServer server) {
+        io.fabric8.kubernetes.client.Config config = new ConfigBuilder().withMasterUrl(server.getUrl()).withNamespace(null).build();
+        OkHttpClient httpClient = HttpClientUtils.createHttpClient(config).newBuilder()
+                .addInterceptor(new ApiCallMetricsInterceptor(metrics))
+                .build();
+        return new DefaultKubernetesClient(httpClient, config);
+    }
+
+    @NotNull
+    public MockKubernetesApiServer getApiServer() { return apiServer; }
+    /**
+     * @return The mock API servers of the remote worker clusters, empty without worker clusters
+     */
+    @NotNull
+    public List<MockKubernetesApiServer> getClusterApiServers() { return clusterApiServers; }
+    @NotNull
+    public OperatorMetrics getMetrics() { return metrics; }
+    @NotNull
+    public WorkerDeploymentCache getDeploymentCache() { return deploymentCache; }
+    @NotNull
+    public KeyedReconcileExecutor getReconcileExecutor() { return reconcileExecutor; }
+    @NotNull
+    public RunController getController() { return controller; }
+    /**
+     * @return The ShardCoordinator of a replica, null otherwise
+     */
+    @Nullable
+    public ShardCoordinator getShardCoordinator() { return shardCoordinator; }
+
+    /**
+     * A create or update event of the RunResource, the RunResource is stored in the mock first so its status can be patched
+     */
+    public void reconcile(@NotNull RunResource resource) {
+        apiServer.put(KubernetesPatchClient.RUN_RESOURCE_PLURAL, resource);
+        controller.resync(resource);
+    }
+
+    /**
+     * A delete event of the RunResource, returns when the framework would remove the finalizer
+     */
+    public boolean delete(@NotNull RunResource resource) {
+        return controller.deleteResource(resource, firstAttempt());
+    }
+
+    /**
+     * @return A RunResource with one RunPipe per name, one replica each
+     */
+    @NotNull
+    public static RunResource newRunResource(@NotNull String namespace, @NotNull String name, int runNumber, @NotNull List<String> runPipeNames) {
+        List<RunPipeSpec> runPipes = new ArrayList<>();
+        for (String runPipeName : runPipeNames) {
+            RunPipeSpec runPipe = new RunPipeSpec();
+            runPipe.setName(runPipeName);
+            runPipe.setReplicas(1);
+            runPipes.add(runPipe);
+        }
+        RunResourceSpec spec = new RunResourceSpec();
+        spec.setRunNumber(runNumber);
+        spec.setRunPipes(runPipes);
+        RunResource resource = new RunResource();
+        resource.setApiVersion(KubernetesPatchClient.RUN_RESOURCE_GROUP + "/" + KubernetesPatchClient.RUN_RESOURCE_VERSION);
+        resource.setKind("RunResource");
+        resource.setMetadata(new ObjectMetaBuilder()
+                .withNamespace(namespace)
+                .withName(name)
+                .withCreationTimestamp(Instant.now().toString())
+                .build());
+        resource.setSpec(spec);
+        return resource;
+    }
+
+    private static Service dataStorageService() {
+        return new ServiceBuilder()
+                .withNewMetadata().withNamespace("default").withName("webserver-service").endMetadata()
+                .withNewSpec().withClusterIP("10.0.0.10").addNewPort().withPort(80).endPort().endSpec()
+                .build();
+    }
+
+    /**
+     * The Context of a first delete attempt, only retryInfo() is used by the RunController
+     */
+    @SuppressWarnings("unchecked")
+    private static Context<RunResource> firstAttempt() {
+        RetryInfo retryInfo = (RetryInfo) Proxy.newProxyInstance(RetryInfo.class.getClassLoader(), new Class<?>[]{RetryInfo.class},
+                (proxy, method, args) -> method.getReturnType() == boolean.class ? Boolean.FALSE : method.getReturnType() == int.class ? 0 : null);
+        return (Context<RunResource>) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[]{Context.class},
+                (proxy, method, args) -> "retryInfo".equals(method.getName()) ? retryInfo : null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (shardCoordinator != null) {
+            shardCoordinator.close();
+        }
+        runAutoscaler.close();
+        statusUpdater.close();
+        reconcileExecutor.close();
+        dataEndpointRegistry.close();
+        deploymentCache.close();
+        if (workerClusters != null) {
+            workerClusters.close();
+        }
+        deploymentTemplate.close();
+        client.close();
+        if (ownsApiServer) {
+            apiServer.close();
+        }
+        for (MockKubernetesApiServer clusterApiServer : clusterApiServers) {
+            clusterApiServer.close();
+        }
+    }
+}
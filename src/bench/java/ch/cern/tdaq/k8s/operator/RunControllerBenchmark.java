@@ -0,0 +1,79 @@
+package ch.cern.tdaq.k8s.operator;
+
+import ch.cern.tdaq.k8s.operator.CustomResource.RunResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-reconcile hot path of the RunController, against a MockKubernetesApiServer without latency:
+ *  reconcileUpToDate: an event for a run whose deployments are all up to date, answered from the informer cache
+ *  reconcileNewRun: the RunNumber moves up, until the deployments of all RunPipes of the new run are in the cache
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RunControllerBenchmark {
+    @Param({"1", "4"})
+    public int runPipes;
+
+    private OperatorHarness harness;
+    private RunResource upToDateResource;
+    private RunResource newRunResource;
+    private int nextRunNumber = 1;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        harness = new OperatorHarness(0, 16);
+        List<String> runPipeNames = new ArrayList<>();
+        for (int i = 0; i < runPipes; i++) {
+            runPipeNames.add("pipe" + i);
+        }
+        /* Every benchmark gets its own harness, so the up to date run is also the latest run */
+        upToDateResource = OperatorHarness.newRunResource("bench-up-to-date", "run-resource", nextRunNumber++, runPipeNames);
+        harness.reconcile(upToDateResource);
+        awaitDeployments(upToDateResource.getSpec().getRunNumber());
+        newRunResource = OperatorHarness.newRunResource("bench-new-run", "run-resource", nextRunNumber, runPipeNames);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        harness.close();
+    }
+
+    @Benchmark
+    public void reconcileUpToDate() {
+        harness.getController().resync(upToDateResource);
+    }
+
+    @Benchmark
+    public void reconcileNewRun() throws InterruptedException {
+        int runNumber = nextRunNumber++;
+        newRunResource.getSpec().setRunNumber(runNumber);
+        harness.reconcile(newRunResource);
+        awaitDeployments(runNumber);
+    }
+
+    private void awaitDeployments(int runNumber) throws InterruptedException {
+        while (harness.getDeploymentCache().getByRunNumber(runNumber).size() < runPipes) {
+            Thread.sleep(0, 50_000);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package ch.cern.tdaq.k8s.operator;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the RunDataClient against a local stub of webserver/webserver.js, with 8 reconciles asking for the latest RunNumber at once:
+ *  queryPerCall: every caller sends its own request, like the old HttpURLConnection code (but on pooled connections)
+ *  latestRunNumberShared: concurrent callers share one in-flight request, nothing is cached after it completed
+ *  latestRunNumberCached: the answer is also reused for 500ms
+ * RunDataClientTest checks the client against the same kind of stub.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class RunDataClientBenchmark {
+    private static final int LATEST_RUN_NUMBER = 42;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private final AtomicLong serverCalls = new AtomicLong();
+    private RunDataClient cachedClient;
+    private RunDataClient sharedClient;
+
+    @Setup
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverExecutor);
+        server.createContext("/", exchange -> {
+            long totalCalls = serverCalls.incrementAndGet();
+            byte[] body = ("{\"shutdown\": false, \"totalCalls\": " + totalCalls + ", \"latestRunNumber\": " + LATEST_RUN_NUMBER + "}")
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+
+        DataEndpointRegistry.DataEndpoint endpoint = new DataEndpointRegistry.DataEndpoint(
+                server.getAddress().getHostString(), server.getAddress().getPort());
+        cachedClient = new RunDataClient(() -> endpoint, 1000, 2000, 500);
+        sharedClient = new RunDataClient(() -> endpoint, 1000, 2000, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        cachedClient.close();
+        sharedClient.close();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public int queryPerCall() throws ExecutionException, InterruptedException {
+        return cachedClient.query(-1).get().getLatestRunNumber();
+    }
+
+    @Benchmark
+    public int latestRunNumberShared() throws ExecutionException, InterruptedException {
+        return sharedClient.getLatestRunNumberAsync().get();
+    }
+
+    @Benchmark
+    public int latestRunNumberCached() throws ExecutionException, InterruptedException {
+        return cachedClient.getLatestRunNumberAsync().get();
+    }
+}
@@ -0,0 +1,216 @@
+package ch.cern.tdaq.k8s.operator;
+
+import ch.cern.tdaq.k8s.operator.CustomResource.RunPipeSpec;
+import ch.cern.tdaq.k8s.operator.CustomResource.RunResource;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A reproducible scale test: starts the Operator against a MockKubernetesApiServer and creates, advances and deletes
+ * thousands of RunResources over many namespaces and RunPipes. For every phase it prints:
+ *  events/s: RunResource events handled per second, until the reconcile executor is idle again
+ *  reconcile p50/p99: time spent in the event handler itself (the synchronous part of a reconcile)
+ *  applied p50/p99: time from the event until the deployments of all RunPipes of the run are applied
+ *  superseded: events and queued applies skipped since their RunNumber was no longer the latest, should stay 0
+ *  API calls per event: calls to the mock API server, in total and per verb and resource
+ *
+ * Build with mvn -Pbenchmark package and run with
+ *   java -cp target/tdaq-operator-1.0-SNAPSHOT.jar ch.cern.tdaq.k8s.operator.RunLoadGenerator
+ * The environment variables TDAQ_BENCH_* below change the load. Like in the experiment there is one RunNumber at a time: every
+ * phase moves all RunResources to the same new RunNumber, so no run is superseded by another one of the same phase and every
+ * event generates the applies of its run. Every RunResource has its own RunPipes, so their deployments do not share a name.
+ * With TDAQ_BENCH_WORKER_CLUSTERS the run deployments are spread over that many more mock API servers, see WorkerClusters.
+ */
+public class RunLoadGenerator {
+    private static final Logger log = LoggerFactory.getLogger(RunLoadGenerator.class);
+
+    public static void main(String[] args) throws Exception {
+        int namespaces = OperatorConfig.getInt("TDAQ_BENCH_NAMESPACES", 20);
+        int runResources = OperatorConfig.getInt("TDAQ_BENCH_RUN_RESOURCES", 2000);
+        int runPipes = OperatorConfig.getInt("TDAQ_BENCH_RUN_PIPES", 4);
+        int advances = OperatorConfig.getInt("TDAQ_BENCH_ADVANCES", 2);
+        int concurrency = OperatorConfig.getInt("TDAQ_BENCH_CONCURRENCY", 8);
+        long latencyMillis = OperatorConfig.getLong("TDAQ_BENCH_API_LATENCY_MILLIS", 5);
+        int reconcileThreads = OperatorConfig.getInt("TDAQ_RECONCILE_THREADS", 16);
+        int workerClusters = OperatorConfig.getInt("TDAQ_BENCH_WORKER_CLUSTERS", 0);
+        int clusterCapacity = OperatorConfig.getInt("TDAQ_BENCH_CLUSTER_CAPACITY", 100000);
+
+        System.out.printf("%d RunResources in %d namespaces with %d RunPipes, %d advances, %d event threads, %d reconcile threads, %dms API latency, %d worker clusters%n",
+                runResources, namespaces, runPipes, advances, concurrency, reconcileThreads, latencyMillis, workerClusters);
+
+        try (OperatorHarness harness = new OperatorHarness(latencyMillis, reconcileThreads, workerClusters, clusterCapacity)) {
+            /* namespace/RunNumber/RunPipe of a deployment -> the event waiting for the deployments of its run */
+            Map<String, PendingRun> pendingDeployments = new ConcurrentHashMap<>();
+            List<Long> appliedNanos = Collections.synchronizedList(new ArrayList<>());
+            /* With one replica per RunPipe every RunPipe is written to one cluster */
+            for (MockKubernetesApiServer apiServer : getApiServers(harness)) {
+                apiServer.addWriteListener((plural, object) -> {
+                    if (!"deployments".equals(plural)) {
+                        return;
+                    }
+                    JsonNode metadata = object.path("metadata");
+                    JsonNode labels = metadata.path("labels");
+                    PendingRun pendingRun = pendingDeployments.remove(getKey(metadata.path("namespace").asText(),
+                            labels.path(WorkerDeploymentCache.METADATA_LABEL_RUN_NUMBER_KEY).asText(),
+                            labels.path(WorkerDeploymentCache.METADATA_LABEL_RUN_PIPE_KEY).asText()));
+                    if (pendingRun != null && pendingRun.remaining.decrementAndGet() == 0) {
+                        appliedNanos.add(System.nanoTime() - pendingRun.startNanos);
+                    }
+                });
+            }
+
+            int runNumber = 1;
+            List<RunResource> resources = new ArrayList<>();
+            for (int i = 0; i < runResources; i++) {
+                List<String> runPipeNames = new ArrayList<>();
+                for (int j = 0; j < runPipes; j++) {
+                    runPipeNames.add("r" + i + "-pipe" + j);
+                }
+                resources.add(OperatorHarness.newRunResource("bench-" + (i % namespaces), "run-resource" + i, runNumber, runPipeNames));
+            }
+
+            Consumer<RunResource> reconcile = resource -> {
+                PendingRun pendingRun = new PendingRun(runPipes);
+                for (RunPipeSpec runPipe : resource.getSpec().getRunPipes()) {
+                    pendingDeployments.put(getKey(resource.getMetadata().getNamespace(), String.valueOf(resource.getSpec().getRunNumber()),
+                            runPipe.getName()), pendingRun);
+                }
+                harness.reconcile(resource);
+            };
+            runPhase("create", harness, resources, concurrency, appliedNanos, reconcile);
+            for (int advance = 1; advance <= advances; advance++) {
+                /* Every RunResource moves to the next RunNumber */
+                runNumber++;
+                for (RunResource resource : resources) {
+                    resource.getSpec().setRunNumber(runNumber);
+                }
+                runPhase("advance " + advance, harness, resources, concurrency, appliedNanos, reconcile);
+            }
+            pendingDeployments.clear();
+            runPhase("delete", harness, resources, concurrency, appliedNanos, harness::delete);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Sends the event of every RunResource from the event threads, and waits until the reconcile executor has nothing left to do
+     */
+    private static void runPhase(String phase, OperatorHarness harness, List<RunResource> resources, int concurrency, List<Long> appliedNanos,
+                                 Consumer<RunResource> event) throws Exception {
+        KeyedReconcileExecutor reconcileExecutor = harness.getReconcileExecutor();
+        Map<String, Long> requestsBefore = getRequests(harness);
+        long requestsTotalBefore = getRequestsTotal(harness);
+        long supersededBefore = harness.getMetrics().skippedEvents.get("superseded");
+        appliedNanos.clear();
+        long[] reconcileNanos = new long[resources.size()];
+
+        ExecutorService eventThreads = Executors.newFixedThreadPool(concurrency);
+        long startNanos = System.nanoTime();
+        List<Future<?>> events = new ArrayList<>();
+        for (int i = 0; i < resources.size(); i++) {
+            int index = i;
+            events.add(eventThreads.submit(() -> {
+                long eventStartNanos = System.nanoTime();
+                event.accept(resources.get(index));
+                reconcileNanos[index] = System.nanoTime() - eventStartNanos;
+            }));
+        }
+        for (Future<?> future : events) {
+            future.get();
+        }
+        eventThreads.shutdown();
+        while (reconcileExecutor.getQueuedCount() > 0 || reconcileExecutor.getRunningCount() > 0) {
+            Thread.sleep(10);
+        }
+        long durationNanos = System.nanoTime() - startNanos;
+
+        long requests = getRequestsTotal(harness) - requestsTotalBefore;
+        long superseded = harness.getMetrics().skippedEvents.get("superseded") - supersededBefore;
+        System.out.printf("%-10s %8.1f events/s  reconcile p50 %7.3fms p99 %7.3fms  applied p50 %7.3fms p99 %7.3fms (%d runs)  %d superseded  %.2f API calls per event%n",
+                phase, resources.size() / (durationNanos / 1e9),
+                percentileMillis(reconcileNanos, 0.50), percentileMillis(reconcileNanos, 0.99),
+                percentileMillis(toArray(appliedNanos), 0.50), percentileMillis(toArray(appliedNanos), 0.99), appliedNanos.size(),
+                superseded, (double) requests / resources.size());
+        for (Map.Entry<String, Long> entry : getRequests(harness).entrySet()) {
+            long count = entry.getValue() - requestsBefore.getOrDefault(entry.getKey(), 0L);
+            if (count > 0) {
+                System.out.printf("%12s%-40s %8.2f per event%n", "", entry.getKey(), (double) count / resources.size());
+            }
+        }
+        log.debug("Phase {}: {} deployments in the cache", phase, harness.getDeploymentCache().size());
+    }
+
+    private static String getKey(String namespace, String runNumber, String runPipeName) {
+        return namespace + "/" + runNumber + "/" + runPipeName;
+    }
+
+    /**
+     * @return The local mock API server, then the ones of the remote worker clusters
+     */
+    private static List<MockKubernetesApiServer> getApiServers(OperatorHarness harness) {
+        List<MockKubernetesApiServer> apiServers = new ArrayList<>();
+        apiServers.add(harness.getApiServer());
+        apiServers.addAll(harness.getClusterApiServers());
+        return apiServers;
+    }
+
+    private static long getRequestsTotal(OperatorHarness harness) {
+        long requests = 0;
+        for (MockKubernetesApiServer apiServer : getApiServers(harness)) {
+            requests += apiServer.getRequestsTotal();
+        }
+        return requests;
+    }
+
+    /**
+     * @return The requests per verb and resource, prefixed with the cluster for the remote worker clusters
+     */
+    private static Map<String, Long> getRequests(OperatorHarness harness) {
+        Map<String, Long> requests = new TreeMap<>(harness.getApiServer().getRequests());
+        List<MockKubernetesApiServer> clusterApiServers = harness.getClusterApiServers();
+        for (int i = 0; i < clusterApiServers.size(); i++) {
+            for (Map.Entry<String, Long> entry : clusterApiServers.get(i).getRequests().entrySet()) {
+                requests.put("cluster" + i + " " + entry.getKey(), entry.getValue());
+            }
+        }
+        return requests;
+    }
+
+    private static long[] toArray(List<Long> values) {
+        synchronized (values) {
+            return values.stream().mapToLong(Long::longValue).toArray();
+        }
+    }
+
+    private static double percentileMillis(long[] nanos, double percentile) {
+        if (nanos.length == 0) {
+            return Double.NaN;
+        }
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)] / 1e6;
+    }
+
+    private static final class PendingRun {
+        private final long startNanos = System.nanoTime();
+        private final AtomicInteger remaining;
+
+        private PendingRun(int runPipes) {
+            this.remaining = new AtomicInteger(runPipes);
+        }
+    }
+}
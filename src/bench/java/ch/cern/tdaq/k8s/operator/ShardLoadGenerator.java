@@ -0,0 +1,246 @@
+package ch.cern.tdaq.k8s.operator;
+
+import ch.cern.tdaq.k8s.operator.CustomResource.RunPipeSpec;
+import ch.cern.tdaq.k8s.operator.CustomResource.RunResource;
+import com.fasterxml.jackson.databind.JsonNode;
+import io.fabric8.kubernetes.client.utils.Serialization;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A scale test of several Operator replicas: for 1 up to TDAQ_BENCH_REPLICAS replicas it starts that many OperatorHarness
+ * replicas with a ShardCoordinator on one MockKubernetesApiServer, and checks and prints:
+ *  split: the RunResources every replica owns, every RunResource must be owned by exactly one replica
+ *  create: events per second when every replica gets the event of every RunResource, like their informers do, and the
+ *    deployments applied more than once, which must be none
+ *  failover: one replica stops renewing its lease, the time until the others own all its RunResources, which must be within
+ *    leaseDuration plus two renewIntervals, then all RunResources move to the next RunNumber on the replicas that are left
+ *
+ * Build with mvn -Pbenchmark package and run with
+ *   java -cp target/tdaq-operator-1.0-SNAPSHOT.jar ch.cern.tdaq.k8s.operator.ShardLoadGenerator
+ * It exits with 1 if a check failed.
+ */
+public class ShardLoadGenerator {
+    public static void main(String[] args) throws Exception {
+        int maxReplicas = OperatorConfig.getInt("TDAQ_BENCH_REPLICAS", 3);
+        int namespaces = OperatorConfig.getInt("TDAQ_BENCH_NAMESPACES", 20);
+        int runResources = OperatorConfig.getInt("TDAQ_BENCH_RUN_RESOURCES", 500);
+        int runPipes = OperatorConfig.getInt("TDAQ_BENCH_RUN_PIPES", 4);
+        int concurrency = OperatorConfig.getInt("TDAQ_BENCH_CONCURRENCY", 8);
+        long latencyMillis = OperatorConfig.getLong("TDAQ_BENCH_API_LATENCY_MILLIS", 5);
+        int reconcileThreads = OperatorConfig.getInt("TDAQ_RECONCILE_THREADS", 16);
+        long leaseDurationMillis = OperatorConfig.getLong("TDAQ_BENCH_LEASE_DURATION_MILLIS", 3000);
+        long renewIntervalMillis = OperatorConfig.getLong("TDAQ_BENCH_RENEW_INTERVAL_MILLIS", 500);
+        System.out.printf("%d RunResources in %d namespaces with %d RunPipes, up to %d replicas, %dms lease, %dms renew, %dms API latency%n",
+                runResources, namespaces, runPipes, maxReplicas, leaseDurationMillis, renewIntervalMillis, latencyMillis);
+
+        boolean passed = true;
+        for (int replicas = 1; replicas <= maxReplicas; replicas++) {
+            try (MockKubernetesApiServer apiServer = new MockKubernetesApiServer(latencyMillis)) {
+                apiServer.start();
+                passed &= runReplicas(apiServer, replicas, namespaces, runResources, runPipes, concurrency, reconcileThreads,
+                        leaseDurationMillis, renewIntervalMillis);
+            }
+        }
+        System.out.println(passed ? "All checks passed" : "Some checks FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean runReplicas(MockKubernetesApiServer apiServer, int replicas, int namespaces, int runResources, int runPipes,
+                                       int concurrency, int reconcileThreads, long leaseDurationMillis, long renewIntervalMillis) throws Exception {
+        /* namespace/RunNumber/RunPipe of the deployments that are not applied yet */
+        Set<String> pendingDeployments = ConcurrentHashMap.newKeySet();
+        AtomicLong duplicateApplies = new AtomicLong();
+        Set<String> appliedDeployments = ConcurrentHashMap.newKeySet();
+        apiServer.addWriteListener((plural, object) -> {
+            if (!"deployments".equals(plural)) {
+                return;
+            }
+            JsonNode labels = object.path("metadata").path("labels");
+            String key = getKey(object.path("metadata").path("namespace").asText(),
+                    labels.path(WorkerDeploymentCache.METADATA_LABEL_RUN_NUMBER_KEY).asText(),
+                    labels.path(WorkerDeploymentCache.METADATA_LABEL_RUN_PIPE_KEY).asText());
+            pendingDeployments.remove(key);
+            if (!appliedDeployments.add(key)) {
+                duplicateApplies.incrementAndGet();
+            }
+        });
+
+        List<OperatorHarness> harnesses = new ArrayList<>();
+        try {
+            for (int i = 0; i < replicas; i++) {
+                harnesses.add(new OperatorHarness(apiServer, reconcileThreads, "replica-" + i, leaseDurationMillis, renewIntervalMillis));
+            }
+            /* The replicas started before the last one only see it at their next renewal */
+            boolean passed = awaitMembers(harnesses, replicas, leaseDurationMillis + 2 * renewIntervalMillis);
+
+            int runNumber = 1;
+            List<RunResource> resources = new ArrayList<>();
+            for (int i = 0; i < runResources; i++) {
+                List<String> runPipeNames = new ArrayList<>();
+                for (int j = 0; j < runPipes; j++) {
+                    runPipeNames.add("r" + i + "-pipe" + j);
+                }
+                resources.add(OperatorHarness.newRunResource("bench-" + (i % namespaces), "run-resource" + i, runNumber, runPipeNames));
+            }
+
+            List<Integer> owned = getOwned(harnesses, resources);
+            int notOwnedOnce = countNotOwnedOnce(harnesses, resources);
+            System.out.printf("%d replica(s) split    %s RunResources per replica, %d not owned by exactly one replica%n",
+                    replicas, owned, notOwnedOnce);
+            passed &= notOwnedOnce == 0;
+
+            passed &= runPhase(replicas + " replica(s) create", harnesses, resources, concurrency, pendingDeployments, duplicateApplies);
+
+            if (replicas > 1) {
+                OperatorHarness dead = harnesses.get(replicas - 1);
+                List<OperatorHarness> live = harnesses.subList(0, replicas - 1);
+                long startNanos = System.nanoTime();
+                dead.getShardCoordinator().abandon();
+                boolean failedOver = awaitMembers(live, replicas - 1, leaseDurationMillis + 2 * renewIntervalMillis)
+                        && awaitOwnedOnce(live, resources, 2 * renewIntervalMillis);
+                long failoverMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                System.out.printf("%d replica(s) failover %dms until the %d left own all RunResources (lease %dms)%s%n",
+                        replicas, failoverMillis, live.size(), leaseDurationMillis, failedOver ? "" : " FAILED");
+                passed &= failedOver;
+                /* The RunResources of the dead replica are reconciled by the ones that are left */
+                for (OperatorHarness harness : live) {
+                    awaitIdle(harness);
+                }
+
+                runNumber++;
+                for (RunResource resource : resources) {
+                    resource.getSpec().setRunNumber(runNumber);
+                }
+                passed &= runPhase(replicas + " replica(s) advance", live, resources, concurrency, pendingDeployments, duplicateApplies);
+            }
+            return passed;
+        } finally {
+            for (OperatorHarness harness : harnesses) {
+                harness.close();
+            }
+        }
+    }
+
+    /**
+     * Sends the event of every RunResource to every replica, and waits until all deployments of the runs are applied
+     * @return False if a deployment was not applied, or applied more than once
+     */
+    private static boolean runPhase(String phase, List<OperatorHarness> harnesses, List<RunResource> resources, int concurrency,
+                                    Set<String> pendingDeployments, AtomicLong duplicateApplies) throws Exception {
+        duplicateApplies.set(0);
+        for (RunResource resource : resources) {
+            for (RunPipeSpec runPipe : resource.getSpec().getRunPipes()) {
+                pendingDeployments.add(getKey(resource.getMetadata().getNamespace(), String.valueOf(resource.getSpec().getRunNumber()),
+                        runPipe.getName()));
+            }
+        }
+        int expected = pendingDeployments.size();
+
+        ExecutorService eventThreads = Executors.newFixedThreadPool(concurrency);
+        long startNanos = System.nanoTime();
+        List<Future<?>> events = new ArrayList<>();
+        for (RunResource resource : resources) {
+            for (OperatorHarness harness : harnesses) {
+                /* Every replica gets its own copy, like from its own informer */
+                RunResource copy = Serialization.jsonMapper().convertValue(resource, RunResource.class);
+                events.add(eventThreads.submit(() -> harness.reconcile(copy)));
+            }
+        }
+        for (Future<?> future : events) {
+            future.get();
+        }
+        eventThreads.shutdown();
+        for (OperatorHarness harness : harnesses) {
+            awaitIdle(harness);
+        }
+        long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!pendingDeployments.isEmpty() && System.nanoTime() < deadlineNanos) {
+            Thread.sleep(10);
+        }
+        long durationNanos = System.nanoTime() - startNanos;
+
+        int missing = pendingDeployments.size();
+        pendingDeployments.clear();
+        boolean passed = missing == 0 && duplicateApplies.get() == 0;
+        System.out.printf("%-26s %8.1f RunResources/s  %d of %d deployments applied, %d more than once%s%n",
+                phase, resources.size() / (durationNanos / 1e9), expected - missing, expected, duplicateApplies.get(), passed ? "" : " FAILED");
+        return passed;
+    }
+
+    private static boolean awaitMembers(List<OperatorHarness> harnesses, int members, long timeoutMillis) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (System.nanoTime() < deadlineNanos) {
+            boolean converged = true;
+            for (OperatorHarness harness : harnesses) {
+                converged &= harness.getShardCoordinator().getMembers().size() == members;
+            }
+            if (converged) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    private static boolean awaitOwnedOnce(List<OperatorHarness> harnesses, List<RunResource> resources, long timeoutMillis)
+            throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (countNotOwnedOnce(harnesses, resources) > 0) {
+            if (System.nanoTime() >= deadlineNanos) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static void awaitIdle(OperatorHarness harness) throws InterruptedException {
+        KeyedReconcileExecutor reconcileExecutor = harness.getReconcileExecutor();
+        while (reconcileExecutor.getQueuedCount() > 0 || reconcileExecutor.getRunningCount() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static List<Integer> getOwned(List<OperatorHarness> harnesses, List<RunResource> resources) {
+        List<Integer> owned = new ArrayList<>();
+        for (OperatorHarness harness : harnesses) {
+            int count = 0;
+            for (RunResource resource : resources) {
+                if (harness.getController().isOwned(resource)) {
+                    count++;
+                }
+            }
+            owned.add(count);
+        }
+        return owned;
+    }
+
+    private static int countNotOwnedOnce(List<OperatorHarness> harnesses, List<RunResource> resources) {
+        int notOwnedOnce = 0;
+        for (RunResource resource : resources) {
+            int owners = 0;
+            for (OperatorHarness harness : harnesses) {
+                if (harness.getController().isOwned(resource)) {
+                    owners++;
+                }
+            }
+            if (owners != 1) {
+                notOwnedOnce++;
+            }
+        }
+        return notOwnedOnce;
+    }
+
+    private static String getKey(String namespace, String runNumber, String runPipeName) {
+        return namespace + "/" + runNumber + "/" + runPipeName;
+    }
+}
@@ -0,0 +1,105 @@
+package ch.cern.tdaq.k8s.operator;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Counts every call the KubernetesClient makes to the API server, by verb and resource, by sitting in the client's OkHttp chain.
+ * This also counts the calls made by the java-operator-sdk and the informers, not only the ones made by the RunController.
+ */
+public class ApiCallMetricsInterceptor implements Interceptor {
+    private final OperatorMetrics metrics;
+
+    public ApiCallMetricsInterceptor(@NotNull OperatorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        List<String> segments = request.url().pathSegments();
+        String resource = getResource(segments);
+        String verb = getVerb(request, segments);
+        metrics.apiCalls.inc(verb, resource);
+        try {
+            Response response = chain.proceed(request);
+            if (response.code() >= 400) {
+                metrics.apiErrors.inc(verb, resource);
+            }
+            return response;
+        } catch (IOException | RuntimeException e) {
+            metrics.apiErrors.inc(verb, resource);
+            throw e;
+        }
+    }
+
+    /**
+     * The Kubernetes verb, see https://kubernetes.io/docs/reference/access-authn-authz/authorization/#determine-the-request-verb
+     */
+    @NotNull
+    static String getVerb(@NotNull Request request, @NotNull List<String> segments) {
+        switch (request.method()) {
+            case "GET":
+                if ("true".equals(request.url().queryParameter("watch"))) {
+                    return "watch";
+                }
+                return isNamedResource(segments) ? "get" : "list";
+            case "POST":
+                return "create";
+            case "PUT":
+                return "update";
+            case "PATCH":
+                return "patch";
+            case "DELETE":
+                return isNamedResource(segments) ? "delete" : "deletecollection";
+            default:
+                return request.method().toLowerCase();
+        }
+    }
+
+    /**
+     * Finds the resource type in paths like:
+     *  /api/v1/namespaces/{namespace}/services/{name}
+     *  /apis/apps/v1/deployments
+     *  /apis/operator.tdaq.cern.ch/v1/namespaces/{namespace}/runresources/{name}/status
+     */
+    @NotNull
+    static String getResource(@NotNull List<String> segments) {
+        int index = getResourceIndex(segments);
+        if (index < 0 || index >= segments.size()) {
+            return "unknown";
+        }
+        String resource = segments.get(index);
+        /* Subresources like status and scale */
+        if (index + 2 < segments.size() && !segments.get(index + 2).isEmpty()) {
+            resource = resource + "/" + segments.get(index + 2);
+        }
+        return resource;
+    }
+
+    private static boolean isNamedResource(List<String> segments) {
+        int index = getResourceIndex(segments);
+        return index >= 0 && index + 1 < segments.size() && !segments.get(index + 1).isEmpty();
+    }
+
+    private static int getResourceIndex(List<String> segments) {
+        int index;
+        if (!segments.isEmpty() && "api".equals(segments.get(0))) {
+            index = 2;
+        } else if (!segments.isEmpty() && "apis".equals(segments.get(0))) {
+            index = 3;
+        } else {
+            return -1;
+        }
+        /* "namespaces/{namespace}/<resource>", but not the namespaces resource itself */
+        if (index + 2 < segments.size() && "namespaces".equals(segments.get(index))) {
+            index += 2;
+        }
+        return index;
+    }
+}
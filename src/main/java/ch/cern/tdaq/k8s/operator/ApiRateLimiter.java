@@ -0,0 +1,120 @@
+package ch.cern.tdaq.k8s.operator;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket for all calls the KubernetesClient makes, with priorities, in the client's OkHttp chain.
+ *
+ * When the bucket is empty the calls wait, and a free token always goes to the highest priority that is waiting:
+ * run start and stop (RUN) before status writes (STATUS) before cleanup and garbage collection (CLEANUP). So a cleanup sweep
+ * only gets the tokens the runs do not need, and never delays a run start by more than the time to the next token.
+ *
+ * The priority is the one of the calling thread: the background components set it on their threads with setThreadPriority(),
+ * all other threads (the reconcile executor, the framework, the informers) are RUN. Watches are never limited.
+ * A waiting call blocks its thread, so when the API server budget is used up the reconcile executor runs out of threads and
+ * its queue grows, instead of sending more calls.
+ */
+public class ApiRateLimiter implements Interceptor {
+    public enum Priority { RUN, STATUS, CLEANUP }
+
+    private static final ThreadLocal<Priority> THREAD_PRIORITY = ThreadLocal.withInitial(() -> Priority.RUN);
+
+    private final OperatorMetrics metrics;
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+    private final int[] waiting = new int[Priority.values().length];
+
+    /**
+     * @param callsPerSecond Sustained rate of calls to the API server, 0 for no limit
+     * @param burst Calls that can be made at once after an idle time
+     */
+    public ApiRateLimiter(@NotNull OperatorMetrics metrics, double callsPerSecond, int burst) {
+        this.metrics = metrics;
+        this.tokensPerNano = callsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+    }
+
+    /**
+     * Sets the priority of the API calls made by the current thread, called once when a background thread starts
+     */
+    public static void setThreadPriority(@NotNull Priority priority) {
+        THREAD_PRIORITY.set(priority);
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (tokensPerNano > 0 && !"true".equals(request.url().queryParameter("watch"))) {
+            try {
+                acquire(THREAD_PRIORITY.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the API rate limiter");
+            }
+        }
+        return chain.proceed(request);
+    }
+
+    /**
+     * Takes a token, waits while there is none or a higher priority is waiting for one
+     */
+    void acquire(@NotNull Priority priority) throws InterruptedException {
+        long startNanos = System.nanoTime();
+        boolean throttled = false;
+        synchronized (this) {
+            waiting[priority.ordinal()]++;
+            try {
+                while (true) {
+                    refill();
+                    boolean higherWaiting = false;
+                    for (int i = 0; i < priority.ordinal(); i++) {
+                        higherWaiting |= waiting[i] > 0;
+                    }
+                    if (tokens >= 1 && !higherWaiting) {
+                        tokens -= 1;
+                        break;
+                    }
+                    throttled = true;
+                    /* Until the next token, or until a higher priority call took the token it was waiting for */
+                    long waitNanos = tokens >= 1 ? TimeUnit.MILLISECONDS.toNanos(1) : Math.max(1, (long) ((1 - tokens) / tokensPerNano));
+                    TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                }
+            } finally {
+                waiting[priority.ordinal()]--;
+                notifyAll();
+            }
+        }
+        if (throttled) {
+            String label = priority.name().toLowerCase();
+            metrics.apiThrottled.inc(label);
+            metrics.apiThrottleWait.observeNanos(System.nanoTime() - startNanos, label);
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+    }
+
+    /**
+     * @return Calls waiting for a token, of all priorities
+     */
+    public synchronized int getQueuedCount() {
+        int queued = 0;
+        for (int count : waiting) {
+            queued += count;
+        }
+        return queued;
+    }
+}
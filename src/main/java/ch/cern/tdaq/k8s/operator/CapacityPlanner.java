@@ -0,0 +1,577 @@
+package ch.cern.tdaq.k8s.operator;
+
+import ch.cern.tdaq.k8s.operator.CustomResource.RunPipeSpec;
+import io.fabric8.kubernetes.api.model.Container;
+import io.fabric8.kubernetes.api.model.Node;
+import io.fabric8.kubernetes.api.model.NodeCondition;
+import io.fabric8.kubernetes.api.model.NodeList;
+import io.fabric8.kubernetes.api.model.OwnerReference;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodList;
+import io.fabric8.kubernetes.api.model.PodSpec;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.Taint;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import io.fabric8.kubernetes.client.informers.SharedIndexInformer;
+import io.fabric8.kubernetes.client.informers.SharedInformerFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Sizes the deployments of a new run so the run fills the free capacity of the cluster, split over its RunPipes by their weight.
+ *
+ * A Node and a Pod informer keep a model of every node: its allocatable CPU and memory, the requests of the Pods bound to it,
+ * and how many worker Pods (the requests of the deployment template) still fit on it. Every event changes one node, and the
+ * cluster totals are moved by the difference of that node, so an event costs the same with 10 or 10000 nodes and nothing is polled.
+ * Only a changed worker Pod size (a new template) counts the fits of all nodes again.
+ *
+ * A run may use the worker Pods that fit, minus the Pods that are not scheduled yet, plus the replicas of the superseded runs,
+ * since the FinishedRunReaper deletes those once the new run exists. Nodes that are cordoned, not ready or have a NoSchedule
+ * or NoExecute taint are not counted.
+ *
+ * The planned replicas are reserved until the Pods of their deployment show up in the Pod informer, so runs that start at the
+ * same time share the free capacity instead of each getting all of it. A reservation of an older run is not taken off, its
+ * replicas are reclaimable, and a reservation whose Pods never show up (e.g. the run was superseded first) expires.
+ */
+public class CapacityPlanner implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(CapacityPlanner.class);
+
+    private final SharedInformerFactory informerFactory;
+    private final SharedIndexInformer<Node> nodeInformer;
+    private final SharedIndexInformer<Pod> podInformer;
+    private final DeploymentTemplate deploymentTemplate;
+    private final WorkerDeploymentCache deploymentCache;
+    private final double fillRatio;
+    private final int maxReplicasPerRunPipe;
+    private final long reservationTimeoutNanos;
+
+    /* All guarded by this */
+    private final Map<String, NodeState> nodes = new HashMap<>();
+    /* <namespace>/<name> of a Pod -> what it adds to its node, or to the unscheduled requests */
+    private final Map<String, PodUsage> pods = new HashMap<>();
+    /* <namespace>/<name> of a planned deployment -> its replicas whose Pods did not show up yet */
+    private final Map<String, Reservation> reservations = new HashMap<>();
+    private long schedulableNodes;
+    private long freeCpuMillis;
+    private long freeMemoryBytes;
+    private long pendingCpuMillis;
+    private long pendingMemoryBytes;
+    private long fittingPods;
+    private long podCpuMillis;
+    private long podMemoryBytes;
+
+    private final AtomicLong plannedRunsTotal = new AtomicLong();
+
+    /**
+     * @param fillRatio Share of the free capacity a new run is sized to, the rest is headroom
+     * @param maxReplicasPerRunPipe Upper limit of the planned replicas of one RunPipe, 0 for no limit
+     * @param reservationTimeoutMillis How long the planned replicas are reserved at most, when their Pods do not show up
+     */
+    public CapacityPlanner(@NotNull KubernetesClient kubernetesClient, @NotNull DeploymentTemplate deploymentTemplate,
+                           @NotNull WorkerDeploymentCache deploymentCache, double fillRatio, int maxReplicasPerRunPipe,
+                           long reservationTimeoutMillis, long resyncPeriodMillis) {
+        this.deploymentTemplate = deploymentTemplate;
+        this.deploymentCache = deploymentCache;
+        this.fillRatio = Math.max(0, Math.min(1, fillRatio));
+        this.maxReplicasPerRunPipe = maxReplicasPerRunPipe;
+        this.reservationTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(reservationTimeoutMillis);
+        this.informerFactory = kubernetesClient.informers();
+        this.nodeInformer = informerFactory.sharedIndexInformerFor(Node.class, NodeList.class, resyncPeriodMillis);
+        this.podInformer = informerFactory.sharedIndexInformerFor(Pod.class, PodList.class, resyncPeriodMillis);
+        this.nodeInformer.addEventHandler(new ResourceEventHandler<Node>() {
+            @Override
+            public void onAdd(Node node) {
+                putNode(node);
+            }
+
+            @Override
+            public void onUpdate(Node oldNode, Node newNode) {
+                putNode(newNode);
+            }
+
+            @Override
+            public void onDelete(Node node, boolean deletedFinalStateUnknown) {
+                removeNode(node.getMetadata().getName());
+            }
+        });
+        this.podInformer.addEventHandler(new ResourceEventHandler<Pod>() {
+            @Override
+            public void onAdd(Pod pod) {
+                putPod(pod);
+            }
+
+            @Override
+            public void onUpdate(Pod oldPod, Pod newPod) {
+                putPod(newPod);
+            }
+
+            @Override
+            public void onDelete(Pod pod, boolean deletedFinalStateUnknown) {
+                removePod(toKey(pod));
+            }
+        });
+    }
+
+    /**
+     * Starts the informers and waits until the first LIST of the nodes and Pods is in the model, or the timeout is reached.
+     * Until then plan() returns null and the runs keep the replicas of the template.
+     */
+    public boolean start(long timeout, TimeUnit unit) throws InterruptedException {
+        informerFactory.startAllRegisteredInformers();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!hasSynced()) {
+            if (System.nanoTime() > deadline) {
+                log.warn("Capacity planner is not synced after {} {}", timeout, unit);
+                return false;
+            }
+            Thread.sleep(100);
+        }
+        synchronized (this) {
+            log.info("Capacity planner synced with {} schedulable nodes, free: {}m CPU {}Mi memory", schedulableNodes,
+                    freeCpuMillis, freeMemoryBytes >> 20);
+        }
+        return true;
+    }
+
+    public boolean hasSynced() {
+        return nodeInformer.hasSynced() && podInformer.hasSynced();
+    }
+
+    /**
+     * Plans the replicas of the RunPipes of a new run that do not set their replicas, by their weight (default 1), and reserves them.
+     * Every RunPipe gets at least one replica.
+     * @param deploymentNames RunPipe name -> the name of its deployment, the Pods of that deployment take the reservation over
+     * @return RunPipe name -> replicas, or null if the model is not synced yet
+     */
+    @Nullable
+    public Map<String, Integer> plan(@NotNull String namespace, int runNumber, @NotNull List<RunPipeSpec> runPipes,
+                                     @NotNull Function<String, String> deploymentNames) {
+        if (!hasSynced()) {
+            return null;
+        }
+        long reclaimable = 0;
+        for (Integer olderRunNumber : deploymentCache.getRunNumbers()) {
+            if (olderRunNumber >= runNumber) {
+                break;
+            }
+            for (Deployment deployment : deploymentCache.getByRunNumber(olderRunNumber)) {
+                Integer replicas = deployment.getSpec() == null ? null : deployment.getSpec().getReplicas();
+                reclaimable += replicas == null ? 1 : replicas;
+            }
+        }
+        Map<String, Integer> planned = new LinkedHashMap<>();
+        long totalWeight = 0;
+        for (RunPipeSpec runPipe : runPipes) {
+            if (runPipe.getReplicas() == null) {
+                totalWeight += getWeight(runPipe);
+            }
+        }
+        if (totalWeight == 0) {
+            return planned;
+        }
+        long available;
+        long reserved;
+        /* The capacity is read and reserved at once, so a run planned on another thread sees this reservation */
+        synchronized (this) {
+            setPodSize(deploymentTemplate.newInstance().getSpec().getTemplate().getSpec());
+            long pending = podCpuMillis > 0 ? ceilDiv(pendingCpuMillis, podCpuMillis) : 0;
+            if (podMemoryBytes > 0) {
+                pending = Math.max(pending, ceilDiv(pendingMemoryBytes, podMemoryBytes));
+            }
+            reserved = getReserved(runNumber);
+            available = Math.max(0, fittingPods - pending - reserved) + reclaimable;
+
+            long replicasToPlace = (long) Math.floor(available * fillRatio);
+            long expiresNanos = System.nanoTime() + reservationTimeoutNanos;
+            for (RunPipeSpec runPipe : runPipes) {
+                if (runPipe.getReplicas() == null) {
+                    long replicas = Math.max(1, replicasToPlace * getWeight(runPipe) / totalWeight);
+                    int plannedReplicas = (int) (maxReplicasPerRunPipe > 0 ? Math.min(maxReplicasPerRunPipe, replicas) : Math.min(Integer.MAX_VALUE, replicas));
+                    planned.put(runPipe.getName(), plannedReplicas);
+                    reservations.put(namespace + "/" + deploymentNames.apply(runPipe.getName()), new Reservation(runNumber, plannedReplicas, expiresNanos));
+                }
+            }
+        }
+        plannedRunsTotal.incrementAndGet();
+        log.info("Run {}: {} worker Pods available ({} reclaimable from older runs, {} reserved by starting runs), planned replicas: {}",
+                runNumber, available, reclaimable, reserved, planned);
+        return planned;
+    }
+
+    /**
+     * Drops the expired reservations
+     * @return The replicas reserved for runNumber and newer runs, whose Pods did not show up yet
+     */
+    private long getReserved(int runNumber) {
+        long nowNanos = System.nanoTime();
+        long reserved = 0;
+        for (Iterator<Reservation> iterator = reservations.values().iterator(); iterator.hasNext(); ) {
+            Reservation reservation = iterator.next();
+            if (nowNanos - reservation.expiresNanos > 0) {
+                iterator.remove();
+            } else if (reservation.runNumber >= runNumber) {
+                reserved += reservation.remaining;
+            }
+        }
+        return reserved;
+    }
+
+    /**
+     * A new Pod of a planned deployment is in the model now, so it no longer needs its reservation
+     */
+    private void takeReservation(@NotNull Pod pod) {
+        if (reservations.isEmpty() || pod.getMetadata().getLabels() == null || pod.getMetadata().getOwnerReferences() == null) {
+            return;
+        }
+        /* The ReplicaSet of a Deployment is named <deployment>-<pod-template-hash> */
+        String podTemplateHash = pod.getMetadata().getLabels().get("pod-template-hash");
+        for (OwnerReference owner : pod.getMetadata().getOwnerReferences()) {
+            if (podTemplateHash != null && "ReplicaSet".equals(owner.getKind()) && owner.getName().endsWith("-" + podTemplateHash)) {
+                String deploymentName = owner.getName().substring(0, owner.getName().length() - podTemplateHash.length() - 1);
+                String key = pod.getMetadata().getNamespace() + "/" + deploymentName;
+                Reservation reservation = reservations.get(key);
+                if (reservation != null && --reservation.remaining <= 0) {
+                    reservations.remove(key);
+                }
+                return;
+            }
+        }
+    }
+
+    private static long getWeight(@NotNull RunPipeSpec runPipe) {
+        return runPipe.getWeight() == null ? 1 : Math.max(0, runPipe.getWeight());
+    }
+
+    /**
+     * Counts the fits of every node again when the requests of the worker Pod changed, e.g. after a template reload
+     */
+    private void setPodSize(@NotNull PodSpec podSpec) {
+        long[] requests = getRequests(podSpec);
+        if (requests[0] == podCpuMillis && requests[1] == podMemoryBytes) {
+            return;
+        }
+        podCpuMillis = requests[0];
+        podMemoryBytes = requests[1];
+        fittingPods = 0;
+        for (NodeState node : nodes.values()) {
+            node.fits = fits(node);
+            fittingPods += node.fits;
+        }
+        log.info("Worker Pod requests {}m CPU {}Mi memory, {} fit in the cluster", podCpuMillis, podMemoryBytes >> 20, fittingPods);
+    }
+
+    private synchronized void putNode(@NotNull Node node) {
+        NodeState state = nodes.computeIfAbsent(node.getMetadata().getName(), name -> new NodeState());
+        remove(state);
+        Map<String, Quantity> allocatable = node.getStatus() == null ? null : node.getStatus().getAllocatable();
+        state.allocatableCpuMillis = allocatable == null ? 0 : toMillis(allocatable.get("cpu"));
+        state.allocatableMemoryBytes = allocatable == null ? 0 : toMillis(allocatable.get("memory")) / 1000;
+        state.schedulable = isSchedulable(node);
+        add(state);
+    }
+
+    private synchronized void removeNode(@NotNull String name) {
+        NodeState state = nodes.get(name);
+        if (state == null) {
+            return;
+        }
+        remove(state);
+        state.allocatableCpuMillis = 0;
+        state.allocatableMemoryBytes = 0;
+        state.schedulable = false;
+        if (state.requestedCpuMillis == 0 && state.requestedMemoryBytes == 0) {
+            nodes.remove(name);
+        }
+    }
+
+    private synchronized void putPod(@NotNull Pod pod) {
+        String key = toKey(pod);
+        String phase = pod.getStatus() == null ? null : pod.getStatus().getPhase();
+        if ("Succeeded".equals(phase) || "Failed".equals(phase) || pod.getSpec() == null) {
+            /* A finished Pod does not hold its requests */
+            removePod(key);
+            return;
+        }
+        long[] requests = getRequests(pod.getSpec());
+        PodUsage previous = pods.get(key);
+        String nodeName = pod.getSpec().getNodeName();
+        if (previous != null && previous.cpuMillis == requests[0] && previous.memoryBytes == requests[1]
+                && (nodeName == null ? previous.nodeName == null : nodeName.equals(previous.nodeName))) {
+            /* Status updates of a Pod do not change the model */
+            return;
+        }
+        if (previous == null) {
+            takeReservation(pod);
+        }
+        removePod(key);
+        PodUsage usage = new PodUsage(nodeName, requests[0], requests[1]);
+        pods.put(key, usage);
+        if (nodeName == null) {
+            pendingCpuMillis += usage.cpuMillis;
+            pendingMemoryBytes += usage.memoryBytes;
+            return;
+        }
+        NodeState state = nodes.computeIfAbsent(nodeName, name -> new NodeState());
+        remove(state);
+        state.requestedCpuMillis += usage.cpuMillis;
+        state.requestedMemoryBytes += usage.memoryBytes;
+        add(state);
+    }
+
+    private synchronized void removePod(@NotNull String key) {
+        PodUsage usage = pods.remove(key);
+        if (usage == null) {
+            return;
+        }
+        if (usage.nodeName == null) {
+            pendingCpuMillis -= usage.cpuMillis;
+            pendingMemoryBytes -= usage.memoryBytes;
+            return;
+        }
+        NodeState state = nodes.get(usage.nodeName);
+        if (state != null) {
+            remove(state);
+            state.requestedCpuMillis -= usage.cpuMillis;
+            state.requestedMemoryBytes -= usage.memoryBytes;
+            add(state);
+            if (state.allocatableCpuMillis == 0 && state.allocatableMemoryBytes == 0 && state.requestedCpuMillis == 0
+                    && state.requestedMemoryBytes == 0) {
+                /* The last Pod of a deleted node */
+                nodes.remove(usage.nodeName);
+            }
+        }
+    }
+
+    /**
+     * Takes the share of a node out of the cluster totals, called before the node changes
+     */
+    private void remove(@NotNull NodeState state) {
+        if (state.schedulable) {
+            schedulableNodes--;
+            freeCpuMillis -= state.getFreeCpuMillis();
+            freeMemoryBytes -= state.getFreeMemoryBytes();
+        }
+        fittingPods -= state.fits;
+        state.fits = 0;
+    }
+
+    /**
+     * Adds the share of a node to the cluster totals, called after the node changed
+     */
+    private void add(@NotNull NodeState state) {
+        if (state.schedulable) {
+            schedulableNodes++;
+            freeCpuMillis += state.getFreeCpuMillis();
+            freeMemoryBytes += state.getFreeMemoryBytes();
+        }
+        state.fits = fits(state);
+        fittingPods += state.fits;
+    }
+
+    private long fits(@NotNull NodeState state) {
+        if (!state.schedulable || (podCpuMillis == 0 && podMemoryBytes == 0)) {
+            return 0;
+        }
+        long fits = Long.MAX_VALUE;
+        if (podCpuMillis > 0) {
+            fits = state.getFreeCpuMillis() / podCpuMillis;
+        }
+        if (podMemoryBytes > 0) {
+            fits = Math.min(fits, state.getFreeMemoryBytes() / podMemoryBytes);
+        }
+        return fits;
+    }
+
+    private static boolean isSchedulable(@NotNull Node node) {
+        if (node.getSpec() != null) {
+            if (Boolean.TRUE.equals(node.getSpec().getUnschedulable())) {
+                return false;
+            }
+            if (node.getSpec().getTaints() != null) {
+                for (Taint taint : node.getSpec().getTaints()) {
+                    /* The worker template has no tolerations */
+                    if ("NoSchedule".equals(taint.getEffect()) || "NoExecute".equals(taint.getEffect())) {
+                        return false;
+                    }
+                }
+            }
+        }
+        if (node.getStatus() != null && node.getStatus().getConditions() != null) {
+            for (NodeCondition condition : node.getStatus().getConditions()) {
+                if ("Ready".equals(condition.getType())) {
+                    return "True".equals(condition.getStatus());
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The requests the scheduler reserves for a Pod: the sum of its containers, or the largest init container if that is more
+     * @return CPU in millicores, memory in bytes
+     */
+    @NotNull
+    static long[] getRequests(@NotNull PodSpec podSpec) {
+        long cpuMillis = 0;
+        long memoryBytes = 0;
+        if (podSpec.getContainers() != null) {
+            for (Container container : podSpec.getContainers()) {
+                Map<String, Quantity> requests = container.getResources() == null ? null : container.getResources().getRequests();
+                if (requests != null) {
+                    cpuMillis += toMillis(requests.get("cpu"));
+                    memoryBytes += toMillis(requests.get("memory")) / 1000;
+                }
+            }
+        }
+        if (podSpec.getInitContainers() != null) {
+            for (Container container : podSpec.getInitContainers()) {
+                Map<String, Quantity> requests = container.getResources() == null ? null : container.getResources().getRequests();
+                if (requests != null) {
+                    cpuMillis = Math.max(cpuMillis, toMillis(requests.get("cpu")));
+                    memoryBytes = Math.max(memoryBytes, toMillis(requests.get("memory")) / 1000);
+                }
+            }
+        }
+        return new long[]{cpuMillis, memoryBytes};
+    }
+
+    /**
+     * Parses a Kubernetes quantity, e.g. 200m, 2, 1.5Gi or 1e3, to thousandths of its unit
+     */
+    static long toMillis(@Nullable Quantity quantity) {
+        if (quantity == null || quantity.getAmount() == null) {
+            return 0;
+        }
+        String value = (quantity.getAmount() + (quantity.getFormat() == null ? "" : quantity.getFormat())).trim();
+        int suffixStart = value.length();
+        while (suffixStart > 0 && Character.isLetter(value.charAt(suffixStart - 1))) {
+            suffixStart--;
+        }
+        String suffix = value.substring(suffixStart);
+        BigDecimal amount;
+        try {
+            amount = new BigDecimal(value.substring(0, suffixStart));
+        } catch (NumberFormatException e) {
+            log.debug("Could not parse quantity {}", value);
+            return 0;
+        }
+        BigDecimal multiplier;
+        switch (suffix) {
+            case "": multiplier = BigDecimal.ONE; break;
+            case "m": multiplier = new BigDecimal("0.001"); break;
+            case "k": multiplier = BigDecimal.TEN.pow(3); break;
+            case "M": multiplier = BigDecimal.TEN.pow(6); break;
+            case "G": multiplier = BigDecimal.TEN.pow(9); break;
+            case "T": multiplier = BigDecimal.TEN.pow(12); break;
+            case "P": multiplier = BigDecimal.TEN.pow(15); break;
+            case "Ki": multiplier = BigDecimal.valueOf(2).pow(10); break;
+            case "Mi": multiplier = BigDecimal.valueOf(2).pow(20); break;
+            case "Gi": multiplier = BigDecimal.valueOf(2).pow(30); break;
+            case "Ti": multiplier = BigDecimal.valueOf(2).pow(40); break;
+            case "Pi": multiplier = BigDecimal.valueOf(2).pow(50); break;
+            default:
+                log.debug("Unknown quantity suffix in {}", value);
+                return 0;
+        }
+        return amount.multiply(multiplier).multiply(BigDecimal.valueOf(1000)).longValue();
+    }
+
+    private static long ceilDiv(long value, long divisor) {
+        return value <= 0 ? 0 : (value + divisor - 1) / divisor;
+    }
+
+    private static String toKey(@NotNull Pod pod) {
+        return pod.getMetadata().getNamespace() + "/" + pod.getMetadata().getName();
+    }
+
+    public synchronized long getSchedulableNodeCount() {
+        return schedulableNodes;
+    }
+
+    public synchronized double getFreeCpuCores() {
+        return freeCpuMillis / 1000.0;
+    }
+
+    public synchronized long getFreeMemoryBytes() {
+        return freeMemoryBytes;
+    }
+
+    /**
+     * @return Worker Pods that fit on the schedulable nodes, with the worker Pod size of the last plan
+     */
+    public synchronized long getFittingPods() {
+        return fittingPods;
+    }
+
+    public long getPlannedRunsTotal() {
+        return plannedRunsTotal.get();
+    }
+
+    /**
+     * @return Planned replicas whose Pods did not show up yet, of all runs
+     */
+    public synchronized long getReservedPods() {
+        return getReserved(Integer.MIN_VALUE);
+    }
+
+    @Override
+    public void close() {
+        informerFactory.stopAllRegisteredInformers();
+    }
+
+    private static final class NodeState {
+        private long allocatableCpuMillis;
+        private long allocatableMemoryBytes;
+        private long requestedCpuMillis;
+        private long requestedMemoryBytes;
+        private boolean schedulable;
+        private long fits;
+
+        private long getFreeCpuMillis() {
+            return Math.max(0, allocatableCpuMillis - requestedCpuMillis);
+        }
+
+        private long getFreeMemoryBytes() {
+            return Math.max(0, allocatableMemoryBytes - requestedMemoryBytes);
+        }
+    }
+
+    private static final class Reservation {
+        private final int runNumber;
+        private final long expiresNanos;
+        /* Guarded by the CapacityPlanner */
+        private int remaining;
+
+        private Reservation(int runNumber, int remaining, long expiresNanos) {
+            this.runNumber = runNumber;
+            this.remaining = remaining;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+
+    private static final class PodUsage {
+        private final String nodeName;
+        private final long cpuMillis;
+        private final long memoryBytes;
+
+        private PodUsage(String nodeName, long cpuMillis, long memoryBytes) {
+            this.nodeName = nodeName;
+            this.cpuMillis = cpuMillis;
+            this.memoryBytes = memoryBytes;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package ch.cern.tdaq.k8s.operator.CustomResource;
+
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+/**
+ * Optional autoscaling of the worker replicas of every RunPipe of a run, driven by the call rate the data-storage webserver reports.
+ * The replicas are kept between minReplicas and maxReplicas, aiming at targetCallsPerSecondPerReplica per Pod.
+ * Nothing changes while the load per Pod is within tolerance of the target, and scaling down waits scaleDownDelaySeconds.
+ */
+@JsonDeserialize(
+        using = JsonDeserializer.None.class
+)
+public class RunAutoscalingSpec {
+    private int minReplicas = 1;
+    private int maxReplicas = 1;
+    private double targetCallsPerSecondPerReplica = 10;
+    private double tolerance = 0.1;
+    private int scaleDownDelaySeconds = 60;
+
+    public int getMinReplicas() { return minReplicas; }
+    public void setMinReplicas(int minReplicas) { this.minReplicas = minReplicas; }
+
+    public int getMaxReplicas() { return maxReplicas; }
+    public void setMaxReplicas(int maxReplicas) { this.maxReplicas = maxReplicas; }
+
+    public double getTargetCallsPerSecondPerReplica() { return targetCallsPerSecondPerReplica; }
+    public void setTargetCallsPerSecondPerReplica(double targetCallsPerSecondPerReplica) { this.targetCallsPerSecondPerReplica = targetCallsPerSecondPerReplica; }
+
+    public double getTolerance() { return tolerance; }
+    public void setTolerance(double tolerance) { this.tolerance = tolerance; }
+
+    public int getScaleDownDelaySeconds() { return scaleDownDelaySeconds; }
+    public void setScaleDownDelaySeconds(int scaleDownDelaySeconds) { this.scaleDownDelaySeconds = scaleDownDelaySeconds; }
+}
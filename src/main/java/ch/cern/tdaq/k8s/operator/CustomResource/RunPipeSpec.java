@@ -0,0 +1,28 @@
+package ch.cern.tdaq.k8s.operator.CustomResource;
+
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+/**
+ * One RunPipe of a run, used when a RunResource starts several pipes for the same RunNumber.
+ * If replicas is not set, the replicas from the deployment template is used, or with the capacity planner the RunPipe's share
+ * (weight out of the weights of all such RunPipes) of the free capacity of the cluster.
+ */
+@JsonDeserialize(
+        using = JsonDeserializer.None.class
+)
+public class RunPipeSpec {
+    private String name;
+    private Integer replicas;
+    /* Optional, default 1 */
+    private Integer weight;
+
+    public String getName() { return name; }
+    public void setName(String name) { this.name = name; }
+
+    public Integer getReplicas() { return replicas; }
+    public void setReplicas(Integer replicas) { this.replicas = replicas; }
+
+    public Integer getWeight() { return weight; }
+    public void setWeight(Integer weight) { this.weight = weight; }
+}
@@ -0,0 +1,29 @@
+package ch.cern.tdaq.k8s.operator.CustomResource;
+
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+/**
+ * The state of the Deployment of one RunPipe, as seen by the Operator
+ */
+@JsonDeserialize(
+        using = JsonDeserializer.None.class
+)
+public class RunPipeStatus {
+    private String name;
+    private String deployment;
+    private int desiredReplicas;
+    private int readyReplicas;
+
+    public String getName() { return name; }
+    public void setName(String name) { this.name = name; }
+
+    public String getDeployment() { return deployment; }
+    public void setDeployment(String deployment) { this.deployment = deployment; }
+
+    public int getDesiredReplicas() { return desiredReplicas; }
+    public void setDesiredReplicas(int desiredReplicas) { this.desiredReplicas = desiredReplicas; }
+
+    public int getReadyReplicas() { return readyReplicas; }
+    public void setReadyReplicas(int readyReplicas) { this.readyReplicas = readyReplicas; }
+}
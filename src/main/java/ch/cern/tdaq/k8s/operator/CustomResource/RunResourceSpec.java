@@ -3,6 +3,8 @@ package ch.cern.tdaq.k8s.operator.CustomResource;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
+import java.util.List;
+
 @JsonDeserialize(
         using = JsonDeserializer.None.class
 )
@@ -11,6 +13,10 @@ public class RunResourceSpec {
     private int runNumber;
     private String runPipe;
     private String label;
+    /* Optional, when set the run starts one deployment per RunPipe in the list, and runPipe is not used */
+    private List<RunPipeSpec> runPipes;
+    /* Optional, when set the replicas of every RunPipe follow the load reported by the data-storage webserver */
+    private RunAutoscalingSpec autoscaling;
 
     public int getRunNumber() { return runNumber; }
     public void setRunNumber(int runNumber) { this.runNumber = runNumber; }
@@ -18,6 +24,12 @@ public class RunResourceSpec {
     public String getRunPipe() { return runPipe; }
     public void setRunPipe(String runPipe) { this.runPipe = runPipe; }
 
+    public List<RunPipeSpec> getRunPipes() { return runPipes; }
+    public void setRunPipes(List<RunPipeSpec> runPipes) { this.runPipes = runPipes; }
+
+    public RunAutoscalingSpec getAutoscaling() { return autoscaling; }
+    public void setAutoscaling(RunAutoscalingSpec autoscaling) { this.autoscaling = autoscaling; }
+
     public String getName() {
         return name;
     }
@@ -3,19 +3,69 @@ package ch.cern.tdaq.k8s.operator.CustomResource;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @JsonDeserialize(
         using = JsonDeserializer.None.class
 )
 public class RunResourceStatus {
+    public static final String PHASE_PENDING = "Pending";
+    public static final String PHASE_RUNNING = "Running";
+    public static final String PHASE_DRAINING = "Draining";
+    public static final String PHASE_FINISHED = "Finished";
+
     private boolean isRunFinished;
 
     public boolean getIsRunFinished() { return isRunFinished; }
     public void setRunFinished(boolean runFinished) { isRunFinished = runFinished; }
 
-    /*
-    private ArrayList<String> runningDeployments = new ArrayList<>(); // Unsure of this type works out of the box like this with the K8S interface
-    public ArrayList<String> getRunningDeployments() { return runningDeployments; }
-    public void addRunningDeployment(String deploymentName) { runningDeployments.add(deploymentName); }
-    public void removeRunningDeployment(String deploymentName) { runningDeployments.remove(deploymentName); }
-     */
+    /* Human readable note about the run, e.g. why the deployment is not created yet */
+    private String message;
+
+    public String getMessage() { return message; }
+    public void setMessage(String message) { this.message = message; }
+
+    /* The RunNumber this status is about, the timestamps of an older run are not taken over */
+    private Integer runNumber;
+
+    public Integer getRunNumber() { return runNumber; }
+    public void setRunNumber(Integer runNumber) { this.runNumber = runNumber; }
+
+    /* The namespace the run deployments are in, a namespace of the pool or the one of the RunResource */
+    private String deploymentNamespace;
+
+    public String getDeploymentNamespace() { return deploymentNamespace; }
+    public void setDeploymentNamespace(String deploymentNamespace) { this.deploymentNamespace = deploymentNamespace; }
+
+    /* Pending: not all Pods are ready, Running: all Pods are ready, Draining: superseded by a newer run, Finished: superseded and deleted */
+    private String phase;
+    private List<String> runningDeployments = new ArrayList<>();
+    private List<RunPipeStatus> runPipes = new ArrayList<>();
+    /* RFC 3339 timestamps */
+    private String startTime;
+    private String runningTime;
+    private String finishTime;
+    private String lastUpdateTime;
+
+    public String getPhase() { return phase; }
+    public void setPhase(String phase) { this.phase = phase; }
+
+    public List<String> getRunningDeployments() { return runningDeployments; }
+    public void setRunningDeployments(List<String> runningDeployments) { this.runningDeployments = runningDeployments; }
+
+    public List<RunPipeStatus> getRunPipes() { return runPipes; }
+    public void setRunPipes(List<RunPipeStatus> runPipes) { this.runPipes = runPipes; }
+
+    public String getStartTime() { return startTime; }
+    public void setStartTime(String startTime) { this.startTime = startTime; }
+
+    public String getRunningTime() { return runningTime; }
+    public void setRunningTime(String runningTime) { this.runningTime = runningTime; }
+
+    public String getFinishTime() { return finishTime; }
+    public void setFinishTime(String finishTime) { this.finishTime = finishTime; }
+
+    public String getLastUpdateTime() { return lastUpdateTime; }
+    public void setLastUpdateTime(String lastUpdateTime) { this.lastUpdateTime = lastUpdateTime; }
 }
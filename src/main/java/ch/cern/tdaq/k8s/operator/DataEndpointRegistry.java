@@ -0,0 +1,227 @@
+package ch.cern.tdaq.k8s.operator;
+
+import io.fabric8.kubernetes.api.model.Service;
+import io.fabric8.kubernetes.api.model.ServicePort;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.Watch;
+import io.fabric8.kubernetes.client.Watcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Knows the ClusterIP:PORT of the data-storage Services (the webserver-service) the worker Pods talk to.
+ * Every configured Service is read once and then watched, so creating a run deployment does not need a GET on the Service.
+ *
+ * The Services are configured with "<namespace>/<name>" values:
+ *  TDAQ_DATA_SERVICE: the Service used by all RunPipes, default: default/webserver-service
+ *  TDAQ_DATA_SERVICE_PER_PIPE: optional overrides per RunPipe, e.g. "proton=default/webserver-service,ion=data/ion-storage"
+ */
+public class DataEndpointRegistry implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(DataEndpointRegistry.class);
+
+    private static final long WATCH_RECONNECT_DELAY_SECONDS = 5;
+
+    private final KubernetesClient kubernetesClient;
+    private final String defaultService;
+    private final Map<String, String> servicePerRunPipe;
+    /* <namespace>/<name> -> endpoint, a missing key means the Service does not exist or has no ClusterIP/port */
+    private final Map<String, DataEndpoint> endpoints = new ConcurrentHashMap<>();
+    private final Map<String, Watch> watches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reconnectExecutor;
+    private volatile boolean closed = false;
+
+    /**
+     * @param defaultService "<namespace>/<name>" of the Service used when a RunPipe has no override
+     * @param servicePerRunPipe RunPipe name -> "<namespace>/<name>"
+     */
+    public DataEndpointRegistry(@NotNull KubernetesClient kubernetesClient, @NotNull String defaultService, @NotNull Map<String, String> servicePerRunPipe) {
+        this.kubernetesClient = kubernetesClient;
+        this.defaultService = defaultService;
+        this.servicePerRunPipe = new HashMap<>(servicePerRunPipe);
+        this.reconnectExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "data-endpoint-watch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reads and starts watching all the configured Services
+     */
+    public void start() {
+        watchService(defaultService);
+        for (String service : servicePerRunPipe.values()) {
+            if (!watches.containsKey(service)) {
+                watchService(service);
+            }
+        }
+    }
+
+    /**
+     * @return The endpoint of the data-storage Service for the RunPipe, or null if the Service is not available
+     */
+    @Nullable
+    public DataEndpoint resolve(@NotNull String runPipeName) {
+        return endpoints.get(servicePerRunPipe.getOrDefault(runPipeName, defaultService));
+    }
+
+    /**
+     * Like resolve(), but throws when the Service is not available, so the reconcile fails fast with a clear message
+     */
+    @NotNull
+    public DataEndpoint require(@NotNull String runPipeName) {
+        DataEndpoint endpoint = resolve(runPipeName);
+        if (endpoint == null) {
+            throw new DataEndpointUnavailableException("No data-storage Service endpoint for RunPipe " + runPipeName
+                    + ", Service " + servicePerRunPipe.getOrDefault(runPipeName, defaultService) + " does not exist or has no ClusterIP/port");
+        }
+        return endpoint;
+    }
+
+    /**
+     * @return The endpoint of the default data-storage Service, the one that is not specific to a RunPipe
+     */
+    @NotNull
+    public DataEndpoint requireDefault() {
+        DataEndpoint endpoint = endpoints.get(defaultService);
+        if (endpoint == null) {
+            throw new DataEndpointUnavailableException("Data-storage Service " + defaultService + " does not exist or has no ClusterIP/port");
+        }
+        return endpoint;
+    }
+
+    private void watchService(String service) {
+        if (closed) {
+            return;
+        }
+        String[] namespaceAndName = service.split("/", 2);
+        String namespace = namespaceAndName.length == 2 ? namespaceAndName[0] : "default";
+        String name = namespaceAndName[namespaceAndName.length - 1];
+        try {
+            update(service, kubernetesClient.services().inNamespace(namespace).withName(name).get());
+            watches.put(service, kubernetesClient.services().inNamespace(namespace).withName(name).watch(new Watcher<Service>() {
+                @Override
+                public void eventReceived(Action action, Service resource) {
+                    update(service, action == Action.DELETED ? null : resource);
+                }
+
+                @Override
+                public void onClose(KubernetesClientException cause) {
+                    if (cause != null) {
+                        log.warn("Watch on data-storage Service {} closed, reconnecting", service, cause);
+                        watches.remove(service);
+                        reconnectExecutor.schedule(() -> watchService(service), WATCH_RECONNECT_DELAY_SECONDS, TimeUnit.SECONDS);
+                    }
+                }
+            }));
+        } catch (KubernetesClientException e) {
+            log.error("Failed to watch data-storage Service {}, trying again in {}s", service, WATCH_RECONNECT_DELAY_SECONDS, e);
+            reconnectExecutor.schedule(() -> watchService(service), WATCH_RECONNECT_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private void update(String service, @Nullable Service resource) {
+        DataEndpoint endpoint = toEndpoint(resource);
+        DataEndpoint previous = endpoint == null ? endpoints.remove(service) : endpoints.put(service, endpoint);
+        if (endpoint == null && previous != null) {
+            log.warn("Data-storage Service {} is no longer available", service);
+        } else if (endpoint != null && !endpoint.equals(previous)) {
+            log.info("Data-storage Service {} is at {}:{}", service, endpoint.getHost(), endpoint.getPort());
+        }
+    }
+
+    @Nullable
+    private static DataEndpoint toEndpoint(@Nullable Service service) {
+        if (service == null || service.getSpec() == null) {
+            return null;
+        }
+        String clusterIP = service.getSpec().getClusterIP();
+        List<ServicePort> ports = service.getSpec().getPorts();
+        if (clusterIP == null || clusterIP.isEmpty() || "None".equals(clusterIP) || ports == null || ports.isEmpty()) {
+            return null;
+        }
+        return new DataEndpoint(clusterIP, ports.get(0).getPort());
+    }
+
+    /**
+     * Parses "proton=default/webserver-service,ion=data/ion-storage" into a RunPipe -> Service map
+     */
+    @NotNull
+    public static Map<String, String> parseServicePerRunPipe(@Nullable String value) {
+        Map<String, String> servicePerRunPipe = new HashMap<>();
+        if (value == null) {
+            return servicePerRunPipe;
+        }
+        for (String entry : value.split(",")) {
+            String[] pipeAndService = entry.trim().split("=", 2);
+            if (pipeAndService.length == 2 && !pipeAndService[0].trim().isEmpty() && !pipeAndService[1].trim().isEmpty()) {
+                servicePerRunPipe.put(pipeAndService[0].trim(), pipeAndService[1].trim());
+            } else if (!entry.trim().isEmpty()) {
+                log.warn("Ignoring invalid data-storage Service mapping: {}", entry);
+            }
+        }
+        return servicePerRunPipe;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        reconnectExecutor.shutdownNow();
+        for (Watch watch : watches.values()) {
+            watch.close();
+        }
+    }
+
+    /**
+     * The ClusterIP:PORT of a data-storage Service
+     */
+    public static final class DataEndpoint {
+        private final String host;
+        private final int port;
+
+        public DataEndpoint(@NotNull String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getHost() { return host; }
+        public int getPort() { return port; }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof DataEndpoint)) {
+                return false;
+            }
+            DataEndpoint that = (DataEndpoint) o;
+            return port == that.port && host.equals(that.host);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * host.hashCode() + port;
+        }
+    }
+
+    /**
+     * Thrown when a run deployment needs a data-storage Service that is not available
+     */
+    public static class DataEndpointUnavailableException extends RuntimeException {
+        public DataEndpointUnavailableException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package ch.cern.tdaq.k8s.operator;
+
+import io.fabric8.kubernetes.api.model.ConfigMap;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.api.model.apps.DeploymentBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.Watch;
+import io.fabric8.kubernetes.client.Watcher;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the parsed worker Deployment template (deploy-worker.yaml).
+ * The yaml is parsed once, and every run gets its own deep copy from newInstance(), so the reconcile loop never reads or parses yaml.
+ *
+ * The template can optionally be hot-reloaded, so that the worker resources can be changed without rebuilding the JAR:
+ *  TDAQ_WORKER_TEMPLATE_FILE: path to a mounted yaml file (e.g. a ConfigMap volume), checked every TDAQ_WORKER_TEMPLATE_POLL_SECONDS
+ *  TDAQ_WORKER_TEMPLATE_CONFIGMAP: "<namespace>/<name>" of a ConfigMap that is watched, the yaml is read from the key TDAQ_WORKER_TEMPLATE_CONFIGMAP_KEY
+ * If a reloaded template can not be parsed, the previous template is kept.
+ * The run deployments are named after metadata.name of the template, so it is read from the hot-reload source once at startup,
+ * and a later reload that changes it is rejected and the previous template is kept: renaming every run would make the Operator
+ * lose track of the deployments it already created.
+ */
+public class DeploymentTemplate implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(DeploymentTemplate.class);
+    private static final long WATCH_RECONNECT_DELAY_SECONDS = 5;
+
+    public static final String DEFAULT_TEMPLATE_RESOURCE = "deploy-worker.yaml";
+
+    private final AtomicReference<Deployment> template = new AtomicReference<>();
+    private ScheduledExecutorService fileReloadExecutor;
+    private ScheduledExecutorService reconnectExecutor;
+    private volatile Watch configMapWatch;
+    private volatile boolean closed = false;
+    private volatile byte[] lastFileContent;
+
+    /**
+     * @param resourcePath The yaml file in the resources directory (relative to this class) that is used until a hot-reload source overrides it
+     * @throws IOException If the yaml file can not be read or parsed
+     */
+    public DeploymentTemplate(@NotNull String resourcePath) throws IOException {
+        try (InputStream yamlInputStream = getClass().getResourceAsStream(resourcePath)) {
+            if (yamlInputStream == null) {
+                throw new IOException("Deployment template not found in resources: " + resourcePath);
+            }
+            template.set(parse(yamlInputStream));
+        }
+        log.info("Loaded deployment template {} from resources", getTemplateName());
+    }
+
+    /**
+     * Creates a template from an already parsed Deployment. Used by the benchmarks.
+     */
+    public DeploymentTemplate(@NotNull Deployment deployment) {
+        template.set(validate(deployment));
+    }
+
+    /**
+     * Returns a deep copy of the template, the copy can be modified freely by the caller.
+     */
+    @NotNull
+    public Deployment newInstance() {
+        return new DeploymentBuilder(template.get()).build();
+    }
+
+    /**
+     * The metadata.name of the template, used as the prefix of every run deployment name. Does not copy the template.
+     */
+    @NotNull
+    public String getTemplateName() {
+        return template.get().getMetadata().getName();
+    }
+
+    /**
+     * The spec.replicas of the template, 1 if it is not set. Does not copy the template.
+     */
+    public int getTemplateReplicas() {
+        Integer replicas = template.get().getSpec().getReplicas();
+        return replicas == null ? 1 : replicas;
+    }
+
+    /**
+     * Starts polling a mounted yaml file for changes. Kubernetes updates mounted ConfigMaps by swapping a symlink,
+     * so we compare the content and not the modification time.
+     */
+    public void startFileReload(@NotNull String filePath, long pollIntervalSeconds) {
+        final Path path = Paths.get(filePath);
+        fileReloadExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "deployment-template-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        /* The first read is done right away, it may set the name of the template */
+        reloadFromFile(path, true);
+        fileReloadExecutor.scheduleWithFixedDelay(() -> reloadFromFile(path, false), pollIntervalSeconds, pollIntervalSeconds, TimeUnit.SECONDS);
+        log.info("Watching {} for deployment template changes every {} seconds", filePath, pollIntervalSeconds);
+    }
+
+    /**
+     * Watches a ConfigMap and reloads the template every time the yaml under the given key changes.
+     * A watch that is closed by an error (e.g. 410 Gone, or the API server restarted) is started again after a delay.
+     */
+    public void startConfigMapReload(@NotNull KubernetesClient kubernetesClient, @NotNull String namespace, @NotNull String name, @NotNull String key) {
+        reconnectExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "deployment-template-watch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ConfigMap configMap = kubernetesClient.configMaps().inNamespace(namespace).withName(name).get();
+        if (configMap != null) {
+            reloadFromConfigMap(configMap, key, true);
+        } else {
+            log.warn("ConfigMap {}/{} does not exist (yet), using the deployment template from the resources", namespace, name);
+        }
+        watchConfigMap(kubernetesClient, namespace, name, key);
+        log.info("Watching ConfigMap {}/{} key {} for deployment template changes", namespace, name, key);
+    }
+
+    private void watchConfigMap(KubernetesClient kubernetesClient, String namespace, String name, String key) {
+        if (closed) {
+            return;
+        }
+        try {
+            configMapWatch = kubernetesClient.configMaps().inNamespace(namespace).withName(name).watch(new Watcher<ConfigMap>() {
+                @Override
+                public void eventReceived(Action action, ConfigMap resource) {
+                    if (action == Action.ADDED || action == Action.MODIFIED) {
+                        reloadFromConfigMap(resource, key, false);
+                    }
+                }
+
+                @Override
+                public void onClose(KubernetesClientException cause) {
+                    if (cause != null) {
+                        log.warn("Watch on deployment template ConfigMap {}/{} closed, reconnecting", namespace, name, cause);
+                        reconnectExecutor.schedule(() -> rewatchConfigMap(kubernetesClient, namespace, name, key),
+                                WATCH_RECONNECT_DELAY_SECONDS, TimeUnit.SECONDS);
+                    }
+                }
+            });
+        } catch (KubernetesClientException e) {
+            log.error("Failed to watch deployment template ConfigMap {}/{}, trying again in {}s", namespace, name, WATCH_RECONNECT_DELAY_SECONDS, e);
+            reconnectExecutor.schedule(() -> rewatchConfigMap(kubernetesClient, namespace, name, key), WATCH_RECONNECT_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Reads the ConfigMap again before watching, a change made while there was no watch is not missed
+     */
+    private void rewatchConfigMap(KubernetesClient kubernetesClient, String namespace, String name, String key) {
+        try {
+            ConfigMap configMap = kubernetesClient.configMaps().inNamespace(namespace).withName(name).get();
+            if (configMap != null) {
+                reloadFromConfigMap(configMap, key, false);
+            }
+        } catch (KubernetesClientException e) {
+            log.warn("Failed to read deployment template ConfigMap {}/{}: {}", namespace, name, e.getMessage());
+        }
+        watchConfigMap(kubernetesClient, namespace, name, key);
+    }
+
+    private void reloadFromFile(Path path, boolean initial) {
+        try {
+            byte[] content = Files.readAllBytes(path);
+            if (lastFileContent != null && Arrays.equals(lastFileContent, content)) {
+                return;
+            }
+            lastFileContent = content;
+            replace(parse(new ByteArrayInputStream(content)), path.toString(), initial);
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to reload the deployment template from {}, keeping the previous template", path, e);
+        }
+    }
+
+    private void reloadFromConfigMap(ConfigMap configMap, String key, boolean initial) {
+        String yaml = configMap.getData() == null ? null : configMap.getData().get(key);
+        if (yaml == null) {
+            log.warn("ConfigMap {} has no key {}, keeping the previous deployment template", configMap.getMetadata().getName(), key);
+            return;
+        }
+        try {
+            replace(parse(new ByteArrayInputStream(yaml.getBytes(StandardCharsets.UTF_8))), "ConfigMap " + configMap.getMetadata().getName(), initial);
+        } catch (RuntimeException e) {
+            log.error("Failed to reload the deployment template from ConfigMap {}, keeping the previous template", configMap.getMetadata().getName(), e);
+        }
+    }
+
+    /**
+     * @param initial True for the first read at startup, before any run deployment is named after the template
+     */
+    private void replace(Deployment deployment, String source, boolean initial) {
+        String name = deployment.getMetadata().getName();
+        if (!initial && !name.equals(getTemplateName())) {
+            log.error("The deployment template from {} renames it from {} to {}, the run deployments are named after it. "
+                    + "Keeping the previous template, restart the Operator to rename", source, getTemplateName(), name);
+            return;
+        }
+        template.set(deployment);
+        log.info("Reloaded deployment template {} from {}", getTemplateName(), source);
+    }
+
+    private static Deployment parse(InputStream yamlInputStream) {
+        return validate(Serialization.unmarshal(yamlInputStream, Deployment.class));
+    }
+
+    private static Deployment validate(Deployment deployment) {
+        if (deployment == null
+                || deployment.getMetadata() == null
+                || deployment.getMetadata().getName() == null
+                || deployment.getSpec() == null
+                || deployment.getSpec().getTemplate() == null
+                || deployment.getSpec().getTemplate().getSpec() == null) {
+            throw new IllegalArgumentException("Deployment template must have metadata.name and spec.template.spec");
+        }
+        return deployment;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (reconnectExecutor != null) {
+            reconnectExecutor.shutdownNow();
+        }
+        if (fileReloadExecutor != null) {
+            fileReloadExecutor.shutdownNow();
+        }
+        if (configMapWatch != null) {
+            configMapWatch.close();
+        }
+    }
+}
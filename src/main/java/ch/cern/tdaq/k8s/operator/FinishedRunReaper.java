@@ -0,0 +1,248 @@
+package ch.cern.tdaq.k8s.operator;
+
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+
+/**
+ * Background garbage collector for the Deployments of finished runs.
+ * A run is finished when it is superseded, i.e. its RunNumber is lower than the latest RunNumber of the Operator, over all
+ * worker clusters. A cluster whose quota the older run fills gets none of the replicas of the newer run, so its own cache would
+ * never see the run that supersedes it.
+ * Every sweep reads the superseded Deployments from the cache and deletes them in batches of batchSize, at most
+ * maxDeletesPerSecond, with the latest RunNumber read again for every batch. It then deletes the namespaces that are left
+ * without Deployments and hold no RunResource, see NamespaceCleaner. Namespaces that still had Deployments in the cache are
+ * tried again in the next sweep.
+ *
+ * This replaces the old looping thread in Main, since the java-operator-sdk does not support looping after X time.
+ *  See: https://github.com/ContainerSolutions/java-operator-sdk/issues/157
+ */
+public class FinishedRunReaper implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(FinishedRunReaper.class);
+
+    private final KubernetesClient kubernetesClient;
+    private final WorkerDeploymentCache deploymentCache;
+    private final NamespaceCleaner namespaceCleaner;
+    /* The latest RunNumber over all worker clusters, see LatestRunNumberTracker */
+    private final IntSupplier latestRunNumber;
+    private final long intervalSeconds;
+    private final int batchSize;
+    private final long nanosBetweenDeletes;
+    /* With several Operator replicas only the leader sweeps */
+    private final BooleanSupplier active;
+    private final ScheduledExecutorService executor;
+
+    /* Namespaces where we deleted Deployments, and that should be deleted once they are empty */
+    private final Set<String> pendingNamespaces = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong sweepCount = new AtomicLong();
+    private final AtomicLong scannedTotal = new AtomicLong();
+    private final AtomicLong deletedTotal = new AtomicLong();
+    private final AtomicLong failedTotal = new AtomicLong();
+    private final AtomicLong namespacesDeletedTotal = new AtomicLong();
+    private final AtomicLong lastSweepScanned = new AtomicLong();
+    private final AtomicLong lastSweepDeleted = new AtomicLong();
+    private final AtomicLong lastSweepDurationMillis = new AtomicLong();
+
+    /**
+     * @param latestRunNumber The latest RunNumber over all worker clusters, the runs below it are finished
+     * @param intervalSeconds Delay between the end of one sweep and the start of the next
+     * @param batchSize How many Deployments are read from the cache and deleted before the latest RunNumber is read again
+     * @param maxDeletesPerSecond Upper limit for delete calls to the API server, so the reaper never competes with run starts
+     * @param active Checked before every sweep, a sweep is skipped when it returns false
+     */
+    public FinishedRunReaper(@NotNull KubernetesClient kubernetesClient, @NotNull WorkerDeploymentCache deploymentCache,
+                             @NotNull NamespaceCleaner namespaceCleaner, @NotNull IntSupplier latestRunNumber, long intervalSeconds, int batchSize, double maxDeletesPerSecond,
+                             @NotNull BooleanSupplier active) {
+        this.kubernetesClient = kubernetesClient;
+        this.deploymentCache = deploymentCache;
+        this.namespaceCleaner = namespaceCleaner;
+        this.latestRunNumber = latestRunNumber;
+        this.intervalSeconds = intervalSeconds;
+        this.batchSize = Math.max(1, batchSize);
+        this.nanosBetweenDeletes = maxDeletesPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / maxDeletesPerSecond) : 0;
+        this.active = active;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            /* The deletes only get the API budget the runs do not need */
+            Thread thread = new Thread(() -> {
+                ApiRateLimiter.setThreadPriority(ApiRateLimiter.Priority.CLEANUP);
+                runnable.run();
+            }, "finished-run-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(this::sweepSafely, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        log.info("Finished run reaper started, interval: {}s batch size: {} min delay between deletes: {}ms",
+                intervalSeconds, batchSize, TimeUnit.NANOSECONDS.toMillis(nanosBetweenDeletes));
+    }
+
+    private void sweepSafely() {
+        try {
+            sweep();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            /* Never let an exception escape, the ScheduledExecutorService would stop scheduling the sweeps */
+            log.error("Finished run reaper sweep failed", e);
+        }
+    }
+
+    /**
+     * Deletes all Deployments with a RunNumber lower than the latest RunNumber, and then the empty namespaces.
+     */
+    void sweep() throws InterruptedException {
+        if (!active.getAsBoolean()) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        long scanned = 0;
+        long deleted = 0;
+
+        /* The deployments this sweep tried already, so the ones that are not gone from the cache yet are not read again */
+        Set<String> attempted = new HashSet<>();
+        int latestRunNumber;
+        while (true) {
+            /* Read again for every batch, a run that starts during a long sweep makes the runs before it finished right away */
+            latestRunNumber = this.latestRunNumber.getAsInt();
+            List<Deployment> batch = getSupersededBatch(latestRunNumber, attempted);
+            if (batch.isEmpty()) {
+                break;
+            }
+            for (Deployment deployment : batch) {
+                attempted.add(deployment.getMetadata().getNamespace() + "/" + deployment.getMetadata().getName());
+                if (deleteDeployment(deployment)) {
+                    deleted++;
+                }
+                if (nanosBetweenDeletes > 0) {
+                    TimeUnit.NANOSECONDS.sleep(nanosBetweenDeletes);
+                }
+            }
+            log.debug("Finished run reaper deleted a batch of {} deployments below run {}", batch.size(), latestRunNumber);
+        }
+        scanned = attempted.size();
+
+        deleteEmptyNamespaces();
+
+        long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        sweepCount.incrementAndGet();
+        scannedTotal.addAndGet(scanned);
+        deletedTotal.addAndGet(deleted);
+        lastSweepScanned.set(scanned);
+        lastSweepDeleted.set(deleted);
+        lastSweepDurationMillis.set(durationMillis);
+        if (scanned > 0) {
+            log.info("Finished run reaper: latest run {}, deleted {} of {} superseded deployments in {}ms",
+                    latestRunNumber, deleted, scanned, durationMillis);
+        }
+    }
+
+    /**
+     * @return The next batchSize deployments from the cache with a RunNumber lower than latestRunNumber, oldest run first
+     */
+    @NotNull
+    private List<Deployment> getSupersededBatch(int latestRunNumber, @NotNull Set<String> attempted) {
+        List<Deployment> batch = new ArrayList<>();
+        for (Integer runNumber : deploymentCache.getRunNumbers()) {
+            if (runNumber >= latestRunNumber) {
+                break;
+            }
+            for (Deployment deployment : deploymentCache.getByRunNumber(runNumber)) {
+                if (!attempted.contains(deployment.getMetadata().getNamespace() + "/" + deployment.getMetadata().getName())) {
+                    batch.add(deployment);
+                    if (batch.size() == batchSize) {
+                        return batch;
+                    }
+                }
+            }
+        }
+        return batch;
+    }
+
+    private boolean deleteDeployment(Deployment deployment) {
+        String namespace = deployment.getMetadata().getNamespace();
+        String deploymentName = deployment.getMetadata().getName();
+        try {
+            Boolean isDeleted = kubernetesClient.apps().deployments().inNamespace(namespace).withName(deploymentName).delete();
+            pendingNamespaces.add(namespace);
+            if (isDeleted == null || !isDeleted) {
+                /* Already gone, the informer will remove it from the cache */
+                log.debug("Namespace: {} Deployment: {} was already deleted", namespace, deploymentName);
+                return false;
+            }
+            deploymentCache.evict(namespace, deploymentName);
+            log.info("Namespace: {} Deployment: {} of a finished run is deleted", namespace, deploymentName);
+            return true;
+        } catch (KubernetesClientException e) {
+            failedTotal.incrementAndGet();
+            log.warn("Namespace: {} Deployment: {} of a finished run was NOT deleted, will try again in the next sweep", namespace, deploymentName, e);
+            return false;
+        }
+    }
+
+    private void deleteEmptyNamespaces() {
+        Iterator<String> iterator = pendingNamespaces.iterator();
+        while (iterator.hasNext()) {
+            String namespace = iterator.next();
+            if (deploymentCache.hasWorkerDeploymentsInNamespace(namespace)) {
+                /* Either the current run, or deletes that did not show up in the cache yet */
+                continue;
+            }
+            try {
+                if (namespaceCleaner.deleteNamespaceIfEmpty(namespace)) {
+                    namespacesDeletedTotal.incrementAndGet();
+                }
+                iterator.remove();
+            } catch (KubernetesClientException e) {
+                log.warn("Namespace: {} was NOT deleted, will try again in the next sweep", namespace, e);
+            }
+        }
+    }
+
+    public long getSweepCount() { return sweepCount.get(); }
+    public long getScannedTotal() { return scannedTotal.get(); }
+    public long getDeletedTotal() { return deletedTotal.get(); }
+    public long getFailedTotal() { return failedTotal.get(); }
+    public long getNamespacesDeletedTotal() { return namespacesDeletedTotal.get(); }
+    public long getLastSweepScanned() { return lastSweepScanned.get(); }
+    public long getLastSweepDeleted() { return lastSweepDeleted.get(); }
+    public long getLastSweepDurationMillis() { return lastSweepDurationMillis.get(); }
+
+    /**
+     * Plain text summary of the reaper counters, served on the /gc endpoint
+     */
+    @NotNull
+    public String describe() {
+        return "sweeps " + getSweepCount() + "\n"
+                + "scanned_total " + getScannedTotal() + "\n"
+                + "deleted_total " + getDeletedTotal() + "\n"
+                + "failed_total " + getFailedTotal() + "\n"
+                + "namespaces_deleted_total " + getNamespacesDeletedTotal() + "\n"
+                + "last_sweep_scanned " + getLastSweepScanned() + "\n"
+                + "last_sweep_deleted " + getLastSweepDeleted() + "\n"
+                + "last_sweep_duration_ms " + getLastSweepDurationMillis() + "\n";
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,218 @@
+package ch.cern.tdaq.k8s.operator;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs reconcile work for different keys in parallel on a bounded thread pool, while the work for the same key runs strictly in order.
+ * The key is the RunResource's namespace, RunNumber and RunPipe, so one slow run does not stall the runs of the other pipes.
+ *
+ * Every key has at most one running and one queued task. A new task for a key replaces the queued task if it has not started yet,
+ * the replaced task's future is cancelled. Failed tasks are retried after retryDelay, unless a newer task for the key was submitted
+ * in the meantime, since the newer task already reconciles the latest state.
+ */
+public class KeyedReconcileExecutor implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(KeyedReconcileExecutor.class);
+
+    private final ExecutorService workers;
+    private final ScheduledExecutorService retryScheduler;
+    private final long retryDelayMillis;
+    private final Map<String, KeyState> states = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder submittedTotal = new LongAdder();
+    private final LongAdder replacedTotal = new LongAdder();
+    private final LongAdder retriedTotal = new LongAdder();
+    private final LongAdder failedTotal = new LongAdder();
+
+    /**
+     * @param threads The max number of keys that are reconciled at the same time
+     * @param retryDelayMillis The delay before a failed task is tried again
+     */
+    public KeyedReconcileExecutor(int threads, long retryDelayMillis) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "reconcile-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "reconcile-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * Submits the work for the key.
+     * @param key Work with the same key runs in order, never in parallel
+     * @param work The reconcile work
+     * @param maxAttempts How many times the work is tried before the future fails
+     * @return Completes with the result of the work, fails with the last exception, or is cancelled when replaced by newer work
+     */
+    @NotNull
+    public <T> CompletableFuture<T> submit(@NotNull String key, @NotNull Callable<T> work, int maxAttempts) {
+        Task<T> task = new Task<>(key, work, Math.max(1, maxAttempts), sequence.incrementAndGet());
+        submittedTotal.increment();
+
+        Task<?>[] replaced = new Task<?>[1];
+        Task<?>[] start = new Task<?>[1];
+        states.compute(key, (k, state) -> {
+            if (state == null) {
+                state = new KeyState();
+            }
+            state.latestSequence = task.sequence;
+            if (state.running) {
+                replaced[0] = state.pending;
+                state.pending = task;
+            } else {
+                state.running = true;
+                start[0] = task;
+            }
+            return state;
+        });
+
+        if (replaced[0] != null) {
+            queued.decrementAndGet();
+            replacedTotal.increment();
+            replaced[0].future.cancel(false);
+            log.debug("Replaced queued reconcile for key {}", key);
+        }
+        if (start[0] != null) {
+            execute(start[0]);
+        } else {
+            queued.incrementAndGet();
+        }
+        return task.future;
+    }
+
+    private void execute(Task<?> task) {
+        workers.execute(() -> run(task));
+    }
+
+    private <T> void run(Task<T> task) {
+        running.incrementAndGet();
+        boolean retry = false;
+        try {
+            task.future.complete(task.work.call());
+        } catch (Exception e) {
+            if (task.attempt < task.maxAttempts) {
+                retry = true;
+                log.warn("Reconcile for key {} failed on attempt {} of {}, retrying in {}ms",
+                        task.key, task.attempt, task.maxAttempts, retryDelayMillis, e);
+            } else {
+                failedTotal.increment();
+                log.error("Reconcile for key {} failed after {} attempts", task.key, task.attempt, e);
+                task.future.completeExceptionally(e);
+            }
+        } finally {
+            running.decrementAndGet();
+        }
+        finish(task, retry);
+    }
+
+    private void finish(Task<?> task, boolean retry) {
+        Task<?>[] next = new Task<?>[1];
+        states.compute(task.key, (k, state) -> {
+            if (state.pending != null) {
+                next[0] = state.pending;
+                state.pending = null;
+                return state;
+            }
+            state.running = false;
+            if (retry && state.latestSequence == task.sequence) {
+                state.scheduledRetries++;
+            }
+            return state.isIdle() ? null : state;
+        });
+
+        if (next[0] != null) {
+            queued.decrementAndGet();
+            if (retry) {
+                /* The queued task is newer, it replaces the retry */
+                task.future.cancel(false);
+            }
+            execute(next[0]);
+        } else if (retry) {
+            retriedTotal.increment();
+            task.attempt++;
+            retryScheduler.schedule(() -> resubmitRetry(task), retryDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void resubmitRetry(Task<?> task) {
+        boolean[] start = new boolean[1];
+        states.compute(task.key, (k, state) -> {
+            state.scheduledRetries--;
+            if (state.latestSequence == task.sequence && !state.running) {
+                state.running = true;
+                start[0] = true;
+                return state;
+            }
+            return state.isIdle() ? null : state;
+        });
+
+        if (start[0]) {
+            execute(task);
+        } else {
+            /* A newer task was submitted for the key while we waited */
+            task.future.cancel(false);
+        }
+    }
+
+    public int getRunningCount() { return running.get(); }
+    public int getQueuedCount() { return queued.get(); }
+    public long getSubmittedTotal() { return submittedTotal.sum(); }
+    public long getReplacedTotal() { return replacedTotal.sum(); }
+    public long getRetriedTotal() { return retriedTotal.sum(); }
+    public long getFailedTotal() { return failedTotal.sum(); }
+
+    @Override
+    public void close() {
+        retryScheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private static final class KeyState {
+        private boolean running;
+        private Task<?> pending;
+        private long latestSequence;
+        private int scheduledRetries;
+
+        private boolean isIdle() {
+            return !running && pending == null && scheduledRetries == 0;
+        }
+    }
+
+    private static final class Task<T> {
+        private final String key;
+        private final Callable<T> work;
+        private final int maxAttempts;
+        private final long sequence;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private int attempt = 1;
+
+        private Task(String key, Callable<T> work, int maxAttempts, long sequence) {
+            this.key = key;
+            this.work = work;
+            this.maxAttempts = maxAttempts;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package ch.cern.tdaq.k8s.operator;
+
+import ch.cern.tdaq.k8s.operator.CustomResource.DoneableRunResource;
+import ch.cern.tdaq.k8s.operator.CustomResource.RunResource;
+import ch.cern.tdaq.k8s.operator.CustomResource.RunResourceList;
+import io.fabric8.kubernetes.client.HttpClientAware;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.dsl.MixedOperation;
+import io.fabric8.kubernetes.client.dsl.Resource;
+import io.fabric8.kubernetes.client.dsl.base.CustomResourceDefinitionContext;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Sends PATCH requests the fabric8 client does not have a typed API for, e.g. a JSON merge patch on the status subresource,
+ * and collection deletes, which the fabric8 client sends as a list followed by one delete per object.
+ * It uses the KubernetesClient's own OkHttpClient, so the authentication and the metrics interceptor also apply to these calls.
+ */
+public class KubernetesPatchClient {
+    public static final String MERGE_PATCH = "application/merge-patch+json";
+    /* Server-side apply, the body is YAML or JSON (which is YAML) */
+    public static final String APPLY_PATCH = "application/apply-patch+yaml";
+
+    public static final String RUN_RESOURCE_GROUP = "operator.tdaq.cern.ch";
+    public static final String RUN_RESOURCE_VERSION = "v1";
+    public static final String RUN_RESOURCE_PLURAL = "runresources";
+
+    private final OkHttpClient httpClient;
+    private final String masterUrl;
+
+    public KubernetesPatchClient(@NotNull KubernetesClient kubernetesClient) {
+        this.httpClient = ((HttpClientAware) kubernetesClient).getHttpClient();
+        String url = kubernetesClient.getMasterUrl().toString();
+        this.masterUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    /**
+     * Sends a JSON merge patch (RFC 7386), only the fields in the patch are changed
+     * @param path The API path, e.g. /apis/operator.tdaq.cern.ch/v1/namespaces/default/runresources/run-resource1/status
+     * @return The patched object as JSON
+     */
+    @NotNull
+    public String mergePatch(@NotNull String path, @NotNull String json) {
+        return patch(path, MERGE_PATCH, json);
+    }
+
+    /**
+     * @throws KubernetesClientException With the HTTP status code when the API server did not accept the patch
+     */
+    @NotNull
+    public String patch(@NotNull String path, @NotNull String contentType, @NotNull String body) {
+        Request request = new Request.Builder()
+                .url(masterUrl + path)
+                .patch(RequestBody.create(MediaType.parse(contentType), body))
+                .build();
+        try (Response response = httpClient.newCall(request).execute()) {
+            ResponseBody responseBody = response.body();
+            String responseString = responseBody == null ? "" : responseBody.string();
+            if (!response.isSuccessful()) {
+                throw new KubernetesClientException("PATCH " + path + " failed: " + response.code() + " " + responseString, response.code(), null);
+            }
+            return responseString;
+        } catch (IOException e) {
+            throw new KubernetesClientException("PATCH " + path + " failed", e);
+        }
+    }
+
+    /**
+     * Deletes all objects of a collection that match the label selector with a single DELETE call
+     * @param path The API path of the collection, e.g. /apis/apps/v1/namespaces/default/deployments
+     * @param labelSelector The label selector, never empty so a whole collection is never deleted by accident
+     * @param propagationPolicy Background, Foreground or Orphan, how the ReplicaSets and Pods of the objects are deleted
+     * @throws KubernetesClientException With the HTTP status code when the API server did not accept the delete
+     */
+    public void deleteCollection(@NotNull String path, @NotNull String labelSelector, @NotNull String propagationPolicy) {
+        if (labelSelector.isEmpty()) {
+            throw new IllegalArgumentException("A collection delete needs a label selector");
+        }
+        HttpUrl url = HttpUrl.get(masterUrl + path).newBuilder().addQueryParameter("labelSelector", labelSelector).build();
+        String deleteOptions = "{\"apiVersion\":\"v1\",\"kind\":\"DeleteOptions\",\"propagationPolicy\":\"" + propagationPolicy + "\"}";
+        Request request = new Request.Builder()
+                .url(url)
+                .delete(RequestBody.create(MediaType.parse("application/json"), deleteOptions))
+                .build();
+        try (Response response = httpClient.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                ResponseBody responseBody = response.body();
+                String responseString = responseBody == null ? "" : responseBody.string();
+                throw new KubernetesClientException("DELETE " + path + "?labelSelector=" + labelSelector + " failed: " + response.code() + " "
+                        + responseString, response.code(), null);
+            }
+        } catch (IOException e) {
+            throw new KubernetesClientException("DELETE " + path + " failed", e);
+        }
+    }
+
+    /**
+     * @return The typed client for RunResources, built from the constants above so the CRD does not have to be read first
+     */
+    @NotNull
+    public static MixedOperation<RunResource, RunResourceList, DoneableRunResource, Resource<RunResource, DoneableRunResource>> runResources(
+            @NotNull KubernetesClient kubernetesClient) {
+        CustomResourceDefinitionContext context = new CustomResourceDefinitionContext.Builder()
+                .withGroup(RUN_RESOURCE_GROUP)
+                .withVersion(RUN_RESOURCE_VERSION)
+                .withPlural(RUN_RESOURCE_PLURAL)
+                .withScope("Namespaced")
+                .build();
+        return kubernetesClient.customResources(context, RunResource.class, RunResourceList.class, DoneableRunResource.class);
+    }
+
+    /**
+     * @return The API path of a RunResource, or of one of its subresources if subresource is not null
+     */
+    @NotNull
+    public static String runResourcePath(@NotNull String namespace, @NotNull String name, String subresource) {
+        String path = "/apis/" + RUN_RESOURCE_GROUP + "/" + RUN_RESOURCE_VERSION + "/namespaces/" + namespace + "/" + RUN_RESOURCE_PLURAL + "/" + name;
+        return subresource == null ? path : path + "/" + subresource;
+    }
+
+    /**
+     * @return The API path of a Deployment, or of one of its subresources (e.g. scale) if subresource is not null
+     */
+    @NotNull
+    public static String deploymentPath(@NotNull String namespace, @NotNull String name, String subresource) {
+        String path = "/apis/apps/v1/namespaces/" + namespace + "/deployments/" + name;
+        return subresource == null ? path : path + "/" + subresource;
+    }
+
+    /**
+     * @return The API path of the Deployments of a namespace
+     */
+    @NotNull
+    public static String deploymentsPath(@NotNull String namespace) {
+        return "/apis/apps/v1/namespaces/" + namespace + "/deployments";
+    }
+
+    /**
+     * @return The API path of a Namespace
+     */
+    @NotNull
+    public static String namespacePath(@NotNull String name) {
+        return "/api/v1/namespaces/" + name;
+    }
+}
@@ -0,0 +1,58 @@
+package ch.cern.tdaq.k8s.operator;
+
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The latest RunNumber seen by the Operator. It only moves up.
+ * It is seeded from the worker deployment cache (and from the informer events if it is registered before the informer starts),
+ * and updated both by the RunController when it starts a run and by the informer when a worker deployment shows up,
+ * so checking if an event is for an old run is a single volatile read.
+ */
+public class LatestRunNumberTracker implements ResourceEventHandler<Deployment> {
+    private final AtomicInteger latestRunNumber = new AtomicInteger(-1);
+
+    public LatestRunNumberTracker(@NotNull WorkerDeploymentCache deploymentCache) {
+        observe(deploymentCache.getLatestRunNumber());
+    }
+
+    /**
+     * @return The latest RunNumber, or -1 if no run has been seen yet
+     */
+    public int get() {
+        return latestRunNumber.get();
+    }
+
+    /**
+     * Moves the latest RunNumber up to runNumber, if it is higher
+     * @return The latest RunNumber after the update
+     */
+    public int observe(int runNumber) {
+        return latestRunNumber.accumulateAndGet(runNumber, Math::max);
+    }
+
+    /**
+     * @return True if a higher RunNumber than runNumber has already been seen
+     */
+    public boolean isSuperseded(int runNumber) {
+        return runNumber < latestRunNumber.get();
+    }
+
+    @Override
+    public void onAdd(Deployment deployment) {
+        observe(WorkerDeploymentCache.getRunNumber(deployment));
+    }
+
+    @Override
+    public void onUpdate(Deployment oldDeployment, Deployment newDeployment) {
+        observe(WorkerDeploymentCache.getRunNumber(newDeployment));
+    }
+
+    @Override
+    public void onDelete(Deployment deployment, boolean deletedFinalStateUnknown) {
+        /* Never moves down, the deployments of the latest run can be deleted while the run number stays */
+    }
+}
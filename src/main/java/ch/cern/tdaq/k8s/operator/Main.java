@@ -1,19 +1,33 @@
 package ch.cern.tdaq.k8s.operator;
 
+import ch.cern.tdaq.k8s.operator.CustomResource.RunResource;
 import com.github.containersolutions.operator.Operator;
 import com.github.containersolutions.operator.processing.retry.GenericRetry;
 import io.fabric8.kubernetes.client.Config;
 import io.fabric8.kubernetes.client.ConfigBuilder;
 import io.fabric8.kubernetes.client.DefaultKubernetesClient;
 import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.utils.HttpClientUtils;
+import okhttp3.OkHttpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.takes.Take;
 import org.takes.facets.fork.FkRegex;
 import org.takes.facets.fork.TkFork;
+import org.takes.facets.fork.TkRegex;
 import org.takes.http.Exit;
 import org.takes.http.FtBasic;
+import org.takes.rq.RqHref;
+import org.takes.rs.RsText;
+import org.takes.rs.RsWithStatus;
+import org.takes.rs.RsWithType;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
 
@@ -25,49 +39,445 @@ public class Main {
      * @throws IOException When it fails to create the thread for the Health check endpoint.
      */
     public static void main(String[] args) throws IOException {
-        /**
-         * TODO: No loop per X second. Need to implement this! Ask the java-sdk guys in Discord for release info
-         * Need this for deleting finished deployments!
-         */
         log.info("Runner TDAQ Operator starting!");
 
+        OperatorMetrics metrics = new OperatorMetrics();
+
+        /* Sampled traces of the reconciles, written in the background to a JSON-lines file and/or a collector */
+        Tracer tracer = new Tracer(OperatorConfig.getDouble("TDAQ_TRACE_SAMPLE_RATIO", 0),
+                OperatorConfig.getString("TDAQ_TRACE_FILE", null),
+                OperatorConfig.getString("TDAQ_TRACE_COLLECTOR_URL", null),
+                OperatorConfig.getInt("TDAQ_TRACE_QUEUE_SIZE", 10000));
+        tracer.start();
+
+        /* Run starts and stops get the API server budget first, then the status writes, then the cleanup, see ApiRateLimiter */
+        ApiRateLimiter apiRateLimiter = new ApiRateLimiter(metrics,
+                OperatorConfig.getDouble("TDAQ_API_QPS", 50),
+                OperatorConfig.getInt("TDAQ_API_BURST", 100));
+
         Config config = new ConfigBuilder().withNamespace(null).build();
-        KubernetesClient client = new DefaultKubernetesClient(config);
+        KubernetesClient client = createClient(config, metrics, tracer, apiRateLimiter);
         Operator operator = new Operator(client);
         GenericRetry retry = GenericRetry.every10second10TimesRetry(); /* On Failure: retries every 10 second, and max 10 times, you can customize this yourself if you want */
 
-        RunController controller = new RunController(client);
+        DeploymentTemplate deploymentTemplate = createDeploymentTemplate(client);
+
+        /* One shared informer for all worker deployments, must be synced before the controller starts reconciling */
+        WorkerDeploymentCache deploymentCache = new WorkerDeploymentCache(client,
+                TimeUnit.SECONDS.toMillis(OperatorConfig.getLong("TDAQ_INFORMER_RESYNC_SECONDS", 600)));
+        /* The handlers are registered before the informer starts, so they also see the deployments from the first LIST */
+        RunReadinessTracker readinessTracker = new RunReadinessTracker(metrics);
+        deploymentCache.addEventHandler(readinessTracker);
+        LatestRunNumberTracker latestRunNumberTracker = new LatestRunNumberTracker(deploymentCache);
+        deploymentCache.addEventHandler(latestRunNumberTracker);
+        /* Computes the RunResource status from the deployment events and writes it at most once per window per RunResource */
+        KubernetesPatchClient patchClient = new KubernetesPatchClient(client);
+        RunStatusUpdater statusUpdater = new RunStatusUpdater(patchClient, deploymentCache, latestRunNumberTracker,
+                OperatorConfig.getLong("TDAQ_STATUS_FLUSH_MILLIS", 2000));
+        deploymentCache.addEventHandler(statusUpdater);
+        /* Measures the run switches, and with TDAQ_STANDBY_ENABLED prepares the deployments of the next run */
+        RunStandby runStandby = new RunStandby(metrics,
+                OperatorConfig.getBoolean("TDAQ_STANDBY_ENABLED", false),
+                OperatorConfig.getInt("TDAQ_STANDBY_WARM_REPLICAS", 1),
+                Arrays.asList(OperatorConfig.getString("TDAQ_STANDBY_COMMAND", "sleep infinity").trim().split("\\s+")));
+        deploymentCache.addEventHandler(runStandby);
+        /* Pushes the latest RunNumber per RunPipe to the worker Pods (long-poll and Server-Sent Events), disabled with port 0 */
+        RunStateBroadcaster runStateBroadcaster = new RunStateBroadcaster(OperatorConfig.getInt("TDAQ_RUN_STATE_PORT", 8081));
+        deploymentCache.addEventHandler(runStateBroadcaster);
+        /* The run history on a volume, read before the informer starts so the latest RunNumber is known right away */
+        RunLedger runLedger = null;
+        String runLedgerFile = OperatorConfig.getString("TDAQ_RUN_LEDGER_FILE", null);
+        if (runLedgerFile != null) {
+            runLedger = new RunLedger(runLedgerFile,
+                    OperatorConfig.getInt("TDAQ_RUN_LEDGER_SIZE_MB", 64) * 1024 * 1024,
+                    OperatorConfig.getInt("TDAQ_RUN_LEDGER_MAX_RUNS", 10000),
+                    OperatorConfig.getLong("TDAQ_RUN_LEDGER_COMPACT_INTERVAL_SECONDS", 3600));
+            runLedger.load();
+            latestRunNumberTracker.observe(runLedger.getLatestRunNumber());
+            deploymentCache.addEventHandler(runLedger);
+        }
+        /* The run deployments are spread over the local cluster and the clusters in TDAQ_WORKER_CLUSTERS, see WorkerClusters */
+        WorkerClusters workerClusters = createWorkerClusters(client, patchClient, deploymentCache, statusUpdater, latestRunNumberTracker, metrics, tracer);
+        try {
+            deploymentCache.start(OperatorConfig.getLong("TDAQ_INFORMER_SYNC_TIMEOUT_SECONDS", 60), TimeUnit.SECONDS);
+            if (workerClusters != null) {
+                workerClusters.start(OperatorConfig.getLong("TDAQ_INFORMER_SYNC_TIMEOUT_SECONDS", 60), TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the worker deployment cache to sync", e);
+        }
+        if (runLedger != null) {
+            runLedger.closeMissing(deploymentCache);
+            runLedger.start();
+        }
+        if (OperatorConfig.getInt("TDAQ_RUN_STATE_PORT", 8081) > 0) {
+            runStateBroadcaster.start();
+        }
+
+        /* Sizes the RunPipes without replicas to the free capacity of the nodes, from its own Node and Pod informers */
+        CapacityPlanner capacityPlanner = null;
+        if (OperatorConfig.getBoolean("TDAQ_CAPACITY_PLANNER_ENABLED", false)) {
+            capacityPlanner = new CapacityPlanner(client, deploymentTemplate, deploymentCache,
+                    OperatorConfig.getDouble("TDAQ_CAPACITY_FILL_RATIO", 0.9),
+                    OperatorConfig.getInt("TDAQ_CAPACITY_MAX_REPLICAS_PER_PIPE", 0),
+                    TimeUnit.SECONDS.toMillis(OperatorConfig.getLong("TDAQ_CAPACITY_RESERVATION_SECONDS", 120)),
+                    TimeUnit.SECONDS.toMillis(OperatorConfig.getLong("TDAQ_INFORMER_RESYNC_SECONDS", 600)));
+            try {
+                capacityPlanner.start(OperatorConfig.getLong("TDAQ_INFORMER_SYNC_TIMEOUT_SECONDS", 60), TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the capacity planner to sync", e);
+            }
+        }
+
+        /* Several Operator replicas share the RunResources by a consistent hash, see ShardCoordinator */
+        ShardCoordinator shardCoordinator = null;
+        if (OperatorConfig.getBoolean("TDAQ_SHARDING_ENABLED", false)) {
+            shardCoordinator = new ShardCoordinator(client,
+                    OperatorConfig.getString("POD_NAMESPACE", "default"),
+                    OperatorConfig.getString("POD_NAME", OperatorConfig.getString("HOSTNAME", "tdaq-operator")),
+                    OperatorConfig.getLong("TDAQ_SHARD_LEASE_DURATION_MILLIS", 15000),
+                    OperatorConfig.getLong("TDAQ_SHARD_RENEW_INTERVAL_MILLIS", 5000),
+                    OperatorConfig.getInt("TDAQ_SHARD_VIRTUAL_NODES", 64));
+            shardCoordinator.start();
+        }
+
+        /* Prepared namespaces for new runs, disabled with size 0 */
+        NamespacePool namespacePool = null;
+        int namespacePoolSize = OperatorConfig.getInt("TDAQ_NAMESPACE_POOL_SIZE", 0);
+        if (namespacePoolSize > 0) {
+            ShardCoordinator coordinator = shardCoordinator;
+            namespacePool = new NamespacePool(client, patchClient, namespacePoolSize,
+                    OperatorConfig.getDouble("TDAQ_NAMESPACE_POOL_REFILL_PER_SECOND", 1),
+                    TimeUnit.SECONDS.toMillis(OperatorConfig.getLong("TDAQ_NAMESPACE_POOL_MAX_IDLE_SECONDS", 86400)),
+                    NamespacePool.parseQuota(OperatorConfig.getString("TDAQ_NAMESPACE_POOL_QUOTA", null)),
+                    OperatorConfig.getString("TDAQ_NAMESPACE_POOL_WORKER_CLUSTER_ROLE", null),
+                    coordinator == null ? () -> true : coordinator::isLeader);
+            /* Before the controller is registered, so a restarted Operator finds the namespaces its runs are already in */
+            try {
+                namespacePool.start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading the namespace pool", e);
+            }
+        }
+
+        /* Deletes the run deployments with collection deletes, and the namespaces they leave empty on a background queue */
+        NamespaceCleaner namespaceCleaner = new NamespaceCleaner(client, patchClient, deploymentCache, namespacePool, false);
+        KeyedReconcileExecutor reconcileExecutor = new KeyedReconcileExecutor(
+                OperatorConfig.getInt("TDAQ_RECONCILE_THREADS", 16),
+                TimeUnit.SECONDS.toMillis(OperatorConfig.getLong("TDAQ_RECONCILE_RETRY_DELAY_SECONDS", 10)));
+        /* The data-storage Service(s) the worker Pods talk to, read once and then watched */
+        DataEndpointRegistry dataEndpointRegistry = new DataEndpointRegistry(client,
+                OperatorConfig.getString("TDAQ_DATA_SERVICE", "default/webserver-service"),
+                DataEndpointRegistry.parseServicePerRunPipe(OperatorConfig.getString("TDAQ_DATA_SERVICE_PER_PIPE", null)));
+        dataEndpointRegistry.start();
+        /* Reads the latest RunNumber from the webserver behind the default data-storage Service */
+        RunDataClient runDataClient = new RunDataClient(dataEndpointRegistry::requireDefault,
+                OperatorConfig.getLong("TDAQ_RUN_DATA_CONNECT_TIMEOUT_MILLIS", 2000),
+                OperatorConfig.getLong("TDAQ_RUN_DATA_REQUEST_TIMEOUT_MILLIS", 5000),
+                OperatorConfig.getLong("TDAQ_RUN_DATA_CACHE_MILLIS", 500));
+        /* Scales the runs with spec.autoscaling with the call rate their webservers report */
+        RunAutoscaler runAutoscaler = new RunAutoscaler(patchClient, deploymentCache, dataEndpointRegistry, runDataClient, latestRunNumberTracker,
+                OperatorConfig.getLong("TDAQ_AUTOSCALE_INTERVAL_SECONDS", 15));
+        runAutoscaler.start();
+
+        RunController controller = new RunController(client, patchClient, deploymentTemplate, deploymentCache, namespaceCleaner, reconcileExecutor,
+                dataEndpointRegistry, metrics, readinessTracker, latestRunNumberTracker, statusUpdater,
+                OperatorConfig.getBoolean("TDAQ_RUN_DATA_CHECK", true) ? runDataClient : null, shardCoordinator, runAutoscaler, namespacePool, runStandby,
+                tracer, workerClusters, capacityPlanner);
         operator.registerControllerForAllNamespaces(controller, retry);
+        if (shardCoordinator != null) {
+            /* The framework does not send events again when shards move, so the RunResources this replica gained are reconciled here */
+            shardCoordinator.addListener(() -> {
+                for (RunResource resource : KubernetesPatchClient.runResources(client).inAnyNamespace().list().getItems()) {
+                    controller.resync(resource);
+                }
+            });
+        }
 
-        /**
-         * New thread that loops and checks if there are any deployments with 0 Pods. If so, then it deletes them.
-         * NOTE: This should be replaced and removed when looping based on time interval is supported by java-operator-sdk ... Coming Soon TM...?
-         *  See: https://github.com/ContainerSolutions/java-operator-sdk/issues/157
-         */
-//        Runnable runnable = () -> {
-//            Config config2 = new ConfigBuilder().withNamespace(null).build();
-//            KubernetesClient kubernetesClient = new DefaultKubernetesClient(config2);
-//            while (true) {
-//                try {
-//                    Thread.sleep(30 * 1000);
-//                    RunController.deleteFinishedDeployments(kubernetesClient);
-//                } catch (InterruptedException e) {
-//                    e.printStackTrace();
-//                } catch (RuntimeException e) {
-//                    e.printStackTrace();
-//                } catch (IOException e) {
-//                    e.printStackTrace();
-//                }
-//            }
-//        };
-//        Thread t = new Thread(runnable);
-//        t.start();
+        /* Deletes the Deployments of finished runs, and the namespaces they leave empty, in the background */
+        FinishedRunReaper reaper = new FinishedRunReaper(client, deploymentCache, namespaceCleaner, latestRunNumberTracker::get,
+                OperatorConfig.getLong("TDAQ_GC_INTERVAL_SECONDS", 30),
+                OperatorConfig.getInt("TDAQ_GC_BATCH_SIZE", 50),
+                OperatorConfig.getDouble("TDAQ_GC_MAX_DELETES_PER_SECOND", 10),
+                shardCoordinator == null ? () -> true : shardCoordinator::isLeader);
+        reaper.start();
+        if (workerClusters != null) {
+            /* Every remote worker cluster has its own reaper, for the runs it has the deployments of. The latest RunNumber is the
+             * one of all clusters, a cluster that gets no replicas of the newer run still deletes the older one */
+            for (WorkerClusters.Member member : workerClusters.getMembers()) {
+                if (!member.isLocal()) {
+                    ShardCoordinator coordinator = shardCoordinator;
+                    new FinishedRunReaper(member.getClient(), member.getDeploymentCache(), member.getNamespaceCleaner(), latestRunNumberTracker::get,
+                            OperatorConfig.getLong("TDAQ_GC_INTERVAL_SECONDS", 30),
+                            OperatorConfig.getInt("TDAQ_GC_BATCH_SIZE", 50),
+                            OperatorConfig.getDouble("TDAQ_GC_MAX_DELETES_PER_SECOND", 10),
+                            () -> member.isAvailable() && (coordinator == null || coordinator.isLeader())).start();
+                }
+            }
+        }
+
+        /* Starts the next run by moving the RunNumber of the run controller RunResource up, POST /run/advance on its own port, disabled with port 0 */
+        int runControlPort = OperatorConfig.getInt("TDAQ_RUN_CONTROL_PORT", 0);
+        if (runControlPort > 0) {
+            RunNumberSequencer runNumberSequencer = new RunNumberSequencer(client, patchClient,
+                    OperatorConfig.getString("TDAQ_RUN_CONTROLLER_CR", "default/runcontroller-cr"),
+                    OperatorConfig.getInt("TDAQ_SEQUENCER_MAX_ATTEMPTS", 5), metrics);
+            new RunControlServer(runControlPort, OperatorConfig.getString("TDAQ_RUN_CONTROL_TOKEN", null), runNumberSequencer).start();
+        }
+
+        registerMetrics(metrics, deploymentCache, reconcileExecutor, reaper, readinessTracker, latestRunNumberTracker, statusUpdater, runDataClient,
+                shardCoordinator, runAutoscaler, namespacePool, runStandby, tracer, runStateBroadcaster, runLedger, apiRateLimiter, workerClusters,
+                capacityPlanner, namespaceCleaner);
 
+        RunLedger history = runLedger;
         /**
          * The health check status endpoint. Needs to return 200 OK to signal K8S that it is OK (or not)
          */
         new FtBasic(
-                new TkFork(new FkRegex("/health", "ALL GOOD!")), 8080
+                new TkFork(
+                        new FkRegex("/health", "ALL GOOD!"),
+                        new FkRegex("/gc", (Take) request -> new RsText(reaper.describe())),
+                        new FkRegex("/runs/history", (Take) request -> {
+                            if (history == null) {
+                                return new RsWithStatus(new RsText("The run ledger is not enabled, see TDAQ_RUN_LEDGER_FILE"), 404);
+                            }
+                            int limit = parseLimit(new RqHref.Smart(request).single("limit", "100"));
+                            return limit < 0 ? new RsWithStatus(new RsText("limit must be a number of runs"), 400)
+                                    : new RsWithType(new RsText(history.getHistoryJson(limit)), "application/json");
+                        }),
+                        new FkRegex("/runs/history/(\\d+)", (TkRegex) request -> {
+                            String run = history == null ? null : history.getRunJson(Integer.parseInt(request.matcher().group(1)));
+                            return run == null ? new RsWithStatus(new RsText("Run not found"), 404) : new RsWithType(new RsText(run), "application/json");
+                        }),
+                        new FkRegex("/runs/state", (Take) request -> new RsWithType(new RsText(runStateBroadcaster.getStateJson()), "application/json")),
+                        new FkRegex("/metrics", (Take) request -> new RsWithType(new RsText(metrics.scrape()), "text/plain; version=0.0.4; charset=utf-8"))
+                ), 8080
         ).start(Exit.NEVER);
     }
+
+    /**
+     * @return The limit of GET /runs/history, or -1 if it is not a number of runs
+     */
+    private static int parseLimit(String value) {
+        try {
+            return Math.max(-1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Registers the values that are read from the Operator components when /metrics is scraped
+     */
+    private static void registerMetrics(OperatorMetrics metrics, WorkerDeploymentCache deploymentCache, KeyedReconcileExecutor reconcileExecutor,
+                                        FinishedRunReaper reaper, RunReadinessTracker readinessTracker, LatestRunNumberTracker latestRunNumberTracker,
+                                        RunStatusUpdater statusUpdater, RunDataClient runDataClient, ShardCoordinator shardCoordinator,
+                                        RunAutoscaler runAutoscaler, NamespacePool namespacePool, RunStandby runStandby,
+                                        Tracer tracer, RunStateBroadcaster runStateBroadcaster, RunLedger runLedger,
+                                        ApiRateLimiter apiRateLimiter, WorkerClusters workerClusters, CapacityPlanner capacityPlanner,
+                                        NamespaceCleaner namespaceCleaner) {
+        metrics.registerFunction("tdaq_managed_runs", "Run numbers with at least one worker deployment", "gauge",
+                () -> deploymentCache.getRunNumbers().size());
+        metrics.registerFunction("tdaq_latest_run_number", "The latest RunNumber seen by the Operator", "gauge", latestRunNumberTracker::get);
+        metrics.registerFunction("tdaq_managed_deployments", "Worker deployments in the cluster", "gauge", deploymentCache::size);
+        metrics.registerFunction("tdaq_kubernetes_api_queued", "Calls waiting for the client-side rate limiter", "gauge",
+                apiRateLimiter::getQueuedCount);
+        metrics.registerFunction("tdaq_reconcile_queue_depth", "Reconciles waiting for an earlier reconcile of the same run", "gauge",
+                reconcileExecutor::getQueuedCount);
+        metrics.registerFunction("tdaq_reconcile_running", "Reconciles running right now", "gauge", reconcileExecutor::getRunningCount);
+        metrics.registerFunction("tdaq_reconcile_replaced_total", "Queued reconciles replaced by a newer event for the same run", "counter",
+                reconcileExecutor::getReplacedTotal);
+        metrics.registerFunction("tdaq_reconcile_failed_total", "Reconciles that failed after all attempts", "counter",
+                reconcileExecutor::getFailedTotal);
+        metrics.registerFunction("tdaq_run_ready_pending", "Run deployments that are created but do not have all Pods ready yet", "gauge",
+                readinessTracker::getPendingCount);
+        metrics.registerFunction("tdaq_status_tracked_runs", "RunResources whose status is kept up to date", "gauge", statusUpdater::getTrackedCount);
+        metrics.registerFunction("tdaq_status_patches_total", "Status patches sent to the API server", "counter", statusUpdater::getPatchesTotal);
+        metrics.registerFunction("tdaq_status_unchanged_total", "Status writes skipped since nothing changed", "counter",
+                statusUpdater::getSkippedUnchangedTotal);
+        metrics.registerFunction("tdaq_run_data_requests_total", "Requests sent to the data-storage webserver", "counter",
+                runDataClient::getRequestsTotal);
+        metrics.registerFunction("tdaq_run_data_failures_total", "Failed requests to the data-storage webserver", "counter",
+                runDataClient::getFailuresTotal);
+        metrics.registerFunction("tdaq_run_data_cache_hits_total", "Latest RunNumber lookups answered from the cache or an in-flight request",
+                "counter", runDataClient::getCacheHitsTotal);
+        metrics.registerFunction("tdaq_autoscale_runs", "Runs scaled by the run autoscaler", "gauge", runAutoscaler::getScaledRunCount);
+        metrics.registerFunction("tdaq_autoscale_scale_up_total", "Times a run deployment was scaled up", "counter", runAutoscaler::getScaleUpTotal);
+        metrics.registerFunction("tdaq_autoscale_scale_down_total", "Times a run deployment was scaled down", "counter",
+                runAutoscaler::getScaleDownTotal);
+        metrics.registerFunction("tdaq_autoscale_failed_total", "Failed scale patches", "counter", runAutoscaler::getFailedTotal);
+        if (shardCoordinator != null) {
+            metrics.registerFunction("tdaq_shard_members", "Alive Operator replicas sharing the RunResources", "gauge",
+                    () -> shardCoordinator.getMembers().size());
+            metrics.registerFunction("tdaq_shard_leader", "1 if this replica is the leader", "gauge", () -> shardCoordinator.isLeader() ? 1 : 0);
+            metrics.registerFunction("tdaq_shard_rebalances_total", "Times the shards moved because replicas joined or died", "counter",
+                    shardCoordinator::getRebalanceCount);
+        }
+        if (namespacePool != null) {
+            metrics.registerFunction("tdaq_namespace_pool_ready", "Pool namespaces waiting for a run", "gauge", namespacePool::getReadyCount);
+            metrics.registerFunction("tdaq_namespace_pool_assigned", "Runs with a namespace from the pool (or their own after a miss)", "gauge",
+                    namespacePool::getAssignedCount);
+            metrics.registerFunction("tdaq_namespace_pool_hits_total", "New runs that got a ready namespace from the pool", "counter",
+                    namespacePool::getHitsTotal);
+            metrics.registerFunction("tdaq_namespace_pool_misses_total", "New runs that found the pool empty", "counter",
+                    namespacePool::getMissesTotal);
+            metrics.registerFunction("tdaq_namespace_pool_created_total", "Pool namespaces created", "counter", namespacePool::getCreatedTotal);
+            metrics.registerFunction("tdaq_namespace_pool_recycled_total", "Pool namespaces cleared after their run", "counter",
+                    namespacePool::getRecycledTotal);
+            metrics.registerFunction("tdaq_namespace_pool_expired_total", "Ready pool namespaces deleted after the max idle age", "counter",
+                    namespacePool::getExpiredTotal);
+        }
+        metrics.registerFunction("tdaq_standby_deployments", "Standby deployments waiting for the next run", "gauge", runStandby::getStandbyCount);
+        metrics.registerFunction("tdaq_run_switches_pending", "Run switches whose Pods are not all ready yet", "gauge",
+                runStandby::getPendingSwitchCount);
+        metrics.registerFunction("tdaq_run_switch_standby_hits_total", "Run switches where every RunPipe had a standby deployment", "counter",
+                runStandby::getHitsTotal);
+        metrics.registerFunction("tdaq_run_switch_standby_misses_total", "Run switches without a standby deployment for every RunPipe", "counter",
+                runStandby::getMissesTotal);
+        metrics.registerFunction("tdaq_run_switch_last_duration_seconds", "Duration of the last finished run switch", "gauge",
+                runStandby::getLastSwitchSeconds);
+        if (tracer.isEnabled()) {
+            metrics.registerFunction("tdaq_trace_spans_exported_total", "Spans written by the trace exporter", "counter", tracer::getExportedTotal);
+            metrics.registerFunction("tdaq_trace_spans_dropped_total", "Spans dropped because the exporter queue was full or the export failed",
+                    "counter", tracer::getDroppedTotal);
+        }
+        metrics.registerFunction("tdaq_run_state_subscribers", "Workers connected to the run-state event stream", "gauge",
+                runStateBroadcaster::getSubscriberCount);
+        metrics.registerFunction("tdaq_run_state_waiting_polls", "Run-state long-polls waiting for a change", "gauge",
+                runStateBroadcaster::getWaitingCount);
+        metrics.registerFunction("tdaq_run_state_notifications_total", "Run-state changes sent to the waiting workers", "counter",
+                runStateBroadcaster::getNotificationsTotal);
+        if (runLedger != null) {
+            metrics.registerFunction("tdaq_run_ledger_runs", "Runs in the run ledger", "gauge", runLedger::getRunCount);
+            metrics.registerFunction("tdaq_run_ledger_records_total", "Records appended to the run ledger", "counter", runLedger::getRecordsTotal);
+            metrics.registerFunction("tdaq_run_ledger_dropped_total", "Records that did not fit in the run ledger", "counter",
+                    runLedger::getDroppedTotal);
+            metrics.registerFunction("tdaq_run_ledger_compactions_total", "Compactions of the run ledger", "counter",
+                    runLedger::getCompactionsTotal);
+        }
+        if (workerClusters != null) {
+            metrics.registerFunction("tdaq_worker_clusters", "Clusters the run deployments are spread over, the local one included", "gauge",
+                    () -> workerClusters.getMembers().size());
+            metrics.registerFunction("tdaq_worker_clusters_available", "Worker clusters that are synced and reachable", "gauge",
+                    workerClusters::getAvailableCount);
+            metrics.registerFunction("tdaq_worker_clusters_free_capacity", "Free worker Pods over the available worker clusters", "gauge",
+                    workerClusters::getFreeCapacity);
+            metrics.registerFunction("tdaq_worker_cluster_failovers_total", "Times a worker cluster was left out after a failed call", "counter",
+                    workerClusters::getFailoversTotal);
+        }
+        if (capacityPlanner != null) {
+            metrics.registerFunction("tdaq_capacity_schedulable_nodes", "Nodes the worker Pods can be scheduled on", "gauge",
+                    capacityPlanner::getSchedulableNodeCount);
+            metrics.registerFunction("tdaq_capacity_free_cpu_cores", "Allocatable minus requested CPU over the schedulable nodes", "gauge",
+                    capacityPlanner::getFreeCpuCores);
+            metrics.registerFunction("tdaq_capacity_free_memory_bytes", "Allocatable minus requested memory over the schedulable nodes", "gauge",
+                    capacityPlanner::getFreeMemoryBytes);
+            metrics.registerFunction("tdaq_capacity_worker_pods_fit", "Worker Pods that fit on the schedulable nodes", "gauge",
+                    capacityPlanner::getFittingPods);
+            metrics.registerFunction("tdaq_capacity_planned_runs_total", "Runs whose replicas were planned from the free capacity", "counter",
+                    capacityPlanner::getPlannedRunsTotal);
+            metrics.registerFunction("tdaq_capacity_reserved_pods", "Planned replicas of starting runs whose Pods did not show up yet", "gauge",
+                    capacityPlanner::getReservedPods);
+        }
+        metrics.registerFunction("tdaq_gc_scanned_total", "Deployments of finished runs found by the reaper", "counter", reaper::getScannedTotal);
+        metrics.registerFunction("tdaq_gc_deleted_total", "Deployments of finished runs deleted by the reaper", "counter", reaper::getDeletedTotal);
+        metrics.registerFunction("tdaq_gc_last_sweep_duration_seconds", "Duration of the last reaper sweep", "gauge",
+                () -> reaper.getLastSweepDurationMillis() / 1000.0);
+        metrics.registerFunction("tdaq_namespace_cleanup_queued", "Namespaces waiting to be cleaned up after their run was deleted", "gauge",
+                namespaceCleaner::getQueuedCount);
+        metrics.registerFunction("tdaq_namespace_cleanup_retries_total", "Namespace cleanups tried again since the deployments of the run were not gone yet",
+                "counter", namespaceCleaner::getRetriedTotal);
+        metrics.registerFunction("tdaq_namespace_cleanup_not_empty_total", "Namespaces kept after a run was deleted since other runs still have deployments in them",
+                "counter", namespaceCleaner::getNotEmptyTotal);
+        metrics.registerFunction("tdaq_namespace_cleanup_failed_total", "Namespace cleanups given up after all attempts", "counter",
+                namespaceCleaner::getFailedTotal);
+    }
+
+    /**
+     * A client with the interceptors every call to an API server goes through, also the calls made by the java-operator-sdk
+     */
+    private static KubernetesClient createClient(Config config, OperatorMetrics metrics, Tracer tracer, ApiRateLimiter apiRateLimiter) {
+        OkHttpClient httpClient = HttpClientUtils.createHttpClient(config).newBuilder()
+                .addInterceptor(new ApiCallMetricsInterceptor(metrics))
+                .addInterceptor(new TracingInterceptor(tracer))
+                .addInterceptor(apiRateLimiter)
+                .build();
+        return new DefaultKubernetesClient(httpClient, config);
+    }
+
+    /**
+     * Connects to the remote worker clusters in TDAQ_WORKER_CLUSTERS, each with its own client, rate limiter and deployment cache.
+     * A cluster whose kubeconfig can not be read is left out, the Operator runs with the others.
+     * @return Null if no remote cluster is configured, then all run deployments are created in the local cluster
+     */
+    private static WorkerClusters createWorkerClusters(KubernetesClient client, KubernetesPatchClient patchClient, WorkerDeploymentCache deploymentCache,
+                                                       RunStatusUpdater statusUpdater, LatestRunNumberTracker latestRunNumberTracker,
+                                                       OperatorMetrics metrics, Tracer tracer) {
+        List<WorkerClusters.MemberSpec> specs = WorkerClusters.parseMembers(OperatorConfig.getString("TDAQ_WORKER_CLUSTERS", null));
+        if (specs.isEmpty()) {
+            return null;
+        }
+        WorkerClusters workerClusters = new WorkerClusters(TimeUnit.SECONDS.toMillis(OperatorConfig.getLong("TDAQ_WORKER_CLUSTER_BACKOFF_SECONDS", 30)));
+        workerClusters.addMember(OperatorConfig.getString("TDAQ_LOCAL_CLUSTER_NAME", "local"), client, patchClient, deploymentCache, null,
+                OperatorConfig.getInt("TDAQ_LOCAL_CLUSTER_CAPACITY", 0), true, Collections.emptyMap());
+        Map<String, Map<String, DataEndpointRegistry.DataEndpoint>> dataEndpoints =
+                WorkerClusters.parseDataEndpoints(OperatorConfig.getString("TDAQ_WORKER_CLUSTER_DATA_ENDPOINTS", null));
+        for (WorkerClusters.MemberSpec spec : specs) {
+            /* The ClusterIP of the local data-storage Service can not be reached from the worker Pods in another cluster */
+            Map<String, DataEndpointRegistry.DataEndpoint> memberEndpoints = dataEndpoints.getOrDefault(spec.getName(), Collections.emptyMap());
+            if (!memberEndpoints.containsKey("")) {
+                log.error("Worker cluster {} has no data-storage address in TDAQ_WORKER_CLUSTER_DATA_ENDPOINTS, it is left out", spec.getName());
+                continue;
+            }
+            Config memberConfig;
+            try {
+                memberConfig = WorkerClusters.loadKubeconfig(spec.getKubeconfig());
+            } catch (IOException | RuntimeException e) {
+                log.error("Could not read the kubeconfig of worker cluster {}, it is left out", spec.getName(), e);
+                continue;
+            }
+            /* Every API server has its own budget */
+            KubernetesClient memberClient = createClient(memberConfig, metrics, tracer, new ApiRateLimiter(metrics,
+                    OperatorConfig.getDouble("TDAQ_API_QPS", 50),
+                    OperatorConfig.getInt("TDAQ_API_BURST", 100)));
+            WorkerDeploymentCache memberCache = new WorkerDeploymentCache(memberClient,
+                    TimeUnit.SECONDS.toMillis(OperatorConfig.getLong("TDAQ_INFORMER_RESYNC_SECONDS", 600)));
+            statusUpdater.addRemoteCache(memberCache);
+            /* The runs placed only in remote clusters supersede the older runs too */
+            memberCache.addEventHandler(latestRunNumberTracker);
+            KubernetesPatchClient memberPatchClient = new KubernetesPatchClient(memberClient);
+            workerClusters.addMember(spec.getName(), memberClient, memberPatchClient, memberCache,
+                    new NamespaceCleaner(memberClient, memberPatchClient, memberCache, null, true), spec.getCapacity(), false, memberEndpoints);
+            log.info("Worker cluster {} at {} with capacity {}", spec.getName(), memberConfig.getMasterUrl(), spec.getCapacity());
+        }
+        return workerClusters;
+    }
+
+    /**
+     * Parses the worker deployment template once, and enables hot-reload of it if configured.
+     * @param client Used to watch the template ConfigMap
+     * @return The template used by the RunController for all run deployments
+     * @throws IOException When the template in the resources directory can not be read
+     */
+    private static DeploymentTemplate createDeploymentTemplate(KubernetesClient client) throws IOException {
+        DeploymentTemplate deploymentTemplate = new DeploymentTemplate(DeploymentTemplate.DEFAULT_TEMPLATE_RESOURCE);
+
+        String templateFile = OperatorConfig.getString("TDAQ_WORKER_TEMPLATE_FILE", null);
+        if (templateFile != null) {
+            deploymentTemplate.startFileReload(templateFile, OperatorConfig.getLong("TDAQ_WORKER_TEMPLATE_POLL_SECONDS", 10));
+        }
+
+        String templateConfigMap = OperatorConfig.getString("TDAQ_WORKER_TEMPLATE_CONFIGMAP", null);
+        if (templateConfigMap != null) {
+            String[] namespaceAndName = templateConfigMap.split("/", 2);
+            String namespace = namespaceAndName.length == 2 ? namespaceAndName[0] : "default";
+            String name = namespaceAndName[namespaceAndName.length - 1];
+            String key = OperatorConfig.getString("TDAQ_WORKER_TEMPLATE_CONFIGMAP_KEY", DeploymentTemplate.DEFAULT_TEMPLATE_RESOURCE);
+            deploymentTemplate.startConfigMapReload(client, namespace, name, key);
+        }
+        return deploymentTemplate;
+    }
 }
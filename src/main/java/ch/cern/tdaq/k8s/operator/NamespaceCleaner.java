@@ -0,0 +1,253 @@
+package ch.cern.tdaq.k8s.operator;
+
+import ch.cern.tdaq.k8s.operator.CustomResource.RunResource;
+import io.fabric8.kubernetes.api.model.Namespace;
+import io.fabric8.kubernetes.api.model.apps.DeploymentList;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes the Deployments of a run with one collection delete, and run namespaces once they have no Deployments left in them.
+ * Used by the RunController when a CR is deleted, and by the FinishedRunReaper after it deleted old runs.
+ * Namespaces of the NamespacePool are recycled instead of deleted. In the cluster of the RunResources a namespace that still holds a
+ * RunResource is never deleted, e.g. the namespace of another run the reaper found superseded. In a remote worker cluster only the
+ * namespaces the Operator created are deleted, see WORKER_NAMESPACE_LABEL_KEY.
+ *
+ * The RunController does not wait for the namespace: cleanupAsync() queues it, and a background thread tries again with a growing
+ * delay while the deployments of the deleted run are still there, or the attempts are used up. A namespace that still holds the
+ * deployments of other runs, e.g. the namespace of several RunResources, is left alone right away: that is not a failure.
+ */
+public class NamespaceCleaner {
+    private static final Logger log = LoggerFactory.getLogger(NamespaceCleaner.class);
+    private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    /* On the namespaces the Operator created for the run deployments in a remote worker cluster */
+    public static final String WORKER_NAMESPACE_LABEL_KEY = "tdaq.worker-namespace";
+    public static final String WORKER_NAMESPACE_LABEL_VALUE = "true";
+
+    private final KubernetesClient kubernetesClient;
+    private final KubernetesPatchClient patchClient;
+    private final WorkerDeploymentCache deploymentCache;
+    /* Null when the namespace pool is disabled */
+    private final NamespacePool namespacePool;
+    /* True in a remote worker cluster, which has no RunResources: only the namespaces with the worker namespace label are deleted */
+    private final boolean createdNamespacesOnly;
+    /* Background deletes the ReplicaSets and Pods after the Deployment is gone, so the run is freed with one call */
+    private final String propagationPolicy = getPropagationPolicy(OperatorConfig.getString("TDAQ_DELETE_PROPAGATION_POLICY", "Background"));
+    private final long retryDelayMillis = TimeUnit.SECONDS.toMillis(OperatorConfig.getLong("TDAQ_NAMESPACE_CLEANUP_RETRY_SECONDS", 2));
+    private final int maxAttempts = Math.max(1, OperatorConfig.getInt("TDAQ_NAMESPACE_CLEANUP_MAX_ATTEMPTS", 10));
+
+    private final ScheduledExecutorService executor;
+    /* The queued cleanups by namespace and label selector, a cleanup that is already queued is not queued again */
+    private final Map<String, Cleanup> pending = new ConcurrentHashMap<>();
+    private final AtomicLong notEmptyTotal = new AtomicLong();
+    private final AtomicLong retriedTotal = new AtomicLong();
+    private final AtomicLong failedTotal = new AtomicLong();
+
+    /**
+     * @param createdNamespacesOnly True for a remote worker cluster, false for the cluster of the RunResources
+     */
+    public NamespaceCleaner(@NotNull KubernetesClient kubernetesClient, @NotNull KubernetesPatchClient patchClient,
+                            @NotNull WorkerDeploymentCache deploymentCache, @Nullable NamespacePool namespacePool, boolean createdNamespacesOnly) {
+        this.kubernetesClient = kubernetesClient;
+        this.patchClient = patchClient;
+        this.deploymentCache = deploymentCache;
+        this.namespacePool = namespacePool;
+        this.createdNamespacesOnly = createdNamespacesOnly;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            /* The cleanups only get the API budget the runs do not need */
+            Thread thread = new Thread(() -> {
+                ApiRateLimiter.setThreadPriority(ApiRateLimiter.Priority.CLEANUP);
+                runnable.run();
+            }, "namespace-cleanup");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Deletes all Deployments in the namespace that match the label selector, with one call whatever the number of RunPipes
+     * @throws KubernetesClientException When the API server did not accept the delete
+     */
+    public void deleteDeployments(@NotNull String namespace, @NotNull String labelSelector) {
+        patchClient.deleteCollection(KubernetesPatchClient.deploymentsPath(namespace), labelSelector, propagationPolicy);
+        log.info("Namespace: {} Deployments: {} are deleted with propagation policy {}", namespace, labelSelector, propagationPolicy);
+    }
+
+    /**
+     * Queues the cleanup of the namespace, it is tried on a background thread while the deployments of the run are still there
+     * @param labelSelector The Deployments to delete first, null to only delete the namespace once it is empty
+     * @param runDeployments The names of the deployments of the deleted run, the namespace is not empty until they are gone
+     */
+    public void cleanupAsync(@NotNull String namespace, @Nullable String labelSelector, @NotNull Collection<String> runDeployments) {
+        String key = labelSelector == null ? namespace : namespace + "?" + labelSelector;
+        Cleanup cleanup = new Cleanup(key, namespace, labelSelector, new HashSet<>(runDeployments));
+        if (pending.putIfAbsent(key, cleanup) == null) {
+            executor.execute(() -> run(cleanup));
+        }
+    }
+
+    private void run(@NotNull Cleanup cleanup) {
+        cleanup.attempt++;
+        boolean done;
+        try {
+            if (cleanup.labelSelector != null) {
+                deleteDeployments(cleanup.namespace, cleanup.labelSelector);
+                /* Only the namespace is left for the next attempts */
+                cleanup.labelSelector = null;
+            }
+            Outcome outcome = tryDeleteNamespace(cleanup.namespace, cleanup.runDeployments);
+            if (outcome == Outcome.NOT_EMPTY) {
+                notEmptyTotal.incrementAndGet();
+                log.debug("Namespace: {} holds the deployments of other runs, it is kept", cleanup.namespace);
+            } else if (outcome == Outcome.IN_USE) {
+                log.debug("Namespace: {} holds a RunResource or was not created by the Operator, it is kept", cleanup.namespace);
+            }
+            done = outcome != Outcome.RUN_PENDING;
+        } catch (KubernetesClientException e) {
+            log.warn("Cleanup of namespace {} failed on attempt {}: {}", cleanup.namespace, cleanup.attempt, e.getMessage());
+            done = false;
+        } catch (RuntimeException e) {
+            /* Never let an exception escape, the cleanup would stay pending forever */
+            log.error("Cleanup of namespace {} failed on attempt {}", cleanup.namespace, cleanup.attempt, e);
+            done = false;
+        }
+        if (done) {
+            pending.remove(cleanup.key);
+        } else if (cleanup.attempt >= maxAttempts) {
+            pending.remove(cleanup.key);
+            failedTotal.incrementAndGet();
+            log.warn("Namespace: {} is still not cleaned up after {} attempts, giving up", cleanup.namespace, cleanup.attempt);
+        } else {
+            retriedTotal.incrementAndGet();
+            long delayMillis = Math.min(MAX_RETRY_DELAY_MILLIS, retryDelayMillis << Math.min(cleanup.attempt - 1, 20));
+            executor.schedule(() -> run(cleanup), delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Deletes the namespace if there are no Deployments left in it, and it holds no RunResource (or, in a remote worker cluster,
+     * the Operator created it). The informer cache is checked first, so we only ask the API server when there are no worker
+     * deployments left, since the namespace could still contain Deployments that are not managed by this Operator.
+     * @param namespace The namespace to delete
+     * @return True if the namespace was deleted, or put back in the namespace pool
+     */
+    public boolean deleteNamespaceIfEmpty(@NotNull String namespace) {
+        return tryDeleteNamespace(namespace, Collections.emptySet()) == Outcome.DELETED;
+    }
+
+    /**
+     * Three calls at most: a list of the Deployments with limit 1, a list of the RunResources (or a get of the namespace) and the
+     * delete of the namespace
+     * @param runDeployments The deployments of the deleted run, while one of them is still there the cleanup is tried again
+     */
+    @NotNull
+    private Outcome tryDeleteNamespace(@NotNull String namespace, @NotNull Set<String> runDeployments) {
+        for (String deploymentName : runDeployments) {
+            if (deploymentCache.get(namespace, deploymentName) != null) {
+                return Outcome.RUN_PENDING;
+            }
+        }
+        if (deploymentCache.hasWorkerDeploymentsInNamespace(namespace)) {
+            return Outcome.NOT_EMPTY;
+        }
+        DeploymentList aDeploymentList = kubernetesClient.apps().deployments().inNamespace(namespace).list(1, null);
+        if (!aDeploymentList.getItems().isEmpty()) {
+            /* A delete of the run the cache did not see yet, or a Deployment not managed by this Operator */
+            return runDeployments.contains(aDeploymentList.getItems().get(0).getMetadata().getName()) ? Outcome.RUN_PENDING : Outcome.NOT_EMPTY;
+        }
+        if (namespacePool != null && namespacePool.isPoolNamespace(namespace)) {
+            return namespacePool.recycle(namespace) ? Outcome.DELETED : Outcome.FAILED;
+        }
+        if (createdNamespacesOnly ? !isWorkerNamespace(namespace) : hasRunResources(namespace)) {
+            return Outcome.IN_USE;
+        }
+        Boolean isDeleted = kubernetesClient.namespaces().withName(namespace).delete();
+        if (isDeleted == null) {
+            isDeleted = false;
+        }
+        if (isDeleted) {
+            log.info("Namespace: {} is successfully deleted", namespace);
+        } else {
+            log.warn("Namespace: {} was NOT deleted", namespace);
+        }
+        return isDeleted ? Outcome.DELETED : Outcome.FAILED;
+    }
+
+    /**
+     * @return True if a RunResource that is not being deleted is in the namespace
+     */
+    private boolean hasRunResources(@NotNull String namespace) {
+        for (RunResource resource : KubernetesPatchClient.runResources(kubernetesClient).inNamespace(namespace).list().getItems()) {
+            if (resource.getMetadata().getDeletionTimestamp() == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isWorkerNamespace(@NotNull String namespace) {
+        Namespace existing = kubernetesClient.namespaces().withName(namespace).get();
+        return existing != null && existing.getMetadata().getLabels() != null
+                && WORKER_NAMESPACE_LABEL_VALUE.equals(existing.getMetadata().getLabels().get(WORKER_NAMESPACE_LABEL_KEY));
+    }
+
+    @NotNull
+    private static String getPropagationPolicy(@NotNull String value) {
+        for (String policy : Arrays.asList("Background", "Foreground", "Orphan")) {
+            if (policy.equalsIgnoreCase(value)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("TDAQ_DELETE_PROPAGATION_POLICY must be Background, Foreground or Orphan, not: " + value);
+    }
+
+    public int getQueuedCount() { return pending.size(); }
+    public long getNotEmptyTotal() { return notEmptyTotal.get(); }
+    public long getRetriedTotal() { return retriedTotal.get(); }
+    public long getFailedTotal() { return failedTotal.get(); }
+
+    private enum Outcome {
+        /* Deleted, or put back in the namespace pool */
+        DELETED,
+        /* Holds the deployments of other runs */
+        NOT_EMPTY,
+        /* The deployments of the deleted run are not gone yet */
+        RUN_PENDING,
+        /* Holds a RunResource, or is a remote namespace the Operator did not create */
+        IN_USE,
+        /* Already gone, or the pool could not recycle it */
+        FAILED
+    }
+
+    private static class Cleanup {
+        private final String key;
+        private final String namespace;
+        private final Set<String> runDeployments;
+        /* Only accessed on the cleanup thread */
+        private String labelSelector;
+        private int attempt;
+
+        private Cleanup(@NotNull String key, @NotNull String namespace, @Nullable String labelSelector, @NotNull Set<String> runDeployments) {
+            this.key = key;
+            this.namespace = namespace;
+            this.runDeployments = runDeployments;
+            this.labelSelector = labelSelector;
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package ch.cern.tdaq.k8s.operator;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.fabric8.kubernetes.api.model.Namespace;
+import io.fabric8.kubernetes.api.model.NamespaceBuilder;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.ResourceQuotaBuilder;
+import io.fabric8.kubernetes.api.model.rbac.RoleBindingBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+import static java.net.HttpURLConnection.HTTP_CONFLICT;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+
+/**
+ * Keeps a pool of prepared namespaces, so a new run does not wait for a namespace, its ResourceQuota and RoleBinding to be created.
+ *
+ * Every pool namespace is labelled tdaq.namespace-pool=true and tdaq.namespace-pool-state, which is one of:
+ *  preparing: created, the ResourceQuota and RoleBinding are being added
+ *  ready: waiting for a run
+ *  assigned: holds the run named in the tdaq.namespace-pool/run annotation
+ *  recycling: the run is gone, waiting for its Pods to terminate before it is ready again
+ *
+ * A namespace is assigned with a merge patch guarded by its resourceVersion, so two Operator replicas never get the same namespace.
+ * When its run is finished the namespace is cleared and put back in the pool instead of being deleted. Ready namespaces that were not
+ * used for maxIdle are deleted and replaced, so a changed quota or role reaches the pool. At most refillPerSecond namespaces are created.
+ * With several Operator replicas every replica takes namespaces from the pool, but only the leader refills it.
+ */
+public class NamespacePool implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(NamespacePool.class);
+
+    public static final String POOL_LABEL_KEY = "tdaq.namespace-pool";
+    public static final String POOL_LABEL_VALUE = "true";
+    public static final String STATE_LABEL_KEY = "tdaq.namespace-pool-state";
+    public static final String RUN_ANNOTATION = "tdaq.namespace-pool/run";
+    /* When the namespace became ready, or started preparing */
+    private static final String READY_SINCE_ANNOTATION = "tdaq.namespace-pool/ready-since";
+    private static final String STATE_PREPARING = "preparing";
+    private static final String STATE_READY = "ready";
+    private static final String STATE_ASSIGNED = "assigned";
+    private static final String STATE_RECYCLING = "recycling";
+    private static final String NAME_PREFIX = "tdaq-run-";
+    private static final String QUOTA_NAME = "tdaq-run-quota";
+    private static final String ROLE_BINDING_NAME = "tdaq-run-workers";
+    private static final long INTERVAL_MILLIS = 5000;
+    private static final long PREPARE_TIMEOUT_MILLIS = 60000;
+
+    private final KubernetesClient kubernetesClient;
+    private final KubernetesPatchClient patchClient;
+    private final int size;
+    private final double refillPerSecond;
+    private final long maxIdleMillis;
+    private final Map<String, Quantity> quota;
+    private final String workerClusterRole;
+    /* True on the replica that refills the pool, see ShardCoordinator.isLeader() */
+    private final BooleanSupplier active;
+    private final ScheduledExecutorService executor;
+
+    /* The ready namespaces, the longest idle first. Replaced after every read of the pool namespaces */
+    private volatile Deque<ReadyNamespace> ready = new ConcurrentLinkedDeque<>();
+    /* <namespace>/<name> of the RunResource -> the namespace its deployments are in */
+    private final Map<String, String> assignments = new ConcurrentHashMap<>();
+    /* Namespaces that may still be created, only used on the executor thread */
+    private double refillBudget;
+
+    private final LongAdder hitsTotal = new LongAdder();
+    private final LongAdder missesTotal = new LongAdder();
+    private final LongAdder createdTotal = new LongAdder();
+    private final LongAdder recycledTotal = new LongAdder();
+    private final LongAdder expiredTotal = new LongAdder();
+
+    /**
+     * @param size How many ready namespaces are kept
+     * @param refillPerSecond Upper limit of namespaces created per second
+     * @param maxIdleMillis A ready namespace is replaced after this long, 0 to keep it forever
+     * @param quota The hard limits of the ResourceQuota in every namespace, empty for no quota
+     * @param workerClusterRole The ClusterRole bound to the default ServiceAccount of every namespace, null for none
+     * @param active False on the replicas that only take namespaces from the pool
+     */
+    public NamespacePool(@NotNull KubernetesClient kubernetesClient, @NotNull KubernetesPatchClient patchClient, int size, double refillPerSecond,
+                         long maxIdleMillis, @NotNull Map<String, Quantity> quota, @Nullable String workerClusterRole,
+                         @NotNull BooleanSupplier active) {
+        this.kubernetesClient = kubernetesClient;
+        this.patchClient = patchClient;
+        this.size = size;
+        this.refillPerSecond = refillPerSecond;
+        this.maxIdleMillis = maxIdleMillis;
+        this.quota = quota;
+        this.workerClusterRole = workerClusterRole;
+        this.active = active;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            /* Preparing and recycling namespaces only gets the API budget the runs do not need */
+            Thread thread = new Thread(() -> {
+                ApiRateLimiter.setThreadPriority(ApiRateLimiter.Priority.CLEANUP);
+                runnable.run();
+            }, "namespace-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reads the pool namespaces once before it returns, so after a restart the namespaces already assigned to RunResources are known
+     * before the first reconcile, which would otherwise assign them a second namespace
+     * @throws IllegalStateException If the pool namespaces could not be read
+     */
+    public void start() throws InterruptedException {
+        try {
+            executor.submit(this::maintain).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not read the pool namespaces", e.getCause());
+        }
+        executor.scheduleWithFixedDelay(this::maintainSafely, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        log.info("Namespace pool started, size: {} assigned: {}", size, assignments.size());
+    }
+
+    /**
+     * @return True if the namespace belongs to the pool, its deployments are cleared by recycle() instead of deleting it
+     */
+    public boolean isPoolNamespace(@NotNull String namespace) {
+        return namespace.startsWith(NAME_PREFIX);
+    }
+
+    /**
+     * @return The namespace the deployments of the RunResource are in, or null if it was never assigned one
+     */
+    @Nullable
+    public String getAssigned(@NotNull String namespace, @NotNull String name) {
+        return assignments.get(namespace + "/" + name);
+    }
+
+    /**
+     * Gives the RunResource a ready namespace, or the one it already has
+     * @param fallback Used when the pool is empty, normally the namespace of the RunResource itself
+     * @return The namespace to create the run deployments in
+     */
+    @NotNull
+    public synchronized String assign(@NotNull String namespace, @NotNull String name, @NotNull String fallback) {
+        String key = namespace + "/" + name;
+        String assigned = assignments.get(key);
+        if (assigned != null) {
+            return assigned;
+        }
+        ReadyNamespace candidate;
+        while ((candidate = ready.pollFirst()) != null) {
+            try {
+                patchClient.mergePatch(KubernetesPatchClient.namespacePath(candidate.name), statePatch(candidate.resourceVersion, STATE_ASSIGNED, key));
+            } catch (KubernetesClientException e) {
+                if (e.getCode() == HTTP_CONFLICT || e.getCode() == HTTP_NOT_FOUND) {
+                    /* Taken by another replica, or deleted */
+                    log.debug("Pool namespace {} is no longer ready", candidate.name);
+                    continue;
+                }
+                ready.addFirst(candidate);
+                throw e;
+            }
+            assignments.put(key, candidate.name);
+            hitsTotal.increment();
+            log.info("Assigned pool namespace {} to RunResource {}", candidate.name, key);
+            executor.execute(this::maintainSafely);
+            return candidate.name;
+        }
+        assignments.put(key, fallback);
+        missesTotal.increment();
+        log.info("Namespace pool is empty, RunResource {} uses namespace {}", key, fallback);
+        executor.execute(this::maintainSafely);
+        return fallback;
+    }
+
+    /**
+     * Forgets the namespace of a deleted RunResource. A pool namespace is put back by recycle() once its deployments are gone.
+     */
+    public void release(@NotNull String namespace, @NotNull String name) {
+        assignments.remove(namespace + "/" + name);
+    }
+
+    /**
+     * Clears an assigned pool namespace whose run deployments are gone, it is ready again once its Pods have terminated
+     * @return True if the namespace is being recycled
+     */
+    public boolean recycle(@NotNull String namespace) {
+        assignments.values().removeIf(namespace::equals);
+        try {
+            /* Anything the run left behind besides its Pods */
+            kubernetesClient.apps().deployments().inNamespace(namespace).delete();
+            patchClient.mergePatch(KubernetesPatchClient.namespacePath(namespace), statePatch(null, STATE_RECYCLING, null));
+        } catch (KubernetesClientException e) {
+            log.warn("Failed to recycle pool namespace {}", namespace, e);
+            return false;
+        }
+        recycledTotal.increment();
+        log.info("Recycling pool namespace {}", namespace);
+        return true;
+    }
+
+    public int getReadyCount() { return ready.size(); }
+    public int getAssignedCount() { return assignments.size(); }
+    public long getHitsTotal() { return hitsTotal.sum(); }
+    public long getMissesTotal() { return missesTotal.sum(); }
+    public long getCreatedTotal() { return createdTotal.sum(); }
+    public long getRecycledTotal() { return recycledTotal.sum(); }
+    public long getExpiredTotal() { return expiredTotal.sum(); }
+
+    private void maintainSafely() {
+        try {
+            maintain();
+        } catch (RuntimeException e) {
+            /* Never let an exception escape, the ScheduledExecutorService would stop scheduling */
+            log.error("Namespace pool maintenance failed", e);
+        }
+    }
+
+    /**
+     * Reads the pool namespaces, so the namespaces prepared, assigned or recycled by the other replicas are known here too.
+     * Only the active replica (the leader) moves recycled namespaces back, replaces expired ones and creates new ones.
+     */
+    void maintain() {
+        boolean isActive = active.getAsBoolean();
+        long nowMillis = System.currentTimeMillis();
+        List<ReadyNamespace> listedReady = new ArrayList<>();
+        int recyclingCount = 0;
+        for (Namespace namespace : kubernetesClient.namespaces().withLabel(POOL_LABEL_KEY, POOL_LABEL_VALUE).list().getItems()) {
+            String name = namespace.getMetadata().getName();
+            Map<String, String> labels = namespace.getMetadata().getLabels();
+            Map<String, String> annotations = namespace.getMetadata().getAnnotations() == null
+                    ? Collections.emptyMap() : namespace.getMetadata().getAnnotations();
+            String state = labels == null ? null : labels.get(STATE_LABEL_KEY);
+            if (STATE_READY.equals(state)) {
+                ReadyNamespace readyNamespace = new ReadyNamespace(name, namespace.getMetadata().getResourceVersion(),
+                        parseMillis(annotations.get(READY_SINCE_ANNOTATION), nowMillis));
+                if (isActive && maxIdleMillis > 0 && nowMillis - readyNamespace.readySinceMillis > maxIdleMillis) {
+                    /* Guarded like an assign, so a namespace that was just taken is not deleted */
+                    if (retire(readyNamespace)) {
+                        continue;
+                    }
+                }
+                listedReady.add(readyNamespace);
+            } else if (STATE_ASSIGNED.equals(state) && annotations.get(RUN_ANNOTATION) != null) {
+                /* E.g. the run moved to this replica */
+                assignments.putIfAbsent(annotations.get(RUN_ANNOTATION), name);
+            } else if (STATE_RECYCLING.equals(state)) {
+                recyclingCount++;
+                if (isActive && kubernetesClient.pods().inNamespace(name).list(1, null).getItems().isEmpty()) {
+                    listedReady.add(markReady(name));
+                    recyclingCount--;
+                }
+            } else if (isActive && STATE_PREPARING.equals(state) && nowMillis - parseMillis(annotations.get(READY_SINCE_ANNOTATION), 0) > PREPARE_TIMEOUT_MILLIS) {
+                /* Left half prepared by an Operator that stopped */
+                deleteNamespace(name);
+            }
+        }
+        listedReady.sort(Comparator.comparingLong(namespace -> namespace.readySinceMillis));
+        ready = new ConcurrentLinkedDeque<>(listedReady);
+
+        if (!isActive) {
+            return;
+        }
+        refillBudget = Math.min(Math.max(1, size), refillBudget + refillPerSecond * INTERVAL_MILLIS / 1000.0);
+        while (ready.size() + recyclingCount < size && refillBudget >= 1) {
+            refillBudget--;
+            create();
+        }
+    }
+
+    private void create() {
+        String name = NAME_PREFIX + UUID.randomUUID().toString().substring(0, 8);
+        kubernetesClient.namespaces().create(new NamespaceBuilder()
+                .withNewMetadata()
+                    .withName(name)
+                    .addToLabels(POOL_LABEL_KEY, POOL_LABEL_VALUE)
+                    .addToLabels(STATE_LABEL_KEY, STATE_PREPARING)
+                    .addToAnnotations(READY_SINCE_ANNOTATION, Long.toString(System.currentTimeMillis()))
+                .endMetadata()
+                .build());
+        try {
+            if (!quota.isEmpty()) {
+                kubernetesClient.resourceQuotas().inNamespace(name).create(new ResourceQuotaBuilder()
+                        .withNewMetadata().withName(QUOTA_NAME).endMetadata()
+                        .withNewSpec().withHard(quota).endSpec()
+                        .build());
+            }
+            if (workerClusterRole != null) {
+                kubernetesClient.rbac().roleBindings().inNamespace(name).create(new RoleBindingBuilder()
+                        .withNewMetadata().withName(ROLE_BINDING_NAME).endMetadata()
+                        .withNewRoleRef("rbac.authorization.k8s.io", "ClusterRole", workerClusterRole)
+                        .addNewSubject().withKind("ServiceAccount").withName("default").withNamespace(name).endSubject()
+                        .build());
+            }
+            ready.addLast(markReady(name));
+            createdTotal.increment();
+            log.info("Created pool namespace {}", name);
+        } catch (KubernetesClientException e) {
+            log.warn("Failed to prepare pool namespace {}, deleting it", name, e);
+            deleteNamespace(name);
+        }
+    }
+
+    @NotNull
+    private ReadyNamespace markReady(String namespace) {
+        long nowMillis = System.currentTimeMillis();
+        ObjectNode patch = Serialization.jsonMapper().createObjectNode();
+        ObjectNode metadata = patch.putObject("metadata");
+        metadata.putObject("labels").put(STATE_LABEL_KEY, STATE_READY);
+        metadata.putObject("annotations").putNull(RUN_ANNOTATION).put(READY_SINCE_ANNOTATION, Long.toString(nowMillis));
+        Namespace patched = Serialization.unmarshal(patchClient.mergePatch(KubernetesPatchClient.namespacePath(namespace), patch.toString()),
+                Namespace.class);
+        return new ReadyNamespace(namespace, patched.getMetadata().getResourceVersion(), nowMillis);
+    }
+
+    /**
+     * Takes an expired ready namespace out of the pool and deletes it
+     * @return False if it was assigned in the meantime
+     */
+    private boolean retire(ReadyNamespace namespace) {
+        try {
+            patchClient.mergePatch(KubernetesPatchClient.namespacePath(namespace.name), statePatch(namespace.resourceVersion, STATE_PREPARING, null));
+        } catch (KubernetesClientException e) {
+            return false;
+        }
+        deleteNamespace(namespace.name);
+        expiredTotal.increment();
+        return true;
+    }
+
+    private void deleteNamespace(String namespace) {
+        try {
+            kubernetesClient.namespaces().withName(namespace).delete();
+            log.info("Deleted pool namespace {}", namespace);
+        } catch (KubernetesClientException e) {
+            log.warn("Failed to delete pool namespace {}", namespace, e);
+        }
+    }
+
+    /**
+     * {"metadata": {"resourceVersion": "...", "labels": {state}, "annotations": {run}}}, without resourceVersion the patch is not guarded
+     */
+    @NotNull
+    static String statePatch(@Nullable String resourceVersion, @NotNull String state, @Nullable String run) {
+        ObjectNode patch = Serialization.jsonMapper().createObjectNode();
+        ObjectNode metadata = patch.putObject("metadata");
+        if (resourceVersion != null) {
+            metadata.put("resourceVersion", resourceVersion);
+        }
+        metadata.putObject("labels").put(STATE_LABEL_KEY, state);
+        if (run != null) {
+            metadata.putObject("annotations").put(RUN_ANNOTATION, run);
+        } else {
+            metadata.putObject("annotations").putNull(RUN_ANNOTATION);
+        }
+        return patch.toString();
+    }
+
+    private static long parseMillis(@Nullable String value, long defaultMillis) {
+        try {
+            return value == null ? defaultMillis : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultMillis;
+        }
+    }
+
+    /**
+     * Parses TDAQ_NAMESPACE_POOL_QUOTA, e.g. "pods=50,requests.cpu=20,requests.memory=64Gi"
+     */
+    @NotNull
+    public static Map<String, Quantity> parseQuota(@Nullable String value) {
+        Map<String, Quantity> quota = new HashMap<>();
+        if (value == null || value.trim().isEmpty()) {
+            return quota;
+        }
+        for (String entry : value.split(",")) {
+            String[] resourceAndAmount = entry.trim().split("=", 2);
+            if (resourceAndAmount.length != 2) {
+                throw new IllegalArgumentException("Invalid namespace pool quota entry: " + entry);
+            }
+            quota.put(resourceAndAmount[0].trim(), new Quantity(resourceAndAmount[1].trim()));
+        }
+        return quota;
+    }
+
+    /**
+     * Stops refilling, the pool namespaces are kept for the next Operator
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static final class ReadyNamespace {
+        private final String name;
+        private final String resourceVersion;
+        private final long readySinceMillis;
+
+        private ReadyNamespace(String name, String resourceVersion, long readySinceMillis) {
+            this.name = name;
+            this.resourceVersion = resourceVersion;
+            this.readySinceMillis = readySinceMillis;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package ch.cern.tdaq.k8s.operator;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * The Operator metrics, served in the Prometheus text format on the /metrics endpoint.
+ * The counters and histograms are LongAdders, so recording a value from the reconcile threads never takes a lock.
+ * A labelled series is created on first use, after that it is a lock-free map lookup.
+ */
+public class OperatorMetrics {
+    /* Seconds, from a fast cached reconcile up to a slow run start */
+    private static final double[] LATENCY_BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300};
+
+    private final List<Family> families = new CopyOnWriteArrayList<>();
+
+    public final Histogram reconcileDuration = register(new Histogram("tdaq_reconcile_duration_seconds",
+            "Duration of one reconcile attempt", LATENCY_BUCKETS, "operation", "outcome"));
+    public final Counter apiCalls = register(new Counter("tdaq_kubernetes_api_calls_total",
+            "Calls made to the Kubernetes API server", "verb", "resource"));
+    public final Counter apiErrors = register(new Counter("tdaq_kubernetes_api_errors_total",
+            "Calls to the Kubernetes API server that failed or returned an error code", "verb", "resource"));
+    public final Counter retries = register(new Counter("tdaq_reconcile_retries_total",
+            "Reconcile retries, by who retried", "source"));
+    public final Counter skippedEvents = register(new Counter("tdaq_reconcile_skipped_total",
+            "RunResource events that needed no API calls, by reason", "reason"));
+    public final Histogram runReadyDuration = register(new Histogram("tdaq_run_ready_duration_seconds",
+            "Time from the first reconcile of a RunNumber until all the worker Pods of a RunPipe are ready", LATENCY_BUCKETS));
+    public final Histogram runSwitchDuration = register(new Histogram("tdaq_run_switch_duration_seconds",
+            "Time from the first reconcile of a new RunNumber until all its worker Pods are ready, by whether standby Deployments were used",
+            LATENCY_BUCKETS, "standby"));
+    public final Counter apiThrottled = register(new Counter("tdaq_kubernetes_api_throttled_total",
+            "Calls to the Kubernetes API server that waited for the client-side rate limiter, by priority", "priority"));
+    public final Histogram apiThrottleWait = register(new Histogram("tdaq_kubernetes_api_throttle_wait_seconds",
+            "Time a throttled call waited for the client-side rate limiter, by priority", LATENCY_BUCKETS, "priority"));
+
+    /**
+     * Registers a value that is read when the metrics are scraped, e.g. the size of a cache
+     * @param type "gauge" or "counter"
+     */
+    public void registerFunction(@NotNull String name, @NotNull String help, @NotNull String type, @NotNull DoubleSupplier supplier) {
+        register(new FunctionFamily(name, help, type, supplier));
+    }
+
+    private <T extends Family> T register(T family) {
+        families.add(family);
+        return family;
+    }
+
+    /**
+     * @return All the metrics in the Prometheus text exposition format version 0.0.4
+     */
+    @NotNull
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family family : families) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            family.write(out);
+        }
+        return out.toString();
+    }
+
+    private static abstract class Family {
+        final String name;
+        final String help;
+        final String type;
+        final String[] labelNames;
+        /* Label values joined with \0 -> series, sorted so the output is stable */
+        final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+        Family(String name, String help, String type, String... labelNames) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = labelNames;
+        }
+
+        abstract void write(StringBuilder out);
+
+        String labelKey(String... labelValues) {
+            if (labelValues.length != labelNames.length) {
+                throw new IllegalArgumentException(name + " expects labels " + String.join(",", labelNames));
+            }
+            return String.join("\0", labelValues);
+        }
+
+        void appendLabels(StringBuilder out, String labelKey, String extraName, String extraValue) {
+            String[] labelValues = labelNames.length == 0 ? new String[0] : labelKey.split("\0", -1);
+            if (labelValues.length == 0 && extraName == null) {
+                return;
+            }
+            out.append('{');
+            for (int i = 0; i < labelValues.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(labelNames[i]).append("=\"").append(escape(labelValues[i])).append('"');
+            }
+            if (extraName != null) {
+                if (labelValues.length > 0) {
+                    out.append(',');
+                }
+                out.append(extraName).append("=\"").append(extraValue).append('"');
+            }
+            out.append('}');
+        }
+
+        static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+
+        static String format(double value) {
+            if (value == Math.rint(value) && !Double.isInfinite(value)) {
+                return Long.toString((long) value);
+            }
+            return Double.toString(value);
+        }
+    }
+
+    public static final class Counter extends Family {
+        private Counter(String name, String help, String... labelNames) {
+            super(name, help, "counter", labelNames);
+        }
+
+        public void inc(String... labelValues) {
+            add(1, labelValues);
+        }
+
+        public void add(long amount, String... labelValues) {
+            ((LongAdder) series.computeIfAbsent(labelKey(labelValues), key -> new LongAdder())).add(amount);
+        }
+
+        public long get(String... labelValues) {
+            LongAdder adder = (LongAdder) series.get(labelKey(labelValues));
+            return adder == null ? 0 : adder.sum();
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            for (Map.Entry<String, Object> entry : series.entrySet()) {
+                out.append(name);
+                appendLabels(out, entry.getKey(), null, null);
+                out.append(' ').append(((LongAdder) entry.getValue()).sum()).append('\n');
+            }
+        }
+    }
+
+    public static final class Histogram extends Family {
+        private final double[] buckets;
+
+        private Histogram(String name, String help, double[] buckets, String... labelNames) {
+            super(name, help, "histogram", labelNames);
+            this.buckets = buckets;
+        }
+
+        public void observeNanos(long nanos, String... labelValues) {
+            observe(nanos / 1e9, labelValues);
+        }
+
+        public void observe(double seconds, String... labelValues) {
+            HistogramSeries histogramSeries = (HistogramSeries) series.computeIfAbsent(labelKey(labelValues), key -> new HistogramSeries(buckets.length));
+            for (int i = 0; i < buckets.length; i++) {
+                if (seconds <= buckets[i]) {
+                    histogramSeries.bucketCounts[i].increment();
+                    break;
+                }
+            }
+            histogramSeries.count.increment();
+            histogramSeries.sum.add(seconds);
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            for (Map.Entry<String, Object> entry : series.entrySet()) {
+                HistogramSeries histogramSeries = (HistogramSeries) entry.getValue();
+                long cumulative = 0;
+                for (int i = 0; i < buckets.length; i++) {
+                    cumulative += histogramSeries.bucketCounts[i].sum();
+                    out.append(name).append("_bucket");
+                    appendLabels(out, entry.getKey(), "le", Double.toString(buckets[i]));
+                    out.append(' ').append(cumulative).append('\n');
+                }
+                long count = histogramSeries.count.sum();
+                out.append(name).append("_bucket");
+                appendLabels(out, entry.getKey(), "le", "+Inf");
+                out.append(' ').append(count).append('\n');
+                out.append(name).append("_sum");
+                appendLabels(out, entry.getKey(), null, null);
+                out.append(' ').append(format(histogramSeries.sum.sum())).append('\n');
+                out.append(name).append("_count");
+                appendLabels(out, entry.getKey(), null, null);
+                out.append(' ').append(count).append('\n');
+            }
+        }
+    }
+
+    private static final class HistogramSeries {
+        private final LongAdder[] bucketCounts;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private HistogramSeries(int bucketCount) {
+            bucketCounts = new LongAdder[bucketCount];
+            for (int i = 0; i < bucketCount; i++) {
+                bucketCounts[i] = new LongAdder();
+            }
+        }
+    }
+
+    private static final class FunctionFamily extends Family {
+        private final DoubleSupplier supplier;
+
+        private FunctionFamily(String name, String help, String type, DoubleSupplier supplier) {
+            super(name, help, type);
+            this.supplier = supplier;
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            out.append(name).append(' ').append(format(supplier.getAsDouble())).append('\n');
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package ch.cern.tdaq.k8s.operator;
+
+import ch.cern.tdaq.k8s.operator.CustomResource.RunAutoscalingSpec;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scales the worker Deployments of the running runs with the load, for the RunResources that have spec.autoscaling.
+ *
+ * Every interval the webserver behind each data-storage Service is asked for its totalCalls, and the call rate since the last
+ * interval is split over the RunPipes that use that Service. The replicas of a RunPipe are set to rate / targetCallsPerSecondPerReplica,
+ * kept between minReplicas and maxReplicas. Nothing changes while the load per Pod is within tolerance of the target, scaling up is
+ * done right away, and scaling down only once the load stayed low for scaleDownDelaySeconds.
+ *
+ * The replicas are written with a merge patch on the scale subresource of the Deployment, the rest of the Deployment is not touched.
+ * Only the latest run is scaled, the older runs are being shut down anyway.
+ */
+public class RunAutoscaler implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(RunAutoscaler.class);
+
+    private final KubernetesPatchClient patchClient;
+    private final WorkerDeploymentCache deploymentCache;
+    private final DataEndpointRegistry dataEndpointRegistry;
+    private final RunDataClient runDataClient;
+    private final LatestRunNumberTracker latestRunNumberTracker;
+    private final long intervalSeconds;
+    private final ScheduledExecutorService executor;
+
+    /* <namespace>/<RunResource name> -> the run to scale */
+    private final Map<String, ScaledRun> runs = new ConcurrentHashMap<>();
+    /* The state below is only used on the executor thread */
+    private final Map<DataEndpointRegistry.DataEndpoint, CallSample> lastSamples = new HashMap<>();
+    /* <namespace>/<deployment name> -> since when the load is below the target, in System.nanoTime() */
+    private final Map<String, Long> lowLoadSince = new HashMap<>();
+
+    private final AtomicLong scaleUpTotal = new AtomicLong();
+    private final AtomicLong scaleDownTotal = new AtomicLong();
+    private final AtomicLong failedTotal = new AtomicLong();
+
+    public RunAutoscaler(@NotNull KubernetesPatchClient patchClient, @NotNull WorkerDeploymentCache deploymentCache,
+                         @NotNull DataEndpointRegistry dataEndpointRegistry, @NotNull RunDataClient runDataClient,
+                         @NotNull LatestRunNumberTracker latestRunNumberTracker, long intervalSeconds) {
+        this.patchClient = patchClient;
+        this.deploymentCache = deploymentCache;
+        this.dataEndpointRegistry = dataEndpointRegistry;
+        this.runDataClient = runDataClient;
+        this.latestRunNumberTracker = latestRunNumberTracker;
+        this.intervalSeconds = intervalSeconds;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            /* Scaling a running run waits for the run starts and stops */
+            Thread thread = new Thread(() -> {
+                ApiRateLimiter.setThreadPriority(ApiRateLimiter.Priority.STATUS);
+                runnable.run();
+            }, "run-autoscaler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(this::scaleSafely, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        log.info("Run autoscaler started, interval: {}s", intervalSeconds);
+    }
+
+    /**
+     * Starts (or updates) scaling a run, called by the RunController on every reconcile of a RunResource with spec.autoscaling
+     * @param deploymentNamespace The namespace of the run deployments, see NamespacePool
+     * @param deploymentPerRunPipe RunPipe name -> deployment name
+     */
+    public void register(@NotNull String namespace, @NotNull String name, int runNumber, @NotNull String deploymentNamespace,
+                         @NotNull Map<String, String> deploymentPerRunPipe, @NotNull RunAutoscalingSpec spec) {
+        runs.put(namespace + "/" + name, new ScaledRun(deploymentNamespace, runNumber, new LinkedHashMap<>(deploymentPerRunPipe), spec));
+    }
+
+    public void unregister(@NotNull String namespace, @NotNull String name) {
+        runs.remove(namespace + "/" + name);
+    }
+
+    public int getScaledRunCount() { return runs.size(); }
+    public long getScaleUpTotal() { return scaleUpTotal.get(); }
+    public long getScaleDownTotal() { return scaleDownTotal.get(); }
+    public long getFailedTotal() { return failedTotal.get(); }
+
+    private void scaleSafely() {
+        try {
+            scale();
+        } catch (RuntimeException e) {
+            /* Never let an exception escape, the ScheduledExecutorService would stop scheduling */
+            log.error("Run autoscaler failed", e);
+        }
+    }
+
+    void scale() {
+        runs.values().removeIf(run -> latestRunNumberTracker.isSuperseded(run.runNumber));
+        if (runs.isEmpty()) {
+            lastSamples.clear();
+            lowLoadSince.clear();
+            return;
+        }
+
+        /* Which RunPipes share which data-storage Service */
+        Map<DataEndpointRegistry.DataEndpoint, List<ScaledPipe>> pipesPerEndpoint = new HashMap<>();
+        for (ScaledRun run : runs.values()) {
+            for (Map.Entry<String, String> entry : run.deploymentPerRunPipe.entrySet()) {
+                DataEndpointRegistry.DataEndpoint endpoint = dataEndpointRegistry.resolve(entry.getKey());
+                if (endpoint != null) {
+                    pipesPerEndpoint.computeIfAbsent(endpoint, k -> new ArrayList<>()).add(new ScaledPipe(run, entry.getValue()));
+                }
+            }
+        }
+
+        /* Ask all the webservers at once */
+        Map<DataEndpointRegistry.DataEndpoint, CompletableFuture<RunDataClient.RunQueryResult>> queries = new HashMap<>();
+        for (DataEndpointRegistry.DataEndpoint endpoint : pipesPerEndpoint.keySet()) {
+            queries.put(endpoint, runDataClient.query(endpoint, -1));
+        }
+        long nowNanos = System.nanoTime();
+        for (Map.Entry<DataEndpointRegistry.DataEndpoint, List<ScaledPipe>> entry : pipesPerEndpoint.entrySet()) {
+            Double callsPerSecond = sample(entry.getKey(), queries.get(entry.getKey()), nowNanos);
+            if (callsPerSecond == null) {
+                continue;
+            }
+            double callsPerSecondPerPipe = callsPerSecond / entry.getValue().size();
+            for (ScaledPipe pipe : entry.getValue()) {
+                scalePipe(pipe, callsPerSecondPerPipe, nowNanos);
+            }
+        }
+        lastSamples.keySet().retainAll(pipesPerEndpoint.keySet());
+    }
+
+    /**
+     * @return The calls per second since the last sample of the endpoint, or null if there is no earlier sample or the query failed
+     */
+    private Double sample(DataEndpointRegistry.DataEndpoint endpoint, CompletableFuture<RunDataClient.RunQueryResult> query, long nowNanos) {
+        RunDataClient.RunQueryResult result;
+        try {
+            result = query.join();
+        } catch (CompletionException e) {
+            log.warn("Could not read the load of data-storage Service {}:{}: {}", endpoint.getHost(), endpoint.getPort(), e.getCause().toString());
+            return null;
+        }
+        CallSample previous = lastSamples.put(endpoint, new CallSample(result.getTotalCalls(), nowNanos));
+        if (previous == null || result.getTotalCalls() < previous.totalCalls || nowNanos <= previous.nanos) {
+            /* First sample, or the webserver restarted */
+            return null;
+        }
+        /* Our own query is one of the calls */
+        long calls = Math.max(0, result.getTotalCalls() - previous.totalCalls - 1);
+        return calls / ((nowNanos - previous.nanos) / 1e9);
+    }
+
+    private void scalePipe(ScaledPipe pipe, double callsPerSecond, long nowNanos) {
+        ScaledRun run = pipe.run;
+        RunAutoscalingSpec spec = run.spec;
+        String key = run.namespace + "/" + pipe.deploymentName;
+        Deployment deployment = deploymentCache.get(run.namespace, pipe.deploymentName);
+        if (deployment == null || deployment.getSpec() == null) {
+            /* Not created yet */
+            return;
+        }
+        int current = deployment.getSpec().getReplicas() == null ? 1 : deployment.getSpec().getReplicas();
+        int minReplicas = Math.max(0, spec.getMinReplicas());
+        int maxReplicas = Math.max(minReplicas, spec.getMaxReplicas());
+        double target = spec.getTargetCallsPerSecondPerReplica() > 0 ? spec.getTargetCallsPerSecondPerReplica() : 1;
+        int desired = Math.min(maxReplicas, Math.max(minReplicas, (int) Math.ceil(callsPerSecond / target)));
+        double loadPerReplica = callsPerSecond / Math.max(1, current);
+
+        if (current < minReplicas || current > maxReplicas) {
+            /* The bounds changed */
+            lowLoadSince.remove(key);
+            setReplicas(run.namespace, pipe.deploymentName, current, Math.min(maxReplicas, Math.max(minReplicas, current)), callsPerSecond);
+        } else if (desired > current && loadPerReplica > target * (1 + spec.getTolerance())) {
+            lowLoadSince.remove(key);
+            setReplicas(run.namespace, pipe.deploymentName, current, desired, callsPerSecond);
+        } else if (desired < current && loadPerReplica < target * (1 - spec.getTolerance())) {
+            long since = lowLoadSince.computeIfAbsent(key, k -> nowNanos);
+            if (nowNanos - since >= TimeUnit.SECONDS.toNanos(spec.getScaleDownDelaySeconds())) {
+                lowLoadSince.remove(key);
+                setReplicas(run.namespace, pipe.deploymentName, current, desired, callsPerSecond);
+            }
+        } else {
+            lowLoadSince.remove(key);
+        }
+    }
+
+    private void setReplicas(String namespace, String deploymentName, int current, int replicas, double callsPerSecond) {
+        if (replicas == current) {
+            return;
+        }
+        ObjectNode patch = Serialization.jsonMapper().createObjectNode();
+        patch.putObject("spec").put("replicas", replicas);
+        try {
+            patchClient.mergePatch(KubernetesPatchClient.deploymentPath(namespace, deploymentName, "scale"), patch.toString());
+            (replicas > current ? scaleUpTotal : scaleDownTotal).incrementAndGet();
+            log.info("Scaled deployment {}/{} from {} to {} replicas at {} calls/s", namespace, deploymentName, current, replicas,
+                    String.format("%.1f", callsPerSecond));
+        } catch (KubernetesClientException e) {
+            failedTotal.incrementAndGet();
+            log.warn("Failed to scale deployment {}/{} to {} replicas", namespace, deploymentName, replicas, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static final class ScaledRun {
+        /* The namespace of the deployments */
+        private final String namespace;
+        private final int runNumber;
+        private final Map<String, String> deploymentPerRunPipe;
+        private final RunAutoscalingSpec spec;
+
+        private ScaledRun(String namespace, int runNumber, Map<String, String> deploymentPerRunPipe, RunAutoscalingSpec spec) {
+            this.namespace = namespace;
+            this.runNumber = runNumber;
+            this.deploymentPerRunPipe = deploymentPerRunPipe;
+            this.spec = spec;
+        }
+    }
+
+    private static final class ScaledPipe {
+        private final ScaledRun run;
+        private final String deploymentName;
+
+        private ScaledPipe(ScaledRun run, String deploymentName) {
+            this.run = run;
+            this.deploymentName = deploymentName;
+        }
+    }
+
+    private static final class CallSample {
+        private final long totalCalls;
+        private final long nanos;
+
+        private CallSample(long totalCalls, long nanos) {
+            this.totalCalls = totalCalls;
+            this.nanos = nanos;
+        }
+    }
+}
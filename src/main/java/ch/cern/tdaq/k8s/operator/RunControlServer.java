@@ -0,0 +1,110 @@
+package ch.cern.tdaq.k8s.operator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the calls that change the runs, on their own port so they are not reachable on the port of the probes and /metrics:
+ *  POST /run/advance: moves the RunNumber of the run controller RunResource one up, see RunNumberSequencer
+ *
+ * When a token is set, every request needs the header "Authorization: Bearer <token>".
+ * A request does not hold a thread while its patch is in flight, it is answered when the RunNumberSequencer completes it.
+ * So requests that arrive together are all waiting at the same time and are served by one patch.
+ */
+public class RunControlServer implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(RunControlServer.class);
+
+    private final int port;
+    private final byte[] token;
+    private final RunNumberSequencer runNumberSequencer;
+
+    private HttpServer server;
+    private ExecutorService httpExecutor;
+
+    /**
+     * @param port The port of the run control API
+     * @param token The bearer token every request needs, null to accept all requests
+     */
+    public RunControlServer(int port, @Nullable String token, @NotNull RunNumberSequencer runNumberSequencer) {
+        this.port = port;
+        this.token = token == null || token.isEmpty() ? null : token.getBytes(StandardCharsets.UTF_8);
+        this.runNumberSequencer = runNumberSequencer;
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        httpExecutor = Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "run-control-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(httpExecutor);
+        server.createContext("/run/advance", this::handleAdvance);
+        server.start();
+        log.info("Serving the run control API on port {}, {}", port, token == null ? "without a token" : "with a bearer token");
+    }
+
+    private void handleAdvance(HttpExchange exchange) throws IOException {
+        if (!isAuthorized(exchange)) {
+            respond(exchange, 401, "A valid bearer token is required");
+            return;
+        }
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "POST only");
+            return;
+        }
+        runNumberSequencer.advance().whenComplete((runNumber, e) -> {
+            try {
+                if (e != null) {
+                    respond(exchange, 500, "Failed to advance the RunNumber: " + e.getMessage());
+                } else {
+                    respond(exchange, 200, String.valueOf(runNumber));
+                }
+            } catch (IOException writeFailure) {
+                log.debug("Run advance request went away: {}", writeFailure.toString());
+            }
+        });
+    }
+
+    private boolean isAuthorized(HttpExchange exchange) {
+        if (token == null) {
+            return true;
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer ")) {
+            return false;
+        }
+        /* Constant time, so the token can not be guessed from the response times */
+        return MessageDigest.isEqual(token, authorization.substring("Bearer ".length()).trim().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        try {
+            exchange.sendResponseHeaders(code, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            httpExecutor.shutdownNow();
+        }
+    }
+}
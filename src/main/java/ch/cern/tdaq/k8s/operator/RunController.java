@@ -1,59 +1,137 @@
 package ch.cern.tdaq.k8s.operator;
 
-import ch.cern.tdaq.k8s.operator.CustomResource.DoneableRunResource;
+import ch.cern.tdaq.k8s.operator.CustomResource.RunAutoscalingSpec;
+import ch.cern.tdaq.k8s.operator.CustomResource.RunPipeSpec;
 import ch.cern.tdaq.k8s.operator.CustomResource.RunResource;
-import ch.cern.tdaq.k8s.operator.CustomResource.RunResourceList;
+import ch.cern.tdaq.k8s.operator.CustomResource.RunResourceSpec;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.github.containersolutions.operator.api.Context;
 import com.github.containersolutions.operator.api.Controller;
 import com.github.containersolutions.operator.api.ResourceController;
 import com.github.containersolutions.operator.api.UpdateControl;
-import com.google.gson.JsonParser;
 import io.fabric8.kubernetes.api.model.Container;
 import io.fabric8.kubernetes.api.model.EnvVar;
-import io.fabric8.kubernetes.api.model.Service;
-import io.fabric8.kubernetes.api.model.apiextensions.CustomResourceDefinition;
+import io.fabric8.kubernetes.api.model.NamespaceBuilder;
 import io.fabric8.kubernetes.api.model.apps.Deployment;
-import io.fabric8.kubernetes.api.model.apps.DeploymentList;
 import io.fabric8.kubernetes.client.KubernetesClient;
-import io.fabric8.kubernetes.client.dsl.MixedOperation;
-import io.fabric8.kubernetes.client.dsl.Resource;
-import io.fabric8.kubernetes.client.dsl.base.CustomResourceDefinitionContext;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.utils.Serialization;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.net.HttpURLConnection.HTTP_CONFLICT;
+
 
 @Controller(customResourceClass = RunResource.class,
         crdName = "runresources.operator.tdaq.cern.ch") /* NOTE! crdName needs to be in sync with the crd name used by the TdaqRunController and the actual CRD yaml file */
 public class RunController implements ResourceController<RunResource> {
     private final Logger log = LoggerFactory.getLogger(getClass());
     private final KubernetesClient kubernetesClient;
+    /* Sends the server-side apply of the run deployments */
+    private final KubernetesPatchClient patchClient;
     private final int runNumberPaddingSize = 10;
 
     private static final String ENVIRONMENT_RUN_NUMBER_NAME = "RUN_NUMBER";
     private static final String ENVIRONMENT_RUN_PIPE_NAME = "RUN_PIPE";
+    private static final String ENVIRONMENT_RUN_STATE_URL_NAME = "RUN_STATE_URL";
+
+    private static final String METADATA_LABEL_RUN_NUMBER_KEY = WorkerDeploymentCache.METADATA_LABEL_RUN_NUMBER_KEY;
+    private static final String METADATA_LABEL_RUN_PIPE_KEY = WorkerDeploymentCache.METADATA_LABEL_RUN_PIPE_KEY;
+    private static final String METADATA_LABEL_TDAQ_WORKER_KEY = WorkerDeploymentCache.METADATA_LABEL_TDAQ_WORKER_KEY;
+    private static final String METADATA_LABEL_TDAQ_WORKER_VALUE = WorkerDeploymentCache.METADATA_LABEL_TDAQ_WORKER_VALUE;
 
-    private static final String METADATA_LABEL_RUN_NUMBER_KEY = "tdaq.run-number";
-    private static final String METADATA_LABEL_RUN_PIPE_KEY = "tdaq.run-pipe";
-    private static final String METADATA_LABEL_TDAQ_WORKER_KEY = "tdaq.worker";
-    private static final String METADATA_LABEL_TDAQ_WORKER_VALUE = "true";
+    /* The server-side apply field manager of the run deployments, and the annotation with the hash of the applied desired state */
+    private static final String FIELD_MANAGER = "tdaq-operator";
+    private static final String SPEC_HASH_ANNOTATION = "tdaq.operator/spec-hash";
+    /* The finalizer the framework puts on the RunResources, removed by resyncDelete when it deletes a run in place of the framework */
+    private static final String FINALIZER_NAME = RunController.class.getAnnotation(Controller.class).finalizerName();
+    private static final ObjectMapper HASH_MAPPER = Serialization.jsonMapper().copy().configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
 
-    final private String deploymentYamlPath = "deploy-worker.yaml"; /* Should we let the users use their own yaml, or yaml that is part of the JAR under /resources ? */
+    /* Parsed once at startup, see DeploymentTemplate for how to hot-reload it from a ConfigMap or a mounted file */
+    private final DeploymentTemplate deploymentTemplate;
+    /* All lookups of worker deployments are done against this informer cache, not against the API server */
+    private final WorkerDeploymentCache deploymentCache;
+    private final NamespaceCleaner namespaceCleaner;
+    /* Reconciles different runs in parallel, and the events of one run in order */
+    private final KeyedReconcileExecutor reconcileExecutor;
+    /* The ClusterIP:PORT of the webserver-service, injected into the worker Pods */
+    private final DataEndpointRegistry dataEndpointRegistry;
+    private final OperatorMetrics metrics;
+    private final RunReadinessTracker readinessTracker;
+    /* Events for a RunNumber lower than this are skipped without any API calls */
+    private final LatestRunNumberTracker latestRunNumberTracker;
+    private final RunStatusUpdater statusUpdater;
+    /* The data-storage webserver, it knows the latest RunNumber the worker Pods reported */
+    private final RunDataClient runDataClient;
+    /* Null when this is the only Operator replica, then it owns all RunResources */
+    private final ShardCoordinator shardCoordinator;
+    private final RunAutoscaler runAutoscaler;
+    /* Null when the run deployments are created in the namespace of their RunResource */
+    private final NamespacePool namespacePool;
+    /* Prepares the deployments of the next run, and measures the run switches */
+    private final RunStandby runStandby;
+    /* One trace per reconcile, hands out no-op spans when the reconcile is not sampled */
+    private final Tracer tracer;
+    /* Null when the run deployments are only created in the local cluster, see WorkerClusters */
+    private final WorkerClusters workerClusters;
+    /* Null when the RunPipes without replicas get the replicas of the template */
+    private final CapacityPlanner capacityPlanner;
+    private final boolean shardByRunPipe = "run-pipe".equals(OperatorConfig.getString("TDAQ_SHARD_BY", "namespace"));
+    private final int reconcileMaxAttempts = OperatorConfig.getInt("TDAQ_RECONCILE_MAX_ATTEMPTS", 10);
+    private final long deleteTimeoutSeconds = OperatorConfig.getLong("TDAQ_RECONCILE_DELETE_TIMEOUT_SECONDS", 30);
+    /* The run-state API of the Operator, given to the worker Pods as RUN_STATE_URL if set, see RunStateBroadcaster */
+    private final String runStateUrl = OperatorConfig.getString("TDAQ_RUN_STATE_URL", null);
 
     @NotNull
-    public RunController(KubernetesClient kubernetesClient) {
+    public RunController(KubernetesClient kubernetesClient, KubernetesPatchClient patchClient, DeploymentTemplate deploymentTemplate, WorkerDeploymentCache deploymentCache,
+                         NamespaceCleaner namespaceCleaner, KeyedReconcileExecutor reconcileExecutor, DataEndpointRegistry dataEndpointRegistry,
+                         OperatorMetrics metrics, RunReadinessTracker readinessTracker, LatestRunNumberTracker latestRunNumberTracker,
+                         RunStatusUpdater statusUpdater, RunDataClient runDataClient,
+                         ShardCoordinator shardCoordinator, RunAutoscaler runAutoscaler, NamespacePool namespacePool, RunStandby runStandby,
+                         Tracer tracer, WorkerClusters workerClusters, CapacityPlanner capacityPlanner) {
         this.kubernetesClient = kubernetesClient;
+        this.patchClient = patchClient;
+        this.deploymentTemplate = deploymentTemplate;
+        this.deploymentCache = deploymentCache;
+        this.namespaceCleaner = namespaceCleaner;
+        this.reconcileExecutor = reconcileExecutor;
+        this.dataEndpointRegistry = dataEndpointRegistry;
+        this.metrics = metrics;
+        this.readinessTracker = readinessTracker;
+        this.latestRunNumberTracker = latestRunNumberTracker;
+        this.statusUpdater = statusUpdater;
+        this.runDataClient = runDataClient;
+        this.shardCoordinator = shardCoordinator;
+        this.runAutoscaler = runAutoscaler;
+        this.namespacePool = namespacePool;
+        this.runStandby = runStandby;
+        this.tracer = tracer;
+        this.workerClusters = workerClusters;
+        this.capacityPlanner = capacityPlanner;
     }
 
     /**
@@ -66,32 +144,124 @@ public class RunController implements ResourceController<RunResource> {
     public boolean deleteResource(RunResource resource, Context<RunResource> context) {
         log.info("Execution deleteResource for: {}", resource.getMetadata().getName());
 
-        /* TODO: Might want to do something particular if it is the last try? */
         boolean lastTry = context.retryInfo().isLastAttempt();
+        if (context.retryInfo().getAttemptCount() > 0) {
+            metrics.retries.inc("framework");
+        }
+
+        /* The owner of the shard deletes the run and removes the finalizer, the other replicas leave it alone */
+        if (!isOwned(resource)) {
+            metrics.skippedEvents.inc("not-owned");
+            return false;
+        }
+
+        try (Tracer.Span span = startTrace("delete", resource, context.retryInfo().getAttemptCount())) {
+            try {
+                boolean deleted = deleteRun(resource, lastTry);
+                span.tag("tdaq.deleted", deleted);
+                return deleted;
+            } catch (RuntimeException e) {
+                span.error(e);
+                throw e;
+            }
+        }
+    }
 
+    /**
+     * Deletes the deployments of all RunPipes of the run with one collection delete per namespace and cluster, and queues the
+     * cleanup of the namespace.
+     * @param lastTry On the last attempt of the framework the deletes are handed to the NamespaceCleaner queue and the finalizer
+     *                is removed anyway, so a CR never gets stuck on an API server that does not accept the deletes
+     * @return True if all deployments are deleted, or handed over to the NamespaceCleaner
+     */
+    private boolean deleteRun(@NotNull RunResource resource, boolean lastTry) {
         String namespace = resource.getMetadata().getNamespace();
         int runNumber = resource.getSpec().getRunNumber();
-        String runPipeName = resource.getSpec().getRunPipe();
-
-        try (InputStream yamlInputStream = getClass().getResourceAsStream(deploymentYamlPath)) {
-            /* Need to use the deployment yaml template to get the deployment name */
-            Deployment runDeployment = kubernetesClient.apps().deployments().load(yamlInputStream).get();
-
-            /* Get the deployment name for the deployment related to this CR */
-            String deploymentName = getRunDeploymentName(runDeployment, runNumber, runPipeName);
-
-            /* If true, then the Deployment is deleted. If false, then the Java-Operator-SDK will try again until lastTry is true. These values can be configured in Main */
-            boolean customResourceDeleted = deleteDeployments(namespace, deploymentName);
-            if (customResourceDeleted) {
-                /* Delete the Namespace if it now contains no more Deployments */
-                /* NOTE: If it fails to delete the Namespace, it will not try again. On fail, you will have to delete the namespace manually. */
-                deleteNamespaceIfEmpty(namespace);
-            }
-            return customResourceDeleted;
-        } catch (IOException e) {
-            e.printStackTrace();
-            log.error("Exception when trying to to delete the CustomResource", e);
+        String deploymentNamespace = getDeploymentNamespace(resource, false);
+        List<RunPipeSpec> runPipes = getRunPipes(resource.getSpec());
+
+        /* Replaces the queued creates of the run, and waits for the ones that are running, so none comes after the delete */
+        List<CompletableFuture<Object>> drainedPipes = new ArrayList<>();
+        List<String> runPipeNames = new ArrayList<>();
+        /* The deployments this delete waits for before the namespace is cleaned up, also the standby of the next run */
+        List<String> runDeploymentNames = new ArrayList<>();
+        boolean hasStandby = false;
+        for (RunPipeSpec runPipe : runPipes) {
+            runPipeNames.add(runPipe.getName());
+            runDeploymentNames.add(getRunDeploymentName(runNumber, runPipe.getName()));
+            drainedPipes.add(reconcileExecutor.submit(getReconcileKey(namespace, runNumber, runPipe.getName()), () -> null, 1));
+            if (runStandby.getStandby(deploymentNamespace, runPipe.getName()) != null) {
+                hasStandby = true;
+                runDeploymentNames.add(getRunDeploymentName(runNumber + 1, runPipe.getName()));
+                drainedPipes.add(reconcileExecutor.submit(getReconcileKey(namespace, runNumber + 1, runPipe.getName()), () -> null, 1));
+            }
+        }
+        String runSelector = getRunSelector(runNumber, runPipeNames);
+        String standbySelector = hasStandby ? RunStandby.STANDBY_LABEL_KEY + "=" + RunStandby.STANDBY_LABEL_VALUE + ","
+                + METADATA_LABEL_RUN_PIPE_KEY + " in (" + String.join(",", runPipeNames) + ")" : null;
+
+        /* If true, then the Deployments are deleted. If false, then the Java-Operator-SDK will try again until lastTry is true. These values can be configured in Main */
+        boolean customResourceDeleted = false;
+        try {
+            /* We wait for the result since the framework needs it */
+            CompletableFuture.allOf(drainedPipes.toArray(new CompletableFuture[0])).get(deleteTimeoutSeconds, TimeUnit.SECONDS);
+            customResourceDeleted = deleteRunDeployments(deploymentNamespace, runNumber, runPipeNames, runSelector, standbySelector);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return false;
+        } catch (ExecutionException | TimeoutException | CancellationException | KubernetesClientException e) {
+            log.warn("deleteResource for: {} did not finish{}", resource.getMetadata().getName(),
+                    lastTry ? ", the deletes are left to the namespace cleanup" : ", the framework will try again", e);
+        }
+        if (!customResourceDeleted && !lastTry) {
+            return false;
+        }
+
+        for (String runPipeName : runPipeNames) {
+            runStandby.removeStandby(deploymentNamespace, runPipeName);
+        }
+        statusUpdater.untrack(namespace, resource.getMetadata().getName());
+        runAutoscaler.unregister(namespace, resource.getMetadata().getName());
+        if (namespacePool != null) {
+            namespacePool.release(namespace, resource.getMetadata().getName());
+        }
+        /* Delete the Namespace once it contains no more Deployments, a pool namespace is recycled instead. It is tried again in the background */
+        String leftOver = customResourceDeleted ? null : runSelector;
+        if (!customResourceDeleted && standbySelector != null) {
+            namespaceCleaner.cleanupAsync(deploymentNamespace, standbySelector, runDeploymentNames);
+        }
+        namespaceCleaner.cleanupAsync(deploymentNamespace, leftOver, runDeploymentNames);
+        if (workerClusters != null) {
+            cleanupRemoteNamespaces(deploymentNamespace, leftOver, runDeploymentNames);
+        }
+        return true;
+    }
+
+    /**
+     * One collection delete for the deployments of the run, one for its standby deployments if there are any, and one per remote
+     * worker cluster that has the run, whatever the number of RunPipes
+     * @return True if the deployments are deleted in every available cluster
+     * @throws KubernetesClientException When the local cluster did not accept a delete
+     */
+    private boolean deleteRunDeployments(@NotNull String namespace, int runNumber, @NotNull List<String> runPipeNames,
+                                         @NotNull String runSelector, @Nullable String standbySelector) {
+        long startNanos = System.nanoTime();
+        String outcome = "error";
+        try (Tracer.Span span = tracer.startSpan("collection-delete")) {
+            span.tag("tdaq.run_number", runNumber).tag("tdaq.run_pipes", runPipeNames.size());
+            if (standbySelector != null) {
+                /* The standby of the next run may already be gone, that does not hold up the delete */
+                namespaceCleaner.deleteDeployments(namespace, standbySelector);
+            }
+            namespaceCleaner.deleteDeployments(namespace, runSelector);
+            for (String runPipeName : runPipeNames) {
+                deploymentCache.evict(namespace, getRunDeploymentName(runNumber, runPipeName));
+            }
+            boolean deleted = workerClusters == null || deleteFromRemoteClusters(namespace, runNumber, runPipeNames, runSelector);
+            outcome = "success";
+            return deleted;
+        } finally {
+            metrics.reconcileDuration.observeNanos(System.nanoTime() - startNanos, "delete", outcome);
         }
     }
 
@@ -105,141 +275,707 @@ public class RunController implements ResourceController<RunResource> {
     public UpdateControl createOrUpdateResource(RunResource resource, Context<RunResource> context) {
         log.info("Execution createOrUpdateResource for: {}", resource.getMetadata().getName());
 
+        /* TODO: Might want to do something particular if it is the last try. */
+        boolean lastTry = context.retryInfo().isLastAttempt();
+        if (context.retryInfo().getAttemptCount() > 0) {
+            metrics.retries.inc("framework");
+        }
+
+        /* Every replica gets the events of all RunResources, only the replica that owns the shard reconciles it */
+        if (!isOwned(resource)) {
+            metrics.skippedEvents.inc("not-owned");
+            return UpdateControl.noUpdate();
+        }
+        return reconcile(resource, context.retryInfo().getAttemptCount());
+    }
+
+    /**
+     * Called for every RunResource when the Operator replicas change, since the framework does not send new events for the
+     * RunResources this replica gained. Reconciling a run that is already deployed makes no API calls. A RunResource that is
+     * being deleted is never reconciled, its owner deletes the run and removes the finalizer.
+     */
+    public void resync(@NotNull RunResource resource) {
+        if (resource.getMetadata().getDeletionTimestamp() != null) {
+            if (isOwned(resource) && resource.getMetadata().getFinalizers() != null
+                    && resource.getMetadata().getFinalizers().contains(FINALIZER_NAME)) {
+                resyncDelete(resource);
+            }
+            return;
+        }
+        if (isOwned(resource)) {
+            reconcile(resource, 0);
+        } else {
+            /* The new owner writes the status and scales the run from now on */
+            statusUpdater.untrack(resource.getMetadata().getNamespace(), resource.getMetadata().getName());
+            runAutoscaler.unregister(resource.getMetadata().getNamespace(), resource.getMetadata().getName());
+        }
+    }
+
+    /**
+     * Deletes a RunResource whose owner died during its delete. The other replicas did not delete it when the framework sent the
+     * event, and the framework does not send it again, so the run is deleted and the finalizer removed here.
+     */
+    private void resyncDelete(@NotNull RunResource resource) {
+        String namespace = resource.getMetadata().getNamespace();
+        String name = resource.getMetadata().getName();
+        log.info("Deleting RunResource {}/{} taken over from another replica", namespace, name);
+        try (Tracer.Span span = startTrace("delete", resource, 0)) {
+            try {
+                /* Nobody sends the delete again, so this is the last try: what is not deleted now is left to the namespace cleanup */
+                deleteRun(resource, true);
+                List<String> finalizers = new ArrayList<>(resource.getMetadata().getFinalizers());
+                finalizers.remove(FINALIZER_NAME);
+                patchClient.mergePatch(KubernetesPatchClient.runResourcePath(namespace, name, null),
+                        finalizersPatch(resource.getMetadata().getResourceVersion(), finalizers));
+                span.tag("tdaq.deleted", true);
+            } catch (KubernetesClientException e) {
+                /* A conflict means the RunResource changed since it was listed, the next resync reads it again */
+                span.error(e);
+                log.warn("Could not remove the finalizer of RunResource {}/{}", namespace, name, e);
+            }
+        }
+    }
+
+    @NotNull
+    static String finalizersPatch(@NotNull String resourceVersion, @NotNull List<String> finalizers) {
+        ObjectNode patch = Serialization.jsonMapper().createObjectNode();
+        ObjectNode metadata = patch.putObject("metadata");
+        metadata.put("resourceVersion", resourceVersion);
+        ArrayNode values = metadata.putArray("finalizers");
+        finalizers.forEach(values::add);
+        return patch.toString();
+    }
+
+    /**
+     * @param attempt The retry attempt of the framework, 0 for the first
+     */
+    @NotNull
+    private UpdateControl reconcile(@NotNull RunResource resource, int attempt) {
+        try (Tracer.Span span = startTrace("reconcile", resource, attempt)) {
+            try {
+                return reconcileRun(resource);
+            } catch (RuntimeException e) {
+                span.error(e);
+                throw e;
+            }
+        }
+    }
+
+    @NotNull
+    private UpdateControl reconcileRun(@NotNull RunResource resource) {
         String namespace = resource.getMetadata().getNamespace();
         int runNumber = resource.getSpec().getRunNumber();
-        String runPipe = resource.getSpec().getRunPipe();
+        List<RunPipeSpec> runPipes = getRunPipes(resource.getSpec());
 
-        /* TODO: Might want to do something particular if it is the last try. */
-        boolean lastTry = context.retryInfo().isLastAttempt();
+        /* The status of every run is kept up to date from the informer events, also for superseded runs (Draining/Finished) */
+        Map<String, String> deploymentPerRunPipe = new LinkedHashMap<>();
+        for (RunPipeSpec runPipe : runPipes) {
+            deploymentPerRunPipe.put(runPipe.getName(), getRunDeploymentName(runNumber, runPipe.getName()));
+        }
+        /* A superseded run is never given a pool namespace, it only keeps the one it has */
+        boolean superseded = latestRunNumberTracker.isSuperseded(runNumber);
+        String deploymentNamespace;
+        try (Tracer.Span span = tracer.startSpan("deployment-namespace")) {
+            deploymentNamespace = getDeploymentNamespace(resource, !superseded);
+            span.tag("tdaq.deployment_namespace", deploymentNamespace);
+        }
+        statusUpdater.track(resource, runNumber, deploymentNamespace, deploymentPerRunPipe);
+
+        /**
+         * Ask the webserver for the latest RunNumber without waiting for it. The answer is cached for a short time and shared by
+         * concurrent reconciles. It is used by the create tasks below, which check again if the run is superseded before creating.
+         */
+        if (runDataClient != null) {
+            runDataClient.getLatestRunNumberAsync().whenComplete((latest, e) -> {
+                if (e != null) {
+                    log.warn("Could not read the latest RunNumber from the webserver: {}", e.toString());
+                } else {
+                    latestRunNumberTracker.observe(latest);
+                }
+            });
+        }
 
         /* Only run a new deployment, if the CR has a new RunNumber value (aka a higher value than in any current deployment) */
-//        int latestRunNumberDeployed = getLatestDeploymentRunNumberDeployed();
-        try {
-            createNewDeploymentIfNotExist(namespace, runNumber, runPipe);
-        } catch (IOException e) {
-            e.printStackTrace();
-            log.error("createOrReplaceDeployment failed", e);
-            /* Throwing an error should cause a new call to createOrUpdateResource() after a backoff period. Double check! */
-            throw new RuntimeException(e);
+        if (superseded) {
+            log.info("Skipping {}: RunNumber {} is older than the latest RunNumber {}",
+                    resource.getMetadata().getName(), runNumber, latestRunNumberTracker.get());
+            metrics.skippedEvents.inc("superseded");
+            return UpdateControl.noUpdate();
+        }
+        latestRunNumberTracker.observe(runNumber);
+
+        /* The RunAutoscaler changes the replicas while the run is going, the first deployment starts with minReplicas */
+        RunAutoscalingSpec autoscaling = resource.getSpec().getAutoscaling();
+        /* The replicas of a run are spread over the worker clusters, an autoscaled run stays in the local cluster where the RunAutoscaler scales it */
+        boolean spread = workerClusters != null && autoscaling == null;
+        if (autoscaling != null) {
+            runAutoscaler.register(namespace, resource.getMetadata().getName(), runNumber, deploymentNamespace, deploymentPerRunPipe, autoscaling);
+        } else {
+            runAutoscaler.unregister(namespace, resource.getMetadata().getName());
         }
 
-        /* Deletes all deployments where all the Pods in the deployment have finished/exited */
         /**
-         * Add back deleteFinishedDeployments() once java-operator-sdk support looping after X time
+         * The deployments are created on the reconcile executor, so a slow run does not block the events of the other runs.
+         * All the RunPipes of the run are submitted at once and created in parallel, so the run start takes about as long as the slowest create.
+         * Failures are retried per RunPipe by the executor, a newer event for the same run replaces the retry.
          */
-        /* deleteFinishedDeployments(); */
+        String statusMessage;
+        try (Tracer.Span ignored = tracer.startSpan("data-endpoints")) {
+            statusMessage = checkDataEndpoints(runPipes);
+        }
+
+        /* The switch to this run is measured until all its Pods are ready, it starts before any of its deployments exists */
+        boolean started = false;
+        for (String deploymentName : deploymentPerRunPipe.values()) {
+            started |= deploymentCache.get(deploymentNamespace, deploymentName) != null;
+        }
+        if (!started && !spread) {
+            runStandby.startSwitch(deploymentNamespace, runNumber, deploymentPerRunPipe);
+        }
+
+        /* The RunPipes without replicas fill the free capacity of the cluster, planned once when the run starts */
+        Map<String, Integer> plannedReplicas = capacityPlanner != null && autoscaling == null && !spread
+                ? getPlannedReplicas(deploymentNamespace, runNumber, runPipes) : Collections.emptyMap();
+
+        long startNanos = System.nanoTime();
+        List<CompletableFuture<Void>> appliedPipes = new ArrayList<>();
+        for (RunPipeSpec runPipe : runPipes) {
+            String deploymentName = getRunDeploymentName(runNumber, runPipe.getName());
+            Integer replicas = runPipe.getReplicas() == null && autoscaling != null ? Integer.valueOf(autoscaling.getMinReplicas()) : runPipe.getReplicas();
+            if (replicas == null) {
+                replicas = plannedReplicas.get(runPipe.getName());
+            }
+            if (spread) {
+                int totalReplicas = replicas != null ? replicas : deploymentTemplate.getTemplateReplicas();
+                boolean upToDate;
+                try (Tracer.Span span = tracer.startSpan("up-to-date")) {
+                    upToDate = isPlacedUpToDate(deploymentNamespace, runNumber, runPipe.getName(), totalReplicas);
+                    span.tag("tdaq.run_pipe", runPipe.getName()).tag("tdaq.up_to_date", upToDate);
+                }
+                if (!upToDate) {
+                    appliedPipes.add(reconcileExecutor.submit(getReconcileKey(namespace, runNumber, runPipe.getName()), timed("apply", runNumber, runPipe.getName(), () -> {
+                        if (latestRunNumberTracker.isSuperseded(runNumber)) {
+                            metrics.skippedEvents.inc("superseded");
+                            return null;
+                        }
+                        applyToClusters(deploymentNamespace, runNumber, runPipe.getName(), totalReplicas);
+                        return null;
+                    }), reconcileMaxAttempts));
+                }
+                continue;
+            }
+            Deployment liveDeployment = deploymentCache.get(deploymentNamespace, deploymentName);
+            boolean upToDate;
+            try (Tracer.Span span = tracer.startSpan("up-to-date")) {
+                upToDate = liveDeployment != null && isUpToDate(liveDeployment, deploymentNamespace, runNumber, runPipe.getName(), replicas, autoscaling != null,
+                        null);
+                span.tag("tdaq.run_pipe", runPipe.getName()).tag("tdaq.cached", liveDeployment != null).tag("tdaq.up_to_date", upToDate);
+            }
+            if (upToDate) {
+                /* Already deployed with the same spec, nothing to do for this RunPipe */
+                continue;
+            }
+            if (liveDeployment == null) {
+                readinessTracker.track(deploymentNamespace, deploymentName, runNumber);
+            }
+            appliedPipes.add(reconcileExecutor.submit(getReconcileKey(namespace, runNumber, runPipe.getName()), timed("apply", runNumber, runPipe.getName(), () -> {
+                /* Coalesce quick RunNumber bumps: a newer run started while this one was waiting for a thread */
+                if (latestRunNumberTracker.isSuperseded(runNumber)) {
+                    metrics.skippedEvents.inc("superseded");
+                    return null;
+                }
+                applyDeployment(deploymentNamespace, runNumber, runPipe.getName(), replicas, autoscaling != null);
+                return null;
+            }), reconcileMaxAttempts));
+        }
+        if (appliedPipes.isEmpty()) {
+            metrics.skippedEvents.inc("deployed");
+        }
+        if (appliedPipes.size() > 1) {
+            CompletableFuture.allOf(appliedPipes.toArray(new CompletableFuture[0])).thenRun(() ->
+                    log.info("Run {}: deployments for all {} RunPipes are in place after {}ms",
+                            runNumber, appliedPipes.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+        }
+
+        /* The deployments of the next run are applied ahead of time, once the ones of this run are in place so they do not compete */
+        if (runStandby.isEnabled() && !spread) {
+            CompletableFuture.allOf(appliedPipes.toArray(new CompletableFuture[0])).whenComplete((ignored, e) ->
+                    submitStandbyDeployments(namespace, deploymentNamespace, runNumber, runPipes));
+        }
+
+        /* Deployments of finished runs are deleted in the background by the FinishedRunReaper */
 
         /**
-         * TODO: add some notes/log to the status of the resource, to make it descriptive when queried by a human
+         * The status is never written back through the framework, that would replace the whole CR and send us a new event.
+         * The RunStatusUpdater writes it with a merge patch on the status subresource, at most once per flush window and only when it changed.
          */
+        statusUpdater.setMessage(namespace, resource.getMetadata().getName(), statusMessage);
 
-        return UpdateControl.updateCustomResource(resource);
+        return UpdateControl.noUpdate();
     }
 
     /**
-     * Finds the largest RunNumber in the cluster and returns it.
-     * Finds the number based on metadata labels for each Pod that have the tdaq-worker label
-     * @return The largest (aka latest) RunNumber of any deployment in the clusters that have the tdaq-worker label
+     * The replicas of the RunPipes without replicas: the ones of their deployment once it exists, so a run is never resized
+     * by a later reconcile, and the plan of the CapacityPlanner for the RunPipes that do not have a deployment yet.
+     * @return RunPipe name -> replicas, without the RunPipes the planner has no replicas for (it is not synced yet)
      */
-    private int getLatestDeploymentRunNumberDeployed() {
-        int largestRunNumber = -1;
-        DeploymentList deploymentList = kubernetesClient.apps().deployments().inAnyNamespace().withLabel(METADATA_LABEL_TDAQ_WORKER_KEY, METADATA_LABEL_TDAQ_WORKER_VALUE).list();
-        for (Deployment deployment : deploymentList.getItems()) {
-            String runNumberAsString = deployment.getMetadata().getLabels().getOrDefault(METADATA_LABEL_RUN_NUMBER_KEY, "-1");
-            try {
-                int deploymentRunNumber = Integer.parseInt(runNumberAsString);
-                if (largestRunNumber < deploymentRunNumber) {
-                    largestRunNumber = deploymentRunNumber;
+    @NotNull
+    private Map<String, Integer> getPlannedReplicas(@NotNull String deploymentNamespace, int runNumber, @NotNull List<RunPipeSpec> runPipes) {
+        Map<String, Integer> replicas = new HashMap<>();
+        boolean plan = false;
+        for (RunPipeSpec runPipe : runPipes) {
+            if (runPipe.getReplicas() != null) {
+                continue;
+            }
+            Deployment liveDeployment = deploymentCache.get(deploymentNamespace, getRunDeploymentName(runNumber, runPipe.getName()));
+            Integer liveReplicas = liveDeployment == null || liveDeployment.getSpec() == null ? null : liveDeployment.getSpec().getReplicas();
+            if (liveReplicas != null) {
+                replicas.put(runPipe.getName(), liveReplicas);
+            } else {
+                plan = true;
+            }
+        }
+        if (plan) {
+            Map<String, Integer> planned;
+            try (Tracer.Span span = tracer.startSpan("capacity-plan")) {
+                planned = capacityPlanner.plan(deploymentNamespace, runNumber, runPipes, runPipeName -> getRunDeploymentName(runNumber, runPipeName));
+                span.tag("tdaq.planned", String.valueOf(planned));
+            }
+            if (planned != null) {
+                for (Map.Entry<String, Integer> entry : planned.entrySet()) {
+                    replicas.putIfAbsent(entry.getKey(), entry.getValue());
                 }
-            } catch (NumberFormatException e) {
-                e.printStackTrace();
             }
         }
+        return replicas;
+    }
+
+    /**
+     * The namespace the run deployments are created in. Without a namespace pool this is the namespace of the RunResource.
+     * A run that already has deployments in its own namespace (e.g. created before the pool was enabled, or when the pool was empty) keeps them there.
+     * @param assign True to take a namespace from the pool if the run does not have one yet
+     */
+    @NotNull
+    private String getDeploymentNamespace(@NotNull RunResource resource, boolean assign) {
+        String namespace = resource.getMetadata().getNamespace();
+        if (namespacePool == null) {
+            return namespace;
+        }
+        String assigned = namespacePool.getAssigned(namespace, resource.getMetadata().getName());
+        if (assigned != null) {
+            return assigned;
+        }
+        int runNumber = resource.getSpec().getRunNumber();
+        for (RunPipeSpec runPipe : getRunPipes(resource.getSpec())) {
+            if (deploymentCache.get(namespace, getRunDeploymentName(runNumber, runPipe.getName())) != null) {
+                return namespace;
+            }
+        }
+        return assign ? namespacePool.assign(namespace, resource.getMetadata().getName(), namespace) : namespace;
+    }
 
-        return largestRunNumber;
+    /**
+     * Checks that the data-storage Service of every RunPipe is known, without calling the API server.
+     * A RunPipe without a Service is still submitted, its create fails fast and is retried until the Service shows up.
+     * @return A message for the CR status, or null if all the Services are available
+     */
+    @Nullable
+    private String checkDataEndpoints(List<RunPipeSpec> runPipes) {
+        StringBuilder message = null;
+        for (RunPipeSpec runPipe : runPipes) {
+            if (dataEndpointRegistry.resolve(runPipe.getName()) == null) {
+                if (message == null) {
+                    message = new StringBuilder("Waiting for the data-storage Service of RunPipe:");
+                }
+                message.append(' ').append(runPipe.getName());
+                log.error("No data-storage Service endpoint for RunPipe {}, the deployment is created once the Service is available", runPipe.getName());
+            }
+        }
+        return message == null ? null : message.toString();
     }
 
     /**
-     * Creates the run deployment organized and monitored by this Operator
-     * It modifies the deployment yaml file, by changing the name to include the RunNumber, and adds labels for the RunNumber and RunPipe.
-     * Inserts Environment variables to all the containers in each Pod, so that they have access to the RUN_NUMBER and RUN_PIPE inside the application.
-     * NOTE: You can use parameters/args to inject the RUN_NUMBER and RUN_PIPE values as well. Very easy to do.
+     * Creates or updates the run deployment organized and monitored by this Operator, with one server-side apply.
+     * The apply is skipped when the spec hash of the desired deployment matches the annotation on the cached live deployment,
+     * so a reconcile of an up-to-date run makes no API calls, and a changed template or data-storage Service is rolled out.
+     * Applies of the same deployment by two reconciles do not conflict, they both send the same desired state.
      * @param namespace The namespace that will be used for the deployment
      * @param runNumber The current RunNumber as fetched from the CR
      * @param runPipeName The current RunPipe type as fetched from the CR
-     * @throws IOException If unable to read the yaml file from the resources directory
-     */
-    private void createNewDeploymentIfNotExist(@NotNull String namespace, int runNumber, @NotNull String runPipeName) throws IOException {
-        try (InputStream yamlInputStream = getClass().getResourceAsStream(deploymentYamlPath)) {
-            Deployment newRunDeployment = kubernetesClient.apps().deployments().load(yamlInputStream).get();
-
-            /* Set the deployment name to include the RunNumber and be unique to not overwrite the other deployments */
-            String deploymentName = getRunDeploymentName(newRunDeployment, runNumber, runPipeName);
-
-            Deployment oldDeployment = kubernetesClient.apps().deployments().inNamespace(namespace).withName(deploymentName).get();
-            /* Checks if the deployment already exists, if so, do nothing */
-            if (oldDeployment == null) {
-                String serviceNamespace = "default";
-                String serviceName = "webserver-service";
-                Service service = kubernetesClient.services().inNamespace(serviceNamespace).withName(serviceName).get();
-
-                /* Set the metadata labels tdaq.run-number and tdaq.run-pipe for this deployment */
-                Map<String, String> labels = newRunDeployment.getMetadata().getLabels();
-                if (labels == null) {
-                    labels = new HashMap<>();
-                }
-                final String runNumberAsString = Integer.toString(runNumber);
-                labels.put(METADATA_LABEL_RUN_NUMBER_KEY, runNumberAsString);
-                labels.put(METADATA_LABEL_RUN_PIPE_KEY, runPipeName);
-                labels.put(METADATA_LABEL_TDAQ_WORKER_KEY, METADATA_LABEL_TDAQ_WORKER_VALUE);
-                newRunDeployment.getMetadata().setLabels(labels);
-
-                EnvVar envVarRunNumber = new EnvVar();
-                envVarRunNumber.setName(ENVIRONMENT_RUN_NUMBER_NAME);
-                envVarRunNumber.setValue(Integer.toString(runNumber));
-                EnvVar envVarRunPipe = new EnvVar();
-                envVarRunPipe.setName(ENVIRONMENT_RUN_PIPE_NAME);
-                envVarRunPipe.setValue(runPipeName);
-
-                /* Add the Service IP:PORT to the Pods, since they are not automatically available since the Pods are in a different namespace than the Service */
-                EnvVar envVarRunServiceHost = new EnvVar();
-                envVarRunServiceHost.setName("WEBSERVER_SERVICE_SERVICE_HOST");
-                envVarRunServiceHost.setValue(service.getSpec().getClusterIP());
-                EnvVar envVarRunServicePort = new EnvVar();
-                envVarRunServicePort.setName("WEBSERVER_SERVICE_SERVICE_PORT");
-                envVarRunServicePort.setValue(String.valueOf(service.getSpec().getPorts().get(0).getPort()));
-
-                List<Container> containerList = newRunDeployment.getSpec().getTemplate().getSpec().getContainers();
-                for (Container container : containerList) {
-                    /**
-                     * Add the RUN_NUMBER and RUN_PIPE environment value to each Container in the Pods.
-                     * NOTE: Pods can also take in parameters/args
-                     * WARNING: These injected environment variables will override the ones in the container, if they have the same name
-                     */
-                    List<EnvVar> envVarList = container.getEnv();
-                    if (envVarList == null) {
-                        envVarList = new ArrayList<>();
+     * @param replicas The number of Pods for this RunPipe, or null to use the replicas from the deployment template
+     * @param autoscaled True if the RunAutoscaler owns the replicas, then the live replicas are kept
+     */
+    private void applyDeployment(@NotNull String namespace, int runNumber, @NotNull String runPipeName, @Nullable Integer replicas, boolean autoscaled) {
+        applyDeployment(deploymentCache, patchClient, null, namespace, runNumber, runPipeName, replicas, autoscaled);
+    }
+
+    /**
+     * Applies the run deployment in the cluster of the given cache and patch client, see applyDeployment above
+     * @param dataEndpoint The data-storage webserver as seen from that cluster, null for the Service of the DataEndpointRegistry
+     */
+    private void applyDeployment(@NotNull WorkerDeploymentCache deploymentCache, @NotNull KubernetesPatchClient patchClient,
+                                 @Nullable DataEndpointRegistry.DataEndpoint dataEndpoint, @NotNull String namespace,
+                                 int runNumber, @NotNull String runPipeName, @Nullable Integer replicas, boolean autoscaled) {
+        String deploymentName = getRunDeploymentName(runNumber, runPipeName);
+        Deployment liveDeployment = deploymentCache.get(namespace, deploymentName);
+        Deployment desiredDeployment;
+        try (Tracer.Span ignored = tracer.startSpan("build-deployment")) {
+            desiredDeployment = buildDesiredDeployment(namespace, runNumber, runPipeName, replicas, autoscaled, liveDeployment, dataEndpoint);
+        }
+        if (liveDeployment != null && Objects.equals(getSpecHash(liveDeployment), getSpecHash(desiredDeployment))) {
+            return;
+        }
+        patchClient.patch(KubernetesPatchClient.deploymentPath(desiredDeployment.getMetadata().getNamespace(), deploymentName, null)
+                        + "?fieldManager=" + FIELD_MANAGER + "&force=true",
+                KubernetesPatchClient.APPLY_PATCH, Serialization.asJson(desiredDeployment));
+        log.info("{} deployment: {}", liveDeployment == null ? "Created" : "Updated", deploymentName);
+    }
+
+    /**
+     * Applies the run deployment of a RunPipe in every worker cluster that gets replicas, and deletes it from the clusters that get none.
+     * A cluster that can not be reached is left out for its back-off time, and the apply fails so the executor retries it with a new
+     * placement over the other clusters.
+     * @param totalReplicas The replicas of the RunPipe over all clusters
+     */
+    private void applyToClusters(@NotNull String namespace, int runNumber, @NotNull String runPipeName, int totalReplicas) {
+        String deploymentName = getRunDeploymentName(runNumber, runPipeName);
+        Map<WorkerClusters.Member, Integer> placement = workerClusters.place(namespace, deploymentName, totalReplicas);
+        KubernetesClientException failure = null;
+        for (Map.Entry<WorkerClusters.Member, Integer> entry : placement.entrySet()) {
+            WorkerClusters.Member member = entry.getKey();
+            WorkerDeploymentCache memberCache = member.getDeploymentCache();
+            try (Tracer.Span span = tracer.startSpan("cluster-apply")) {
+                span.tag("tdaq.cluster", member.getName()).tag("tdaq.replicas", entry.getValue());
+                try {
+                    if (entry.getValue() == 0) {
+                        if (memberCache.get(namespace, deploymentName) != null) {
+                            deleteDeployment(member, namespace, deploymentName);
+                        }
+                        continue;
+                    }
+                    if (!member.isLocal() && !memberCache.hasWorkerDeploymentsInNamespace(namespace)) {
+                        createWorkerNamespace(member, namespace);
                     }
-                    envVarList.add(envVarRunNumber);
-                    envVarList.add(envVarRunPipe);
-                    envVarList.add(envVarRunServiceHost);
-                    envVarList.add(envVarRunServicePort);
-                    container.setEnv(envVarList);
+                    applyDeployment(memberCache, member.getPatchClient(), member.getDataEndpoint(runPipeName), namespace, runNumber, runPipeName,
+                            entry.getValue(), false);
+                } catch (KubernetesClientException e) {
+                    span.error(e);
+                    workerClusters.markFailed(member, e);
+                    failure = e;
                 }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
 
-                newRunDeployment.getMetadata().setName(deploymentName);
+    /**
+     * Creates the namespace of the run in a remote worker cluster, with the worker namespace label so its NamespaceCleaner may
+     * delete it later on. A namespace that already exists is left as it is, and is never deleted by the Operator.
+     */
+    private void createWorkerNamespace(@NotNull WorkerClusters.Member member, @NotNull String namespace) {
+        try {
+            member.getClient().namespaces().create(new NamespaceBuilder()
+                    .withNewMetadata()
+                        .withName(namespace)
+                        .addToLabels(NamespaceCleaner.WORKER_NAMESPACE_LABEL_KEY, NamespaceCleaner.WORKER_NAMESPACE_LABEL_VALUE)
+                    .endMetadata()
+                    .build());
+        } catch (KubernetesClientException e) {
+            if (e.getCode() != HTTP_CONFLICT) {
+                throw e;
+            }
+        }
+    }
 
-                if (namespace == null || namespace.isEmpty()) {
-                    namespace = "default";
+    /**
+     * Deletes the run deployments from the remote worker clusters that have any of them, a cluster that is unavailable is skipped
+     * and its FinishedRunReaper deletes the deployments once the run is superseded
+     * @return True if they are deleted from every available cluster
+     */
+    private boolean deleteFromRemoteClusters(@NotNull String namespace, int runNumber, @NotNull List<String> runPipeNames,
+                                             @NotNull String runSelector) {
+        boolean deleted = true;
+        for (WorkerClusters.Member member : workerClusters.getMembers()) {
+            List<String> deploymentNames = new ArrayList<>();
+            for (String runPipeName : runPipeNames) {
+                String deploymentName = getRunDeploymentName(runNumber, runPipeName);
+                if (member.getDeploymentCache().get(namespace, deploymentName) != null) {
+                    deploymentNames.add(deploymentName);
                 }
-                newRunDeployment.getMetadata().setNamespace(namespace);
-                Deployment createdDeployment = kubernetesClient.apps().deployments().inNamespace(namespace).create(newRunDeployment);
+            }
+            if (member.isLocal() || deploymentNames.isEmpty()) {
+                continue;
+            }
+            if (!member.isAvailable()) {
+                log.warn("Worker cluster {} is unavailable, Deployments: {} are left for its reaper", member.getName(), deploymentNames);
+                continue;
+            }
+            try {
+                member.getNamespaceCleaner().deleteDeployments(namespace, runSelector);
+                for (String deploymentName : deploymentNames) {
+                    member.getDeploymentCache().evict(namespace, deploymentName);
+                }
+            } catch (KubernetesClientException e) {
+                workerClusters.markFailed(member, e);
+                log.warn("Cluster: {} Namespace: {} Deployments: {} were NOT deleted: {}", member.getName(), namespace, deploymentNames, e.getMessage());
+                deleted = false;
+            }
+        }
+        return deleted;
+    }
+
+    private boolean deleteDeployment(@NotNull WorkerClusters.Member member, @NotNull String namespace, @NotNull String deploymentName) {
+        if (member.isLocal()) {
+            return deleteDeployments(namespace, deploymentName);
+        }
+        Boolean isDeleted = member.getClient().apps().deployments().inNamespace(namespace).withName(deploymentName).delete();
+        if (Boolean.TRUE.equals(isDeleted)) {
+            member.getDeploymentCache().evict(namespace, deploymentName);
+            log.info("Cluster: {} Namespace: {} Deployment: {} is successfully deleted", member.getName(), namespace, deploymentName);
+            return true;
+        }
+        log.warn("Cluster: {} Namespace: {} Deployment: {} was NOT deleted", member.getName(), namespace, deploymentName);
+        return false;
+    }
+
+    /**
+     * Queues the cleanup of the run namespace in the available remote worker clusters
+     * @param labelSelector The deployments that are left to delete first, null if they are deleted
+     * @param runDeploymentNames The deployments of the deleted run, see NamespaceCleaner.cleanupAsync
+     */
+    private void cleanupRemoteNamespaces(@NotNull String namespace, @Nullable String labelSelector, @NotNull List<String> runDeploymentNames) {
+        for (WorkerClusters.Member member : workerClusters.getMembers()) {
+            if (member.isLocal() || !member.isAvailable() || member.getNamespaceCleaner() == null) {
+                continue;
+            }
+            member.getNamespaceCleaner().cleanupAsync(namespace, labelSelector, runDeploymentNames);
+        }
+    }
+
+    /**
+     * @return True if the RunPipe has a placement over the worker clusters that adds up to totalReplicas, and every deployment
+     * of it was applied from the same desired state
+     */
+    private boolean isPlacedUpToDate(@NotNull String namespace, int runNumber, @NotNull String runPipeName, int totalReplicas) {
+        String deploymentName = getRunDeploymentName(runNumber, runPipeName);
+        Map<WorkerClusters.Member, Integer> placement = workerClusters.getLivePlacement(namespace, deploymentName, totalReplicas);
+        if (placement == null) {
+            return false;
+        }
+        for (Map.Entry<WorkerClusters.Member, Integer> entry : placement.entrySet()) {
+            Deployment liveDeployment = entry.getKey().getDeploymentCache().get(namespace, deploymentName);
+            if (liveDeployment == null || !isUpToDate(liveDeployment, namespace, runNumber, runPipeName, entry.getValue(), false,
+                    entry.getKey().getDataEndpoint(runPipeName))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Submits the standby deployments of the run after runNumber, serialized with the applies of that run
+     */
+    private void submitStandbyDeployments(@NotNull String namespace, @NotNull String deploymentNamespace, int runNumber,
+                                          @NotNull List<RunPipeSpec> runPipes) {
+        for (RunPipeSpec runPipe : runPipes) {
+            if (getRunDeploymentName(runNumber + 1, runPipe.getName()).equals(runStandby.getStandby(deploymentNamespace, runPipe.getName()))) {
+                continue;
+            }
+            reconcileExecutor.submit(getReconcileKey(namespace, runNumber + 1, runPipe.getName()), timed("standby", runNumber + 1, runPipe.getName(), () -> {
+                /* Once run N+1 is seen its own apply takes over */
+                if (!latestRunNumberTracker.isSuperseded(runNumber)) {
+                    applyStandbyDeployment(deploymentNamespace, runNumber + 1, runPipe.getName());
+                }
+                return null;
+            }), reconcileMaxAttempts);
+        }
+    }
+
+    /**
+     * Applies the standby deployment of a run that has not started yet, see RunStandby.
+     * It is the desired deployment of the run without the worker and RunNumber labels, so the Operator does not see it as a run,
+     * and without the spec hash, so the first apply of the run always takes it over.
+     * The containers run the standby command without probes, and the standby deployment it replaces is deleted.
+     */
+    private void applyStandbyDeployment(@NotNull String namespace, int runNumber, @NotNull String runPipeName) {
+        String deploymentName = getRunDeploymentName(runNumber, runPipeName);
+        if (deploymentCache.get(namespace, deploymentName) != null) {
+            /* The run already started */
+            return;
+        }
+        Deployment standbyDeployment = buildDesiredDeployment(namespace, runNumber, runPipeName, null, false, null, null);
+        Map<String, String> labels = standbyDeployment.getMetadata().getLabels();
+        labels.remove(METADATA_LABEL_TDAQ_WORKER_KEY);
+        labels.remove(METADATA_LABEL_RUN_NUMBER_KEY);
+        labels.put(RunStandby.STANDBY_LABEL_KEY, RunStandby.STANDBY_LABEL_VALUE);
+        standbyDeployment.getMetadata().getAnnotations().remove(SPEC_HASH_ANNOTATION);
+        standbyDeployment.getSpec().setReplicas(runStandby.getWarmReplicas());
+        for (Container container : standbyDeployment.getSpec().getTemplate().getSpec().getContainers()) {
+            container.setCommand(runStandby.getCommand());
+            container.setArgs(Collections.emptyList());
+            container.setReadinessProbe(null);
+            container.setLivenessProbe(null);
+        }
+        patchClient.patch(KubernetesPatchClient.deploymentPath(standbyDeployment.getMetadata().getNamespace(), deploymentName, null)
+                        + "?fieldManager=" + FIELD_MANAGER + "&force=true",
+                KubernetesPatchClient.APPLY_PATCH, Serialization.asJson(standbyDeployment));
+        log.info("Applied standby deployment: {} with {} warm replicas", deploymentName, runStandby.getWarmReplicas());
+        String previous = runStandby.setStandby(namespace, runPipeName, deploymentName);
+        if (previous != null) {
+            /* The standby of a run that was skipped */
+            deleteDeployments(standbyDeployment.getMetadata().getNamespace(), previous);
+        }
+    }
+
+    /**
+     * @param dataEndpoint The data-storage webserver as seen from the cluster of the deployment, null for the local Service
+     * @return True if the live deployment was applied from the same desired state, false if it has to be applied (again)
+     */
+    private boolean isUpToDate(@NotNull Deployment liveDeployment, @NotNull String namespace, int runNumber, @NotNull String runPipeName,
+                               @Nullable Integer replicas, boolean autoscaled, @Nullable DataEndpointRegistry.DataEndpoint dataEndpoint) {
+        String liveHash = getSpecHash(liveDeployment);
+        if (liveHash == null) {
+            return false;
+        }
+        try {
+            return liveHash.equals(getSpecHash(buildDesiredDeployment(namespace, runNumber, runPipeName, replicas, autoscaled, liveDeployment,
+                    dataEndpoint)));
+        } catch (DataEndpointRegistry.DataEndpointUnavailableException e) {
+            /* Submit it, the apply fails fast and is retried until the Service shows up */
+            return false;
+        }
+    }
+
+    /**
+     * Builds the desired run deployment from the template.
+     * It changes the name to include the RunNumber, and adds labels for the RunNumber and RunPipe.
+     * Inserts Environment variables to all the containers in each Pod, so that they have access to the RUN_NUMBER and RUN_PIPE inside the application.
+     * NOTE: You can use parameters/args to inject the RUN_NUMBER and RUN_PIPE values as well. Very easy to do.
+     * The hash of the result is set in the SPEC_HASH_ANNOTATION.
+     * @param liveDeployment The cached deployment if it exists, its replicas are kept when the run is autoscaled
+     * @param remoteDataEndpoint The configured data-storage address of a remote worker cluster, null for the local Service
+     */
+    @NotNull
+    private Deployment buildDesiredDeployment(@NotNull String namespace, int runNumber, @NotNull String runPipeName, @Nullable Integer replicas,
+                                              boolean autoscaled, @Nullable Deployment liveDeployment,
+                                              @Nullable DataEndpointRegistry.DataEndpoint remoteDataEndpoint) {
+        /* Set the deployment name to include the RunNumber and be unique to not overwrite the other deployments */
+        String deploymentName = getRunDeploymentName(runNumber, runPipeName);
+
+        /* A deep copy of the cached template, so it is safe to modify it */
+        Deployment newRunDeployment = deploymentTemplate.newInstance();
+
+        /* Read from the watched Service, throws a DataEndpointUnavailableException if the Service does not exist (yet). Its ClusterIP
+         * can not be reached from another cluster, there the configured address is used */
+        DataEndpointRegistry.DataEndpoint dataEndpoint = remoteDataEndpoint != null ? remoteDataEndpoint : dataEndpointRegistry.require(runPipeName);
+
+        /* Set the metadata labels tdaq.run-number and tdaq.run-pipe for this deployment */
+        Map<String, String> labels = newRunDeployment.getMetadata().getLabels();
+        if (labels == null) {
+            labels = new HashMap<>();
+        }
+        final String runNumberAsString = Integer.toString(runNumber);
+        labels.put(METADATA_LABEL_RUN_NUMBER_KEY, runNumberAsString);
+        labels.put(METADATA_LABEL_RUN_PIPE_KEY, runPipeName);
+        labels.put(METADATA_LABEL_TDAQ_WORKER_KEY, METADATA_LABEL_TDAQ_WORKER_VALUE);
+        newRunDeployment.getMetadata().setLabels(labels);
+
+        EnvVar envVarRunNumber = new EnvVar();
+        envVarRunNumber.setName(ENVIRONMENT_RUN_NUMBER_NAME);
+        envVarRunNumber.setValue(Integer.toString(runNumber));
+        EnvVar envVarRunPipe = new EnvVar();
+        envVarRunPipe.setName(ENVIRONMENT_RUN_PIPE_NAME);
+        envVarRunPipe.setValue(runPipeName);
 
-                log.info("Created deployment: {}", deploymentYamlPath);
+        /* Add the Service IP:PORT to the Pods, since they are not automatically available since the Pods are in a different namespace than the Service */
+        EnvVar envVarRunServiceHost = new EnvVar();
+        envVarRunServiceHost.setName("WEBSERVER_SERVICE_SERVICE_HOST");
+        envVarRunServiceHost.setValue(dataEndpoint.getHost());
+        EnvVar envVarRunServicePort = new EnvVar();
+        envVarRunServicePort.setName("WEBSERVER_SERVICE_SERVICE_PORT");
+        envVarRunServicePort.setValue(String.valueOf(dataEndpoint.getPort()));
+        EnvVar envVarRunStateUrl = null;
+        if (runStateUrl != null) {
+            envVarRunStateUrl = new EnvVar();
+            envVarRunStateUrl.setName(ENVIRONMENT_RUN_STATE_URL_NAME);
+            envVarRunStateUrl.setValue(runStateUrl);
+        }
+
+        List<Container> containerList = newRunDeployment.getSpec().getTemplate().getSpec().getContainers();
+        for (Container container : containerList) {
+            /**
+             * Add the RUN_NUMBER and RUN_PIPE environment value to each Container in the Pods.
+             * NOTE: Pods can also take in parameters/args
+             * WARNING: These injected environment variables will override the ones in the container, if they have the same name
+             */
+            List<EnvVar> envVarList = container.getEnv();
+            if (envVarList == null) {
+                envVarList = new ArrayList<>();
+            }
+            envVarList.add(envVarRunNumber);
+            envVarList.add(envVarRunPipe);
+            envVarList.add(envVarRunServiceHost);
+            envVarList.add(envVarRunServicePort);
+            if (envVarRunStateUrl != null) {
+                envVarList.add(envVarRunStateUrl);
             }
-        } catch (IOException ex) {
-            log.error("createOrReplaceDeployment failed", ex);
-            throw ex;
+            container.setEnv(envVarList);
+        }
+
+        newRunDeployment.getMetadata().setName(deploymentName);
+        if (namespace == null || namespace.isEmpty()) {
+            namespace = "default";
+        }
+        newRunDeployment.getMetadata().setNamespace(namespace);
+
+        /* The replicas of an autoscaled run are not part of the hash, so scaling does not look like a changed spec */
+        if (replicas != null && !autoscaled) {
+            newRunDeployment.getSpec().setReplicas(replicas);
+        } else if (autoscaled) {
+            newRunDeployment.getSpec().setReplicas(null);
+        }
+        Map<String, String> annotations = newRunDeployment.getMetadata().getAnnotations();
+        if (annotations == null) {
+            annotations = new HashMap<>();
+            newRunDeployment.getMetadata().setAnnotations(annotations);
+        }
+        annotations.remove(SPEC_HASH_ANNOTATION);
+        annotations.put(SPEC_HASH_ANNOTATION, hash(newRunDeployment));
+        if (autoscaled) {
+            Integer liveReplicas = liveDeployment == null || liveDeployment.getSpec() == null ? null : liveDeployment.getSpec().getReplicas();
+            newRunDeployment.getSpec().setReplicas(liveReplicas != null ? liveReplicas : replicas);
+        }
+        return newRunDeployment;
+    }
+
+    @Nullable
+    private static String getSpecHash(@NotNull Deployment deployment) {
+        Map<String, String> annotations = deployment.getMetadata().getAnnotations();
+        return annotations == null ? null : annotations.get(SPEC_HASH_ANNOTATION);
+    }
+
+    /**
+     * The first 16 hex digits of the SHA-256 of the desired deployment JSON, with the map keys sorted so the hash is stable
+     */
+    @NotNull
+    private static String hash(@NotNull Deployment deployment) {
+        String json;
+        try {
+            json = HASH_MAPPER.writeValueAsString(deployment);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize deployment " + deployment.getMetadata().getName(), e);
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(json.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
         }
     }
 
@@ -256,6 +992,7 @@ public class RunController implements ResourceController<RunResource> {
             isDeleted = false;
         }
         if (isDeleted) {
+            deploymentCache.evict(namespace, deploymentName);
             log.info("Namespace: {} Deployment: {} is successfully deleted", namespace, deploymentName);
         } else {
             log.warn("Namespace: {} Deployment: {} was NOT deleted", namespace, deploymentName);
@@ -264,105 +1001,119 @@ public class RunController implements ResourceController<RunResource> {
     }
 
 
-    private boolean deleteNamespaceIfEmpty(String namespace) {
-        Boolean isDeleted = false;
-        DeploymentList aDeploymentList = kubernetesClient.apps().deployments().inNamespace(namespace).list();
-        if (aDeploymentList.getItems().isEmpty()) {
-            isDeleted = kubernetesClient.namespaces().withName(namespace).delete();
-            if (isDeleted == null) {
-                isDeleted = false;
-            }
-            if (isDeleted) {
-                log.info("Namespace: {} is successfully deleted", namespace);
-            } else {
-                log.warn("Namespace: {} was NOT deleted", namespace);
-            }
-        }
+    /**
+     * Used to create a name that makes it easy to identify which run this deployment belongs to.
+     * This must be used when CREATING a new deployment and when DELETING the same deployment.
+     * The name will be in this format, where N is a number [0-9]:
+     *  <template-deployment-name>-<NNNNNNNNNN>-<runType>
+     * @param currentRunNumber
+     * @param runPipeName
+     * @return
+     */
+    @NotNull
+    private String getRunDeploymentName(int currentRunNumber, String runPipeName) {
+        String formattedRunNumber = String.format("%0" + runNumberPaddingSize + "d", currentRunNumber);
+        return deploymentTemplate.getTemplateName() + "-" + formattedRunNumber + "-" + runPipeName;
+    }
 
-        return isDeleted;
+    /**
+     * The label selector of all worker deployments of the run, the RunPipes keep apart the runs of other CRs in the same namespace
+     */
+    @NotNull
+    private static String getRunSelector(int runNumber, @NotNull List<String> runPipeNames) {
+        return METADATA_LABEL_TDAQ_WORKER_KEY + "=" + METADATA_LABEL_TDAQ_WORKER_VALUE + ","
+                + METADATA_LABEL_RUN_NUMBER_KEY + "=" + runNumber + ","
+                + METADATA_LABEL_RUN_PIPE_KEY + " in (" + String.join(",", runPipeNames) + ")";
     }
 
     /**
-     * NOTE: This model to delete Deployments and Pods does NOT work with the current K8S versions.
-     * K8S does NOT allow pods in a deployment to stop on itself. You must set "restartPolicy: Always", no other
-     * options are allowed, setting a different restartPolicy is only allowed for Pods running outside of a
-     * Deployment or Replicaset. Check out the github issue to see if there is any changes made regarding this:
-     * For a deployment, only the "restartPolicy: Always" is supported, a Pod spec supports [Always, OnFailure, Never]
-     * See: https://github.com/kubernetes/kubernetes/issues/24725#issuecomment-214513280
-     *
-     *
-     * Deletes all deployments where all the pods are finished running.
-     * NOTE: We assume the Pods terminate and are not rebooted after they exit/are finished. Probably use policy: OnFailure. Read more here:
-     *  https://kubernetes.io/docs/concepts/workloads/pods/pod-lifecycle/#restart-policy
-     *  https://kubernetes.io/docs/concepts/workloads/controllers/deployment/#pod-template
-     *
-     * TODO: Make this non-static once the java-operator-sdk has support for looping after X time
-     *  See: https://github.com/ContainerSolutions/java-operator-sdk/issues/157
-     *  Set the function back to private, once it is looping as part of createOrUpdateResource()!
-     */
-    public static void deleteFinishedDeploymentsOld(final KubernetesClient kubernetesClient) {
-        /**
-         *  NOTE: If we query too many Pods at once (from 3000(?)-5000(?) and more. Not sure about the exact number),
-         *  it could cause a timeout problem when we query the API Server.
-         *  The SIG-Scalability group should have some answers regarding this. Check out their video from KubeCon December/September 2018 on YouTube.
-         *
-         *  Instead we could query based on namespaces or more refined labels? But then we have to be sure we will not miss deployments for a certain run!
-         */
-        DeploymentList deploymentList = kubernetesClient.apps().deployments().inAnyNamespace().withLabel(METADATA_LABEL_TDAQ_WORKER_KEY, METADATA_LABEL_TDAQ_WORKER_VALUE).list();
-        for (Deployment deployment : deploymentList.getItems()) {
-            /**
-             * TODO: Test which of these replica count values are the one I want to use!?
-             */
-            try {
+     * Starts the trace of a RunResource event, tagged with the run and the retry attempt of the framework
+     */
+    @NotNull
+    private Tracer.Span startTrace(String name, @NotNull RunResource resource, int attempt) {
+        return tracer.startTrace(name)
+                .tag("tdaq.namespace", resource.getMetadata().getNamespace())
+                .tag("tdaq.run_resource", resource.getMetadata().getName())
+                .tag("tdaq.run_number", resource.getSpec().getRunNumber())
+                .tag("tdaq.retry_attempt", attempt);
+    }
 
-                Integer currentReplicas = deployment.getStatus().getReplicas(); /* This should be currently running, bad and good. Probably the one I want, but make sure and test it!! */
-                /*
-                deployment.getStatus().getAvailableReplicas();
-                deployment.getStatus().getReadyReplicas();
-                deployment.getStatus().getUnavailableReplicas();
-                deployment.getStatus().getUpdatedReplicas();
-                DeploymentStatus stat = deployment.getStatus();
-                 */
-
-                /*
-                deployment.getSpec().getReplicas(); // This probably has the originally deployed number of replicas. Probably not the one we want.
-                */
-
-                /**
-                 * TODO: Unsure about how to handle null values. What does "null" mean? That the value is inaccessible, unknown or just does not exists in the cluster? Should we delete or not when null?
-                 */
-                if (currentReplicas != null
-                        && currentReplicas.intValue() == 0
-                ) {
-                    String deploymentName = deployment.getMetadata().getName();
-                    String namespace = deployment.getMetadata().getNamespace();
-                    Boolean isDeleted = kubernetesClient.apps().deployments().inNamespace(namespace).withName(deploymentName).delete();
-                    if (!isDeleted) {
-                        /**
-                         * TODO: What to do on failure to delete Deployment? Just accept for now and try again later?
-                         */
-                    }
+    /**
+     * Wraps reconcile work so the duration and outcome of every attempt end up in the reconcile latency histogram,
+     * and attempts after the first one are counted as executor retries.
+     * Every attempt is a span below the reconcile that submitted the work, with the time it waited for the executor.
+     * @param operation The label used in the metrics and the name of the span, e.g. create or delete
+     */
+    @NotNull
+    private <T> Callable<T> timed(String operation, int runNumber, String runPipeName, Callable<T> work) {
+        AtomicInteger attempts = new AtomicInteger();
+        Tracer.Span parent = tracer.current();
+        long submitNanos = System.nanoTime();
+        return () -> {
+            int attempt = attempts.incrementAndGet();
+            if (attempt > 1) {
+                metrics.retries.inc("executor");
+            }
+            long startNanos = System.nanoTime();
+            String outcome = "error";
+            try (Tracer.Span span = tracer.startSpan(parent, operation)) {
+                span.tag("tdaq.run_number", runNumber)
+                        .tag("tdaq.run_pipe", runPipeName)
+                        .tag("tdaq.retry_attempt", attempt - 1)
+                        .tag("tdaq.queue_wait_millis", TimeUnit.NANOSECONDS.toMillis(startNanos - submitNanos));
+                try {
+                    T result = work.call();
+                    outcome = "success";
+                    return result;
+                } catch (Exception e) {
+                    span.error(e);
+                    throw e;
                 }
-            } catch (NullPointerException e) {
-                e.printStackTrace();
+            } finally {
+                metrics.reconcileDuration.observeNanos(System.nanoTime() - startNanos, operation, outcome);
             }
+        };
+    }
+
+    /**
+     * Returns the RunPipes of the CR. If the CR has no runPipes list, the single runPipe is used with the replicas from the template.
+     */
+    @NotNull
+    private static List<RunPipeSpec> getRunPipes(@NotNull RunResourceSpec spec) {
+        List<RunPipeSpec> runPipes = spec.getRunPipes();
+        if (runPipes != null && !runPipes.isEmpty()) {
+            return runPipes;
         }
+        RunPipeSpec runPipe = new RunPipeSpec();
+        runPipe.setName(spec.getRunPipe());
+        return Collections.singletonList(runPipe);
+    }
+
+    boolean isOwned(@NotNull RunResource resource) {
+        return shardCoordinator == null || shardCoordinator.owns(getShardKey(resource));
     }
 
     /**
-     * Used to create a name that makes it easy to identify which run this deployment belongs to.
-     * This must be used when CREATING a new deployment and when DELETING the same deployment.
-     * The name will be in this format, where N is a number [0-9]:
-     *  <template-deployment-name>-<NNNNNNNNNN>-<runType>
-     * @param deployment
-     * @param currentRunNumber
-     * @param runPipeName
-     * @return
+     * The key RunResources are sharded on across the Operator replicas: the namespace, or the RunPipes with TDAQ_SHARD_BY=run-pipe
      */
     @NotNull
-    private String getRunDeploymentName(Deployment deployment, int currentRunNumber, String runPipeName) {
-        String formattedRunNumber = String.format("%0" + runNumberPaddingSize + "d", currentRunNumber);
-        return deployment.getMetadata().getName() + "-" + formattedRunNumber + "-" + runPipeName;
+    private String getShardKey(@NotNull RunResource resource) {
+        if (!shardByRunPipe) {
+            return resource.getMetadata().getNamespace();
+        }
+        StringBuilder key = new StringBuilder();
+        for (RunPipeSpec runPipe : getRunPipes(resource.getSpec())) {
+            key.append(runPipe.getName()).append(',');
+        }
+        return key.toString();
+    }
+
+    /**
+     * The key used to serialize the reconcile work of one run, events with different keys are reconciled in parallel
+     */
+    @NotNull
+    private static String getReconcileKey(String namespace, int runNumber, String runPipeName) {
+        return namespace + "/" + runNumber + "/" + runPipeName;
     }
 
     /**
@@ -390,67 +1141,4 @@ public class RunController implements ResourceController<RunResource> {
         String formattedRunNumber = String.format("%0" + runNumberPaddingSize + "d", currentRunNumber);
         return deploymentName.contains(formattedRunNumber);
     }
-
-    private static int getLatestRunNumberFromWebserver() throws IOException {
-        String json = webserverGetRequest(-1);
-        JsonParser parser = new JsonParser();
-        return parser.parse(json).getAsJsonObject().get("latestRunNumber").getAsInt();
-    }
-
-    private static String webserverGetRequest(int runNumber) throws IOException {
-        String service_host_ip = System.getenv("WEBSERVER_SERVICE_SERVICE_HOST");
-        String service_host_post = System.getenv("WEBSERVER_SERVICE_SERVICE_PORT");
-        String urlString = "http://" + service_host_ip + ":" + service_host_post + "/?run=" + Integer.toString(runNumber);
-        URL url = new URL(urlString);
-        HttpURLConnection con = (HttpURLConnection) url.openConnection();
-        con.setRequestMethod("GET");
-
-        /* int status = con.getResponseCode(); */
-        BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-        String inputLine;
-        StringBuffer content = new StringBuffer();
-        while ((inputLine = in.readLine()) != null) {
-            content.append(inputLine);
-        }
-        in.close();
-
-        return content.toString();
-    }
-
-    final static String RUN_NUMBER_MAP_KEY = "runNumber";
-    final static String RUN_CONTROLLER_CR_NAME = "runcontroller-cr";
-    private static void updateRuncontrollerCR(final KubernetesClient kubernetesClient) throws IOException {
-        final String crdName = "runresources.operator.tdaq.cern.ch";
-
-        CustomResourceDefinition runControllerCrd = kubernetesClient.customResourceDefinitions().withName(crdName).get();
-        CustomResourceDefinitionContext context = CustomResourceDefinitionContext.fromCrd(runControllerCrd);
-
-        MixedOperation<RunResource, RunResourceList, DoneableRunResource, Resource<RunResource, DoneableRunResource>> crClient = kubernetesClient
-                .customResources(context, RunResource.class, RunResourceList.class, DoneableRunResource.class);
-
-        /**
-         * Note: CR's can be cluster wide or in a given namespace. If we want to use more than one namespace, we need to get the correct namespace here
-         */
-        /**
-         * This did not work for some reason...??? I have to use the "Typeless API" instead of the "Typed API"
-         */
-//        RunResource customResource = crClient.inNamespace("default").withName("runcontroller-cr").get(); /* TODO: fix how to get a generic runcontroller CR, name can change. Use label or something */
-//        RunResourceSpec spec = customResource.getSpec();
-//        int nextRunNumber = spec.getRunNumber() + 1;
-//        spec.setRunNumber(nextRunNumber);
-
-        /* TODO: set some status, like "LastUpdate" in the RunControllerCustomResource's status*/
-        /* Update the CR with the new data aka new RunNumber */
-        /* customResource = crClient.inNamespace("default").updateStatus(customResource); */
-
-        //crClient.createOrReplace(customResource);
-        //crClient.updateStatus(customResource);
-
-        Map<String, Object> runcontrollerCR = kubernetesClient.customResource(context).get("default", RUN_CONTROLLER_CR_NAME);
-
-
-        int newRunNumber = 1 + (int) ((HashMap<String, Object>) runcontrollerCR.get("spec")).getOrDefault(RUN_NUMBER_MAP_KEY, -1); /* Not yet tested */
-        ((HashMap<String, Object>)runcontrollerCR.get("spec")).put(RUN_NUMBER_MAP_KEY, newRunNumber);
-        runcontrollerCR = kubernetesClient.customResource(context).edit("default", RUN_CONTROLLER_CR_NAME, new ObjectMapper().writeValueAsString(runcontrollerCR));
-    }
 }
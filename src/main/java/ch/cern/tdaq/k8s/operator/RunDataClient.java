@@ -0,0 +1,241 @@
+package ch.cern.tdaq.k8s.operator;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Client for the data-storage webserver (webserver/webserver.js), which knows the latest RunNumber the worker Pods have reported.
+ *
+ * One HttpClient is shared by all calls, so the connections to the webserver are kept alive and reused, and the calls are non-blocking.
+ * The JSON response is parsed as a stream from the received bytes, only the fields we need are read.
+ * The latest RunNumber is cached for a short time, and concurrent callers share one in-flight request instead of each sending their own.
+ */
+public class RunDataClient implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(RunDataClient.class);
+
+    private final Supplier<DataEndpointRegistry.DataEndpoint> endpointSupplier;
+    private final Duration requestTimeout;
+    private final long cacheTtlNanos;
+    private final ExecutorService executor;
+    private final HttpClient httpClient;
+
+    /* The last (or the in-flight) latest RunNumber request */
+    private final AtomicReference<CachedRunNumber> latestRunNumber = new AtomicReference<>();
+
+    private final LongAdder requestsTotal = new LongAdder();
+    private final LongAdder failuresTotal = new LongAdder();
+    private final LongAdder cacheHitsTotal = new LongAdder();
+
+    /**
+     * @param endpointSupplier The ClusterIP:PORT of the webserver, called for every request so a moved Service is picked up
+     * @param cacheTtlMillis How long a latest RunNumber is reused, 0 to only share in-flight requests
+     */
+    public RunDataClient(@NotNull Supplier<DataEndpointRegistry.DataEndpoint> endpointSupplier, long connectTimeoutMillis,
+                         long requestTimeoutMillis, long cacheTtlMillis) {
+        this.endpointSupplier = endpointSupplier;
+        this.requestTimeout = Duration.ofMillis(requestTimeoutMillis);
+        this.cacheTtlNanos = TimeUnit.MILLISECONDS.toNanos(cacheTtlMillis);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "run-data-client-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+                .executor(executor)
+                .build();
+    }
+
+    /**
+     * @return The latest RunNumber known by the webserver. Completes exceptionally if the webserver can not be reached or answers with an error
+     */
+    @NotNull
+    public CompletableFuture<Integer> getLatestRunNumberAsync() {
+        while (true) {
+            CachedRunNumber cached = latestRunNumber.get();
+            if (cached != null && cached.isUsable(System.nanoTime())) {
+                cacheHitsTotal.increment();
+                return cached.future.copy();
+            }
+            CachedRunNumber request = new CachedRunNumber();
+            if (!latestRunNumber.compareAndSet(cached, request)) {
+                /* Someone else just started a request, share that one */
+                continue;
+            }
+            /* -1 never moves the latest RunNumber of the webserver, it only reads it */
+            query(-1).whenComplete((result, e) -> {
+                if (e != null) {
+                    /* Never cache a failure, the next caller tries again */
+                    latestRunNumber.compareAndSet(request, null);
+                    request.future.completeExceptionally(e);
+                } else {
+                    request.expiresNanos = System.nanoTime() + cacheTtlNanos;
+                    request.future.complete(result.getLatestRunNumber());
+                }
+            });
+            return request.future.copy();
+        }
+    }
+
+    /**
+     * Sends GET /?run=runNumber to the webserver, see webserver/webserver.js
+     */
+    @NotNull
+    public CompletableFuture<RunQueryResult> query(int runNumber) {
+        DataEndpointRegistry.DataEndpoint endpoint;
+        try {
+            endpoint = endpointSupplier.get();
+        } catch (RuntimeException e) {
+            failuresTotal.increment();
+            return CompletableFuture.failedFuture(e);
+        }
+        return query(endpoint, runNumber);
+    }
+
+    /**
+     * Like query(runNumber), but against the webserver of a given data-storage Service, e.g. the one of a RunPipe
+     */
+    @NotNull
+    public CompletableFuture<RunQueryResult> query(@NotNull DataEndpointRegistry.DataEndpoint endpoint, int runNumber) {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://" + endpoint.getHost() + ":" + endpoint.getPort() + "/?run=" + runNumber))
+                .timeout(requestTimeout)
+                .header("Accept", "application/json")
+                .GET()
+                .build();
+        requestsTotal.increment();
+        /* The body is small and read into memory by the HttpClient, a body stream would block its executor threads while they
+           are needed to receive the bytes, so two concurrent requests could wait on each other forever */
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(RunDataClient::parseResponse)
+                /* The request timeout only covers the response headers, this also covers the body */
+                .orTimeout(requestTimeout.toMillis() * 2, TimeUnit.MILLISECONDS)
+                .whenComplete((result, e) -> {
+                    if (e != null) {
+                        failuresTotal.increment();
+                        log.debug("GET {} failed", request.uri(), e);
+                    }
+                });
+    }
+
+    @NotNull
+    static RunQueryResult parseResponse(@NotNull HttpResponse<byte[]> response) {
+        if (response.statusCode() != 200) {
+            throw new RunDataException("GET " + response.uri() + " failed: " + response.statusCode());
+        }
+        try (InputStream body = new ByteArrayInputStream(response.body())) {
+            return parse(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads {"shutdown": false, "totalCalls": 12, "latestRunNumber": 42} without building a tree of the whole document
+     */
+    @NotNull
+    static RunQueryResult parse(@NotNull InputStream body) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        boolean shutdown = false;
+        long totalCalls = 0;
+        Integer latestRunNumber = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "shutdown":
+                    shutdown = reader.nextBoolean();
+                    break;
+                case "totalCalls":
+                    totalCalls = reader.nextLong();
+                    break;
+                case "latestRunNumber":
+                    latestRunNumber = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (latestRunNumber == null) {
+            throw new RunDataException("The webserver response has no latestRunNumber");
+        }
+        return new RunQueryResult(shutdown, totalCalls, latestRunNumber);
+    }
+
+    public long getRequestsTotal() { return requestsTotal.sum(); }
+    public long getFailuresTotal() { return failuresTotal.sum(); }
+    public long getCacheHitsTotal() { return cacheHitsTotal.sum(); }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static final class CachedRunNumber {
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+        /* Set when the request completed, a request in flight is always shared */
+        private volatile long expiresNanos;
+
+        private boolean isUsable(long nowNanos) {
+            return !future.isDone() || (!future.isCompletedExceptionally() && nowNanos - expiresNanos < 0);
+        }
+    }
+
+    /**
+     * The answer of the webserver to GET /?run=runNumber
+     */
+    public static final class RunQueryResult {
+        private final boolean shutdown;
+        private final long totalCalls;
+        private final int latestRunNumber;
+
+        public RunQueryResult(boolean shutdown, long totalCalls, int latestRunNumber) {
+            this.shutdown = shutdown;
+            this.totalCalls = totalCalls;
+            this.latestRunNumber = latestRunNumber;
+        }
+
+        public boolean isShutdown() { return shutdown; }
+        public long getTotalCalls() { return totalCalls; }
+        public int getLatestRunNumber() { return latestRunNumber; }
+    }
+
+    /**
+     * Thrown when the webserver answers, but not with what we expect
+     */
+    public static class RunDataException extends RuntimeException {
+        public RunDataException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package ch.cern.tdaq.k8s.operator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An append-only record of the runs: when the deployment of every RunPipe of a run started and stopped, its namespace and
+ * name. It is kept in a memory-mapped file on a volume, so it survives restarts.
+ *
+ * The file has a 16 byte header (magic, format version, end of the last complete record) and length-prefixed records: start
+ * or stop, RunNumber, time, RunPipe, namespace and deployment name.
+ * A record is written first and the end is moved after it, so a crash in the middle of a write loses only that record.
+ * The records are read into memory at startup, the file is only appended to afterwards.
+ *
+ * The events come from the worker deployment cache: the first time a deployment is seen is its start, its delete is its stop.
+ * Deployments that were deleted while the Operator was down are stopped once the cache has synced, see closeMissing().
+ * The file is compacted to the latest maxRuns runs periodically and when it is full, so the time to load it stays flat
+ * however long the run history gets.
+ *
+ * It does not change how the Operator starts: the deployment cache still lists all worker deployments before it watches them.
+ * The ledger only gives the latest RunNumber before that list, and the run history.
+ */
+public class RunLedger implements ResourceEventHandler<Deployment>, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(RunLedger.class);
+    private static final ObjectMapper MAPPER = Serialization.jsonMapper();
+
+    private static final int MAGIC = 0x52554e4c; /* RUNL */
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int END_OFFSET = 8;
+    private static final byte RECORD_START = 1;
+    private static final byte RECORD_STOP = 2;
+
+    private final Path file;
+    private final int capacity;
+    private final int maxRuns;
+    private final long compactIntervalSeconds;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private boolean dirty;
+    /* RunNumber -> RunPipe -> the deployment of the RunPipe */
+    private final NavigableMap<Integer, Map<String, PipeEntry>> runs = new TreeMap<>();
+
+    private final AtomicLong recordsTotal = new AtomicLong();
+    private final AtomicLong droppedTotal = new AtomicLong();
+    private final AtomicLong compactionsTotal = new AtomicLong();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "run-ledger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param file The ledger file, created if it does not exist
+     * @param capacity Size of the file in bytes, it is compacted when it is full
+     * @param maxRuns Runs kept by a compaction, the latest ones
+     * @param compactIntervalSeconds Time between compactions
+     */
+    public RunLedger(@NotNull String file, int capacity, int maxRuns, long compactIntervalSeconds) {
+        this.file = Paths.get(file);
+        this.capacity = Math.max(HEADER_SIZE + 4096, capacity);
+        this.maxRuns = Math.max(1, maxRuns);
+        this.compactIntervalSeconds = compactIntervalSeconds;
+    }
+
+    /**
+     * Opens the file and reads all its records, before the deployment cache is started
+     */
+    public synchronized void load() throws IOException {
+        long startNanos = System.nanoTime();
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        map(file);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            if (buffer.getInt(0) != 0) {
+                log.warn("Run ledger {} has an unknown format, starting a new one", file);
+            }
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT_VERSION);
+            buffer.putLong(END_OFFSET, HEADER_SIZE);
+            dirty = true;
+        }
+        long end = buffer.getLong(END_OFFSET);
+        buffer.position(HEADER_SIZE);
+        int records = 0;
+        int recordStart = HEADER_SIZE;
+        try {
+            while (buffer.position() < end) {
+                recordStart = buffer.position();
+                readRecord();
+                records++;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            /* Cut at the start of the damaged record, so the next records are appended where the next load can read them */
+            log.warn("Run ledger {} is damaged after {} records, the rest is dropped", file, records);
+            buffer.putLong(END_OFFSET, recordStart);
+            dirty = true;
+        }
+        buffer.position((int) buffer.getLong(END_OFFSET));
+        log.info("Loaded {} runs ({} records) from the run ledger {} in {}ms", runs.size(), records, file,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(this::flushSafely, 1, 1, TimeUnit.SECONDS);
+        executor.scheduleWithFixedDelay(this::compactSafely, compactIntervalSeconds, compactIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return The highest RunNumber in the ledger, or -1
+     */
+    public synchronized int getLatestRunNumber() {
+        return runs.isEmpty() ? -1 : runs.lastKey();
+    }
+
+    public synchronized int getRunCount() { return runs.size(); }
+    public long getRecordsTotal() { return recordsTotal.get(); }
+    public long getDroppedTotal() { return droppedTotal.get(); }
+    public long getCompactionsTotal() { return compactionsTotal.get(); }
+
+    @Override
+    public void onAdd(Deployment deployment) {
+        started(deployment);
+    }
+
+    @Override
+    public void onUpdate(Deployment oldDeployment, Deployment newDeployment) {
+        started(newDeployment);
+    }
+
+    @Override
+    public void onDelete(Deployment deployment, boolean deletedFinalStateUnknown) {
+        int runNumber = WorkerDeploymentCache.getRunNumber(deployment);
+        String runPipe = WorkerDeploymentCache.getRunPipe(deployment);
+        if (runNumber < 0 || runPipe == null) {
+            return;
+        }
+        synchronized (this) {
+            PipeEntry entry = runs.getOrDefault(runNumber, new TreeMap<>()).get(runPipe);
+            if (entry != null && entry.stoppedMillis == 0) {
+                append(RECORD_STOP, runNumber, System.currentTimeMillis(), runPipe, deployment.getMetadata().getNamespace(),
+                        deployment.getMetadata().getName());
+            }
+        }
+    }
+
+    private void started(Deployment deployment) {
+        int runNumber = WorkerDeploymentCache.getRunNumber(deployment);
+        String runPipe = WorkerDeploymentCache.getRunPipe(deployment);
+        if (runNumber < 0 || runPipe == null) {
+            return;
+        }
+        synchronized (this) {
+            PipeEntry entry = runs.getOrDefault(runNumber, new TreeMap<>()).get(runPipe);
+            if (entry == null || entry.stoppedMillis != 0) {
+                append(RECORD_START, runNumber, getCreationMillis(deployment), runPipe, deployment.getMetadata().getNamespace(),
+                        deployment.getMetadata().getName());
+            }
+        }
+    }
+
+    /**
+     * Stops the running deployments of the ledger that are not in the synced cache, they were deleted while the Operator was down
+     */
+    public void closeMissing(@NotNull WorkerDeploymentCache deploymentCache) {
+        int stopped = 0;
+        synchronized (this) {
+            List<PipeEntry> missing = new ArrayList<>();
+            for (Map<String, PipeEntry> pipes : runs.values()) {
+                for (PipeEntry entry : pipes.values()) {
+                    if (entry.stoppedMillis == 0 && deploymentCache.get(entry.namespace, entry.deployment) == null) {
+                        missing.add(entry);
+                    }
+                }
+            }
+            /* Written after the loop, an append can compact the runs */
+            for (PipeEntry entry : missing) {
+                append(RECORD_STOP, entry.runNumber, System.currentTimeMillis(), entry.runPipe, entry.namespace, entry.deployment);
+                stopped++;
+            }
+        }
+        if (stopped > 0) {
+            log.info("Run ledger: {} deployments were deleted while the Operator was down", stopped);
+        }
+    }
+
+    /**
+     * @return The latest runs first, as JSON
+     */
+    @NotNull
+    public synchronized String getHistoryJson(int limit) {
+        ObjectNode json = MAPPER.createObjectNode();
+        ArrayNode runsNode = json.putArray("runs");
+        for (Map.Entry<Integer, Map<String, PipeEntry>> run : runs.descendingMap().entrySet()) {
+            if (runsNode.size() >= limit) {
+                break;
+            }
+            runsNode.add(toJson(run.getKey(), run.getValue()));
+        }
+        return json.toString();
+    }
+
+    /**
+     * @return The run as JSON, or null if it is not in the ledger
+     */
+    @Nullable
+    public synchronized String getRunJson(int runNumber) {
+        Map<String, PipeEntry> pipes = runs.get(runNumber);
+        return pipes == null ? null : toJson(runNumber, pipes).toString();
+    }
+
+    private static ObjectNode toJson(int runNumber, Map<String, PipeEntry> pipes) {
+        ObjectNode runNode = MAPPER.createObjectNode();
+        runNode.put("runNumber", runNumber);
+        long started = Long.MAX_VALUE;
+        long stopped = 0;
+        boolean running = false;
+        ObjectNode pipesNode = runNode.putObject("runPipes");
+        for (Map.Entry<String, PipeEntry> pipe : pipes.entrySet()) {
+            PipeEntry entry = pipe.getValue();
+            ObjectNode pipeNode = pipesNode.putObject(pipe.getKey());
+            pipeNode.put("namespace", entry.namespace);
+            pipeNode.put("deployment", entry.deployment);
+            pipeNode.put("started", Instant.ofEpochMilli(entry.startedMillis).toString());
+            if (entry.stoppedMillis != 0) {
+                pipeNode.put("stopped", Instant.ofEpochMilli(entry.stoppedMillis).toString());
+            }
+            started = Math.min(started, entry.startedMillis);
+            stopped = Math.max(stopped, entry.stoppedMillis);
+            running |= entry.stoppedMillis == 0;
+        }
+        runNode.put("started", Instant.ofEpochMilli(started).toString());
+        if (!running) {
+            runNode.put("stopped", Instant.ofEpochMilli(stopped).toString());
+        }
+        return runNode;
+    }
+
+    /**
+     * Writes a record and applies it to the in-memory runs, compacts first if it does not fit
+     */
+    private void append(byte type, int runNumber, long timeMillis, String runPipe, String namespace, String deployment) {
+        byte[] record = encode(type, runNumber, timeMillis, runPipe, namespace, deployment);
+        if (buffer.position() + record.length > capacity) {
+            compact();
+        }
+        if (buffer.position() + record.length > capacity) {
+            log.error("Run ledger {} is full even after a compaction, set a larger TDAQ_RUN_LEDGER_SIZE_MB", file);
+            droppedTotal.incrementAndGet();
+        } else {
+            buffer.put(record);
+            buffer.putLong(END_OFFSET, buffer.position());
+            dirty = true;
+            recordsTotal.incrementAndGet();
+        }
+        apply(type, runNumber, timeMillis, runPipe, namespace, deployment);
+    }
+
+    private void apply(byte type, int runNumber, long timeMillis, String runPipe, String namespace, String deployment) {
+        if (type == RECORD_START) {
+            runs.computeIfAbsent(runNumber, k -> new TreeMap<>()).put(runPipe, new PipeEntry(runNumber, runPipe, namespace, deployment, timeMillis));
+        } else if (type == RECORD_STOP) {
+            PipeEntry entry = runs.getOrDefault(runNumber, new TreeMap<>()).get(runPipe);
+            if (entry != null) {
+                entry.stoppedMillis = timeMillis;
+            }
+        }
+    }
+
+    private void readRecord() {
+        int length = buffer.getInt();
+        if (length <= 0 || buffer.position() + length > capacity) {
+            throw new IllegalArgumentException("Bad record length " + length);
+        }
+        byte type = buffer.get();
+        int runNumber = buffer.getInt();
+        long timeMillis = buffer.getLong();
+        String runPipe = readString();
+        String namespace = readString();
+        String deployment = readString();
+        if (type != RECORD_START && type != RECORD_STOP) {
+            throw new IllegalArgumentException("Bad record type " + type);
+        }
+        apply(type, runNumber, timeMillis, runPipe, namespace, deployment);
+    }
+
+    private String readString() {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encode(byte type, int runNumber, long timeMillis, String runPipe, String namespace, String deployment) {
+        byte[][] strings = {
+                runPipe.getBytes(StandardCharsets.UTF_8),
+                namespace.getBytes(StandardCharsets.UTF_8),
+                deployment.getBytes(StandardCharsets.UTF_8)};
+        int length = 1 + 4 + 8;
+        for (byte[] string : strings) {
+            length += 2 + string.length;
+        }
+        ByteBuffer record = ByteBuffer.allocate(4 + length);
+        record.putInt(length).put(type).putInt(runNumber).putLong(timeMillis);
+        for (byte[] string : strings) {
+            record.putShort((short) string.length).put(string);
+        }
+        return record.array();
+    }
+
+    /**
+     * Rewrites the ledger with one start (and stop) record per RunPipe of the latest maxRuns runs, and swaps it in
+     */
+    private synchronized void compact() {
+        long startNanos = System.nanoTime();
+        while (runs.size() > maxRuns) {
+            runs.pollFirstEntry();
+        }
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        try {
+            Files.deleteIfExists(compacted);
+            try (FileChannel compactedChannel = FileChannel.open(compacted, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                MappedByteBuffer compactedBuffer = compactedChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                compactedBuffer.putInt(0, MAGIC);
+                compactedBuffer.putInt(4, FORMAT_VERSION);
+                compactedBuffer.position(HEADER_SIZE);
+                for (Map.Entry<Integer, Map<String, PipeEntry>> run : runs.entrySet()) {
+                    for (Map.Entry<String, PipeEntry> pipe : run.getValue().entrySet()) {
+                        PipeEntry entry = pipe.getValue();
+                        compactedBuffer.put(encode(RECORD_START, run.getKey(), entry.startedMillis, pipe.getKey(), entry.namespace,
+                                entry.deployment));
+                        if (entry.stoppedMillis != 0) {
+                            compactedBuffer.put(encode(RECORD_STOP, run.getKey(), entry.stoppedMillis, pipe.getKey(), entry.namespace,
+                                    entry.deployment));
+                        }
+                    }
+                }
+                compactedBuffer.putLong(END_OFFSET, compactedBuffer.position());
+                compactedBuffer.force();
+            }
+            channel.close();
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            map(file);
+            buffer.position((int) buffer.getLong(END_OFFSET));
+            dirty = false;
+            compactionsTotal.incrementAndGet();
+            log.info("Compacted the run ledger to {} runs, {} bytes, in {}ms", runs.size(), buffer.position(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        } catch (IOException | BufferOverflowException e) {
+            log.error("Failed to compact the run ledger {}", file, e);
+            if (!channel.isOpen()) {
+                try {
+                    map(file);
+                    buffer.position((int) buffer.getLong(END_OFFSET));
+                } catch (IOException reopen) {
+                    throw new IllegalStateException("Could not reopen the run ledger " + file, reopen);
+                }
+            }
+        }
+    }
+
+    private void map(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private static long getCreationMillis(Deployment deployment) {
+        String creationTimestamp = deployment.getMetadata().getCreationTimestamp();
+        if (creationTimestamp != null) {
+            try {
+                return Instant.parse(creationTimestamp).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                /* Use the time it is seen */
+            }
+        }
+        return System.currentTimeMillis();
+    }
+
+    private synchronized void flushSafely() {
+        try {
+            if (dirty) {
+                buffer.force();
+                dirty = false;
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to flush the run ledger {}", file, e);
+        }
+    }
+
+    private void compactSafely() {
+        try {
+            compact();
+        } catch (RuntimeException e) {
+            log.error("Failed to compact the run ledger {}", file, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        executor.shutdownNow();
+        if (buffer != null) {
+            buffer.force();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close the run ledger {}", file, e);
+        }
+    }
+
+    private static final class PipeEntry {
+        private final int runNumber;
+        private final String runPipe;
+        private final String namespace;
+        private final String deployment;
+        private final long startedMillis;
+        /* 0 while the deployment exists */
+        private long stoppedMillis;
+
+        private PipeEntry(int runNumber, String runPipe, String namespace, String deployment, long startedMillis) {
+            this.runNumber = runNumber;
+            this.runPipe = runPipe;
+            this.namespace = namespace;
+            this.deployment = deployment;
+            this.startedMillis = startedMillis;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package ch.cern.tdaq.k8s.operator;
+
+import ch.cern.tdaq.k8s.operator.CustomResource.DoneableRunResource;
+import ch.cern.tdaq.k8s.operator.CustomResource.RunResource;
+import ch.cern.tdaq.k8s.operator.CustomResource.RunResourceList;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.dsl.MixedOperation;
+import io.fabric8.kubernetes.client.dsl.Resource;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.net.HttpURLConnection.HTTP_CONFLICT;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+
+/**
+ * Advances spec.runNumber of the run controller RunResource (crd/runcontroller-rc.yaml), which makes the Operator start the next run.
+ *
+ * The RunNumber is changed with a JSON merge patch that only holds spec.runNumber and metadata.resourceVersion, so the API server
+ * rejects it with a 409 if the RunResource was changed since we read it. On a conflict the RunResource is read again and the patch is
+ * sent again, at most maxAttempts times. No increment is lost and no other field of the RunResource is ever written.
+ *
+ * All advance() calls that arrive while a patch is in flight are served by the next patch: N waiting calls move the RunNumber by N
+ * in one patch, and each call gets its own RunNumber.
+ */
+public class RunNumberSequencer implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(RunNumberSequencer.class);
+
+    private final KubernetesPatchClient patchClient;
+    private final MixedOperation<RunResource, RunResourceList, DoneableRunResource, Resource<RunResource, DoneableRunResource>> runResources;
+    private final String namespace;
+    private final String name;
+    private final int maxAttempts;
+    private final OperatorMetrics metrics;
+    private final ExecutorService executor;
+
+    private final Queue<CompletableFuture<Integer>> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    /* The state of the RunResource after our last read or patch, only used on the executor thread. Null resourceVersion means unknown */
+    private String resourceVersion;
+    private int runNumber;
+
+    /**
+     * @param runResource "<namespace>/<name>" of the run controller RunResource
+     * @param maxAttempts How many times a patch is sent when it conflicts with another writer
+     */
+    public RunNumberSequencer(@NotNull KubernetesClient kubernetesClient, @NotNull KubernetesPatchClient patchClient, @NotNull String runResource,
+                              int maxAttempts, @NotNull OperatorMetrics metrics) {
+        this.patchClient = patchClient;
+        this.runResources = KubernetesPatchClient.runResources(kubernetesClient);
+        String[] namespaceAndName = runResource.split("/", 2);
+        this.namespace = namespaceAndName.length == 2 ? namespaceAndName[0] : "default";
+        this.name = namespaceAndName[namespaceAndName.length - 1];
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.metrics = metrics;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "run-number-sequencer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Moves the RunNumber one up
+     * @return The new RunNumber, unique to this call. Completes exceptionally if the patch failed after all attempts
+     */
+    @NotNull
+    public CompletableFuture<Integer> advance() {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        pending.add(result);
+        if (drainScheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+        return result;
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
+        List<CompletableFuture<Integer>> batch = new ArrayList<>();
+        CompletableFuture<Integer> next;
+        while ((next = pending.poll()) != null) {
+            batch.add(next);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            int firstRunNumber = reserve(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).complete(firstRunNumber + i);
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to advance the RunNumber of RunResource {}/{} by {}", namespace, name, batch.size(), e);
+            for (CompletableFuture<Integer> request : batch) {
+                request.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Moves spec.runNumber up by count with one patch
+     * @return The first of the count reserved RunNumbers
+     */
+    private int reserve(int count) {
+        String path = KubernetesPatchClient.runResourcePath(namespace, name, null);
+        for (int attempt = 1; ; attempt++) {
+            if (resourceVersion == null) {
+                refresh();
+            }
+            int newRunNumber = runNumber + count;
+            try {
+                remember(Serialization.unmarshal(patchClient.mergePatch(path, runNumberPatch(resourceVersion, newRunNumber)), RunResource.class));
+                log.info("Advanced the RunNumber of RunResource {}/{} to {} ({} requests)", namespace, name, newRunNumber, count);
+                return newRunNumber - count + 1;
+            } catch (KubernetesClientException e) {
+                /* Someone else changed the RunResource since we read it, read it again and retry */
+                resourceVersion = null;
+                if (e.getCode() != HTTP_CONFLICT || attempt >= maxAttempts) {
+                    throw e;
+                }
+                metrics.retries.inc("sequencer");
+                log.debug("Conflict advancing the RunNumber of RunResource {}/{}, attempt {} of {}", namespace, name, attempt, maxAttempts);
+            }
+        }
+    }
+
+    private void refresh() {
+        RunResource resource = runResources.inNamespace(namespace).withName(name).get();
+        if (resource == null) {
+            throw new KubernetesClientException("RunResource " + namespace + "/" + name + " does not exist", HTTP_NOT_FOUND, null);
+        }
+        remember(resource);
+    }
+
+    private void remember(RunResource resource) {
+        resourceVersion = resource.getMetadata().getResourceVersion();
+        runNumber = resource.getSpec() == null ? 0 : resource.getSpec().getRunNumber();
+    }
+
+    /**
+     * {"metadata": {"resourceVersion": "..."}, "spec": {"runNumber": N}}, the resourceVersion makes the API server reject a stale patch
+     */
+    @NotNull
+    static String runNumberPatch(@NotNull String resourceVersion, int runNumber) {
+        ObjectNode patch = Serialization.jsonMapper().createObjectNode();
+        patch.putObject("metadata").put("resourceVersion", resourceVersion);
+        patch.putObject("spec").put("runNumber", runNumber);
+        return patch.toString();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,92 @@
+package ch.cern.tdaq.k8s.operator;
+
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the time from the first reconcile of a RunNumber until all the worker Pods of its run deployment are ready.
+ * Not from the creation of the RunResource: a RunResource lives over many RunNumbers, so that would count the time of all runs before.
+ * The RunController registers the deployments it creates, and the readiness is read from the worker deployment informer events.
+ * A deployment whose run is superseded before it is created never shows up, so the entries of older runs are dropped when a
+ * newer run is tracked.
+ */
+public class RunReadinessTracker implements ResourceEventHandler<Deployment> {
+    private static final Logger log = LoggerFactory.getLogger(RunReadinessTracker.class);
+
+    private final OperatorMetrics metrics;
+    /* <namespace>/<name> -> the first reconcile that would create the deployment */
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    /* The highest RunNumber tracked so far */
+    private final AtomicInteger latestRunNumber = new AtomicInteger(-1);
+
+    public RunReadinessTracker(@NotNull OperatorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Start measuring a run deployment, called by every reconcile that would create the deployment, only the first one counts.
+     * The deployments of older runs that are still pending are dropped.
+     */
+    public void track(@NotNull String namespace, @NotNull String deploymentName, int runNumber) {
+        pending.putIfAbsent(namespace + "/" + deploymentName, new Pending(runNumber, System.currentTimeMillis()));
+        if (latestRunNumber.getAndAccumulate(runNumber, Math::max) < runNumber) {
+            pending.values().removeIf(entry -> entry.runNumber < runNumber);
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public void onAdd(Deployment deployment) {
+        check(deployment);
+    }
+
+    @Override
+    public void onUpdate(Deployment oldDeployment, Deployment newDeployment) {
+        check(newDeployment);
+    }
+
+    @Override
+    public void onDelete(Deployment deployment, boolean deletedFinalStateUnknown) {
+        pending.remove(deployment.getMetadata().getNamespace() + "/" + deployment.getMetadata().getName());
+    }
+
+    private void check(Deployment deployment) {
+        if (pending.isEmpty() || deployment.getSpec() == null) {
+            return;
+        }
+        Integer desiredReplicas = deployment.getSpec().getReplicas();
+        /* Not set while no Pod is ready, a deployment with 0 replicas is ready right away */
+        int readyReplicas = deployment.getStatus() == null || deployment.getStatus().getReadyReplicas() == null
+                ? 0 : deployment.getStatus().getReadyReplicas();
+        if (desiredReplicas == null || readyReplicas < desiredReplicas) {
+            return;
+        }
+        String key = deployment.getMetadata().getNamespace() + "/" + deployment.getMetadata().getName();
+        Pending tracked = pending.remove(key);
+        if (tracked != null) {
+            long durationMillis = Math.max(0, System.currentTimeMillis() - tracked.trackedMillis);
+            metrics.runReadyDuration.observe(durationMillis / 1000.0);
+            log.info("Deployment: {} has all {} Pods ready, {}ms after the run was first reconciled", key, readyReplicas, durationMillis);
+        }
+    }
+
+    private static final class Pending {
+        private final int runNumber;
+        private final long trackedMillis;
+
+        private Pending(int runNumber, long trackedMillis) {
+            this.runNumber = runNumber;
+            this.trackedMillis = trackedMillis;
+        }
+    }
+}
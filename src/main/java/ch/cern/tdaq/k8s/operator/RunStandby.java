@@ -0,0 +1,202 @@
+package ch.cern.tdaq.k8s.operator;
+
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the standby Deployments of the next run, and measures how long a run switch takes.
+ *
+ * While run N is going, the RunController applies the Deployment of run N+1 for every RunPipe ahead of time. It has the final name,
+ * but not the tdaq.worker label (so the rest of the Operator does not see it as a run), warmReplicas Pods that only run the standby
+ * command, and no probes. The warm Pods pull the images and take their place on the nodes. When the RunNumber moves to N+1 the normal
+ * server-side apply of the run takes the Deployment over: it adds the labels, restores the command and sets the replicas.
+ *
+ * A run switch is measured from the first reconcile of the new RunNumber until all its Deployments have rolled out with all Pods ready,
+ * as tdaq_run_switch_duration_seconds with standby="hit" if every RunPipe had a standby Deployment, or "miss".
+ */
+public class RunStandby implements ResourceEventHandler<Deployment> {
+    private static final Logger log = LoggerFactory.getLogger(RunStandby.class);
+
+    public static final String STANDBY_LABEL_KEY = "tdaq.standby";
+    public static final String STANDBY_LABEL_VALUE = "true";
+
+    private final OperatorMetrics metrics;
+    /* False to only measure the run switches */
+    private final boolean enabled;
+    private final int warmReplicas;
+    private final List<String> command;
+
+    /* <namespace>/<RunPipe> -> the name of the standby deployment */
+    private final Map<String, String> standbyPerRunPipe = new ConcurrentHashMap<>();
+    /* <namespace>/<deployment name> -> the switch waiting for that deployment */
+    private final Map<String, RunSwitch> pendingSwitches = new ConcurrentHashMap<>();
+    /* <namespace>/<RunNumber> of the switches being measured */
+    private final Set<String> startedRuns = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong hitsTotal = new AtomicLong();
+    private final AtomicLong missesTotal = new AtomicLong();
+    private volatile double lastSwitchSeconds;
+
+    /**
+     * @param enabled False to not create standby deployments, the run switches are still measured
+     * @param warmReplicas Pods of a standby deployment, 0 to only create the object (then the images are pulled at the switch)
+     * @param command What the containers of the warm Pods run instead of the workload, e.g. sleep infinity
+     */
+    public RunStandby(@NotNull OperatorMetrics metrics, boolean enabled, int warmReplicas, @NotNull List<String> command) {
+        this.metrics = metrics;
+        this.enabled = enabled;
+        this.warmReplicas = Math.max(0, warmReplicas);
+        this.command = Collections.unmodifiableList(command);
+    }
+
+    public boolean isEnabled() { return enabled; }
+    public int getWarmReplicas() { return warmReplicas; }
+    @NotNull
+    public List<String> getCommand() { return command; }
+
+    /**
+     * @return The standby deployment of the RunPipe, or null if there is none
+     */
+    @Nullable
+    public String getStandby(@NotNull String namespace, @NotNull String runPipeName) {
+        return standbyPerRunPipe.get(namespace + "/" + runPipeName);
+    }
+
+    /**
+     * Remembers the standby deployment that was just applied
+     * @return The standby deployment it replaces, which should be deleted, or null
+     */
+    @Nullable
+    public String setStandby(@NotNull String namespace, @NotNull String runPipeName, @NotNull String deploymentName) {
+        String previous = standbyPerRunPipe.put(namespace + "/" + runPipeName, deploymentName);
+        return deploymentName.equals(previous) ? null : previous;
+    }
+
+    /**
+     * @return The standby deployment of the RunPipe, which is now forgotten, or null
+     */
+    @Nullable
+    public String removeStandby(@NotNull String namespace, @NotNull String runPipeName) {
+        return standbyPerRunPipe.remove(namespace + "/" + runPipeName);
+    }
+
+    /**
+     * Starts measuring the switch to a run, called on its first reconcile. Later calls for the same run do nothing.
+     * The switches to older runs in the namespace that did not finish are dropped: a run that is superseded before its
+     * deployments are created never gets them, so they would wait forever.
+     * @param deploymentPerRunPipe RunPipe name -> deployment name of the new run
+     */
+    public void startSwitch(@NotNull String namespace, int runNumber, @NotNull Map<String, String> deploymentPerRunPipe) {
+        if (deploymentPerRunPipe.isEmpty() || !startedRuns.add(namespace + "/" + runNumber)) {
+            return;
+        }
+        for (Iterator<RunSwitch> iterator = pendingSwitches.values().iterator(); iterator.hasNext(); ) {
+            RunSwitch older = iterator.next();
+            if (older.namespace.equals(namespace) && older.runNumber < runNumber) {
+                iterator.remove();
+                startedRuns.remove(older.run);
+            }
+        }
+        boolean hit = true;
+        for (Map.Entry<String, String> entry : deploymentPerRunPipe.entrySet()) {
+            /* The standby is promoted by the apply, from now on it is the run deployment */
+            hit &= entry.getValue().equals(standbyPerRunPipe.remove(namespace + "/" + entry.getKey()));
+        }
+        RunSwitch runSwitch = new RunSwitch(namespace, runNumber, hit, deploymentPerRunPipe.size());
+        for (String deploymentName : deploymentPerRunPipe.values()) {
+            pendingSwitches.put(namespace + "/" + deploymentName, runSwitch);
+        }
+        (hit ? hitsTotal : missesTotal).incrementAndGet();
+    }
+
+    public int getStandbyCount() { return standbyPerRunPipe.size(); }
+    public int getPendingSwitchCount() { return (int) pendingSwitches.values().stream().distinct().count(); }
+    public long getHitsTotal() { return hitsTotal.get(); }
+    public long getMissesTotal() { return missesTotal.get(); }
+    public double getLastSwitchSeconds() { return lastSwitchSeconds; }
+
+    @Override
+    public void onAdd(Deployment deployment) {
+        check(deployment);
+    }
+
+    @Override
+    public void onUpdate(Deployment oldDeployment, Deployment newDeployment) {
+        check(newDeployment);
+    }
+
+    @Override
+    public void onDelete(Deployment deployment, boolean deletedFinalStateUnknown) {
+        RunSwitch runSwitch = pendingSwitches.remove(deployment.getMetadata().getNamespace() + "/" + deployment.getMetadata().getName());
+        if (runSwitch != null) {
+            /* Never finished, e.g. superseded right away */
+            startedRuns.remove(runSwitch.run);
+        }
+    }
+
+    private void check(Deployment deployment) {
+        if (pendingSwitches.isEmpty() || !isRolledOut(deployment)) {
+            return;
+        }
+        RunSwitch runSwitch = pendingSwitches.remove(deployment.getMetadata().getNamespace() + "/" + deployment.getMetadata().getName());
+        if (runSwitch != null && runSwitch.remaining.decrementAndGet() == 0) {
+            startedRuns.remove(runSwitch.run);
+            long durationNanos = System.nanoTime() - runSwitch.startNanos;
+            lastSwitchSeconds = durationNanos / 1e9;
+            metrics.runSwitchDuration.observeNanos(durationNanos, runSwitch.hit ? "hit" : "miss");
+            log.info("Switched to run {} in {}ms ({} standby)", runSwitch.run, TimeUnit.NANOSECONDS.toMillis(durationNanos),
+                    runSwitch.hit ? "with" : "without");
+        }
+    }
+
+    /**
+     * All Pods run the current spec and are ready, the Pods of the standby (or an earlier spec) are gone
+     */
+    private static boolean isRolledOut(Deployment deployment) {
+        if (deployment.getSpec() == null || deployment.getStatus() == null) {
+            return false;
+        }
+        int desired = deployment.getSpec().getReplicas() == null ? 1 : deployment.getSpec().getReplicas();
+        Long generation = deployment.getMetadata().getGeneration();
+        Long observedGeneration = deployment.getStatus().getObservedGeneration();
+        return generation != null && observedGeneration != null && observedGeneration >= generation
+                && valueOf(deployment.getStatus().getUpdatedReplicas()) >= desired
+                && valueOf(deployment.getStatus().getReplicas()) == desired
+                && valueOf(deployment.getStatus().getReadyReplicas()) >= desired;
+    }
+
+    private static int valueOf(Integer value) {
+        return value == null ? 0 : value;
+    }
+
+    private static final class RunSwitch {
+        private final String namespace;
+        private final int runNumber;
+        /* <namespace>/<RunNumber> */
+        private final String run;
+        private final boolean hit;
+        private final AtomicLong remaining;
+        private final long startNanos = System.nanoTime();
+
+        private RunSwitch(String namespace, int runNumber, boolean hit, int deployments) {
+            this.namespace = namespace;
+            this.runNumber = runNumber;
+            this.run = namespace + "/" + runNumber;
+            this.hit = hit;
+            this.remaining = new AtomicLong(deployments);
+        }
+    }
+}
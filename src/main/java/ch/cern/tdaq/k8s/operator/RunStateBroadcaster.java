@@ -0,0 +1,348 @@
+package ch.cern.tdaq.k8s.operator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tells the worker Pods about new runs, so they do not have to poll the webserver to find out their run ended.
+ *
+ * The state is the latest RunNumber overall and per RunPipe, taken from the worker deployment events, with a version that
+ * goes up with every change. The version is derived from the state, the sum over the RunPipes of their RunNumber plus one, so
+ * every Operator replica behind the run-state Service gives the same version for the same state and a worker can send the
+ * version it got from one replica to another. It is an immutable snapshot behind an AtomicReference, readers never take a lock.
+ *
+ * It is served on its own port, since the Takes server handles one request at a time and a long-poll would block /health:
+ *  GET /runs/state: the state right away
+ *  GET /runs/state?since=<version>&timeoutSeconds=<s>: long-poll, answers once the version is above since, or at the timeout
+ *  GET /runs/events: Server-Sent Events, a run-state event now and after every change, and a comment as keep-alive
+ * A waiting request does not hold a thread: the exchange is parked and answered by the notifier thread, so a few threads
+ * serve thousands of idle workers.
+ */
+public class RunStateBroadcaster implements ResourceEventHandler<Deployment>, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(RunStateBroadcaster.class);
+    private static final ObjectMapper MAPPER = Serialization.jsonMapper();
+
+    private static final long DEFAULT_POLL_TIMEOUT_SECONDS = 30;
+    private static final long MAX_POLL_TIMEOUT_SECONDS = 300;
+    private static final long KEEP_ALIVE_SECONDS = 15;
+
+    private final int port;
+    private final AtomicReference<RunState> state = new AtomicReference<>(new RunState(-1, Collections.emptyMap()));
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final Set<HttpExchange> subscribers = ConcurrentHashMap.newKeySet();
+    /* Set when a change is not sent yet, so a burst of deployment events is sent once */
+    private final AtomicBoolean notifyScheduled = new AtomicBoolean();
+    private final AtomicInteger waitingCount = new AtomicInteger();
+    private final LongAdder notificationsTotal = new LongAdder();
+
+    private HttpServer server;
+    private ExecutorService httpExecutor;
+    /* All writes to parked exchanges happen on this thread */
+    private final ScheduledExecutorService notifyExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "run-state-notify");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param port The port of the run-state API
+     */
+    public RunStateBroadcaster(int port) {
+        this.port = port;
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        httpExecutor = Executors.newFixedThreadPool(4, runnable -> {
+            Thread thread = new Thread(runnable, "run-state-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(httpExecutor);
+        server.createContext("/runs/state", this::handleState);
+        server.createContext("/runs/events", this::handleEvents);
+        server.start();
+        notifyExecutor.scheduleWithFixedDelay(this::expireWaitersSafely, 1, 1, TimeUnit.SECONDS);
+        notifyExecutor.scheduleWithFixedDelay(this::keepAliveSafely, KEEP_ALIVE_SECONDS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        log.info("Serving the run state on port {}", port);
+    }
+
+    /**
+     * @return The current state as JSON, e.g. {"version":25,"latest":12,"runPipes":{"ion":11,"proton":12}}
+     */
+    @NotNull
+    public String getStateJson() {
+        return state.get().json;
+    }
+
+    public int getSubscriberCount() { return subscribers.size(); }
+    public int getWaitingCount() { return waitingCount.get(); }
+    public long getNotificationsTotal() { return notificationsTotal.sum(); }
+
+    @Override
+    public void onAdd(Deployment deployment) {
+        observe(deployment);
+    }
+
+    @Override
+    public void onUpdate(Deployment oldDeployment, Deployment newDeployment) {
+        observe(newDeployment);
+    }
+
+    @Override
+    public void onDelete(Deployment deployment, boolean deletedFinalStateUnknown) {
+        /* Like the LatestRunNumberTracker, the state never moves down */
+    }
+
+    private void observe(Deployment deployment) {
+        int runNumber = WorkerDeploymentCache.getRunNumber(deployment);
+        String runPipe = WorkerDeploymentCache.getRunPipe(deployment);
+        if (runNumber < 0 || runPipe == null) {
+            return;
+        }
+        RunState current;
+        RunState next;
+        do {
+            current = state.get();
+            if (current.runPipes.getOrDefault(runPipe, -1) >= runNumber) {
+                return;
+            }
+            Map<String, Integer> runPipes = new TreeMap<>(current.runPipes);
+            runPipes.put(runPipe, runNumber);
+            next = new RunState(Math.max(current.latest, runNumber), runPipes);
+        } while (!state.compareAndSet(current, next));
+        if (notifyScheduled.compareAndSet(false, true)) {
+            notifyExecutor.execute(this::notifySafely);
+        }
+    }
+
+    private void handleState(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "text/plain", "GET only");
+            return;
+        }
+        Map<String, String> query = parseQuery(exchange.getRequestURI());
+        RunState current = state.get();
+        long since = parseLong(query.get("since"), -1);
+        if (since < 0 || current.version > since) {
+            respond(exchange, 200, "application/json", current.json);
+            return;
+        }
+        long timeoutSeconds = Math.min(MAX_POLL_TIMEOUT_SECONDS, Math.max(1, parseLong(query.get("timeoutSeconds"), DEFAULT_POLL_TIMEOUT_SECONDS)));
+        Waiter waiter = new Waiter(exchange, since, System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds));
+        waiters.add(waiter);
+        waitingCount.incrementAndGet();
+        /* A change between the check and the add above would otherwise only be seen at the timeout */
+        if (state.get().version > since) {
+            notifyExecutor.execute(this::notifySafely);
+        }
+    }
+
+    private void handleEvents(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "text/plain", "GET only");
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        /* The first event is sent from the notifier thread too, so the writes to one stream never overlap */
+        notifyExecutor.execute(() -> {
+            if (send(exchange, event(state.get()))) {
+                subscribers.add(exchange);
+            }
+        });
+    }
+
+    private void notifySafely() {
+        try {
+            notifyScheduled.set(false);
+            RunState current = state.get();
+            byte[] event = event(current);
+            for (Iterator<HttpExchange> iterator = subscribers.iterator(); iterator.hasNext(); ) {
+                HttpExchange exchange = iterator.next();
+                if (!send(exchange, event)) {
+                    iterator.remove();
+                }
+            }
+            for (Iterator<Waiter> iterator = waiters.iterator(); iterator.hasNext(); ) {
+                Waiter waiter = iterator.next();
+                if (current.version > waiter.since) {
+                    iterator.remove();
+                    waitingCount.decrementAndGet();
+                    respondQuietly(waiter.exchange, current.json);
+                }
+            }
+            notificationsTotal.increment();
+        } catch (RuntimeException e) {
+            log.error("Failed to send the run state", e);
+        }
+    }
+
+    private void expireWaitersSafely() {
+        try {
+            long now = System.nanoTime();
+            String json = state.get().json;
+            for (Iterator<Waiter> iterator = waiters.iterator(); iterator.hasNext(); ) {
+                Waiter waiter = iterator.next();
+                if (now - waiter.deadlineNanos >= 0) {
+                    iterator.remove();
+                    waitingCount.decrementAndGet();
+                    respondQuietly(waiter.exchange, json);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to answer the expired run-state polls", e);
+        }
+    }
+
+    /**
+     * Also finds the workers that went away, their stream fails to write
+     */
+    private void keepAliveSafely() {
+        try {
+            byte[] comment = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+            subscribers.removeIf(exchange -> !send(exchange, comment));
+        } catch (RuntimeException e) {
+            log.error("Failed to send the run-state keep-alive", e);
+        }
+    }
+
+    private static byte[] event(RunState current) {
+        return ("event: run-state\nid: " + current.version + "\ndata: " + current.json + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return False if the stream is closed, then the exchange is closed too
+     */
+    private static boolean send(HttpExchange exchange, byte[] bytes) {
+        try {
+            OutputStream body = exchange.getResponseBody();
+            body.write(bytes);
+            body.flush();
+            return true;
+        } catch (IOException e) {
+            exchange.close();
+            return false;
+        }
+    }
+
+    private static void respondQuietly(HttpExchange exchange, String json) {
+        try {
+            respond(exchange, 200, "application/json", json);
+        } catch (IOException e) {
+            log.debug("Run-state poll went away: {}", e.toString());
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        try {
+            exchange.sendResponseHeaders(code, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static Map<String, String> parseQuery(URI uri) {
+        Map<String, String> query = new HashMap<>();
+        if (uri.getRawQuery() != null) {
+            for (String parameter : uri.getRawQuery().split("&")) {
+                String[] keyAndValue = parameter.split("=", 2);
+                query.put(keyAndValue[0], keyAndValue.length == 2 ? keyAndValue[1] : "");
+            }
+        }
+        return query;
+    }
+
+    private static long parseLong(@Nullable String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public void close() {
+        notifyExecutor.shutdownNow();
+        if (server != null) {
+            server.stop(0);
+            httpExecutor.shutdownNow();
+        }
+    }
+
+    private static final class RunState {
+        private final long version;
+        private final int latest;
+        private final Map<String, Integer> runPipes;
+        /* Serialized once per change, not per request */
+        private final String json;
+
+        private RunState(int latest, Map<String, Integer> runPipes) {
+            /* Moves up with every change, since a RunNumber of a RunPipe only moves up */
+            long version = 0;
+            for (int runNumber : runPipes.values()) {
+                version += runNumber + 1L;
+            }
+            this.version = version;
+            this.latest = latest;
+            this.runPipes = Collections.unmodifiableMap(runPipes);
+            ObjectNode node = MAPPER.createObjectNode();
+            node.put("version", version);
+            node.put("latest", latest);
+            ObjectNode runPipesNode = node.putObject("runPipes");
+            runPipes.forEach(runPipesNode::put);
+            this.json = node.toString();
+        }
+    }
+
+    private static final class Waiter {
+        private final HttpExchange exchange;
+        private final long since;
+        private final long deadlineNanos;
+
+        private Waiter(HttpExchange exchange, long since, long deadlineNanos) {
+            this.exchange = exchange;
+            this.since = since;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+}
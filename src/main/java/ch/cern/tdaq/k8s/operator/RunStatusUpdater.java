@@ -0,0 +1,351 @@
+package ch.cern.tdaq.k8s.operator;
+
+import ch.cern.tdaq.k8s.operator.CustomResource.RunPipeStatus;
+import ch.cern.tdaq.k8s.operator.CustomResource.RunResource;
+import ch.cern.tdaq.k8s.operator.CustomResource.RunResourceStatus;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+
+/**
+ * Keeps the status of every RunResource up to date: the run deployments, the ready/desired replicas per RunPipe, the phase and timestamps.
+ * The status is computed from the worker deployment informer events, nothing is polled.
+ *
+ * Status writes are coalesced: a changed RunResource is only marked dirty, and once per flush window all dirty RunResources are
+ * written with one JSON merge patch each on the status subresource. The patch is skipped if the status did not change since the last write.
+ */
+public class RunStatusUpdater implements ResourceEventHandler<Deployment>, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(RunStatusUpdater.class);
+
+    private final KubernetesPatchClient patchClient;
+    private final WorkerDeploymentCache deploymentCache;
+    /* The caches of the remote worker clusters, the replicas of a RunPipe are summed over all clusters, see WorkerClusters */
+    private final List<WorkerDeploymentCache> remoteCaches = new CopyOnWriteArrayList<>();
+    private final LatestRunNumberTracker latestRunNumberTracker;
+    private final ObjectMapper objectMapper = Serialization.jsonMapper();
+    private final ScheduledExecutorService flushExecutor;
+
+    /* <namespace>/<name> of the RunResource -> what we know about the run */
+    private final Map<String, TrackedRun> runs = new ConcurrentHashMap<>();
+    /* <namespace>/<deployment name> -> RunResource keys, to find the runs affected by a deployment event */
+    private final Map<String, Set<String>> runsByDeployment = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private volatile int lastSeenLatestRunNumber = -1;
+
+    private final LongAdder patchesTotal = new LongAdder();
+    private final LongAdder skippedUnchangedTotal = new LongAdder();
+
+    /**
+     * @param flushWindowMillis At most one status write per RunResource per window
+     */
+    public RunStatusUpdater(@NotNull KubernetesPatchClient patchClient, @NotNull WorkerDeploymentCache deploymentCache,
+                            @NotNull LatestRunNumberTracker latestRunNumberTracker, long flushWindowMillis) {
+        this.patchClient = patchClient;
+        this.deploymentCache = deploymentCache;
+        this.latestRunNumberTracker = latestRunNumberTracker;
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            /* Status writes wait for the run starts and stops */
+            Thread thread = new Thread(() -> {
+                ApiRateLimiter.setThreadPriority(ApiRateLimiter.Priority.STATUS);
+                runnable.run();
+            }, "run-status-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flushExecutor.scheduleWithFixedDelay(this::flushSafely, flushWindowMillis, flushWindowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds the cache of a remote worker cluster, must be called before it starts
+     */
+    public void addRemoteCache(@NotNull WorkerDeploymentCache remoteCache) {
+        remoteCache.addEventHandler(this);
+        remoteCaches.add(remoteCache);
+    }
+
+    /**
+     * Starts (or updates) tracking the status of a RunResource, called by the RunController on every reconcile
+     * @param deploymentNamespace The namespace of the run deployments, see NamespacePool
+     * @param deploymentPerRunPipe RunPipe name -> deployment name, in the order they are shown in the status
+     */
+    public void track(@NotNull RunResource resource, int runNumber, @NotNull String deploymentNamespace,
+                      @NotNull Map<String, String> deploymentPerRunPipe) {
+        String namespace = resource.getMetadata().getNamespace();
+        String key = namespace + "/" + resource.getMetadata().getName();
+        TrackedRun previous = runs.get(key);
+        if (previous != null && previous.runNumber == runNumber && previous.deploymentNamespace.equals(deploymentNamespace)
+                && previous.deploymentPerRunPipe.equals(deploymentPerRunPipe)) {
+            return;
+        }
+        TrackedRun run = new TrackedRun(namespace, resource.getMetadata().getName(), runNumber, deploymentNamespace,
+                new LinkedHashMap<>(deploymentPerRunPipe));
+        /* Keep the timestamps and message over Operator restarts, only if the status read from the RunResource is about this run */
+        RunResourceStatus status = previous == null ? resource.getStatus() : previous.status;
+        if (status != null && (previous == null ? Integer.valueOf(runNumber).equals(status.getRunNumber()) : previous.runNumber == runNumber)) {
+            run.status.setStartTime(status.getStartTime());
+            run.status.setRunningTime(status.getRunningTime());
+            run.status.setFinishTime(status.getFinishTime());
+            /* Only copied here, the message is then whatever the RunController sets, also null */
+            run.message = previous == null ? status.getMessage() : previous.message;
+        }
+        if (run.status.getStartTime() == null) {
+            run.status.setStartTime(Instant.now().toString());
+        }
+        if (previous != null) {
+            unindex(key, previous);
+        }
+        runs.put(key, run);
+        for (String deploymentName : deploymentPerRunPipe.values()) {
+            runsByDeployment.computeIfAbsent(deploymentNamespace + "/" + deploymentName, k -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+        dirty.add(key);
+    }
+
+    /**
+     * Sets the human readable message of the status, written with the next flush if it changed
+     */
+    public void setMessage(@NotNull String namespace, @NotNull String name, @Nullable String message) {
+        String key = namespace + "/" + name;
+        TrackedRun run = runs.get(key);
+        if (run != null) {
+            run.message = message;
+            dirty.add(key);
+        }
+    }
+
+    /**
+     * Stops tracking a RunResource, called when it is deleted
+     */
+    public void untrack(@NotNull String namespace, @NotNull String name) {
+        String key = namespace + "/" + name;
+        TrackedRun run = runs.remove(key);
+        dirty.remove(key);
+        if (run != null) {
+            unindex(key, run);
+        }
+    }
+
+    @Override
+    public void onAdd(Deployment deployment) {
+        markDirty(deployment);
+    }
+
+    @Override
+    public void onUpdate(Deployment oldDeployment, Deployment newDeployment) {
+        markDirty(newDeployment);
+    }
+
+    @Override
+    public void onDelete(Deployment deployment, boolean deletedFinalStateUnknown) {
+        markDirty(deployment);
+    }
+
+    private void markDirty(Deployment deployment) {
+        Set<String> keys = runsByDeployment.get(deployment.getMetadata().getNamespace() + "/" + deployment.getMetadata().getName());
+        if (keys != null) {
+            dirty.addAll(keys);
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            /* Never let an exception escape, the ScheduledExecutorService would stop scheduling the flushes */
+            log.error("Run status flush failed", e);
+        }
+    }
+
+    /**
+     * Writes the status of every dirty RunResource whose status changed since the last write
+     */
+    void flush() {
+        int latestRunNumber = latestRunNumberTracker.get();
+        if (latestRunNumber != lastSeenLatestRunNumber) {
+            /* A new run moves the older runs to Draining, so they all need a new status */
+            lastSeenLatestRunNumber = latestRunNumber;
+            dirty.addAll(runs.keySet());
+        }
+        if (dirty.isEmpty()) {
+            return;
+        }
+        List<String> keys = new ArrayList<>(dirty);
+        dirty.removeAll(keys);
+        for (String key : keys) {
+            TrackedRun run = runs.get(key);
+            if (run == null) {
+                continue;
+            }
+            try {
+                write(key, run, latestRunNumber);
+            } catch (KubernetesClientException e) {
+                if (e.getCode() == HTTP_NOT_FOUND) {
+                    untrack(run.namespace, run.name);
+                } else {
+                    log.warn("Failed to write the status of RunResource {}, trying again in the next window", key, e);
+                    dirty.add(key);
+                }
+            }
+        }
+    }
+
+    private void write(String key, TrackedRun run, int latestRunNumber) {
+        RunResourceStatus status = compute(run, latestRunNumber);
+        String comparable = toJson(status);
+        if (comparable.equals(run.lastWritten)) {
+            skippedUnchangedTotal.increment();
+            return;
+        }
+        status.setLastUpdateTime(Instant.now().toString());
+        patchClient.mergePatch(KubernetesPatchClient.runResourcePath(run.namespace, run.name, "status"),
+                toJson(Collections.singletonMap("status", status)));
+        run.lastWritten = comparable;
+        run.status = status;
+        patchesTotal.increment();
+        log.debug("Wrote status of RunResource {}: {}", key, status.getPhase());
+    }
+
+    private RunResourceStatus compute(TrackedRun run, int latestRunNumber) {
+        RunResourceStatus status = new RunResourceStatus();
+        status.setRunNumber(run.runNumber);
+        status.setStartTime(run.status.getStartTime());
+        status.setRunningTime(run.status.getRunningTime());
+        status.setFinishTime(run.status.getFinishTime());
+        status.setMessage(run.message);
+        status.setDeploymentNamespace(run.deploymentNamespace);
+
+        boolean allReady = true;
+        for (Map.Entry<String, String> entry : run.deploymentPerRunPipe.entrySet()) {
+            RunPipeStatus pipeStatus = new RunPipeStatus();
+            pipeStatus.setName(entry.getKey());
+            pipeStatus.setDeployment(entry.getValue());
+            boolean found = false;
+            int desiredReplicas = 0;
+            int readyReplicas = 0;
+            for (WorkerDeploymentCache cache : getCaches()) {
+                Deployment deployment = cache.get(run.deploymentNamespace, entry.getValue());
+                if (deployment != null) {
+                    found = true;
+                    Integer desired = deployment.getSpec() == null ? null : deployment.getSpec().getReplicas();
+                    Integer ready = deployment.getStatus() == null ? null : deployment.getStatus().getReadyReplicas();
+                    desiredReplicas += desired == null ? 1 : desired;
+                    readyReplicas += ready == null ? 0 : ready;
+                }
+            }
+            if (found) {
+                status.getRunningDeployments().add(entry.getValue());
+                pipeStatus.setDesiredReplicas(desiredReplicas);
+                pipeStatus.setReadyReplicas(readyReplicas);
+                allReady &= pipeStatus.getReadyReplicas() >= pipeStatus.getDesiredReplicas();
+            } else {
+                allReady = false;
+            }
+            status.getRunPipes().add(pipeStatus);
+        }
+
+        String now = Instant.now().toString();
+        if (run.runNumber < latestRunNumber) {
+            if (status.getRunningDeployments().isEmpty()) {
+                status.setPhase(RunResourceStatus.PHASE_FINISHED);
+                status.setRunFinished(true);
+                if (status.getFinishTime() == null) {
+                    status.setFinishTime(now);
+                }
+            } else {
+                status.setPhase(RunResourceStatus.PHASE_DRAINING);
+            }
+        } else if (allReady) {
+            status.setPhase(RunResourceStatus.PHASE_RUNNING);
+            if (status.getRunningTime() == null) {
+                status.setRunningTime(now);
+            }
+        } else {
+            status.setPhase(RunResourceStatus.PHASE_PENDING);
+        }
+        return status;
+    }
+
+    private List<WorkerDeploymentCache> getCaches() {
+        if (remoteCaches.isEmpty()) {
+            return Collections.singletonList(deploymentCache);
+        }
+        List<WorkerDeploymentCache> caches = new ArrayList<>(remoteCaches.size() + 1);
+        caches.add(deploymentCache);
+        caches.addAll(remoteCaches);
+        return caches;
+    }
+
+    private String toJson(Object value) {
+        try {
+            return objectMapper.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize the RunResource status", e);
+        }
+    }
+
+    private void unindex(String key, TrackedRun run) {
+        for (String deploymentName : run.deploymentPerRunPipe.values()) {
+            String deploymentKey = run.deploymentNamespace + "/" + deploymentName;
+            Set<String> keys = runsByDeployment.get(deploymentKey);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    runsByDeployment.remove(deploymentKey);
+                }
+            }
+        }
+    }
+
+    public long getPatchesTotal() { return patchesTotal.sum(); }
+    public long getSkippedUnchangedTotal() { return skippedUnchangedTotal.sum(); }
+    public int getTrackedCount() { return runs.size(); }
+
+    @Override
+    public void close() {
+        flushExecutor.shutdownNow();
+    }
+
+    private static final class TrackedRun {
+        private final String namespace;
+        private final String name;
+        private final int runNumber;
+        private final String deploymentNamespace;
+        private final Map<String, String> deploymentPerRunPipe;
+        /* The last status we wrote, or the one read from the RunResource */
+        private volatile RunResourceStatus status = new RunResourceStatus();
+        /* The JSON of the last written status without lastUpdateTime, to skip writes that change nothing */
+        private volatile String lastWritten;
+        private volatile String message;
+
+        private TrackedRun(String namespace, String name, int runNumber, String deploymentNamespace, Map<String, String> deploymentPerRunPipe) {
+            this.namespace = namespace;
+            this.name = name;
+            this.runNumber = runNumber;
+            this.deploymentNamespace = deploymentNamespace;
+            this.deploymentPerRunPipe = deploymentPerRunPipe;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package ch.cern.tdaq.k8s.operator;
+
+import io.fabric8.kubernetes.api.model.ConfigMap;
+import io.fabric8.kubernetes.api.model.ConfigMapBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets several Operator replicas share the RunResources of the cluster.
+ *
+ * Every replica holds a lease: a ConfigMap named tdaq-operator-lease-<identity> in the Operator namespace, which it renews every
+ * renewInterval. A replica is alive as long as we have seen its lease change within leaseDuration. The time is our own, not the one
+ * written by the other replica, so clock skew between the nodes does not matter. Each replica only writes its own lease, so the
+ * renewals never conflict.
+ *
+ * The shard keys (the namespace or the RunPipes of a RunResource) are mapped to the alive replicas with a consistent hash ring, so when
+ * a replica joins or dies only the shards of that replica move. The alive replica with the lowest identity is the leader, it runs the
+ * work that must only run once in the cluster, like the finished run reaper.
+ */
+public class ShardCoordinator implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ShardCoordinator.class);
+
+    public static final String LEASE_LABEL_KEY = "tdaq.operator-lease";
+    public static final String LEASE_LABEL_VALUE = "true";
+    private static final String LEASE_NAME_PREFIX = "tdaq-operator-lease-";
+    private static final String HOLDER_KEY = "holderIdentity";
+    private static final String RENEW_TIME_KEY = "renewTime";
+
+    private final KubernetesClient kubernetesClient;
+    private final String namespace;
+    private final String identity;
+    private final long leaseDurationNanos;
+    private final long renewIntervalMillis;
+    private final int virtualNodes;
+    private final ScheduledExecutorService executor;
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    /* Other replica identity -> the lease resourceVersion and when we saw it change, only used on the executor thread */
+    private final Map<String, ObservedLease> observedLeases = new HashMap<>();
+    private volatile Ring ring;
+    private final AtomicLong rebalanceCount = new AtomicLong();
+
+    /**
+     * @param namespace The namespace the leases are kept in, normally the one the Operator runs in
+     * @param identity Unique per replica, normally the Pod name
+     * @param virtualNodes Points per replica on the hash ring, more points spread the shards more evenly
+     */
+    public ShardCoordinator(@NotNull KubernetesClient kubernetesClient, @NotNull String namespace, @NotNull String identity,
+                            long leaseDurationMillis, long renewIntervalMillis, int virtualNodes) {
+        this.kubernetesClient = kubernetesClient;
+        this.namespace = namespace;
+        this.identity = identity;
+        this.leaseDurationNanos = TimeUnit.MILLISECONDS.toNanos(leaseDurationMillis);
+        this.renewIntervalMillis = renewIntervalMillis;
+        this.virtualNodes = Math.max(1, virtualNodes);
+        this.ring = new Ring(Collections.singletonList(identity), this.virtualNodes);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "shard-coordinator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Takes our lease and reads the leases of the other replicas once, so the first events are already sharded, then keeps renewing
+     */
+    public void start() {
+        renew();
+        refresh();
+        executor.scheduleWithFixedDelay(this::renewSafely, renewIntervalMillis, renewIntervalMillis, TimeUnit.MILLISECONDS);
+        log.info("Shard coordinator started as {} with {} replica(s): {}", identity, ring.members.size(), ring.members);
+    }
+
+    /**
+     * Called (on the coordinator thread) every time the alive replicas change, e.g. to reconcile the RunResources this replica gained
+     */
+    public void addListener(@NotNull Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return True if this replica reconciles the RunResources with this shard key
+     */
+    public boolean owns(@NotNull String shardKey) {
+        return identity.equals(ring.ownerOf(shardKey));
+    }
+
+    /**
+     * @return True if this replica is the alive replica with the lowest identity
+     */
+    public boolean isLeader() {
+        return identity.equals(ring.members.get(0));
+    }
+
+    @NotNull
+    public String getIdentity() { return identity; }
+    @NotNull
+    public List<String> getMembers() { return ring.members; }
+    public long getRebalanceCount() { return rebalanceCount.get(); }
+
+    private void renewSafely() {
+        try {
+            renew();
+        } catch (KubernetesClientException e) {
+            /* The other replicas take over our shards if this keeps failing for leaseDuration */
+            log.warn("Failed to renew the lease of {}", identity, e);
+        }
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            /* Never let an exception escape, the ScheduledExecutorService would stop scheduling */
+            log.error("Failed to read the Operator leases", e);
+        }
+    }
+
+    private void renew() {
+        ConfigMap lease = new ConfigMapBuilder()
+                .withNewMetadata()
+                    .withName(LEASE_NAME_PREFIX + identity)
+                    .withNamespace(namespace)
+                    .addToLabels(LEASE_LABEL_KEY, LEASE_LABEL_VALUE)
+                .endMetadata()
+                .addToData(HOLDER_KEY, identity)
+                .addToData(RENEW_TIME_KEY, Long.toString(System.currentTimeMillis()))
+                .build();
+        kubernetesClient.configMaps().inNamespace(namespace).createOrReplace(lease);
+    }
+
+    /**
+     * Reads all the leases and rebuilds the hash ring if the alive replicas changed
+     */
+    void refresh() {
+        long nowNanos = System.nanoTime();
+        TreeSet<String> alive = new TreeSet<>();
+        alive.add(identity);
+        Map<String, ObservedLease> seen = new HashMap<>();
+        for (ConfigMap lease : kubernetesClient.configMaps().inNamespace(namespace).withLabel(LEASE_LABEL_KEY, LEASE_LABEL_VALUE).list().getItems()) {
+            String holder = lease.getData() == null ? null : lease.getData().get(HOLDER_KEY);
+            if (holder == null || holder.equals(identity)) {
+                continue;
+            }
+            String resourceVersion = lease.getMetadata().getResourceVersion();
+            ObservedLease observed = observedLeases.get(holder);
+            if (observed == null || !observed.resourceVersion.equals(resourceVersion)) {
+                observed = new ObservedLease(resourceVersion, nowNanos);
+            }
+            seen.put(holder, observed);
+            if (nowNanos - observed.changedNanos < leaseDurationNanos) {
+                alive.add(holder);
+            } else if (isLeader()) {
+                deleteExpiredLease(lease, holder);
+            }
+        }
+        observedLeases.clear();
+        observedLeases.putAll(seen);
+
+        List<String> members = new ArrayList<>(alive);
+        if (!members.equals(ring.members)) {
+            log.info("Operator replicas changed from {} to {}", ring.members, members);
+            ring = new Ring(members, virtualNodes);
+            rebalanceCount.incrementAndGet();
+            for (Runnable listener : listeners) {
+                try {
+                    listener.run();
+                } catch (RuntimeException e) {
+                    log.error("Shard rebalance listener failed", e);
+                }
+            }
+        }
+    }
+
+    private void deleteExpiredLease(ConfigMap lease, String holder) {
+        try {
+            kubernetesClient.configMaps().inNamespace(namespace).withName(lease.getMetadata().getName()).delete();
+            observedLeases.remove(holder);
+            log.info("Deleted the expired lease of replica {}", holder);
+        } catch (KubernetesClientException e) {
+            log.warn("Failed to delete the expired lease of replica {}", holder, e);
+        }
+    }
+
+    /**
+     * Stops renewing our lease without giving it up, like a replica that died, so the others take over our shards after leaseDuration
+     */
+    void abandon() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Gives up our lease, so the other replicas take over our shards right away instead of after leaseDuration
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            kubernetesClient.configMaps().inNamespace(namespace).withName(LEASE_NAME_PREFIX + identity).delete();
+        } catch (KubernetesClientException e) {
+            log.warn("Failed to delete the lease of {}", identity, e);
+        }
+    }
+
+    private static final class ObservedLease {
+        private final String resourceVersion;
+        private final long changedNanos;
+
+        private ObservedLease(String resourceVersion, long changedNanos) {
+            this.resourceVersion = resourceVersion;
+            this.changedNanos = changedNanos;
+        }
+    }
+
+    /**
+     * Consistent hash ring, every member is put on the ring virtualNodes times
+     */
+    static final class Ring {
+        private final List<String> members;
+        private final NavigableMap<Long, String> points = new TreeMap<>();
+
+        Ring(@NotNull List<String> members, int virtualNodes) {
+            this.members = Collections.unmodifiableList(new ArrayList<>(members));
+            for (String member : members) {
+                for (int i = 0; i < virtualNodes; i++) {
+                    points.put(hash(member + "#" + i), member);
+                }
+            }
+        }
+
+        @NotNull
+        String ownerOf(@NotNull String key) {
+            Map.Entry<Long, String> entry = points.ceilingEntry(hash(key));
+            return entry != null ? entry.getValue() : points.firstEntry().getValue();
+        }
+
+        /**
+         * The first 8 bytes of the MD5, the same on every replica (String.hashCode spreads similar names badly)
+         */
+        static long hash(@NotNull String value) {
+            try {
+                byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+                long hash = 0;
+                for (int i = 0; i < 8; i++) {
+                    hash = (hash << 8) | (digest[i] & 0xff);
+                }
+                return hash;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("MD5 is always available", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package ch.cern.tdaq.k8s.operator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traces the reconciles: one trace per reconcile, with a child span for every internal step and every call to the API server.
+ *
+ * A trace is sampled when it starts, a trace that is not sampled costs one random number and returns Span.NOOP everywhere.
+ * The span of the running step is kept per thread, so the TracingInterceptor can hang the API calls below it. Work that moves
+ * to another thread (the reconcile executor) starts its span from the parent it was given.
+ *
+ * Finished spans go to a bounded queue and are written by one background thread, as JSON lines to a file and/or POSTed in
+ * batches to a collector. When the queue is full the span is dropped, the reconcile never waits for the exporter.
+ * The fields follow the OTLP span names (traceId, spanId, parentSpanId, startTimeUnixNano, endTimeUnixNano, attributes, status).
+ */
+public class Tracer implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(Tracer.class);
+    private static final ObjectMapper MAPPER = Serialization.jsonMapper();
+    private static final MediaType JSON_LINES = MediaType.parse("application/x-ndjson");
+    private static final int MAX_BATCH_SIZE = 512;
+
+    private final double sampleRatio;
+    @Nullable
+    private final String file;
+    @Nullable
+    private final String collectorUrl;
+    private final BlockingQueue<Span> finishedSpans;
+    private final ThreadLocal<Span> current = new ThreadLocal<>();
+    private final OkHttpClient collectorClient;
+    private final Thread exporterThread;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private final LongAdder exportedTotal = new LongAdder();
+    private final LongAdder droppedTotal = new LongAdder();
+
+    /**
+     * @param sampleRatio The share of the reconciles that are traced, 0 to disable tracing, 1 for all
+     * @param file The JSON-lines file the spans are appended to, or null
+     * @param collectorUrl Where batches of spans are POSTed as JSON lines, or null
+     * @param queueSize Finished spans waiting for the exporter, more are dropped
+     */
+    public Tracer(double sampleRatio, @Nullable String file, @Nullable String collectorUrl, int queueSize) {
+        this.file = file;
+        this.collectorUrl = collectorUrl;
+        this.sampleRatio = file == null && collectorUrl == null ? 0 : Math.max(0, Math.min(1, sampleRatio));
+        this.finishedSpans = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        /* Its own client, so the exporter calls are not traced or counted as API calls */
+        this.collectorClient = collectorUrl == null ? null : new OkHttpClient.Builder()
+                .connectTimeout(2, TimeUnit.SECONDS)
+                .readTimeout(5, TimeUnit.SECONDS)
+                .build();
+        this.exporterThread = new Thread(this::export, "trace-exporter");
+        exporterThread.setDaemon(true);
+    }
+
+    /**
+     * @return A tracer that never samples, for when tracing is not configured
+     */
+    @NotNull
+    public static Tracer disabled() {
+        return new Tracer(0, null, null, 1);
+    }
+
+    public void start() {
+        if (isEnabled()) {
+            exporterThread.start();
+            log.info("Tracing {}% of the reconciles to {}", sampleRatio * 100, file != null ? file : collectorUrl);
+        }
+    }
+
+    public boolean isEnabled() {
+        return sampleRatio > 0;
+    }
+
+    /**
+     * Starts a new trace, if it is sampled, and makes it the current span of this thread until it ends
+     */
+    @NotNull
+    public Span startTrace(@NotNull String name) {
+        if (sampleRatio <= 0 || (sampleRatio < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRatio)) {
+            return Span.NOOP;
+        }
+        return start(null, name);
+    }
+
+    /**
+     * Starts a child of the current span of this thread, or returns Span.NOOP if this thread is not in a sampled trace
+     */
+    @NotNull
+    public Span startSpan(@NotNull String name) {
+        return startSpan(current(), name);
+    }
+
+    /**
+     * Starts a child of the given span on this thread, used when the work of a span continues on another thread
+     */
+    @NotNull
+    public Span startSpan(@NotNull Span parent, @NotNull String name) {
+        return parent == Span.NOOP ? Span.NOOP : start(parent, name);
+    }
+
+    /**
+     * @return The running span of this thread, or Span.NOOP
+     */
+    @NotNull
+    public Span current() {
+        Span span = current.get();
+        return span == null ? Span.NOOP : span;
+    }
+
+    private Span start(@Nullable Span parent, String name) {
+        Span span = new Span(this, parent == null ? randomHex(16) : parent.traceId, randomHex(8), parent == null ? null : parent.spanId,
+                name, current.get());
+        current.set(span);
+        return span;
+    }
+
+    private void finish(Span span) {
+        /* Only the span that is current on this thread gives the thread back to its parent, a span ended elsewhere leaves it alone */
+        if (current.get() == span) {
+            if (span.previous == null) {
+                current.remove();
+            } else {
+                current.set(span.previous);
+            }
+        }
+        if (!finishedSpans.offer(span)) {
+            droppedTotal.increment();
+        }
+    }
+
+    public long getExportedTotal() { return exportedTotal.sum(); }
+    public long getDroppedTotal() { return droppedTotal.sum(); }
+
+    private void export() {
+        List<Span> batch = new ArrayList<>();
+        while (!closed.get() || !finishedSpans.isEmpty()) {
+            try {
+                Span first = finishedSpans.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                finishedSpans.drainTo(batch, MAX_BATCH_SIZE - 1);
+                StringBuilder lines = new StringBuilder();
+                for (Span span : batch) {
+                    lines.append(span.toJson()).append('\n');
+                }
+                write(lines.toString());
+                exportedTotal.add(batch.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to export {} spans: {}", batch.size(), e.toString());
+                droppedTotal.add(batch.size());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(String lines) throws IOException {
+        if (file != null) {
+            try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(lines);
+            }
+        }
+        if (collectorUrl != null) {
+            Request request = new Request.Builder().url(collectorUrl).post(RequestBody.create(JSON_LINES, lines)).build();
+            try (Response response = collectorClient.newCall(request).execute()) {
+                if (!response.isSuccessful()) {
+                    throw new IOException("POST " + collectorUrl + " failed: " + response.code());
+                }
+            }
+        }
+    }
+
+    private static String randomHex(int bytes) {
+        StringBuilder hex = new StringBuilder(bytes * 2);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < bytes; i++) {
+            hex.append(String.format("%02x", random.nextInt(256)));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Writes out the spans that are still queued
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true) && exporterThread.isAlive()) {
+            try {
+                exporterThread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * One step of a reconcile, ended with end() or by try-with-resources on the thread that started it
+     */
+    public static class Span implements AutoCloseable {
+        /* What a trace that is not sampled hands out, all methods do nothing */
+        public static final Span NOOP = new Span(null, null, null, null, null, null);
+
+        private final Tracer tracer;
+        private final String traceId;
+        private final String spanId;
+        private final String parentSpanId;
+        private final String name;
+        /* The span that was current on this thread before this one */
+        private final Span previous;
+        private final long startEpochNanos;
+        private final long startNanos = System.nanoTime();
+        private final Map<String, Object> attributes = new LinkedHashMap<>();
+        private final AtomicBoolean ended = new AtomicBoolean();
+        private volatile long durationNanos;
+        private volatile String error;
+
+        private Span(Tracer tracer, String traceId, String spanId, String parentSpanId, String name, Span previous) {
+            this.tracer = tracer;
+            this.traceId = traceId;
+            this.spanId = spanId;
+            this.parentSpanId = parentSpanId;
+            this.name = name;
+            this.previous = previous;
+            this.startEpochNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        }
+
+        /**
+         * Adds an attribute, e.g. tdaq.run_number
+         */
+        @NotNull
+        public Span tag(@NotNull String key, @Nullable Object value) {
+            if (this != NOOP && value != null) {
+                synchronized (attributes) {
+                    attributes.put(key, value);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Marks the span as failed
+         */
+        @NotNull
+        public Span error(@NotNull Throwable e) {
+            if (this != NOOP) {
+                error = e.toString();
+            }
+            return this;
+        }
+
+        public void end() {
+            if (this != NOOP && ended.compareAndSet(false, true)) {
+                durationNanos = System.nanoTime() - startNanos;
+                tracer.finish(this);
+            }
+        }
+
+        @Override
+        public void close() {
+            end();
+        }
+
+        private String toJson() {
+            ObjectNode json = MAPPER.createObjectNode();
+            json.put("traceId", traceId);
+            json.put("spanId", spanId);
+            if (parentSpanId != null) {
+                json.put("parentSpanId", parentSpanId);
+            }
+            json.put("name", name);
+            json.put("startTimeUnixNano", startEpochNanos);
+            json.put("endTimeUnixNano", startEpochNanos + durationNanos);
+            json.put("durationMillis", durationNanos / 1e6);
+            synchronized (attributes) {
+                json.set("attributes", MAPPER.valueToTree(attributes));
+            }
+            ObjectNode status = json.putObject("status");
+            status.put("code", error == null ? "OK" : "ERROR");
+            if (error != null) {
+                status.put("message", error);
+            }
+            return json.toString();
+        }
+    }
+}
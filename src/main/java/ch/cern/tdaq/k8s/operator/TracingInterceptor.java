@@ -0,0 +1,44 @@
+package ch.cern.tdaq.k8s.operator;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Adds a span for every call the KubernetesClient makes while the calling thread is in a sampled trace, e.g. "patch deployments".
+ * Calls made outside of a reconcile (informers, the framework) are not traced.
+ */
+public class TracingInterceptor implements Interceptor {
+    private final Tracer tracer;
+
+    public TracingInterceptor(@NotNull Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Tracer.Span parent = tracer.current();
+        if (parent == Tracer.Span.NOOP) {
+            return chain.proceed(request);
+        }
+        List<String> segments = request.url().pathSegments();
+        String verb = ApiCallMetricsInterceptor.getVerb(request, segments);
+        String resource = ApiCallMetricsInterceptor.getResource(segments);
+        try (Tracer.Span span = tracer.startSpan(parent, verb + " " + resource)) {
+            span.tag("k8s.verb", verb).tag("k8s.resource", resource).tag("http.path", request.url().encodedPath());
+            try {
+                Response response = chain.proceed(request);
+                span.tag("http.status_code", response.code());
+                return response;
+            } catch (IOException | RuntimeException e) {
+                span.error(e);
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package ch.cern.tdaq.k8s.operator;
+
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.client.Config;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The clusters the worker Pods of a run are spread over, each with its own client, worker deployment cache and informer.
+ * The RunResources stay in the cluster the Operator runs in (the local member), only the run deployments are fanned out.
+ *
+ * The replicas of a RunPipe are split over the available members by their free capacity: the worker Pods a member can run
+ * minus the replicas of the worker deployments in its cache, kept up to date from the informer events so a placement is a
+ * few additions per member. What a member can run is a configured quota, it is not read from the nodes of the cluster like the
+ * CapacityPlanner does for the local cluster. A placement that is in place and still adds up is kept, so the runs do not move between clusters
+ * when the capacity changes. A member is unavailable until its cache synced, and for a back-off time after it failed a call
+ * with a connection error or a 5xx, then the replicas go to the other members.
+ *
+ * The ClusterIP of the data-storage Service can not be reached from another cluster, so every remote member has its own
+ * configured address of the data-storage webserver, see parseDataEndpoints().
+ */
+public class WorkerClusters implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(WorkerClusters.class);
+
+    private final List<Member> members = new CopyOnWriteArrayList<>();
+    private final long backoffNanos;
+    private final AtomicLong failoversTotal = new AtomicLong();
+
+    /**
+     * @param backoffMillis How long a member that failed a call gets no new replicas
+     */
+    public WorkerClusters(long backoffMillis) {
+        this.backoffNanos = TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+    }
+
+    /**
+     * Adds a member, must be called before its deployment cache starts so the replica count sees the first LIST
+     * @param namespaceCleaner Null for the local member, the RunController cleans up the local namespaces itself
+     * @param capacity The quota of worker Pods in the cluster, 0 to only keep the runs that are already there
+     * @param dataEndpoints RunPipe name, or "" for all RunPipes -> the address of the data-storage webserver from this cluster,
+     *                      empty for the local member which uses the Services of the DataEndpointRegistry
+     */
+    @NotNull
+    public Member addMember(@NotNull String name, @NotNull KubernetesClient client, @NotNull KubernetesPatchClient patchClient,
+                            @NotNull WorkerDeploymentCache deploymentCache, @Nullable NamespaceCleaner namespaceCleaner, int capacity, boolean local,
+                            @NotNull Map<String, DataEndpointRegistry.DataEndpoint> dataEndpoints) {
+        Member member = new Member(name, client, patchClient, deploymentCache, namespaceCleaner, capacity, local, dataEndpoints);
+        deploymentCache.addEventHandler(member);
+        members.add(member);
+        return member;
+    }
+
+    /**
+     * Starts the caches of the remote members and waits until they synced or the timeout is reached.
+     * A member that does not sync is left out of the placements until it does, the other members are used meanwhile.
+     */
+    public void start(long timeout, TimeUnit unit) throws InterruptedException {
+        for (Member member : members) {
+            if (!member.local) {
+                member.deploymentCache.startAsync();
+            }
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Member member : members) {
+            while (!member.deploymentCache.hasSynced() && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+            if (member.deploymentCache.hasSynced()) {
+                log.info("Worker cluster {} synced with {} deployments, capacity: {} used: {}",
+                        member.name, member.deploymentCache.size(), member.capacity, member.usedReplicas.get());
+            } else {
+                log.warn("Worker cluster {} is not synced after {} {}, it gets no replicas until it is", member.name, timeout, unit);
+            }
+        }
+    }
+
+    @NotNull
+    public List<Member> getMembers() {
+        return Collections.unmodifiableList(members);
+    }
+
+    /**
+     * @return The placement of a run deployment that is in place: the replicas per available member, or null if the deployment
+     * does not exist, does not add up to replicas, or has replicas on a member that is unavailable
+     */
+    @Nullable
+    public Map<Member, Integer> getLivePlacement(@NotNull String namespace, @NotNull String deploymentName, int replicas) {
+        Map<Member, Integer> placement = new LinkedHashMap<>();
+        int placed = 0;
+        for (Member member : members) {
+            Deployment deployment = member.deploymentCache.get(namespace, deploymentName);
+            if (deployment == null) {
+                continue;
+            }
+            int memberReplicas = getReplicas(deployment);
+            if (!member.isAvailable()) {
+                if (memberReplicas > 0) {
+                    return null;
+                }
+                continue;
+            }
+            placement.put(member, memberReplicas);
+            placed += memberReplicas;
+        }
+        return placement.isEmpty() || placed != replicas ? null : placement;
+    }
+
+    /**
+     * Splits the replicas of a run deployment over the available members, proportional to their free capacity, with the
+     * remainder going to the members with the largest fraction. The replicas the deployment already has on a member count as free there.
+     * When no member has free capacity the split is by capacity, the Pods then wait for the cluster autoscaler or for older runs to end.
+     * @return The replicas per available member, 0 for the members that should not have the deployment
+     * @throws KubernetesClientException When no member is available, the reconcile executor retries it
+     */
+    @NotNull
+    public Map<Member, Integer> place(@NotNull String namespace, @NotNull String deploymentName, int replicas) {
+        Map<Member, Integer> live = getLivePlacement(namespace, deploymentName, replicas);
+        if (live != null) {
+            return live;
+        }
+        List<Member> available = new ArrayList<>();
+        List<Long> free = new ArrayList<>();
+        long totalFree = 0;
+        long totalCapacity = 0;
+        for (Member member : members) {
+            if (!member.isAvailable()) {
+                continue;
+            }
+            Deployment deployment = member.deploymentCache.get(namespace, deploymentName);
+            long own = deployment == null ? 0 : getReplicas(deployment);
+            long memberFree = Math.max(0, member.capacity - member.usedReplicas.get() + own);
+            available.add(member);
+            free.add(memberFree);
+            totalFree += memberFree;
+            totalCapacity += member.capacity;
+        }
+        if (available.isEmpty()) {
+            throw new KubernetesClientException("No worker cluster is available for deployment " + namespace + "/" + deploymentName);
+        }
+
+        Map<Member, Integer> placement = new LinkedHashMap<>();
+        double[] remainders = new double[available.size()];
+        int placed = 0;
+        for (int i = 0; i < available.size(); i++) {
+            Member member = available.get(i);
+            double weight = totalFree > 0 ? (double) free.get(i) / totalFree
+                    : totalCapacity > 0 ? (double) member.capacity / totalCapacity : 1.0 / available.size();
+            double exact = replicas * weight;
+            int share = (int) Math.floor(exact);
+            remainders[i] = exact - share;
+            placement.put(member, share);
+            placed += share;
+        }
+        while (placed < replicas) {
+            int largest = 0;
+            for (int i = 1; i < remainders.length; i++) {
+                if (remainders[i] > remainders[largest]) {
+                    largest = i;
+                }
+            }
+            placement.merge(available.get(largest), 1, Integer::sum);
+            remainders[largest] = -1;
+            placed++;
+        }
+        return placement;
+    }
+
+    /**
+     * Leaves a member out of the placements for the back-off time if the call failed because the cluster is not reachable
+     */
+    public void markFailed(@NotNull Member member, @NotNull KubernetesClientException e) {
+        if (e.getCode() == 0 || e.getCode() >= 500) {
+            member.unavailableUntilNanos = System.nanoTime() + backoffNanos;
+            failoversTotal.incrementAndGet();
+            log.warn("Worker cluster {} failed a call, no new replicas for {}ms: {}", member.name,
+                    TimeUnit.NANOSECONDS.toMillis(backoffNanos), e.getMessage());
+        }
+    }
+
+    /**
+     * @return The members that are synced and did not fail a call during the back-off time
+     */
+    public int getAvailableCount() {
+        int available = 0;
+        for (Member member : members) {
+            if (member.isAvailable()) {
+                available++;
+            }
+        }
+        return available;
+    }
+
+    /**
+     * @return The free worker Pods of all available members
+     */
+    public long getFreeCapacity() {
+        long free = 0;
+        for (Member member : members) {
+            if (member.isAvailable()) {
+                free += Math.max(0, member.capacity - member.usedReplicas.get());
+            }
+        }
+        return free;
+    }
+
+    public long getFailoversTotal() {
+        return failoversTotal.get();
+    }
+
+    /**
+     * Parses TDAQ_WORKER_CLUSTERS, a comma separated list of name=kubeconfig-path:capacity
+     * @return The remote member specs, in the order they are configured
+     */
+    @NotNull
+    public static List<MemberSpec> parseMembers(@Nullable String value) {
+        List<MemberSpec> specs = new ArrayList<>();
+        if (value == null) {
+            return specs;
+        }
+        for (String entry : value.split(",")) {
+            String[] nameAndConfig = entry.trim().split("=", 2);
+            int capacitySeparator = nameAndConfig.length == 2 ? nameAndConfig[1].lastIndexOf(':') : -1;
+            try {
+                if (capacitySeparator <= 0 || nameAndConfig[0].trim().isEmpty()) {
+                    throw new NumberFormatException("expected name=kubeconfig-path:capacity");
+                }
+                specs.add(new MemberSpec(nameAndConfig[0].trim(), nameAndConfig[1].substring(0, capacitySeparator).trim(),
+                        Integer.parseInt(nameAndConfig[1].substring(capacitySeparator + 1).trim())));
+            } catch (NumberFormatException e) {
+                if (!entry.trim().isEmpty()) {
+                    log.warn("Ignoring invalid worker cluster: {} ({})", entry, e.getMessage());
+                }
+            }
+        }
+        return specs;
+    }
+
+    /**
+     * Parses TDAQ_WORKER_CLUSTER_DATA_ENDPOINTS, a comma separated list of name=host:port for all RunPipes of a remote cluster,
+     * or name/runPipe=host:port for one RunPipe, e.g. "east=data.example.org:8080,east/ion=ion-data.example.org:8080"
+     * @return Member name -> (RunPipe name, or "" for all RunPipes -> endpoint)
+     */
+    @NotNull
+    public static Map<String, Map<String, DataEndpointRegistry.DataEndpoint>> parseDataEndpoints(@Nullable String value) {
+        Map<String, Map<String, DataEndpointRegistry.DataEndpoint>> endpoints = new LinkedHashMap<>();
+        if (value == null) {
+            return endpoints;
+        }
+        for (String entry : value.split(",")) {
+            String[] keyAndAddress = entry.trim().split("=", 2);
+            int portSeparator = keyAndAddress.length == 2 ? keyAndAddress[1].lastIndexOf(':') : -1;
+            try {
+                if (portSeparator <= 0 || keyAndAddress[0].trim().isEmpty()) {
+                    throw new NumberFormatException("expected name[/runPipe]=host:port");
+                }
+                String[] nameAndRunPipe = keyAndAddress[0].trim().split("/", 2);
+                DataEndpointRegistry.DataEndpoint endpoint = new DataEndpointRegistry.DataEndpoint(
+                        keyAndAddress[1].substring(0, portSeparator).trim(), Integer.parseInt(keyAndAddress[1].substring(portSeparator + 1).trim()));
+                endpoints.computeIfAbsent(nameAndRunPipe[0], name -> new LinkedHashMap<>())
+                        .put(nameAndRunPipe.length == 2 ? nameAndRunPipe[1] : "", endpoint);
+            } catch (NumberFormatException e) {
+                if (!entry.trim().isEmpty()) {
+                    log.warn("Ignoring invalid worker cluster data endpoint: {} ({})", entry, e.getMessage());
+                }
+            }
+        }
+        return endpoints;
+    }
+
+    /**
+     * Reads the current context of a kubeconfig file, not bound to a namespace so the informer watches all namespaces
+     */
+    @NotNull
+    public static Config loadKubeconfig(@NotNull String path) throws IOException {
+        String kubeconfig = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+        Config config = Config.fromKubeconfig(null, kubeconfig, path);
+        config.setNamespace(null);
+        return config;
+    }
+
+    private static int getReplicas(@NotNull Deployment deployment) {
+        Integer replicas = deployment.getSpec() == null ? null : deployment.getSpec().getReplicas();
+        return replicas == null ? 1 : replicas;
+    }
+
+    @Override
+    public void close() {
+        for (Member member : members) {
+            if (!member.local) {
+                member.deploymentCache.close();
+                member.client.close();
+            }
+        }
+    }
+
+    /**
+     * One configured remote cluster
+     */
+    public static final class MemberSpec {
+        private final String name;
+        private final String kubeconfig;
+        private final int capacity;
+
+        private MemberSpec(String name, String kubeconfig, int capacity) {
+            this.name = name;
+            this.kubeconfig = kubeconfig;
+            this.capacity = capacity;
+        }
+
+        public String getName() { return name; }
+        public String getKubeconfig() { return kubeconfig; }
+        public int getCapacity() { return capacity; }
+    }
+
+    /**
+     * A cluster the run deployments can be placed in. It counts the replicas of its worker deployments from the informer events.
+     */
+    public static final class Member implements ResourceEventHandler<Deployment> {
+        private final String name;
+        private final KubernetesClient client;
+        private final KubernetesPatchClient patchClient;
+        private final WorkerDeploymentCache deploymentCache;
+        private final NamespaceCleaner namespaceCleaner;
+        /* The configured quota of worker Pods, not what the nodes of the cluster can schedule */
+        private final int capacity;
+        private final boolean local;
+        /* RunPipe name, or "" for all RunPipes -> the data-storage webserver as seen from this cluster */
+        private final Map<String, DataEndpointRegistry.DataEndpoint> dataEndpoints;
+        private final AtomicLong usedReplicas = new AtomicLong();
+        private volatile long unavailableUntilNanos = System.nanoTime();
+
+        private Member(String name, KubernetesClient client, KubernetesPatchClient patchClient, WorkerDeploymentCache deploymentCache,
+                       NamespaceCleaner namespaceCleaner, int capacity, boolean local, Map<String, DataEndpointRegistry.DataEndpoint> dataEndpoints) {
+            this.name = name;
+            this.client = client;
+            this.patchClient = patchClient;
+            this.deploymentCache = deploymentCache;
+            this.namespaceCleaner = namespaceCleaner;
+            this.capacity = Math.max(0, capacity);
+            this.local = local;
+            this.dataEndpoints = new LinkedHashMap<>(dataEndpoints);
+        }
+
+        public String getName() { return name; }
+        public KubernetesClient getClient() { return client; }
+        public KubernetesPatchClient getPatchClient() { return patchClient; }
+        public WorkerDeploymentCache getDeploymentCache() { return deploymentCache; }
+        @Nullable
+        public NamespaceCleaner getNamespaceCleaner() { return namespaceCleaner; }
+        public int getCapacity() { return capacity; }
+        /* The cluster the Operator and the RunResources are in */
+        public boolean isLocal() { return local; }
+        public long getUsedReplicas() { return usedReplicas.get(); }
+
+        /**
+         * @return The address of the data-storage webserver the worker Pods of the RunPipe use in this cluster, null for the
+         * local member, which uses the ClusterIP of the Service from the DataEndpointRegistry
+         */
+        @Nullable
+        public DataEndpointRegistry.DataEndpoint getDataEndpoint(@NotNull String runPipeName) {
+            DataEndpointRegistry.DataEndpoint endpoint = dataEndpoints.get(runPipeName);
+            return endpoint != null ? endpoint : dataEndpoints.get("");
+        }
+
+        public boolean isAvailable() {
+            return deploymentCache.hasSynced() && System.nanoTime() - unavailableUntilNanos >= 0;
+        }
+
+        @Override
+        public void onAdd(Deployment deployment) {
+            usedReplicas.addAndGet(getReplicas(deployment));
+        }
+
+        @Override
+        public void onUpdate(Deployment oldDeployment, Deployment newDeployment) {
+            usedReplicas.addAndGet(getReplicas(newDeployment) - getReplicas(oldDeployment));
+        }
+
+        @Override
+        public void onDelete(Deployment deployment, boolean deletedFinalStateUnknown) {
+            usedReplicas.addAndGet(-getReplicas(deployment));
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package ch.cern.tdaq.k8s.operator;
+
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.api.model.apps.DeploymentList;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.dsl.base.OperationContext;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import io.fabric8.kubernetes.client.informers.SharedIndexInformer;
+import io.fabric8.kubernetes.client.informers.SharedInformerFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local cache of all the worker Deployments (label tdaq.worker=true) in the cluster, kept up to date by one shared informer.
+ * All the run lookups read from the in-memory indexes here, so the reconcile loop does not GET or LIST against the API server.
+ * NOTE: Listing 3000-5000 Deployments at once can time out the API server, the informer only does one LIST at startup and then watches.
+ *
+ * The cache is eventually consistent: a Deployment created by this Operator shows up after the informer receives the watch event.
+ */
+public class WorkerDeploymentCache implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(WorkerDeploymentCache.class);
+
+    public static final String METADATA_LABEL_RUN_NUMBER_KEY = "tdaq.run-number";
+    public static final String METADATA_LABEL_RUN_PIPE_KEY = "tdaq.run-pipe";
+    public static final String METADATA_LABEL_TDAQ_WORKER_KEY = "tdaq.worker";
+    public static final String METADATA_LABEL_TDAQ_WORKER_VALUE = "true";
+
+    private final SharedInformerFactory informerFactory;
+    private final SharedIndexInformer<Deployment> informer;
+
+    /* <namespace>/<name> -> Deployment */
+    private final Map<String, Deployment> deploymentsByKey = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Set<String>> keysByRunNumber = new ConcurrentSkipListMap<>();
+    private final Map<String, Set<String>> keysByRunPipe = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> keysByNamespace = new ConcurrentHashMap<>();
+
+    /**
+     * @param kubernetesClient The client must not be bound to a namespace, so that the informer watches all namespaces
+     * @param resyncPeriodMillis How often the informer replays the cached objects to the handlers. This does not call the API server.
+     */
+    public WorkerDeploymentCache(@NotNull KubernetesClient kubernetesClient, long resyncPeriodMillis) {
+        this.informerFactory = kubernetesClient.informers();
+        OperationContext workerLabelContext = new OperationContext()
+                .withLabels(Collections.singletonMap(METADATA_LABEL_TDAQ_WORKER_KEY, METADATA_LABEL_TDAQ_WORKER_VALUE));
+        this.informer = informerFactory.sharedIndexInformerFor(Deployment.class, DeploymentList.class, workerLabelContext, resyncPeriodMillis);
+        this.informer.addEventHandler(new ResourceEventHandler<Deployment>() {
+            @Override
+            public void onAdd(Deployment deployment) {
+                put(deployment);
+            }
+
+            @Override
+            public void onUpdate(Deployment oldDeployment, Deployment newDeployment) {
+                replace(oldDeployment, newDeployment);
+            }
+
+            @Override
+            public void onDelete(Deployment deployment, boolean deletedFinalStateUnknown) {
+                remove(deployment);
+            }
+        });
+    }
+
+    /**
+     * Starts the informer and blocks until the first LIST is in the cache, or the timeout is reached.
+     * @return True if the cache is synced
+     */
+    public boolean start(long timeout, TimeUnit unit) throws InterruptedException {
+        startAsync();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!informer.hasSynced()) {
+            if (System.nanoTime() > deadline) {
+                log.warn("Worker deployment cache is not synced after {} {}", timeout, unit);
+                return false;
+            }
+            Thread.sleep(100);
+        }
+        log.info("Worker deployment cache synced with {} deployments", deploymentsByKey.size());
+        return true;
+    }
+
+    /**
+     * Starts the informer without waiting for the first LIST, see hasSynced()
+     */
+    public void startAsync() {
+        informerFactory.startAllRegisteredInformers();
+    }
+
+    public boolean hasSynced() {
+        return informer.hasSynced();
+    }
+
+    /**
+     * Register an extra handler on the shared informer, instead of starting a new watch on the same Deployments
+     */
+    public void addEventHandler(@NotNull ResourceEventHandler<Deployment> handler) {
+        informer.addEventHandler(handler);
+    }
+
+    @Nullable
+    public Deployment get(@NotNull String namespace, @NotNull String name) {
+        return deploymentsByKey.get(toKey(namespace, name));
+    }
+
+    /**
+     * @return The largest (aka latest) RunNumber of any worker deployment in the cluster, or -1 if there are none
+     */
+    public int getLatestRunNumber() {
+        Map.Entry<Integer, Set<String>> lastEntry = keysByRunNumber.lastEntry();
+        return lastEntry == null ? -1 : lastEntry.getKey();
+    }
+
+    /**
+     * @return All the run numbers that have at least one worker deployment, in ascending order
+     */
+    @NotNull
+    public List<Integer> getRunNumbers() {
+        return new ArrayList<>(keysByRunNumber.keySet());
+    }
+
+    @NotNull
+    public List<Deployment> getByRunNumber(int runNumber) {
+        return lookup(keysByRunNumber.get(runNumber));
+    }
+
+    @NotNull
+    public List<Deployment> getByRunPipe(@NotNull String runPipe) {
+        return lookup(keysByRunPipe.get(runPipe));
+    }
+
+    @NotNull
+    public List<Deployment> getByNamespace(@NotNull String namespace) {
+        return lookup(keysByNamespace.get(namespace));
+    }
+
+    public boolean hasWorkerDeploymentsInNamespace(@NotNull String namespace) {
+        Set<String> keys = keysByNamespace.get(namespace);
+        return keys != null && !keys.isEmpty();
+    }
+
+    @NotNull
+    public List<Deployment> getAll() {
+        return new ArrayList<>(deploymentsByKey.values());
+    }
+
+    public int size() {
+        return deploymentsByKey.size();
+    }
+
+    /**
+     * Removes a deployment from the cache right after we deleted it, without waiting for the watch event.
+     * If the delete did not go through, the next informer event for the deployment puts it back.
+     */
+    public void evict(@NotNull String namespace, @NotNull String name) {
+        Deployment cached = deploymentsByKey.get(toKey(namespace, name));
+        if (cached != null) {
+            remove(cached);
+        }
+    }
+
+    /**
+     * Reads the run number label of a worker deployment
+     * @return The run number, or -1 if the label is missing or not a number
+     */
+    public static int getRunNumber(@NotNull Deployment deployment) {
+        Map<String, String> labels = deployment.getMetadata().getLabels();
+        if (labels == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(labels.getOrDefault(METADATA_LABEL_RUN_NUMBER_KEY, "-1"));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Nullable
+    public static String getRunPipe(@NotNull Deployment deployment) {
+        Map<String, String> labels = deployment.getMetadata().getLabels();
+        return labels == null ? null : labels.get(METADATA_LABEL_RUN_PIPE_KEY);
+    }
+
+    private synchronized void put(Deployment deployment) {
+        String key = toKey(deployment.getMetadata().getNamespace(), deployment.getMetadata().getName());
+        deploymentsByKey.put(key, deployment);
+        keysByRunNumber.computeIfAbsent(getRunNumber(deployment), runNumber -> ConcurrentHashMap.newKeySet()).add(key);
+        String runPipe = getRunPipe(deployment);
+        if (runPipe != null) {
+            keysByRunPipe.computeIfAbsent(runPipe, pipe -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+        keysByNamespace.computeIfAbsent(deployment.getMetadata().getNamespace(), namespace -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    private synchronized void remove(Deployment deployment) {
+        String key = toKey(deployment.getMetadata().getNamespace(), deployment.getMetadata().getName());
+        Deployment cached = deploymentsByKey.remove(key);
+        if (cached == null) {
+            cached = deployment;
+        }
+        removeFromIndex(keysByRunNumber, getRunNumber(cached), key);
+        String runPipe = getRunPipe(cached);
+        if (runPipe != null) {
+            removeFromIndex(keysByRunPipe, runPipe, key);
+        }
+        removeFromIndex(keysByNamespace, cached.getMetadata().getNamespace(), key);
+    }
+
+    /**
+     * Swaps the deployment in one step, so get() and the indexes never miss it, e.g. on every informer resync
+     */
+    private synchronized void replace(Deployment oldDeployment, Deployment newDeployment) {
+        String key = toKey(newDeployment.getMetadata().getNamespace(), newDeployment.getMetadata().getName());
+        Deployment cached = deploymentsByKey.put(key, newDeployment);
+        if (cached == null) {
+            cached = oldDeployment;
+        }
+        keysByRunNumber.computeIfAbsent(getRunNumber(newDeployment), runNumber -> ConcurrentHashMap.newKeySet()).add(key);
+        if (getRunNumber(cached) != getRunNumber(newDeployment)) {
+            removeFromIndex(keysByRunNumber, getRunNumber(cached), key);
+        }
+        String runPipe = getRunPipe(newDeployment);
+        if (runPipe != null) {
+            keysByRunPipe.computeIfAbsent(runPipe, pipe -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+        String cachedRunPipe = getRunPipe(cached);
+        if (cachedRunPipe != null && !cachedRunPipe.equals(runPipe)) {
+            removeFromIndex(keysByRunPipe, cachedRunPipe, key);
+        }
+        keysByNamespace.computeIfAbsent(newDeployment.getMetadata().getNamespace(), namespace -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    private static <K> void removeFromIndex(Map<K, Set<String>> index, K indexKey, String key) {
+        Set<String> keys = index.get(indexKey);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                index.remove(indexKey);
+            }
+        }
+    }
+
+    private List<Deployment> lookup(Set<String> keys) {
+        if (keys == null) {
+            return Collections.emptyList();
+        }
+        List<Deployment> deployments = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            Deployment deployment = deploymentsByKey.get(key);
+            if (deployment != null) {
+                deployments.add(deployment);
+            }
+        }
+        return deployments;
+    }
+
+    private static String toKey(String namespace, String name) {
+        return namespace + "/" + name;
+    }
+
+    @Override
+    public void close() {
+        informerFactory.stopAllRegisteredInformers();
+    }
+}
@@ -0,0 +1,154 @@
+package ch.cern.tdaq.k8s.operator;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the RunDataClient against a local stub of webserver/webserver.js
+ */
+class RunDataClientTest {
+    private static final int LATEST_RUN_NUMBER = 42;
+    private static final int FAILING_RUN_NUMBER = 500;
+    private static final int SLOW_RUN_NUMBER = 7;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private final AtomicLong serverCalls = new AtomicLong();
+    /* Holds back the answers to GET /?run=-1 until it is counted down */
+    private volatile CountDownLatch latestGate = new CountDownLatch(0);
+    /* Holds back the answers to GET /?run=SLOW_RUN_NUMBER */
+    private final CountDownLatch slowGate = new CountDownLatch(1);
+    private DataEndpointRegistry.DataEndpoint endpoint;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverExecutor);
+        server.createContext("/", exchange -> {
+            long totalCalls = serverCalls.incrementAndGet();
+            String query = exchange.getRequestURI().getQuery();
+            try {
+                if (query.equals("run=" + SLOW_RUN_NUMBER)) {
+                    slowGate.await();
+                } else if (query.equals("run=-1")) {
+                    latestGate.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            boolean fail = query.equals("run=" + FAILING_RUN_NUMBER);
+            byte[] body = (fail ? "internal error"
+                    : "{\"shutdown\": false, \"totalCalls\": " + totalCalls + ", \"extra\": [1, {\"a\": null}], \"latestRunNumber\": "
+                    + LATEST_RUN_NUMBER + "}")
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(fail ? 500 : 200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        endpoint = new DataEndpointRegistry.DataEndpoint(server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+
+    @AfterEach
+    void stopServer() {
+        slowGate.countDown();
+        latestGate.countDown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    void parsesTheResponse() throws Exception {
+        try (RunDataClient client = new RunDataClient(() -> endpoint, 1000, 2000, 0)) {
+            RunDataClient.RunQueryResult result = client.query(3).get(5, TimeUnit.SECONDS);
+            assertEquals(LATEST_RUN_NUMBER, result.getLatestRunNumber());
+            assertEquals(1, result.getTotalCalls());
+            assertFalse(result.isShutdown());
+            assertEquals(0, client.getFailuresTotal());
+        }
+    }
+
+    @Test
+    void failsOnAnErrorStatus() {
+        try (RunDataClient client = new RunDataClient(() -> endpoint, 1000, 2000, 0)) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> client.query(FAILING_RUN_NUMBER).get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof RunDataClient.RunDataException, e.getCause().toString());
+            assertEquals(1, client.getFailuresTotal());
+        }
+    }
+
+    @Test
+    void failsWhenTheWebserverDoesNotAnswer() {
+        try (RunDataClient client = new RunDataClient(() -> endpoint, 1000, 200, 0)) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> client.query(SLOW_RUN_NUMBER).get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof HttpTimeoutException || e.getCause() instanceof TimeoutException, e.getCause().toString());
+            assertEquals(1, client.getFailuresTotal());
+        }
+    }
+
+    @Test
+    void concurrentQueriesDoNotBlockEachOther() throws Exception {
+        try (RunDataClient client = new RunDataClient(() -> endpoint, 1000, 2000, 0)) {
+            /* More requests in flight than the client has executor threads */
+            CompletableFuture<?>[] queries = new CompletableFuture<?>[8];
+            for (int i = 0; i < queries.length; i++) {
+                queries[i] = client.query(i + 10);
+            }
+            CompletableFuture.allOf(queries).get(5, TimeUnit.SECONDS);
+            assertEquals(queries.length, serverCalls.get());
+        }
+    }
+
+    @Test
+    void concurrentCallersShareTheRequestInFlight() throws Exception {
+        latestGate = new CountDownLatch(1);
+        try (RunDataClient client = new RunDataClient(() -> endpoint, 1000, 2000, 0)) {
+            CompletableFuture<Integer> first = client.getLatestRunNumberAsync();
+            CompletableFuture<Integer> second = client.getLatestRunNumberAsync();
+            latestGate.countDown();
+            assertEquals(LATEST_RUN_NUMBER, first.get(5, TimeUnit.SECONDS));
+            assertEquals(LATEST_RUN_NUMBER, second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, serverCalls.get());
+            assertEquals(1, client.getRequestsTotal());
+            assertEquals(1, client.getCacheHitsTotal());
+
+            /* Nothing is cached once the request completed */
+            assertEquals(LATEST_RUN_NUMBER, client.getLatestRunNumberAsync().get(5, TimeUnit.SECONDS));
+            assertEquals(2, serverCalls.get());
+        }
+    }
+
+    @Test
+    void reusesTheAnswerWithinTheCacheTime() throws Exception {
+        try (RunDataClient client = new RunDataClient(() -> endpoint, 1000, 2000, 60000)) {
+            assertEquals(LATEST_RUN_NUMBER, client.getLatestRunNumberAsync().get(5, TimeUnit.SECONDS));
+            assertEquals(LATEST_RUN_NUMBER, client.getLatestRunNumberAsync().get(5, TimeUnit.SECONDS));
+            assertEquals(1, serverCalls.get());
+        }
+    }
+}
@@ -11,12 +11,44 @@ run_number = os.environ['RUN_NUMBER']
 WEBSERVER_SERVICE_SERVICE_HOST = os.environ['WEBSERVER_SERVICE_SERVICE_HOST']
 WEBSERVER_SERVICE_SERVICE_PORT = os.environ['WEBSERVER_SERVICE_SERVICE_PORT']
 url = "http://" + WEBSERVER_SERVICE_SERVICE_HOST + ":" + WEBSERVER_SERVICE_SERVICE_PORT + "/?run=" + run_number
-  
-while True:  
+# The run-state API of the Operator, set when the Operator runs with TDAQ_RUN_STATE_URL
+RUN_STATE_URL = os.environ.get('RUN_STATE_URL')
+# Set by the Operator, the other RunPipes may move to a newer run while ours keeps running
+RUN_PIPE = os.environ.get('RUN_PIPE')
+
+
+def latest_run_number(state):
+    """The latest RunNumber of our RunPipe, or of all RunPipes without RUN_PIPE"""
+    if RUN_PIPE is None:
+        return state["latest"]
+    return state["runPipes"].get(RUN_PIPE, -1)
+
+
+def wait_for_newer_run():
+    """Reads the Server-Sent Events of the Operator until the latest RunNumber of our RunPipe is above ours, returns False if the stream failed"""
+    try:
+        with urllib.request.urlopen(RUN_STATE_URL + "/runs/events", timeout=60) as stream:
+            for line in stream:
+                line = line.decode("utf-8").strip()
+                if line.startswith("data:") and latest_run_number(json.loads(line[len("data:"):])) > int(run_number):
+                    return True
+    except (OSError, ValueError) as e:
+        print("Run-state stream failed: " + str(e), flush=True)
+    return False
+
+
+# The webserver learns about our run from this first request, also when the Operator tells us when to stop
+contents = urllib.request.urlopen(url).read()
+if json.loads(contents)["shutdown"]:
+    exit(os.EX_OK)
+
+while True:
+    if RUN_STATE_URL and wait_for_newer_run():
+        exit(os.EX_OK)
     contents = urllib.request.urlopen(url).read()
     json_content = json.loads(contents)
     if json_content["shutdown"]:
         exit(os.EX_OK)
     # Sleep random time in range [4, 30), increments steps by 2
     sleep_time = randrange(4, 30, 2)
-    time.sleep(sleep_time)
\ No newline at end of file
+    time.sleep(sleep_time)